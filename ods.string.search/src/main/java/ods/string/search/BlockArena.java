@@ -0,0 +1,117 @@
+package ods.string.search;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * Hands out fixed size block buffers carved out of large direct (off-heap) ByteBuffer slabs. Freed
+ * blocks are recycled instead of being garbage collected, so a cache backed by an arena doesn't
+ * allocate any heap memory per block load.
+ */
+public class BlockArena
+{
+	/**
+	 * The target size of a single slab in bytes.
+	 */
+	private static final int SLAB_BYTES = 4 * 1024 * 1024;
+
+	private int blockSize;
+
+	/**
+	 * The maximum number of blocks the arena hands out at once.
+	 */
+	private long maxBlocks;
+
+	/**
+	 * The number of blocks carved out of each slab.
+	 */
+	private int blocksPerSlab;
+
+	/**
+	 * The number of blocks that have been carved out of the allocated slabs.
+	 */
+	private long carvedBlocks;
+
+	private ArrayList<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+
+	/**
+	 * Carved blocks that aren't currently in use.
+	 */
+	private ArrayDeque<ByteBuffer> freeBlocks = new ArrayDeque<ByteBuffer>();
+
+	/**
+	 * @param blockSize
+	 *            The size in bytes of every block.
+	 * @param maxBytes
+	 *            The maximum number of bytes of blocks handed out at once. At least one block can
+	 *            always be allocated.
+	 */
+	public BlockArena(int blockSize, long maxBytes)
+	{
+		this.blockSize = blockSize;
+		maxBlocks = Math.max(1, maxBytes / blockSize);
+		blocksPerSlab = (int) Math.min(maxBlocks, Math.max(1, SLAB_BYTES / blockSize));
+	}
+
+	/**
+	 * Returns an unused block buffer with undefined contents, or null if all blocks are in use.
+	 */
+	public ByteBuffer allocate()
+	{
+		if (freeBlocks.isEmpty())
+		{
+			if (carvedBlocks >= maxBlocks)
+				return null;
+			carveSlab();
+		}
+		ByteBuffer result = freeBlocks.pop();
+		result.clear();
+		return result;
+	}
+
+	/**
+	 * Returns a block buffer obtained from allocate() to the arena.
+	 */
+	public void free(ByteBuffer block)
+	{
+		freeBlocks.push(block);
+	}
+
+	/**
+	 * Drops all slabs so their memory can be reclaimed. Blocks handed out before must no longer be
+	 * used. The arena allocates new slabs if it's used again.
+	 */
+	public void release()
+	{
+		slabs.clear();
+		freeBlocks.clear();
+		carvedBlocks = 0;
+	}
+
+	/**
+	 * Returns the number of bytes of direct memory held by the arena.
+	 */
+	public long getAllocatedBytes()
+	{
+		long result = 0;
+		for (ByteBuffer slab : slabs)
+			result += slab.capacity();
+		return result;
+	}
+
+	private void carveSlab()
+	{
+		int slabBlocks = (int) Math.min(blocksPerSlab, maxBlocks - carvedBlocks);
+		ByteBuffer slab = ByteBuffer.allocateDirect(slabBlocks * blockSize);
+		slabs.add(slab);
+		for (int x = 0; x < slabBlocks; x++)
+		{
+			ByteBuffer view = slab.duplicate();
+			view.position(x * blockSize);
+			view.limit((x + 1) * blockSize);
+			freeBlocks.add(view.slice());
+		}
+		carvedBlocks += slabBlocks;
+	}
+}
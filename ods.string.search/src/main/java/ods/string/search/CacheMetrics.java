@@ -0,0 +1,309 @@
+package ods.string.search;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms describing how a cache is used. All methods are thread-safe.
+ * The metrics can be published as a JMX MBean with registerMBean().
+ */
+public class CacheMetrics implements CacheMetricsMBean
+{
+	private AtomicLong hits = new AtomicLong();
+
+	private AtomicLong misses = new AtomicLong();
+
+	/**
+	 * The number of blocks read from storage.
+	 */
+	private AtomicLong loads = new AtomicLong();
+
+	private AtomicLong dirtyEvictions = new AtomicLong();
+
+	private AtomicLong cleanEvictions = new AtomicLong();
+
+	private AtomicLong bytesRead = new AtomicLong();
+
+	private AtomicLong bytesWritten = new AtomicLong();
+
+	/**
+	 * The time to read, decompress and deserialize a block.
+	 */
+	private LatencyHistogram loadLatency = new LatencyHistogram();
+
+	private LatencyHistogram serializeLatency = new LatencyHistogram();
+
+	private LatencyHistogram compressLatency = new LatencyHistogram();
+
+	private LatencyHistogram writeLatency = new LatencyHistogram();
+
+	/**
+	 * The cache's live estimate of the bytes it holds in RAM.
+	 */
+	private AtomicLong inMemoryBytes;
+
+	private long memoryBudget;
+
+	/**
+	 * The name this object is registered with in the platform MBean server, if any.
+	 */
+	private ObjectName mbeanName;
+
+	/**
+	 * @param inMemoryBytes
+	 *            The counter the cache keeps its in-memory byte estimate in.
+	 * @param memoryBudget
+	 *            The maximum number of bytes the cache holds in RAM.
+	 */
+	public CacheMetrics(AtomicLong inMemoryBytes, long memoryBudget)
+	{
+		this.inMemoryBytes = inMemoryBytes;
+		this.memoryBudget = memoryBudget;
+	}
+
+	public void recordHit()
+	{
+		hits.incrementAndGet();
+	}
+
+	public void recordMiss()
+	{
+		misses.incrementAndGet();
+	}
+
+	public void recordLoad(long nanos, long bytes)
+	{
+		loads.incrementAndGet();
+		bytesRead.addAndGet(bytes);
+		loadLatency.record(nanos);
+	}
+
+	public void recordEviction(boolean dirty)
+	{
+		if (dirty)
+			dirtyEvictions.incrementAndGet();
+		else
+			cleanEvictions.incrementAndGet();
+	}
+
+	public void recordSerialize(long nanos)
+	{
+		serializeLatency.record(nanos);
+	}
+
+	public void recordCompress(long nanos)
+	{
+		compressLatency.record(nanos);
+	}
+
+	public void recordWrite(long nanos, long bytes)
+	{
+		bytesWritten.addAndGet(bytes);
+		writeLatency.record(nanos);
+	}
+
+	@Override
+	public long getHits()
+	{
+		return hits.get();
+	}
+
+	@Override
+	public long getMisses()
+	{
+		return misses.get();
+	}
+
+	@Override
+	public double getHitRate()
+	{
+		long hitCount = hits.get();
+		long total = hitCount + misses.get();
+		return total == 0 ? 0 : (double) hitCount / total;
+	}
+
+	@Override
+	public long getLoads()
+	{
+		return loads.get();
+	}
+
+	@Override
+	public long getDirtyEvictions()
+	{
+		return dirtyEvictions.get();
+	}
+
+	@Override
+	public long getCleanEvictions()
+	{
+		return cleanEvictions.get();
+	}
+
+	@Override
+	public long getBytesRead()
+	{
+		return bytesRead.get();
+	}
+
+	@Override
+	public long getBytesWritten()
+	{
+		return bytesWritten.get();
+	}
+
+	@Override
+	public long getInMemoryBytes()
+	{
+		return inMemoryBytes.get();
+	}
+
+	@Override
+	public long getMemoryBudget()
+	{
+		return memoryBudget;
+	}
+
+	public LatencyHistogram getLoadLatency()
+	{
+		return loadLatency;
+	}
+
+	public LatencyHistogram getSerializeLatency()
+	{
+		return serializeLatency;
+	}
+
+	public LatencyHistogram getCompressLatency()
+	{
+		return compressLatency;
+	}
+
+	public LatencyHistogram getWriteLatency()
+	{
+		return writeLatency;
+	}
+
+	@Override
+	public long getLoadLatencyMean()
+	{
+		return loadLatency.getMeanNanos();
+	}
+
+	@Override
+	public long getLoadLatencyP99()
+	{
+		return loadLatency.getPercentileNanos(99);
+	}
+
+	@Override
+	public long getSerializeLatencyMean()
+	{
+		return serializeLatency.getMeanNanos();
+	}
+
+	@Override
+	public long getSerializeLatencyP99()
+	{
+		return serializeLatency.getPercentileNanos(99);
+	}
+
+	@Override
+	public long getCompressLatencyMean()
+	{
+		return compressLatency.getMeanNanos();
+	}
+
+	@Override
+	public long getCompressLatencyP99()
+	{
+		return compressLatency.getPercentileNanos(99);
+	}
+
+	@Override
+	public long getWriteLatencyMean()
+	{
+		return writeLatency.getMeanNanos();
+	}
+
+	@Override
+	public long getWriteLatencyP99()
+	{
+		return writeLatency.getPercentileNanos(99);
+	}
+
+	/**
+	 * Zeroes all counters and histograms. The in-memory byte count is owned by the cache and isn't
+	 * affected.
+	 */
+	@Override
+	public void reset()
+	{
+		hits.set(0);
+		misses.set(0);
+		loads.set(0);
+		dirtyEvictions.set(0);
+		cleanEvictions.set(0);
+		bytesRead.set(0);
+		bytesWritten.set(0);
+		loadLatency.reset();
+		serializeLatency.reset();
+		compressLatency.reset();
+		writeLatency.reset();
+	}
+
+	/**
+	 * Publishes these metrics in the platform MBean server as
+	 * "ods.string.search:type=CacheMetrics,name=<name>", replacing any previous registration of
+	 * this object.
+	 */
+	public synchronized void registerMBean(String name)
+	{
+		unregisterMBean();
+		try
+		{
+			ObjectName objectName = new ObjectName("ods.string.search:type=CacheMetrics,name="
+					+ ObjectName.quote(name));
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (server.isRegistered(objectName))
+				server.unregisterMBean(objectName);
+			server.registerMBean(this, objectName);
+			mbeanName = objectName;
+		} catch (JMException e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Removes these metrics from the platform MBean server if they were registered.
+	 */
+	public synchronized void unregisterMBean()
+	{
+		if (mbeanName == null)
+			return;
+		try
+		{
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+		} catch (JMException e)
+		{
+			throw new RuntimeException(e);
+		}
+		mbeanName = null;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Hits: " + getHits() + ", Misses: " + getMisses() + ", Loads: " + getLoads()
+				+ ", Dirty Evictions: " + getDirtyEvictions() + ", Clean Evictions: "
+				+ getCleanEvictions() + ", Bytes Read: " + getBytesRead() + ", Bytes Written: "
+				+ getBytesWritten() + ", In-Memory Bytes: " + getInMemoryBytes() + "/"
+				+ getMemoryBudget() + ", Mean Load: " + getLoadLatencyMean() + "ns, P99 Load: "
+				+ getLoadLatencyP99() + "ns";
+	}
+}
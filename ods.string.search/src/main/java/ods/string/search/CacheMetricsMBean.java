@@ -0,0 +1,45 @@
+package ods.string.search;
+
+/**
+ * The JMX view of a CacheMetrics. All latencies are in nanoseconds.
+ */
+public interface CacheMetricsMBean
+{
+	long getHits();
+
+	long getMisses();
+
+	double getHitRate();
+
+	long getLoads();
+
+	long getDirtyEvictions();
+
+	long getCleanEvictions();
+
+	long getBytesRead();
+
+	long getBytesWritten();
+
+	long getInMemoryBytes();
+
+	long getMemoryBudget();
+
+	long getLoadLatencyMean();
+
+	long getLoadLatencyP99();
+
+	long getSerializeLatencyMean();
+
+	long getSerializeLatencyP99();
+
+	long getCompressLatencyMean();
+
+	long getCompressLatencyP99();
+
+	long getWriteLatencyMean();
+
+	long getWriteLatencyP99();
+
+	void reset();
+}
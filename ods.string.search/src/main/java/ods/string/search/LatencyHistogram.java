@@ -0,0 +1,89 @@
+package ods.string.search;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread-safe histogram of latencies in nanoseconds. Bucket i counts latencies below 2^i ns
+ * that didn't fit in bucket i-1, so percentiles are accurate to within a factor of 2 while
+ * recording is a couple of atomic increments.
+ */
+public class LatencyHistogram
+{
+	private static final int BUCKETS = 64;
+
+	private AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+	private AtomicLong count = new AtomicLong();
+
+	private AtomicLong totalNanos = new AtomicLong();
+
+	private AtomicLong maxNanos = new AtomicLong();
+
+	public void record(long nanos)
+	{
+		if (nanos < 0)
+			nanos = 0;
+		buckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos)));
+		count.incrementAndGet();
+		totalNanos.addAndGet(nanos);
+
+		long max = maxNanos.get();
+		while (nanos > max && !maxNanos.compareAndSet(max, nanos))
+			max = maxNanos.get();
+	}
+
+	public long getCount()
+	{
+		return count.get();
+	}
+
+	public long getTotalNanos()
+	{
+		return totalNanos.get();
+	}
+
+	public long getMaxNanos()
+	{
+		return maxNanos.get();
+	}
+
+	public long getMeanNanos()
+	{
+		long samples = count.get();
+		return samples == 0 ? 0 : totalNanos.get() / samples;
+	}
+
+	/**
+	 * Returns the upper bound of the bucket containing the specified percentile of the recorded
+	 * latencies, or 0 if nothing has been recorded.
+	 *
+	 * @param percentile
+	 *            A value between 0 and 100.
+	 */
+	public long getPercentileNanos(double percentile)
+	{
+		long samples = count.get();
+		if (samples == 0)
+			return 0;
+
+		long target = (long) Math.ceil(samples * percentile / 100.);
+		long seen = 0;
+		for (int x = 0; x < BUCKETS; x++)
+		{
+			seen += buckets.get(x);
+			if (seen >= target && seen > 0)
+				return Math.min(x == BUCKETS - 1 ? Long.MAX_VALUE : (1L << x) - 1, maxNanos.get());
+		}
+		return maxNanos.get();
+	}
+
+	public void reset()
+	{
+		for (int x = 0; x < BUCKETS; x++)
+			buckets.set(x, 0);
+		count.set(0);
+		totalNanos.set(0);
+		maxNanos.set(0);
+	}
+}
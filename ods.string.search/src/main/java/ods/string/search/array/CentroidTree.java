@@ -39,6 +39,24 @@ public class CentroidTree implements PrefixSearchableSet<String>
 		emptyNode = new CentroidTreeNode(maxStringLength);
 	}
 
+	/**
+	 * @param storageType
+	 *            MEMORY_MAPPED stores the tree nodes in a memory-mapped file, in which case
+	 *            cacheSize only applies to the temporary arrays used while rebalancing.
+	 */
+	public CentroidTree(File treeDirectory, long cacheSize, int maxStringSize,
+			BstTreeIndexLayout indexLayout, boolean compress,
+			ExternalMemoryCache.StorageType storageType)
+	{
+		this.indexLayout = indexLayout;
+		this.treeDirectory = treeDirectory;
+		this.cacheSize = cacheSize;
+		array = new ExternalMemoryCache<CentroidTreeNode>(treeDirectory, cacheSize, 10000, compress,
+				storageType);
+		maxStringLength = maxStringSize;
+		emptyNode = new CentroidTreeNode(maxStringLength);
+	}
+
 	public boolean add(String value)
 	{
 		CentroidTreeNode node = new CentroidTreeNode(maxStringLength);
@@ -228,8 +228,11 @@ public class CentroidTreeNode implements ExternalMemoryNode
 		valueEnd = bytes.get(startIndex) == 1;
 		bitsUsed = bytes.getInt(startIndex + 1);
 		subtreeSize = bytes.getLong(startIndex + 5);
+		ByteBuffer source = bytes.duplicate();
+		source.position(startIndex + 13);
+		source.limit(startIndex + 13 + (int) Math.ceil(bitsUsed / 8.));
 		bits.rewind();
-		bits.put(bytes.array(), startIndex + 13, (int) Math.ceil(bitsUsed / 8.));
+		bits.put(source);
 	}
 
 	@Override
@@ -1,22 +1,57 @@
 package ods.string.search.array;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ods.string.search.BlockArena;
+import ods.string.search.CacheMetrics;
 
 import org.xerial.snappy.SnappyInputStream;
 import org.xerial.snappy.SnappyOutputStream;
 
+/**
+ * An array of fixed size nodes split into blocks that are cached in RAM up to cacheSize bytes and
+ * flushed to disk in LRU order. Cached blocks live in an off-heap BlockArena whose buffers are
+ * reused as blocks are flushed and loaded, so block loads don't allocate heap memory.
+ * 
+ * In MEMORY_MAPPED mode the array is instead stored uncompressed in a single file that is mapped
+ * into memory in large regions. Nodes are read and written directly through the mappings and the
+ * OS page cache does all the caching.
+ */
 public class ExternalMemoryCache<T extends ExternalMemoryNode>
 {
+	/**
+	 * BLOCK_FILES caches blocks in RAM and stores each flushed block in its own, optionally
+	 * compressed, file. MEMORY_MAPPED maps a single uncompressed file into memory.
+	 */
+	public enum StorageType
+	{
+		BLOCK_FILES, MEMORY_MAPPED
+	}
+
+	/**
+	 * The target size of a single mapped region of the array file. Regions always hold a whole
+	 * number of blocks so nodes never span two regions.
+	 */
+	private static final int MAPPED_REGION_BYTES = 64 * 1024 * 1024;
+
 	private class Block
 	{
 		public boolean dirty = false;
@@ -35,23 +70,86 @@ public class ExternalMemoryCache<T extends ExternalMemoryNode>
 	private LinkedHashMap<Long, Block> cachedBlocks = new LinkedHashMap<Long, Block>(16, 0.75f,
 			true);
 
+	/**
+	 * Provides the direct memory of the cached blocks. At most cacheSize bytes are handed out.
+	 */
+	private BlockArena arena;
+
+	/**
+	 * A reusable heap copy of a block, since the Snappy streams only work on byte arrays.
+	 */
+	private byte[] transferBuffer;
+
+	/**
+	 * Reused to hold a compressed block before it's written to its file.
+	 */
+	private ByteArrayOutputStream compressBuffer = new ByteArrayOutputStream();
+
+	/**
+	 * The number of bytes of cached blocks.
+	 */
+	private AtomicLong inMemoryBytes = new AtomicLong();
+
+	/**
+	 * Hit, eviction and latency statistics of the block cache. Accesses in MEMORY_MAPPED mode
+	 * aren't recorded since the OS does the caching.
+	 */
+	private CacheMetrics metrics;
+
+	private StorageType storageType;
+
+	/**
+	 * The array file used in MEMORY_MAPPED mode. Opened on first access.
+	 */
+	private FileChannel mappedFile;
+
+	/**
+	 * The mapped regions of the array file by region number. Regions that haven't been accessed yet
+	 * are null.
+	 */
+	private ArrayList<MappedByteBuffer> mappedRegions = new ArrayList<MappedByteBuffer>();
+
+	/**
+	 * The number of blocks in a single mapped region.
+	 */
+	private int blocksPerRegion;
+
 	public ExternalMemoryCache(File directory, long cacheSize)
 	{
-		init(directory, cacheSize, 100000, true);
+		init(directory, cacheSize, 100000, true, StorageType.BLOCK_FILES);
 	}
 
 	public ExternalMemoryCache(File directory, long cacheSize, int blockSize, boolean compress)
 	{
-		init(directory, cacheSize, blockSize, compress);
+		init(directory, cacheSize, blockSize, compress, StorageType.BLOCK_FILES);
+	}
+
+	/**
+	 * @param storageType
+	 *            In MEMORY_MAPPED mode cacheSize and compress are ignored, since the OS decides
+	 *            which parts of the mapped file stay in RAM.
+	 */
+	public ExternalMemoryCache(File directory, long cacheSize, int blockSize, boolean compress,
+			StorageType storageType)
+	{
+		init(directory, cacheSize, blockSize, compress, storageType);
 	}
 
-	private void init(File directory, long cacheSize, int blockSize, boolean compress)
+	private void init(File directory, long cacheSize, int blockSize, boolean compress,
+			StorageType storageType)
 	{
 		storageDirectory = directory;
 		storageDirectory.mkdirs();
 		this.cacheSize = cacheSize;
 		this.blockSize = blockSize;
 		this.compress = compress;
+		this.storageType = storageType;
+		metrics = new CacheMetrics(inMemoryBytes, storageType == StorageType.MEMORY_MAPPED ? 0
+				: cacheSize);
+		if (storageType == StorageType.MEMORY_MAPPED)
+			blocksPerRegion = Math.max(1, MAPPED_REGION_BYTES / blockSize);
+		else
+			arena = new BlockArena(blockSize, cacheSize);
 	}
 
 	public void set(long index, T data)
@@ -61,10 +159,17 @@ public class ExternalMemoryCache<T extends ExternalMemoryNode>
 
 		int indicesPerBlock = blockSize / data.byteSize();
 		long block = index / indicesPerBlock;
-		Block blockBytes = getBlock(block);
 		long blockStartIndex = block * indicesPerBlock;
+		int offset = (int) ((index - blockStartIndex) * data.byteSize());
+		if (storageType == StorageType.MEMORY_MAPPED)
+		{
+			data.writeBytes(getMappedRegion(block), getMappedOffset(block) + offset);
+			return;
+		}
+
+		Block blockBytes = getBlock(block);
 		blockBytes.dirty = true;
-		data.writeBytes(blockBytes.data, (int) ((index - blockStartIndex) * data.byteSize()));
+		data.writeBytes(blockBytes.data, offset);
 	}
 
 	public void get(long index, T result)
@@ -74,9 +179,15 @@ public class ExternalMemoryCache<T extends ExternalMemoryNode>
 
 		int indicesPerBlock = blockSize / result.byteSize();
 		long block = index / indicesPerBlock;
-		Block blockBytes = getBlock(block);
 		long blockStartIndex = block * indicesPerBlock;
-		result.setFromBytes(blockBytes.data, (int) ((index - blockStartIndex) * result.byteSize()));
+		int offset = (int) ((index - blockStartIndex) * result.byteSize());
+		if (storageType == StorageType.MEMORY_MAPPED)
+		{
+			result.setFromBytes(getMappedRegion(block), getMappedOffset(block) + offset);
+			return;
+		}
+
+		result.setFromBytes(getBlock(block).data, offset);
 	}
 
 	private Block getBlock(long block)
@@ -84,32 +195,28 @@ public class ExternalMemoryCache<T extends ExternalMemoryNode>
 		Block blockBytes = cachedBlocks.get(block);
 		try
 		{
-			if (blockBytes == null)
+			if (blockBytes != null)
+				metrics.recordHit();
+			else
 			{
-				blockBytes = new Block(ByteBuffer.allocate(blockSize));
-				File blockFile = new File(storageDirectory, (block >> 15) + "/" + block + "");
-				if (blockFile.exists())
-				{
-					InputStream is = new FileInputStream(blockFile);
-					if (compress)
-						is = new SnappyInputStream(is);
-					int bytesRemaining = blockSize;
-					while (bytesRemaining > 0)
-					{
-						int bytesRead = is.read(blockBytes.data.array(),
-								blockSize - bytesRemaining, bytesRemaining);
-						bytesRemaining -= bytesRead;
-					}
-					is.close();
-				}
-				cachedBlocks.put(block, blockBytes);
-
-				if (cachedBlocks.size() * blockSize > cacheSize)
+				metrics.recordMiss();
+				ByteBuffer buffer = arena.allocate();
+				if (buffer == null)
 				{
 					Iterator<Entry<Long, Block>> iter = cachedBlocks.entrySet().iterator();
 					long flushBlockNum = iter.next().getKey();
 					flushBlock(flushBlockNum);
+					buffer = arena.allocate();
 				}
+				blockBytes = new Block(buffer);
+
+				File blockFile = new File(storageDirectory, (block >> 15) + "/" + block + "");
+				if (blockFile.exists())
+					readBlock(blockFile, buffer);
+				else
+					clearBlock(buffer);
+				cachedBlocks.put(block, blockBytes);
+				inMemoryBytes.addAndGet(blockSize);
 			}
 		} catch (Exception e)
 		{
@@ -118,25 +225,150 @@ public class ExternalMemoryCache<T extends ExternalMemoryNode>
 		return blockBytes;
 	}
 
+	/**
+	 * Returns the mapped region of the array file containing the specified block, mapping it first
+	 * if necessary. Mapping past the end of the file grows the file.
+	 */
+	private MappedByteBuffer getMappedRegion(long block)
+	{
+		int region = (int) (block / blocksPerRegion);
+		while (mappedRegions.size() <= region)
+			mappedRegions.add(null);
+
+		MappedByteBuffer result = mappedRegions.get(region);
+		if (result == null)
+		{
+			try
+			{
+				if (mappedFile == null)
+					mappedFile = new RandomAccessFile(new File(storageDirectory, "array.dat"), "rw")
+							.getChannel();
+				long regionBytes = (long) blocksPerRegion * blockSize;
+				result = mappedFile.map(MapMode.READ_WRITE, region * regionBytes, regionBytes);
+			} catch (IOException e)
+			{
+				throw new RuntimeException(e);
+			}
+			mappedRegions.set(region, result);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the offset of the specified block within its mapped region.
+	 */
+	private int getMappedOffset(long block)
+	{
+		return (int) (block % blocksPerRegion) * blockSize;
+	}
+
+	private void readBlock(File blockFile, ByteBuffer buffer) throws IOException
+	{
+		long startTime = System.nanoTime();
+		if (compress)
+		{
+			InputStream is = new SnappyInputStream(new FileInputStream(blockFile));
+			byte[] bytes = getTransferBuffer();
+			int bytesRemaining = blockSize;
+			while (bytesRemaining > 0)
+			{
+				int bytesRead = is.read(bytes, blockSize - bytesRemaining, bytesRemaining);
+				bytesRemaining -= bytesRead;
+			}
+			is.close();
+			buffer.put(bytes, 0, blockSize);
+		} else
+		{
+			FileChannel channel = new RandomAccessFile(blockFile, "r").getChannel();
+			while (buffer.hasRemaining())
+			{
+				if (channel.read(buffer) < 0)
+					break;
+			}
+			channel.close();
+		}
+		buffer.clear();
+		metrics.recordLoad(System.nanoTime() - startTime, blockFile.length());
+	}
+
+	private void clearBlock(ByteBuffer buffer)
+	{
+		byte[] bytes = getTransferBuffer();
+		Arrays.fill(bytes, (byte) 0);
+		buffer.put(bytes, 0, blockSize);
+		buffer.clear();
+	}
+
+	private byte[] getTransferBuffer()
+	{
+		if (transferBuffer == null)
+			transferBuffer = new byte[blockSize];
+		return transferBuffer;
+	}
+
 	private void flushBlock(long block)
 	{
 		Block flushBlock = cachedBlocks.remove(block);
+		inMemoryBytes.addAndGet(-blockSize);
+		metrics.recordEviction(flushBlock.dirty);
 		if (flushBlock.dirty)
 		{
 			try
 			{
 				File blockDir = new File(storageDirectory, (block >> 15) + "");
 				blockDir.mkdirs();
-				OutputStream os = new FileOutputStream(new File(blockDir, block + ""));
+				ByteBuffer data = flushBlock.data;
+				data.clear();
 				if (compress)
-					os = new SnappyOutputStream(os);
-				os.write(flushBlock.data.array());
-				os.close();
+				{
+					byte[] bytes = getTransferBuffer();
+					data.get(bytes, 0, blockSize);
+					long startTime = System.nanoTime();
+					compressBuffer.reset();
+					OutputStream os = new SnappyOutputStream(compressBuffer);
+					os.write(bytes, 0, blockSize);
+					os.close();
+					metrics.recordCompress(System.nanoTime() - startTime);
+
+					startTime = System.nanoTime();
+					os = new FileOutputStream(new File(blockDir, block + ""));
+					compressBuffer.writeTo(os);
+					os.close();
+					metrics.recordWrite(System.nanoTime() - startTime, compressBuffer.size());
+				} else
+				{
+					long startTime = System.nanoTime();
+					FileChannel channel = new FileOutputStream(new File(blockDir, block + ""))
+							.getChannel();
+					while (data.hasRemaining())
+						channel.write(data);
+					channel.close();
+					metrics.recordWrite(System.nanoTime() - startTime, blockSize);
+				}
 			} catch (IOException e)
 			{
 				throw new RuntimeException(e);
 			}
 		}
+		arena.free(flushBlock.data);
+	}
+
+	/**
+	 * Returns the number of bytes of direct memory held for cached blocks, which never exceeds the
+	 * cache size by more than one block.
+	 */
+	public long getAllocatedBytes()
+	{
+		return arena == null ? 0 : arena.getAllocatedBytes();
+	}
+
+	/**
+	 * Returns the hit, eviction and latency statistics of this cache. They can be published over
+	 * JMX with CacheMetrics.registerMBean().
+	 */
+	public CacheMetrics getMetrics()
+	{
+		return metrics;
 	}
 
 	public void close()
@@ -145,5 +377,27 @@ public class ExternalMemoryCache<T extends ExternalMemoryNode>
 		{
 			flushBlock(block);
 		}
+		if (arena != null)
+			arena.release();
+		transferBuffer = null;
+
+		// Mappings can't be released explicitly, they're unmapped once garbage collected.
+		for (MappedByteBuffer region : mappedRegions)
+		{
+			if (region != null)
+				region.force();
+		}
+		mappedRegions.clear();
+		if (mappedFile != null)
+		{
+			try
+			{
+				mappedFile.close();
+			} catch (IOException e)
+			{
+				throw new RuntimeException(e);
+			}
+			mappedFile = null;
+		}
 	}
 }
@@ -1,15 +1,16 @@
 package ods.string.search.partition;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
-import java.io.ObjectInput;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutput;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 import ods.string.search.partition.splitsets.SplittableSet;
 
@@ -143,7 +144,7 @@ public class BinaryPatriciaTrie<T extends Comparable<T> & Serializable> implemen
 		 * <right child serialization>
 		 * </pre>
 		 */
-		public void writeExternal(ObjectOutput out) throws IOException
+		public void writeExternal(DataOutput out) throws IOException
 		{
 			byte flags = 0;
 			if (subtreeSize == 0)
@@ -186,7 +187,7 @@ public class BinaryPatriciaTrie<T extends Comparable<T> & Serializable> implemen
 		 * <right child serialization>
 		 * </pre>
 		 */
-		public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException
+		public void readExternal(DataInput in) throws IOException
 		{
 			byte flags = in.readByte();
 
@@ -198,11 +199,7 @@ public class BinaryPatriciaTrie<T extends Comparable<T> & Serializable> implemen
 			else
 				bits.bitsUsed = in.readInt();
 			bits.label = new byte[(int) Math.ceil(bits.bitsUsed / 8.)];
-			int bytesRead = 0;
-			while (bytesRead < bits.label.length)
-			{
-				bytesRead += in.read(bits.label, bytesRead, bits.label.length - bytesRead);
-			}
+			in.readFully(bits.label);
 
 			if ((flags & 0x80) != 0)
 			{
@@ -293,7 +290,35 @@ public class BinaryPatriciaTrie<T extends Comparable<T> & Serializable> implemen
 		}
 	}
 
+	/**
+	 * Stores integers with their sign bit flipped so the byte order of the stored values matches
+	 * their numeric order.
+	 */
 	private static class IntegerConversion implements ByteArrayConversion, Serializable
+	{
+		private static final long serialVersionUID = 4105926519358346337L;
+
+		@Override
+		public byte[] getBytes(Object val)
+		{
+			ByteBuffer result = ByteBuffer.allocate(4);
+			result.putInt((int) val ^ Integer.MIN_VALUE);
+			return result.array();
+		}
+
+		@Override
+		public Object readFromBytes(byte[] bytes)
+		{
+			ByteBuffer result = ByteBuffer.wrap(bytes);
+			return result.getInt() ^ Integer.MIN_VALUE;
+		}
+	}
+
+	/**
+	 * The integer format of tries written before IntegerConversion preserved the numeric order.
+	 * Negative values sort after positive ones in these tries.
+	 */
+	private static class LegacyIntegerConversion implements ByteArrayConversion, Serializable
 	{
 		private static final long serialVersionUID = -2746654070188456294L;
 
@@ -380,6 +405,23 @@ public class BinaryPatriciaTrie<T extends Comparable<T> & Serializable> implemen
 		return matchedBits;
 	}
 
+	/**
+	 * Compares two bit strings bit by bit, where a bit string is smaller than the strings it's a
+	 * prefix of. This is the order the trie stores its strings in.
+	 * 
+	 * @return A negative number, zero or a positive number if the first bit string is smaller than,
+	 *         equal to or larger than the second one.
+	 */
+	public static int compareBits(BitString node1, BitString node2)
+	{
+		int matchedBits = getCommonPrefixBits(node1, node2);
+		if (matchedBits == node1.bitsUsed || matchedBits == node2.bitsUsed)
+			return node1.bitsUsed - node2.bitsUsed;
+		if ((node1.label[matchedBits / 8] & (128 >> (matchedBits % 8))) == 0)
+			return -1;
+		return 1;
+	}
+
 	/**
 	 * 
 	 * @param prefixNode
@@ -422,6 +464,12 @@ public class BinaryPatriciaTrie<T extends Comparable<T> & Serializable> implemen
 
 	protected transient ByteArrayConversion converter;
 
+	/**
+	 * True if this trie was read from a Java serialized stream that predates the order preserving
+	 * integer format, so integers must keep using LegacyIntegerConversion.
+	 */
+	private transient boolean legacyIntegers;
+
 	private transient boolean dirty = true;
 	private long dataBytesEstimate = 0;
 
@@ -567,7 +615,8 @@ public class BinaryPatriciaTrie<T extends Comparable<T> & Serializable> implemen
 			if (x instanceof String)
 				converter = new StringConversion();
 			else if (x instanceof Integer)
-				converter = new IntegerConversion();
+				converter = legacyIntegers ? new LegacyIntegerConversion()
+						: new IntegerConversion();
 		}
 	}
 
@@ -774,6 +823,36 @@ public class BinaryPatriciaTrie<T extends Comparable<T> & Serializable> implemen
 		private ArrayList<SearchPoint> uncheckNodes = new ArrayList<SearchPoint>();
 		private Object nextResult;
 
+		/**
+		 * The smallest string to return (inclusive), or null to start at the first one.
+		 */
+		private BitString rangeStart;
+
+		/**
+		 * The string to stop at (exclusive), or null to continue to the last one.
+		 */
+		private BitString rangeEnd;
+
+		/**
+		 * Iterates over the strings in the range [from, to) in order. Subtrees and pointer nodes
+		 * whose strings all lie outside the range are skipped, and the iteration ends at the first
+		 * node past the range since nodes are visited in order.
+		 * 
+		 * @param from
+		 *            The smallest string to return (inclusive), or null to start at the first one.
+		 * @param to
+		 *            The string to stop at (exclusive), or null to continue to the last one.
+		 */
+		public TrieIteratorParent(byte[] from, byte[] to)
+		{
+			if (from != null)
+				rangeStart = new BitString(from);
+			if (to != null)
+				rangeEnd = new BitString(to);
+			uncheckNodes.add(new SearchPoint(r, new BitString(Arrays.copyOf(r.bits.label,
+					r.bits.label.length), r.bits.bitsUsed)));
+		}
+
 		public TrieIteratorParent(byte[] prefix)
 		{
 			SearchPoint result = findLastNode(prefix);
@@ -811,13 +890,30 @@ public class BinaryPatriciaTrie<T extends Comparable<T> & Serializable> implemen
 			{
 				SearchPoint result = uncheckNodes.remove(uncheckNodes.size() - 1);
 
+				// Every node visited after one past the range is also past it.
+				if (rangeEnd != null && compareBits(result.leftOver, rangeEnd) >= 0)
+				{
+					uncheckNodes.clear();
+					return false;
+				}
+
+				/*
+				 * A node below the range can only have strings in the range under it if it's a
+				 * prefix of the range start.
+				 */
+				BitString leftOver = result.leftOver;
+				boolean belowRange = rangeStart != null && compareBits(leftOver, rangeStart) < 0;
+				if (belowRange && getCommonPrefixBits(leftOver, rangeStart) < leftOver.bitsUsed)
+					continue;
+
 				Node rightChild = result.lastMatchingNode.rightChild;
 				generateSearchNode(result, uncheckNodes, rightChild);
 
 				Node leftChild = result.lastMatchingNode.leftChild;
 				generateSearchNode(result, uncheckNodes, leftChild);
 
-				if (result.lastMatchingNode.valueEnd || result.lastMatchingNode.subtreeSize == 0)
+				if ((result.lastMatchingNode.valueEnd && !belowRange)
+						|| result.lastMatchingNode.subtreeSize == 0)
 				{
 					nextResult = getNextReturnResult(result);
 					return true;
@@ -864,6 +960,11 @@ public class BinaryPatriciaTrie<T extends Comparable<T> & Serializable> implemen
 			super(prefix);
 		}
 
+		public TrieIterator(byte[] from, byte[] to)
+		{
+			super(from, to);
+		}
+
 		protected Object getNextReturnResult(SearchPoint result)
 		{
 			return converter.readFromBytes(result.leftOver.label);
@@ -886,6 +987,11 @@ public class BinaryPatriciaTrie<T extends Comparable<T> & Serializable> implemen
 			super(prefix);
 		}
 
+		public TrieIteratorSearchPoints(byte[] from, byte[] to)
+		{
+			super(from, to);
+		}
+
 		protected Object getNextReturnResult(SearchPoint result)
 		{
 			return result;
@@ -898,14 +1004,30 @@ public class BinaryPatriciaTrie<T extends Comparable<T> & Serializable> implemen
 		}
 	}
 
+	/**
+	 * Returns the elements in the range [from, to) in the trie's order, which compares the
+	 * elements' bytes. A null bound leaves that end of the range open.
+	 */
 	@Override
 	public Iterator<T> iterator(T from, T to)
 	{
-		if (from == null)
+		byte[] fromBytes = from == null ? null : convertToBytes(from);
+		byte[] toBytes = to == null ? null : convertToBytes(to);
+		if (fromBytes != null && toBytes != null
+				&& compareBits(new BitString(fromBytes), new BitString(toBytes)) > 0)
+			return new TrieIterator(toBytes, fromBytes);
+		return new TrieIterator(fromBytes, toBytes);
+	}
+
+	/**
+	 * Returns the elements that start with the specified prefix.
+	 */
+	public Iterator<T> prefixIterator(T prefix)
+	{
+		if (prefix == null)
 			throw new IllegalArgumentException("The trie doesn't store null values.");
 
-		byte[] bytesToFind = convertToBytes(from);
-		return new TrieIterator(bytesToFind);
+		return new TrieIterator(convertToBytes(prefix));
 	}
 
 	@Override
@@ -922,16 +1044,175 @@ public class BinaryPatriciaTrie<T extends Comparable<T> & Serializable> implemen
 		return new TrieIteratorSearchPoints(prefix);
 	}
 
+	/**
+	 * Returns the nodes storing a string in the range [from, to) and the pointer nodes to other
+	 * partitions that can hold strings in the range, in order. A null bound leaves that end of the
+	 * range open.
+	 */
+	public Iterator<SearchPoint> iterator(byte[] from, byte[] to)
+	{
+		return new TrieIteratorSearchPoints(from, to);
+	}
+
+	/**
+	 * Moves the elements greater than or equal to x into a new trie and returns it. Only the nodes
+	 * on x's path are visited: the subtrees branching off it to the larger side are detached and
+	 * hung under a copy of the path in the new trie, after which both paths are compressed again.
+	 */
 	@Override
 	public SplittableSet<T> split(T x)
 	{
-		return split(x, 0);
+		BinaryPatriciaTrie<T> result = new BinaryPatriciaTrie<T>();
+		result.converter = converter;
+		result.legacyIntegers = legacyIntegers;
+		if (x == null)
+			return result;
+
+		BitString target = new BitString(convertToBytes(x));
+		int matchedBits = getMatchingBits(target, 0, r.bits);
+		if (matchedBits < r.bits.bitsUsed)
+		{
+			// Every element extends the root's label, so they all lie on the same side of x.
+			if (isEdgeLarger(target, 0, r.bits, matchedBits))
+			{
+				result.r = r;
+				result.n = n;
+				result.dataBytesEstimate = dataBytesEstimate;
+				r = new Node(new byte[0]);
+				n = 0;
+				dataBytesEstimate = 0;
+				dirty = true;
+			}
+			return result;
+		}
+
+		result.r = new Node(copyLabel(r.bits));
+		Node curNode = r;
+		Node mirror = result.r;
+		int labelBits = r.bits.bitsUsed;
+		while (true)
+		{
+			if (labelBits == target.bitsUsed)
+			{
+				// x itself and every string extending it move.
+				mirror.valueEnd = curNode.valueEnd;
+				curNode.valueEnd = false;
+				moveChild(curNode, mirror, false);
+				moveChild(curNode, mirror, true);
+				break;
+			}
+
+			boolean goRight = isBitSet(target.label, labelBits);
+			if (!goRight)
+				moveChild(curNode, mirror, true);
+			Node nextNode = goRight ? curNode.rightChild : curNode.leftChild;
+			if (nextNode == null)
+				break;
+			matchedBits = getMatchingBits(target, labelBits, nextNode.bits);
+			if (matchedBits < nextNode.bits.bitsUsed)
+			{
+				if (isEdgeLarger(target, labelBits, nextNode.bits, matchedBits))
+					moveChild(curNode, mirror, goRight);
+				break;
+			}
+			if (nextNode.subtreeSize == 0)
+				break;
+
+			Node mirrorChild = new Node(copyLabel(nextNode.bits));
+			mirrorChild.parent = mirror;
+			if (goRight)
+				mirror.rightChild = mirrorChild;
+			else
+				mirror.leftChild = mirrorChild;
+			mirror = mirrorChild;
+			curNode = nextNode;
+			labelBits += nextNode.bits.bitsUsed;
+		}
+
+		repairPath(curNode);
+		result.repairPath(mirror);
+
+		result.dataBytesEstimate = dataBytesEstimate * result.r.subtreeSize
+				/ (r.subtreeSize + result.r.subtreeSize);
+		dataBytesEstimate -= result.dataBytesEstimate;
+		// Only the smaller of the two tries needs its elements counted.
+		if (result.r.subtreeSize < r.subtreeSize)
+			result.n = countValues(result.r);
+		else
+			result.n = n - countValues(r);
+		n -= result.n;
+		dirty = true;
+		return result;
+	}
+
+	/**
+	 * Moves a child subtree of the specified node to the same side of its copy in another trie.
+	 */
+	private static void moveChild(Node from, Node to, boolean right)
+	{
+		Node child = right ? from.rightChild : from.leftChild;
+		if (child == null)
+			return;
+
+		child.parent = to;
+		if (right)
+		{
+			to.rightChild = child;
+			from.rightChild = null;
+		} else
+		{
+			to.leftChild = child;
+			from.leftChild = null;
+		}
 	}
 
-	public SplittableSet<T> split(T x, int minPartitionDepth)
+	/**
+	 * Recomputes the subtree sizes from the specified node up to the root, removing or compressing
+	 * the nodes on the way that no longer hold an element and have fewer than two children.
+	 */
+	private void repairPath(Node node)
+	{
+		while (node != null)
+		{
+			Node parent = node.parent;
+			updateSubtreeSize(node);
+			if (parent != null && !node.valueEnd)
+			{
+				if (node.leftChild == null && node.rightChild == null)
+				{
+					if (parent.leftChild == node)
+						parent.leftChild = null;
+					else
+						parent.rightChild = null;
+				} else if (node.leftChild == null || node.rightChild == null)
+					compressNode(parent, node);
+			}
+			node = parent;
+		}
+	}
+
+	/**
+	 * Returns the number of elements stored in the specified subtree.
+	 */
+	private static int countValues(Node node)
+	{
+		if (node == null)
+			return 0;
+		return (node.valueEnd ? 1 : 0) + countValues(node.leftChild) + countValues(node.rightChild);
+	}
+
+	/**
+	 * Moves a subtree holding about half of the nodes of this trie into a new trie partition and
+	 * replaces it with a pointer node to the new partition.
+	 * 
+	 * @param minPartitionDepth
+	 *            The minimum depth of the moved subtree's root unless a single node is moved.
+	 */
+	public BinaryPatriciaTrie<T> splitPartition(int minPartitionDepth)
 	{
 		BinaryPatriciaTrie<T> result = new BinaryPatriciaTrie<T>();
 		result.converter = converter;
+		result.legacyIntegers = legacyIntegers;
 
 		int idealSize = r.subtreeSize >> 1;
 
@@ -989,10 +1270,114 @@ public class BinaryPatriciaTrie<T extends Comparable<T> & Serializable> implemen
 		return result;
 	}
 
+	/**
+	 * Moves all elements of t, which must be greater than the elements of this trie, into this
+	 * trie. The nodes of t are grafted onto this trie instead of being added one by one. Since
+	 * every element of t is larger, the two tries only overlap along a single path, so only the
+	 * nodes on that path are merged.
+	 */
 	@Override
 	public boolean merge(SplittableSet<T> t)
 	{
-		BinaryPatriciaTrie<T> childTrie = (BinaryPatriciaTrie<T>) t;
+		BinaryPatriciaTrie<T> higherTrie = (BinaryPatriciaTrie<T>) t;
+		if (higherTrie.size() == 0)
+			return true;
+
+		BitString largest = copyLabel(r.bits);
+		BitString smallest = copyLabel(higherTrie.r.bits);
+		if (maxValue(r, largest) && minValue(higherTrie.r, smallest)
+				&& compareBits(smallest, largest) <= 0)
+			throw new IllegalArgumentException(
+					"The passed in set must contain elements of greater value.");
+
+		if (converter == null)
+			converter = higherTrie.converter;
+		if (r.bits.bitsUsed == higherTrie.r.bits.bitsUsed
+				&& getCommonPrefixBits(r.bits, higherTrie.r.bits) == r.bits.bitsUsed)
+		{
+			mergeNodes(r, higherTrie.r);
+			n += higherTrie.n;
+			dataBytesEstimate += higherTrie.dataBytesEstimate;
+		} else
+		{
+			// Partition roots with different labels don't line up, so add the elements instead.
+			for (Iterator<T> iter = higherTrie.iterator(); iter.hasNext();)
+				add(iter.next());
+		}
+		dirty = true;
+		higherTrie.r = new Node(new byte[0]);
+		higherTrie.n = 0;
+		higherTrie.dataBytesEstimate = 0;
+		higherTrie.dirty = true;
+		return true;
+	}
+
+	/**
+	 * Moves the element and children of b, which represents the same string as a, into a.
+	 */
+	private static void mergeNodes(Node a, Node b)
+	{
+		a.valueEnd |= b.valueEnd;
+		a.leftChild = mergeChildren(a, a.leftChild, b.leftChild);
+		a.rightChild = mergeChildren(a, a.rightChild, b.rightChild);
+		updateSubtreeSize(a);
+	}
+
+	/**
+	 * Merges two children on the same side of the specified parent and returns the merged child.
+	 * If their edges diverge, or only one edge is a prefix of the other, the shared part of the
+	 * edges becomes a node of its own.
+	 */
+	private static Node mergeChildren(Node parent, Node a, Node b)
+	{
+		if (b == null)
+			return a;
+		if (a == null)
+		{
+			b.parent = parent;
+			return b;
+		}
+
+		int matchingBits = getCommonPrefixBits(a.bits, b.bits);
+		Node merged = a;
+		if (matchingBits < a.bits.bitsUsed)
+		{
+			merged = new Node(Arrays.copyOf(a.bits.label, (int) Math.ceil(matchingBits / 8.)),
+					matchingBits);
+			merged.parent = parent;
+			splitOnPrefix(merged.bits, a.bits);
+			a.parent = merged;
+			if ((a.bits.label[0] & 0x80) != 0)
+				merged.rightChild = a;
+			else
+				merged.leftChild = a;
+		}
+
+		if (matchingBits == b.bits.bitsUsed)
+			mergeNodes(merged, b);
+		else
+		{
+			splitOnPrefix(new BitString(merged.bits.label, matchingBits), b.bits);
+			if ((b.bits.label[0] & 0x80) != 0)
+				merged.rightChild = mergeChildren(merged, merged.rightChild, b);
+			else
+				merged.leftChild = mergeChildren(merged, merged.leftChild, b);
+			updateSubtreeSize(merged);
+		}
+		return merged;
+	}
+
+	private static void updateSubtreeSize(Node node)
+	{
+		node.subtreeSize = 1 + (node.leftChild != null ? node.leftChild.subtreeSize : 0)
+				+ (node.rightChild != null ? node.rightChild.subtreeSize : 0);
+	}
+
+	/**
+	 * Replaces the pointer node to the specified child partition with the partition's nodes.
+	 */
+	public boolean mergePartition(BinaryPatriciaTrie<T> childTrie)
+	{
 		if (childTrieLabel != null
 				&& getCommonPrefixBits(childTrieLabel, childTrie.r.bits) == childTrieLabel.bitsUsed)
 			childTrieLabel = childTrie.childTrieLabel;
@@ -1020,16 +1405,56 @@ public class BinaryPatriciaTrie<T extends Comparable<T> & Serializable> implemen
 		return true;
 	}
 
+	/**
+	 * Returns the element closest to the middle of the trie by node count, which is found in a
+	 * single descent using the subtree sizes.
+	 */
 	@Override
 	public T locateMiddleValue()
 	{
-		throw new UnsupportedOperationException();
+		if (n == 0)
+			return null;
+
+		Node curNode = r;
+		BitString label = copyLabel(r.bits);
+		int remaining = r.subtreeSize / 2;
+		while (true)
+		{
+			if (remaining == 0 && curNode.valueEnd)
+				return getValue(label);
+			if (remaining > 0)
+				remaining--;
+
+			Node nextNode = curNode.leftChild;
+			if (nextNode == null || nextNode.subtreeSize == 0
+					|| remaining >= nextNode.subtreeSize)
+			{
+				if (nextNode != null)
+					remaining -= nextNode.subtreeSize;
+				nextNode = curNode.rightChild;
+			}
+			if (nextNode == null || nextNode.subtreeSize == 0)
+			{
+				// Pointer nodes hold no elements of this partition, so settle for a neighbor.
+				if (maxValue(curNode, label))
+					return getValue(label);
+				label = copyLabel(r.bits);
+				return minValue(r, label) ? getValue(label) : null;
+			}
+
+			appendOnNode(label, nextNode.bits);
+			curNode = nextNode;
+		}
 	}
 
+	/**
+	 * {@inheritDoc} Only elements stored in this partition are considered, not the ones behind
+	 * pointer nodes.
+	 */
 	@Override
 	public T floor(T val)
 	{
-		throw new UnsupportedOperationException();
+		return findNeighbor(val, true, true);
 	}
 
 	public String toString()
@@ -1042,50 +1467,109 @@ public class BinaryPatriciaTrie<T extends Comparable<T> & Serializable> implemen
 		return result;
 	}
 
+	/**
+	 * The converter is transient, so its type is appended after the nodes. Streams written before
+	 * the type was appended end after the nodes and always stored integers in the legacy format.
+	 */
 	private void writeObject(ObjectOutputStream s) throws IOException
 	{
 		s.defaultWriteObject();
+		writeNodes(s);
+		s.writeByte(getConverterType());
+	}
+
+	private void readObject(ObjectInputStream inputStream) throws IOException,
+			ClassNotFoundException
+	{
+		inputStream.defaultReadObject();
+		readNodes(inputStream);
+		int converterType = inputStream.read();
+		if (converterType < 0)
+			legacyIntegers = true;
+		else
+			converter = createConverter((byte) converterType);
+	}
+
+	/**
+	 * Writes the trie in the compact format used by BinaryPatriciaTrieCodec.
+	 */
+	void writeCompact(DataOutput out) throws IOException
+	{
+		out.writeInt(n);
+		out.writeLong(dataBytesEstimate);
+		out.writeByte(getConverterType());
+		writeNodes(out);
+	}
+
+	/**
+	 * Replaces the contents of this trie with data written by writeCompact().
+	 */
+	void readCompact(DataInput in) throws IOException
+	{
+		n = in.readInt();
+		dataBytesEstimate = in.readLong();
+		converter = createConverter(in.readByte());
+		readNodes(in);
+	}
+
+	private byte getConverterType()
+	{
+		if (converter instanceof StringConversion)
+			return 1;
+		else if (converter instanceof LegacyIntegerConversion)
+			return 2;
+		else if (converter instanceof IntegerConversion)
+			return 3;
+		return 0;
+	}
 
+	private static ByteArrayConversion createConverter(byte converterType)
+	{
+		if (converterType == 1)
+			return new StringConversion();
+		else if (converterType == 2)
+			return new LegacyIntegerConversion();
+		else if (converterType == 3)
+			return new IntegerConversion();
+		return null;
+	}
+
+	private void writeNodes(DataOutput out) throws IOException
+	{
 		byte flags = 0;
 		if (r != null)
 			flags |= 0x80;
 		if (childTrieLabel != null)
 			flags |= 0x40;
-		s.writeByte(flags);
+		out.writeByte(flags);
 
 		if (r != null)
-			r.writeExternal(s);
+			r.writeExternal(out);
 		if (childTrieLabel != null)
 		{
-			s.writeInt(childTrieLabel.bitsUsed);
-			s.write(childTrieLabel.label, 0, (int) Math.ceil(childTrieLabel.bitsUsed / 8.));
+			out.writeInt(childTrieLabel.bitsUsed);
+			out.write(childTrieLabel.label, 0, (int) Math.ceil(childTrieLabel.bitsUsed / 8.));
 		}
 	}
 
-	private void readObject(ObjectInputStream inputStream) throws IOException,
-			ClassNotFoundException
+	private void readNodes(DataInput in) throws IOException
 	{
-		inputStream.defaultReadObject();
 		dirty = false;
 
-		byte flags = inputStream.readByte();
+		r = null;
+		childTrieLabel = null;
+		byte flags = in.readByte();
 		if ((flags & 0x80) != 0)
 		{
 			r = new Node();
-			r.readExternal(inputStream);
+			r.readExternal(in);
 		}
 		if ((flags & 0x40) != 0)
 		{
 			childTrieLabel = new BitString();
-			childTrieLabel.bitsUsed = inputStream.readInt();
-
+			childTrieLabel.bitsUsed = in.readInt();
 			childTrieLabel.label = new byte[(int) Math.ceil(childTrieLabel.bitsUsed / 8.)];
-			int bytesRead = 0;
-			while (bytesRead < childTrieLabel.label.length)
-			{
-				bytesRead += inputStream.read(childTrieLabel.label, bytesRead,
-						childTrieLabel.label.length - bytesRead);
-			}
+			in.readFully(childTrieLabel.label);
 		}
 	}
 
@@ -1098,18 +1582,281 @@ public class BinaryPatriciaTrie<T extends Comparable<T> & Serializable> implemen
 	public SplittableSet<T> createNewSet()
 	{
 		BinaryPatriciaTrie<T> result = new BinaryPatriciaTrie<T>();
+		result.converter = converter;
+		result.legacyIntegers = legacyIntegers;
 		return result;
 	}
 
 	@Override
 	public T lower(T val)
 	{
-		throw new UnsupportedOperationException();
+		return findNeighbor(val, true, false);
+	}
+
+	/**
+	 * Returns the elements in the range [from, to) in descending order. Every step is a lower()
+	 * search, so the iterator stays valid while the trie is modified.
+	 */
+	@Override
+	public Iterator<T> descendingIterator(final T from, final T to)
+	{
+		final BitString fromBits = from == null ? null : new BitString(convertToBytes(from));
+		return new Iterator<T>()
+		{
+			private T next = to == null ? maxElement() : lower(to);
+
+			@Override
+			public boolean hasNext()
+			{
+				if (next != null && fromBits != null
+						&& compareBits(new BitString(convertToBytes(next)), fromBits) < 0)
+					next = null;
+				return next != null;
+			}
+
+			@Override
+			public T next()
+			{
+				if (!hasNext())
+					throw new NoSuchElementException();
+				T result = next;
+				next = lower(result);
+				return result;
+			}
+
+			@Override
+			public void remove()
+			{
+				throw new UnsupportedOperationException();
+			}
+		};
 	}
 
 	@Override
 	public T higher(T val)
 	{
-		throw new UnsupportedOperationException();
+		return findNeighbor(val, false, false);
+	}
+
+	/**
+	 * The deepest candidate for a neighbor search seen so far. The search path spells out a prefix
+	 * of the searched value, so a candidate is only tracked by its node and the bit offset its edge
+	 * starts at.
+	 */
+	private static class Candidate
+	{
+		public Node node;
+
+		public int offset;
+
+		/**
+		 * If true, the best element in the node's subtree is the result. Otherwise only the node's
+		 * own element is.
+		 */
+		public boolean wholeSubtree;
+
+		/**
+		 * The position of the tracked candidate among the ones offered.
+		 */
+		public int index;
+
+		public int offered;
+
+		/**
+		 * Candidates from this position on are ignored, since their subtrees turned out to hold no
+		 * elements of this partition.
+		 */
+		public int limit = Integer.MAX_VALUE;
+
+		public void offer(Node node, int offset, boolean wholeSubtree)
+		{
+			if (offered < limit)
+			{
+				this.node = node;
+				this.offset = offset;
+				this.wholeSubtree = wholeSubtree;
+				index = offered;
+			}
+			offered++;
+		}
+	}
+
+	/**
+	 * Finds the neighbor of val in a single descent along val's bits. Every node on the path that's
+	 * smaller than val, and every subtree branching off the path to the smaller side, is a
+	 * candidate for the largest smaller element, and the deepest one wins. The same goes for
+	 * larger elements with subtrees branching off to the larger side. Only the winner's string is
+	 * built.
+	 * 
+	 * @param smaller
+	 *            True to find the largest element smaller than val, false to find the smallest
+	 *            element larger than val.
+	 * @param inclusive
+	 *            True if val itself is returned when it's stored in the trie.
+	 */
+	private T findNeighbor(T val, boolean smaller, boolean inclusive)
+	{
+		if (val == null)
+			throw new IllegalArgumentException("The trie doesn't store null values.");
+
+		BitString target = new BitString(convertToBytes(val));
+		Candidate best = new Candidate();
+		while (true)
+		{
+			best.node = null;
+			best.offered = 0;
+			Node curNode = r;
+			int offset = 0;
+			while (curNode != null && curNode.subtreeSize != 0)
+			{
+				int matchedBits = getMatchingBits(target, offset, curNode.bits);
+				if (matchedBits < curNode.bits.bitsUsed)
+				{
+					// The whole subtree lies on one side of val.
+					if (isEdgeLarger(target, offset, curNode.bits, matchedBits) != smaller)
+						best.offer(curNode, offset, true);
+					break;
+				}
+
+				int labelBits = offset + curNode.bits.bitsUsed;
+				if (labelBits == target.bitsUsed)
+				{
+					if (inclusive && curNode.valueEnd)
+						return val;
+					// Every descendant extends val, so they're all larger.
+					if (!smaller && curNode.rightChild != null)
+						best.offer(curNode.rightChild, labelBits, true);
+					if (!smaller && curNode.leftChild != null)
+						best.offer(curNode.leftChild, labelBits, true);
+					break;
+				}
+
+				if (smaller && curNode.valueEnd)
+					best.offer(curNode, offset, false);
+				Node nextNode;
+				if (isBitSet(target.label, labelBits))
+				{
+					if (smaller && curNode.leftChild != null)
+						best.offer(curNode.leftChild, labelBits, true);
+					nextNode = curNode.rightChild;
+				} else
+				{
+					if (!smaller && curNode.rightChild != null)
+						best.offer(curNode.rightChild, labelBits, true);
+					nextNode = curNode.leftChild;
+				}
+				offset = labelBits;
+				curNode = nextNode;
+			}
+
+			if (best.node == null)
+				return null;
+			BitString label = new BitString(Arrays.copyOf(target.label,
+					(int) Math.ceil(best.offset / 8.)), best.offset);
+			appendOnNode(label, best.node.bits);
+			if (!best.wholeSubtree
+					|| (smaller ? maxValue(best.node, label) : minValue(best.node, label)))
+				return getValue(label);
+			// The winner only holds pointer nodes, so retry with the shallower candidates.
+			best.limit = best.index;
+		}
+	}
+
+	/**
+	 * Returns the number of leading bits of the edge label that match target from the specified
+	 * bit offset on.
+	 */
+	private static int getMatchingBits(BitString target, int offset, BitString edge)
+	{
+		int limit = Math.min(edge.bitsUsed, target.bitsUsed - offset);
+		int matchedBits = 0;
+		while (matchedBits < limit
+				&& isBitSet(target.label, offset + matchedBits) == isBitSet(edge.label,
+						matchedBits))
+			matchedBits++;
+		return matchedBits;
+	}
+
+	/**
+	 * Returns true if the strings below an edge that stops matching target after the specified
+	 * number of bits are larger than target, which is the case if the edge extends past target or
+	 * has a 1 where target has a 0.
+	 */
+	private static boolean isEdgeLarger(BitString target, int offset, BitString edge,
+			int matchedBits)
+	{
+		return offset + matchedBits == target.bitsUsed || isBitSet(edge.label, matchedBits);
+	}
+
+	private static boolean isBitSet(byte[] label, int bit)
+	{
+		return (label[bit / 8] & (128 >> (bit % 8))) != 0;
+	}
+
+	/**
+	 * Returns the largest element of this partition, or null if it holds none.
+	 */
+	private T maxElement()
+	{
+		BitString label = copyLabel(r.bits);
+		return maxValue(r, label) ? getValue(label) : null;
+	}
+
+	/**
+	 * Extends label, the full string of the specified node, to the smallest element in the node's
+	 * subtree. Returns false, leaving label unchanged, if the subtree holds no elements of this
+	 * partition.
+	 */
+	private static boolean minValue(Node node, BitString label)
+	{
+		if (node.subtreeSize == 0)
+			return false;
+		if (node.valueEnd)
+			return true;
+		return extendLabel(node.leftChild, label, false)
+				|| extendLabel(node.rightChild, label, false);
+	}
+
+	/**
+	 * Extends label, the full string of the specified node, to the largest element in the node's
+	 * subtree. Returns false, leaving label unchanged, if the subtree holds no elements of this
+	 * partition.
+	 */
+	private static boolean maxValue(Node node, BitString label)
+	{
+		if (node.subtreeSize == 0)
+			return false;
+		return extendLabel(node.rightChild, label, true) || extendLabel(node.leftChild, label, true)
+				|| node.valueEnd;
+	}
+
+	/**
+	 * Appends the child's edge to label and extends it to the child's largest or smallest element,
+	 * restoring label if the child holds none.
+	 */
+	private static boolean extendLabel(Node child, BitString label, boolean largest)
+	{
+		if (child == null)
+			return false;
+
+		int bitsUsed = label.bitsUsed;
+		appendOnNode(label, child.bits);
+		if (largest ? maxValue(child, label) : minValue(child, label))
+			return true;
+		label.bitsUsed = bitsUsed;
+		return false;
+	}
+
+	private static BitString copyLabel(BitString label)
+	{
+		return new BitString(Arrays.copyOf(label.label, label.label.length), label.bitsUsed);
+	}
+
+	@SuppressWarnings("unchecked")
+	private T getValue(BitString label)
+	{
+		if (label == null)
+			return null;
+		return (T) converter.readFromBytes(Arrays.copyOf(label.label, label.bitsUsed / 8));
 	}
 }
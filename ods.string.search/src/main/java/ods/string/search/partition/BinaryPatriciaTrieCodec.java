@@ -0,0 +1,36 @@
+package ods.string.search.partition;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import ods.string.search.partition.splitsets.SplittableSet;
+import ods.string.search.partition.splitsets.SplittableSetCodec;
+
+/**
+ * Writes a BinaryPatriciaTrie using the trie's own node encoding, which already stores labels as
+ * raw bit strings with no per-node object headers.
+ */
+public class BinaryPatriciaTrieCodec implements SplittableSetCodec
+{
+	@Override
+	public boolean canWrite(SplittableSet<?> set)
+	{
+		return true;
+	}
+
+	@Override
+	public void write(SplittableSet<?> set, DataOutput out) throws IOException
+	{
+		((BinaryPatriciaTrie<?>) set).writeCompact(out);
+	}
+
+	@SuppressWarnings("rawtypes")
+	@Override
+	public SplittableSet<?> read(DataInput in) throws IOException
+	{
+		BinaryPatriciaTrie result = new BinaryPatriciaTrie();
+		result.readCompact(in);
+		return result;
+	}
+}
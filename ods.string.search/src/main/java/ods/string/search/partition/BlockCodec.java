@@ -0,0 +1,16 @@
+package ods.string.search.partition;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Converts the objects stored in an ExternalMemoryObjectCache to and from bytes without using Java
+ * serialization. Codecs are called from flusher and prefetch threads, so they must be stateless.
+ */
+public interface BlockCodec<T>
+{
+	void encode(T block, DataOutput out) throws IOException;
+
+	T decode(DataInput in) throws IOException;
+}
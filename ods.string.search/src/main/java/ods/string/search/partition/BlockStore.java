@@ -0,0 +1,37 @@
+package ods.string.search.partition;
+
+import java.io.IOException;
+
+/**
+ * A BlockStore persists the serialized (and possibly compressed) bytes of the blocks that an
+ * ExternalMemoryObjectCache flushes out of RAM. Blocks are identified by the same IDs the cache
+ * uses.
+ */
+public interface BlockStore
+{
+	/**
+	 * Returns the bytes last written for the specified block ID or null if the block isn't stored.
+	 */
+	byte[] read(String blockId) throws IOException;
+
+	/**
+	 * Stores the specified bytes under the specified block ID, replacing any previous version.
+	 */
+	void write(String blockId, byte[] data) throws IOException;
+
+	/**
+	 * Removes the block with the specified ID if it exists.
+	 */
+	void delete(String blockId) throws IOException;
+
+	/**
+	 * Makes every block written so far durable in the underlying storage.
+	 */
+	void flush() throws IOException;
+
+	/**
+	 * Releases any resources held by the store. The store may still be used afterwards, in which
+	 * case the resources will be re-acquired as needed.
+	 */
+	void close() throws IOException;
+}
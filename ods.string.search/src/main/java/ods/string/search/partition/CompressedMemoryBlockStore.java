@@ -0,0 +1,279 @@
+package ods.string.search.partition;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+
+import ods.string.search.BlockArena;
+
+/**
+ * This BlockStore keeps the serialized bytes of blocks in off-heap RAM and only spills the
+ * least-recently used ones to a backing BlockStore once a byte limit is reached. Since the cache
+ * compresses blocks before storing them, many more blocks fit in this tier than in the
+ * deserialized on-heap cache. Blocks are stored in fixed size chunks of a direct memory
+ * BlockArena, so RAM freed by spilled blocks is reused instead of waiting on the garbage collector.
+ */
+public class CompressedMemoryBlockStore implements BlockStore
+{
+	/**
+	 * The size in bytes of the chunks blocks are stored in.
+	 */
+	private static final int CHUNK_BYTES = 4096;
+
+	/**
+	 * The bytes of a block held in RAM.
+	 */
+	private static class MemoryBlock
+	{
+		/**
+		 * The chunks holding the block's bytes in order. Only the last one may be partially used.
+		 */
+		public final ByteBuffer[] chunks;
+
+		public final int length;
+
+		/**
+		 * True if the backing store already has these exact bytes, so the block can be dropped
+		 * without writing it.
+		 */
+		public final boolean persisted;
+
+		public MemoryBlock(ByteBuffer[] chunks, int length, boolean persisted)
+		{
+			this.chunks = chunks;
+			this.length = length;
+			this.persisted = persisted;
+		}
+
+		public byte[] getBytes()
+		{
+			byte[] result = new byte[length];
+			for (int x = 0; x < chunks.length; x++)
+			{
+				ByteBuffer chunk = chunks[x].duplicate();
+				chunk.clear();
+				chunk.get(result, x * CHUNK_BYTES, Math.min(CHUNK_BYTES, length - x * CHUNK_BYTES));
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Stores the blocks that don't fit in RAM.
+	 */
+	private BlockStore backingStore;
+
+	/**
+	 * The maximum number of block bytes kept in RAM.
+	 */
+	private long maxMemoryBytes;
+
+	/**
+	 * The number of block bytes currently kept in RAM.
+	 */
+	private long memoryBytes;
+
+	/**
+	 * Hands out the chunks blocks are stored in.
+	 */
+	private BlockArena arena;
+
+	/**
+	 * The number of chunks the arena can hand out.
+	 */
+	private long maxChunks;
+
+	/**
+	 * The number of chunks currently storing blocks.
+	 */
+	private long usedChunks;
+
+	/**
+	 * A map of block ID to block bytes, in access order.
+	 */
+	private LinkedHashMap<String, MemoryBlock> blocks = new LinkedHashMap<String, MemoryBlock>(16,
+			0.75f, true);
+
+	/**
+	 * The number of reads served from RAM.
+	 */
+	private long memoryReads;
+
+	/**
+	 * The number of reads passed on to the backing store.
+	 */
+	private long backingReads;
+
+	/**
+	 * @param backingStore
+	 *            Stores the blocks spilled out of RAM.
+	 * @param maxMemoryBytes
+	 *            The maximum number of block bytes kept in RAM.
+	 */
+	public CompressedMemoryBlockStore(BlockStore backingStore, long maxMemoryBytes)
+	{
+		this.backingStore = backingStore;
+		this.maxMemoryBytes = maxMemoryBytes;
+		maxChunks = Math.max(1, (maxMemoryBytes + CHUNK_BYTES - 1) / CHUNK_BYTES);
+		arena = new BlockArena(CHUNK_BYTES, maxChunks * CHUNK_BYTES);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized byte[] read(String blockId) throws IOException
+	{
+		MemoryBlock block = blocks.get(blockId);
+		if (block != null)
+		{
+			memoryReads++;
+			return block.getBytes();
+		}
+
+		backingReads++;
+		byte[] result = backingStore.read(blockId);
+		if (result != null)
+			store(blockId, result, true);
+		return result;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized void write(String blockId, byte[] data) throws IOException
+	{
+		removeFromMemory(blockId);
+		store(blockId, data, false);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized void delete(String blockId) throws IOException
+	{
+		removeFromMemory(blockId);
+		backingStore.delete(blockId);
+	}
+
+	/**
+	 * Writes every block only held in RAM to the backing store, keeping it in RAM as well.
+	 */
+	@Override
+	public synchronized void flush() throws IOException
+	{
+		for (Entry<String, MemoryBlock> entry : blocks.entrySet())
+		{
+			spill(entry.getKey(), entry.getValue());
+			entry.setValue(new MemoryBlock(entry.getValue().chunks, entry.getValue().length, true));
+		}
+		backingStore.flush();
+	}
+
+	/**
+	 * Writes every block only held in RAM to the backing store and releases the RAM used by this
+	 * tier.
+	 */
+	@Override
+	public synchronized void close() throws IOException
+	{
+		for (Entry<String, MemoryBlock> entry : blocks.entrySet())
+			spill(entry.getKey(), entry.getValue());
+		blocks.clear();
+		memoryBytes = 0;
+		usedChunks = 0;
+		arena.release();
+		backingStore.close();
+	}
+
+	/**
+	 * Returns the number of block bytes currently kept in RAM.
+	 */
+	public synchronized long getMemoryBytes()
+	{
+		return memoryBytes;
+	}
+
+	/**
+	 * Returns the number of reads that were served from RAM.
+	 */
+	public synchronized long getMemoryReads()
+	{
+		return memoryReads;
+	}
+
+	/**
+	 * Returns the number of reads that had to go to the backing store.
+	 */
+	public synchronized long getBackingReads()
+	{
+		return backingReads;
+	}
+
+	public BlockStore getBackingStore()
+	{
+		return backingStore;
+	}
+
+	private void store(String blockId, byte[] data, boolean persisted) throws IOException
+	{
+		if (data.length > maxMemoryBytes)
+		{
+			if (!persisted)
+				backingStore.write(blockId, data);
+			return;
+		}
+
+		int chunkCount = (data.length + CHUNK_BYTES - 1) / CHUNK_BYTES;
+
+		// Make room by spilling the least-recently used blocks.
+		Iterator<Entry<String, MemoryBlock>> iter = blocks.entrySet().iterator();
+		while (memoryBytes + data.length > maxMemoryBytes || usedChunks + chunkCount > maxChunks)
+		{
+			Entry<String, MemoryBlock> eldest = iter.next();
+			spill(eldest.getKey(), eldest.getValue());
+			iter.remove();
+			freeChunks(eldest.getValue());
+		}
+
+		ByteBuffer[] chunks = new ByteBuffer[chunkCount];
+		for (int x = 0; x < chunkCount; x++)
+		{
+			chunks[x] = arena.allocate();
+			chunks[x].put(data, x * CHUNK_BYTES,
+					Math.min(CHUNK_BYTES, data.length - x * CHUNK_BYTES));
+		}
+		blocks.put(blockId, new MemoryBlock(chunks, data.length, persisted));
+		memoryBytes += data.length;
+		usedChunks += chunkCount;
+	}
+
+	private void removeFromMemory(String blockId)
+	{
+		MemoryBlock block = blocks.remove(blockId);
+		if (block != null)
+			freeChunks(block);
+	}
+
+	/**
+	 * Returns the chunks of a block that was removed from the map to the arena.
+	 */
+	private void freeChunks(MemoryBlock block)
+	{
+		for (ByteBuffer chunk : block.chunks)
+			arena.free(chunk);
+		memoryBytes -= block.length;
+		usedChunks -= block.chunks.length;
+	}
+
+	private void spill(String blockId, MemoryBlock block) throws IOException
+	{
+		if (block.persisted)
+			return;
+		backingStore.write(blockId, block.getBytes());
+	}
+}
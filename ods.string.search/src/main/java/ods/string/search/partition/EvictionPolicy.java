@@ -0,0 +1,40 @@
+package ods.string.search.partition;
+
+/**
+ * Decides which block an ExternalMemoryObjectCache flushes to disk when it runs out of memory. The
+ * cache notifies the policy of every block entering, being accessed in and leaving the cache.
+ * Policies are only called while the cache holds the lock of the stripe they belong to, so they
+ * don't need to be thread-safe.
+ */
+public interface EvictionPolicy
+{
+	/**
+	 * Called when a block is added to the cache.
+	 */
+	void onInsert(String blockId);
+
+	/**
+	 * Called when a block already in the cache is requested.
+	 */
+	void onAccess(String blockId);
+
+	/**
+	 * Called when a block leaves the cache, either by being flushed or unregistered.
+	 */
+	void onRemove(String blockId);
+
+	/**
+	 * Returns the ID of the block to flush next. The cache calls onRemove() for the returned block
+	 * once it's flushed.
+	 * 
+	 * @param excludedBlockId
+	 *            A block that must not be chosen since it's in use by the caller.
+	 * @return The victim's ID or null if there is no block other than excludedBlockId.
+	 */
+	String selectVictim(String excludedBlockId);
+
+	/**
+	 * Creates a new empty policy with the same configuration as this one.
+	 */
+	EvictionPolicy createNew();
+}
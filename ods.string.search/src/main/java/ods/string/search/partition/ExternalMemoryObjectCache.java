@@ -1,41 +1,72 @@
 package ods.string.search.partition;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
+import ods.string.search.CacheMetrics;
 import ods.string.search.partition.splitsets.ExternalizableMemoryObject;
 
-import org.apache.commons.codec.binary.Hex;
 import org.xerial.snappy.SnappyInputStream;
 import org.xerial.snappy.SnappyOutputStream;
 
 /**
  * This class caches ExternalizableMemoryObjects to disk when a specified byte limit in RAM is
- * reached. Disk data is auto-loaded into cache when needed. Data is cached onto disk in a
- * least-recently used fashion. Data that is cached to disk can optionally make use of compression.
+ * reached. Disk data is auto-loaded into cache when needed. The blocks cached onto disk are chosen
+ * by an EvictionPolicy, least-recently used by default. Data that is cached to disk can optionally
+ * make use of compression.
+ * Flushed data is persisted by a BlockStore, either as a file per block or appended to large
+ * segment files.
+ * 
+ * When write-behind is enabled, evicted dirty blocks are handed to a bounded queue and written by
+ * background flusher threads so that callers don't wait on serialization, compression and disk
+ * writes. A block requested again while it is still queued is taken back from the queue instead of
+ * being read from disk.
+ * 
+ * Blocks that will be needed soon can be prefetched, which reads and deserializes them on a
+ * background thread. A prefetched block only enters the cache once it's requested.
+ * 
+ * Blocks are converted to bytes with Java serialization unless a BlockCodec is set.
+ * 
+ * A compressed memory tier can be enabled to keep the serialized bytes of evicted blocks in
+ * off-heap RAM, so only blocks that fall out of that tier are written to disk.
+ * 
+ * The cache is thread-safe. By default all blocks share a single lock and LRU list; calling
+ * setStripeCount() splits them into independently locked stripes for multi-threaded use. A block
+ * requested by several threads at once is only loaded from disk once.
  */
 public class ExternalMemoryObjectCache<T extends ExternalizableMemoryObject>
 {
 	/**
-	 * 64 bytes per LinkedHashMap.Entry + 32 bytes for Block value + 64 bytes for String key
-	 * minimum.
+	 * 64 bytes per map entry and eviction policy entry + 32 bytes for Block value + 64 bytes for
+	 * String key minimum.
 	 */
 	private static final long BASE_CACHED_BLOCK_BYTE_SIZE = 160;
 
@@ -52,6 +83,12 @@ public class ExternalMemoryObjectCache<T extends ExternalizableMemoryObject>
 		public long previousByteSize = 0;
 		public T data;
 
+		/**
+		 * The number of pin() calls not yet matched by unpin(). A pinned block is kept out of the
+		 * eviction policy so it's never flushed. Guarded by the stripe's lock.
+		 */
+		public int pinCount = 0;
+
 		public Block(T data)
 		{
 			this.data = data;
@@ -60,11 +97,20 @@ public class ExternalMemoryObjectCache<T extends ExternalizableMemoryObject>
 		/**
 		 * Updates this block's size and the total memory size of the entire cache.
 		 */
-		public void updateSizeEstimate()
+		public synchronized void updateSizeEstimate()
+		{
+			long newByteSize = data.getByteSize() + BASE_CACHED_BLOCK_BYTE_SIZE;
+			inMemoryByteEstimate.addAndGet(newByteSize - previousByteSize);
+			previousByteSize = newByteSize;
+		}
+
+		/**
+		 * Removes this block's size from the total memory size of the entire cache.
+		 */
+		public synchronized void clearSizeEstimate()
 		{
-			inMemoryByteEstimate -= previousByteSize;
-			previousByteSize = data.getByteSize() + BASE_CACHED_BLOCK_BYTE_SIZE;
-			inMemoryByteEstimate += previousByteSize;
+			inMemoryByteEstimate.addAndGet(-previousByteSize);
+			previousByteSize = 0;
 		}
 
 		public String toString()
@@ -73,15 +119,118 @@ public class ExternalMemoryObjectCache<T extends ExternalizableMemoryObject>
 		}
 	}
 
+	/**
+	 * An evicted dirty block waiting to be written to the BlockStore by a flusher thread. The state
+	 * flags are guarded by the pendingWrites map.
+	 */
+	private class PendingWrite
+	{
+		public String blockId;
+		public Block block;
+
+		/**
+		 * The in-memory size of the block when it was evicted.
+		 */
+		public long byteSize;
+
+		/**
+		 * True once a flusher thread has started serializing the block.
+		 */
+		public boolean writing = false;
+
+		/**
+		 * True once the write has completed or failed.
+		 */
+		public boolean done = false;
+
+		/**
+		 * True if the block was taken back before a flusher thread started writing it.
+		 */
+		public boolean cancelled = false;
+
+		public PendingWrite(String blockId, Block block)
+		{
+			this.blockId = blockId;
+			this.block = block;
+		}
+	}
+
+	/**
+	 * A portion of the cached blocks, selected by block ID hash. Each stripe has its own lock and
+	 * eviction policy so that threads working on different blocks rarely contend. All fields are
+	 * guarded by the lock.
+	 */
+	private class Stripe
+	{
+		public final ReentrantLock lock = new ReentrantLock();
+
+		/**
+		 * A map of block ID to block data.
+		 */
+		public final HashMap<String, Block> cachedBlocks = new HashMap<String, Block>();
+
+		/**
+		 * Decides which of this stripe's blocks is flushed next.
+		 */
+		public final EvictionPolicy evictionPolicy = evictionPolicyTemplate.createNew();
+
+		/**
+		 * A map of block ID to the latch of a thread currently loading that block. Other threads
+		 * requesting the block wait on the latch instead of loading it a second time.
+		 */
+		public final HashMap<String, CountDownLatch> loadingBlocks =
+				new HashMap<String, CountDownLatch>();
+
+		/**
+		 * Returns the cached block with the specified ID and records the access with the eviction
+		 * policy.
+		 */
+		public Block access(String blockId)
+		{
+			Block block = cachedBlocks.get(blockId);
+			if (block != null && block.pinCount == 0)
+				evictionPolicy.onAccess(blockId);
+			return block;
+		}
+
+		public void insert(String blockId, Block block)
+		{
+			cachedBlocks.put(blockId, block);
+			evictionPolicy.onInsert(blockId);
+		}
+
+		public Block remove(String blockId)
+		{
+			Block block = cachedBlocks.remove(blockId);
+			if (block != null && block.pinCount == 0)
+				evictionPolicy.onRemove(blockId);
+			return block;
+		}
+	}
+
+	/**
+	 * A queue entry that tells a flusher thread to exit.
+	 */
+	private final PendingWrite stopFlusherMarker = new PendingWrite(null, null);
+
 	public enum CompressType
 	{
 		NONE, GZIP, SNAPPY
 	}
 
+	/**
+	 * The BlockStore implementation used to persist flushed blocks. FILE_PER_BLOCK uses a
+	 * FileBlockStore and SEGMENTED uses a SegmentedBlockStore.
+	 */
+	public enum StorageType
+	{
+		FILE_PER_BLOCK, SEGMENTED
+	}
+
 	/**
 	 * The currently RAM usage, in bytes, of this cache.
 	 */
-	private long inMemoryByteEstimate = 0;
+	private AtomicLong inMemoryByteEstimate = new AtomicLong();
 
 	/**
 	 * The maximum number of bytes that this cache can store in RAM before flushing data to disk.
@@ -93,78 +242,311 @@ public class ExternalMemoryObjectCache<T extends ExternalizableMemoryObject>
 	 */
 	private CompressType compress;
 
+	/**
+	 * The type of storage used to persist flushed blocks.
+	 */
+	private StorageType storageType;
+
 	/**
 	 * The directory to store data in.
 	 */
 	private File storageDirectory;
 
 	/**
-	 * A map of block ID to block data. The map also has a linked list using the access order of the
-	 * blocks for its element ordering.
+	 * Persists the bytes of flushed blocks.
 	 */
-	private LinkedHashMap<String, Block> cachedBlocks = new LinkedHashMap<String, Block>(16, 0.75f,
-			true);
+	private BlockStore blockStore;
 
 	/**
-	 * The total number of bytes in RAM that was flushed to disk.
+	 * The maximum number of serialized bytes kept in the compressed memory tier. 0 means the tier
+	 * is disabled.
+	 */
+	private long compressedTierSize = 0;
+
+	/**
+	 * The cached blocks, split into stripes by block ID. There is a single stripe unless
+	 * setStripeCount() is called, which gives the cache exact LRU ordering.
+	 */
+	private ArrayList<Stripe> stripes;
+
+	/**
+	 * The policy every stripe's eviction policy is created from.
+	 */
+	private EvictionPolicy evictionPolicyTemplate;
+
+	/**
+	 * Hit, eviction and latency statistics of this cache.
+	 */
+	private CacheMetrics metrics;
+
+	/**
+	 * The number of background threads writing evicted blocks. 0 means evicted blocks are written
+	 * synchronously by the thread that caused the eviction.
+	 */
+	private int flusherThreadCount = 0;
+
+	/**
+	 * The maximum number of evicted blocks that can wait for a flusher thread before evictions
+	 * block.
+	 */
+	private int maxQueuedWrites = 0;
+
+	/**
+	 * The first byte of blocks written by a BlockCodec. Java serialization streams never start with
+	 * this byte.
+	 */
+	private static final int CODEC_FORMAT_MARKER = 1;
+
+	/**
+	 * Converts blocks to bytes. Null means Java serialization is used.
+	 */
+	private BlockCodec<T> codec;
+
+	/**
+	 * The number of background threads used to load prefetched blocks.
+	 */
+	private int prefetchThreadCount = 2;
+
+	/**
+	 * The maximum number of prefetched blocks held outside the cache at once. When exceeded, the
+	 * oldest prefetch is discarded.
+	 */
+	private int maxPrefetchedBlocks = 64;
+
+	/**
+	 * Loads prefetched blocks. Created when the first prefetch is requested.
+	 */
+	private ExecutorService prefetchExecutor;
+
+	/**
+	 * A map of block ID to the background load of that block, in the order they were requested.
 	 */
-	private long uncompressBytes = 0;
+	private LinkedHashMap<String, Future<T>> prefetchedBlocks =
+			new LinkedHashMap<String, Future<T>>();
 
 	/**
-	 * The total number of bytes that was stored onto disk after compression.
+	 * Evicted blocks waiting to be written by a flusher thread.
 	 */
-	private long compressedBytes = 0;
+	private ArrayBlockingQueue<PendingWrite> writeQueue;
 
 	/**
-	 * The total time in ms that has been spent performing serialization.
+	 * A map of block ID to the queued or in progress write of that block.
 	 */
-	private long serializationTime = 0;
+	private HashMap<String, PendingWrite> pendingWrites = new HashMap<String, PendingWrite>();
 
 	/**
-	 * The total time in ms that has been spent writing data to disk.
+	 * The running flusher threads.
 	 */
-	private long diskWriteTime = 0;
+	private ArrayList<Thread> flusherThreads = new ArrayList<Thread>();
 
 	/**
-	 * The total time in ms that has been spent reading data from disk.
+	 * The first error encountered by a flusher thread, rethrown to the caller of the next cache
+	 * operation.
 	 */
-	private long diskReadTime = 0;
+	private volatile Throwable flushFailure;
 
 	/**
-	 * The hashing algorithm to use when computing file name from block ID.
+	 * The total number of bytes in RAM that was flushed to disk.
 	 */
-	private MessageDigest md5Hash;
+	private AtomicLong uncompressBytes = new AtomicLong();
+
 
 	public ExternalMemoryObjectCache(File directory)
 	{
-		init(directory, 1000000000, CompressType.SNAPPY);
+		init(directory, 1000000000, CompressType.SNAPPY, StorageType.FILE_PER_BLOCK,
+				new LruEvictionPolicy());
 	}
 
 	public ExternalMemoryObjectCache(File directory, long cacheSize, CompressType compress)
 	{
-		init(directory, cacheSize, compress);
+		init(directory, cacheSize, compress, StorageType.FILE_PER_BLOCK, new LruEvictionPolicy());
+	}
+
+	public ExternalMemoryObjectCache(File directory, long cacheSize, CompressType compress,
+			StorageType storageType)
+	{
+		init(directory, cacheSize, compress, storageType, new LruEvictionPolicy());
+	}
+
+	/**
+	 * @param evictionPolicy
+	 *            Decides which blocks are flushed when the cache is full. Each stripe gets its own
+	 *            policy created from this one.
+	 */
+	public ExternalMemoryObjectCache(File directory, long cacheSize, CompressType compress,
+			StorageType storageType, EvictionPolicy evictionPolicy)
+	{
+		init(directory, cacheSize, compress, storageType, evictionPolicy);
 	}
 
 	public ExternalMemoryObjectCache(File directory, ExternalMemoryObjectCache<T> baseCacheConfig)
 	{
-		init(directory, baseCacheConfig.maxCacheMemorySize, baseCacheConfig.compress);
+		init(directory, baseCacheConfig.maxCacheMemorySize, baseCacheConfig.compress,
+				baseCacheConfig.storageType, baseCacheConfig.evictionPolicyTemplate);
+		if (baseCacheConfig.flusherThreadCount > 0)
+			enableWriteBehind(baseCacheConfig.flusherThreadCount, baseCacheConfig.maxQueuedWrites);
+		prefetchThreadCount = baseCacheConfig.prefetchThreadCount;
+		codec = baseCacheConfig.codec;
+		maxPrefetchedBlocks = baseCacheConfig.maxPrefetchedBlocks;
+		setStripeCount(baseCacheConfig.stripes.size());
+		if (baseCacheConfig.compressedTierSize > 0)
+			enableCompressedMemoryTier(baseCacheConfig.compressedTierSize);
+	}
+
+	/**
+	 * Creates a cache over an existing storage directory using a configuration written by
+	 * saveConfig(). The codec isn't part of the configuration and must be set again.
+	 */
+	public ExternalMemoryObjectCache(File directory, Properties config)
+	{
+		EvictionPolicy evictionPolicy;
+		try
+		{
+			evictionPolicy = (EvictionPolicy) Class.forName(
+					config.getProperty("cache.evictionPolicy")).getDeclaredConstructor()
+					.newInstance();
+		} catch (ReflectiveOperationException e)
+		{
+			throw new RuntimeException(e);
+		}
+		init(directory, Long.parseLong(config.getProperty("cache.maxInMemoryBytes")),
+				CompressType.valueOf(config.getProperty("cache.compress")),
+				StorageType.valueOf(config.getProperty("cache.storageType")), evictionPolicy);
+		int flushers = Integer.parseInt(config.getProperty("cache.flusherThreads"));
+		if (flushers > 0)
+			enableWriteBehind(flushers,
+					Integer.parseInt(config.getProperty("cache.maxQueuedWrites")));
+		prefetchThreadCount = Integer.parseInt(config.getProperty("cache.prefetchThreads"));
+		maxPrefetchedBlocks = Integer.parseInt(config.getProperty("cache.maxPrefetchedBlocks"));
+		setStripeCount(Integer.parseInt(config.getProperty("cache.stripes")));
+		long tierSize = Long.parseLong(config.getProperty("cache.compressedTierBytes"));
+		if (tierSize > 0)
+			enableCompressedMemoryTier(tierSize);
 	}
 
-	private void init(File directory, long cacheSize, CompressType compress)
+	private void init(File directory, long cacheSize, CompressType compress,
+			StorageType storageType, EvictionPolicy evictionPolicy)
 	{
+		evictionPolicyTemplate = evictionPolicy;
+		stripes = createStripes(1);
 		storageDirectory = directory;
 		storageDirectory.mkdirs();
 		this.maxCacheMemorySize = cacheSize;
+		metrics = new CacheMetrics(inMemoryByteEstimate, cacheSize);
 		this.compress = compress;
-		try
+		this.storageType = storageType;
+		if (storageType == StorageType.SEGMENTED)
+			blockStore = new SegmentedBlockStore(directory);
+		else
+			blockStore = new FileBlockStore(directory);
+	}
+
+	/**
+	 * Makes evictions hand dirty blocks off to background flusher threads instead of writing them
+	 * synchronously. Blocks waiting to be written aren't counted against the cache size, so up to
+	 * maxQueuedWrites evicted blocks may be held in RAM beyond the cache size.
+	 * 
+	 * @param flusherThreads
+	 *            The number of threads serializing and writing evicted blocks.
+	 * @param maxQueuedWrites
+	 *            The maximum number of evicted blocks waiting to be written. Evictions block while
+	 *            the queue is full.
+	 */
+	public void enableWriteBehind(int flusherThreads, int maxQueuedWrites)
+	{
+		if (flusherThreads < 1 || maxQueuedWrites < 1)
+			throw new IllegalArgumentException("Write-behind requires at least one flusher thread "
+					+ "and one queue slot.");
+		stopFlusherThreads();
+		flusherThreadCount = flusherThreads;
+		this.maxQueuedWrites = maxQueuedWrites;
+		writeQueue = new ArrayBlockingQueue<PendingWrite>(maxQueuedWrites);
+	}
+
+	/**
+	 * Keeps the serialized (and compressed) bytes of flushed blocks in off-heap RAM before writing
+	 * them to disk. Only the least-recently used blocks are written once the tier holds more than
+	 * the specified number of bytes. The tier isn't counted against the cache size. This must be
+	 * called before the cache is used.
+	 * 
+	 * @param maxTierBytes
+	 *            The maximum number of serialized bytes kept in RAM.
+	 */
+	public void enableCompressedMemoryTier(long maxTierBytes)
+	{
+		if (maxTierBytes < 1)
+			throw new IllegalArgumentException("The compressed memory tier must hold at least one "
+					+ "byte.");
+		CompressedMemoryBlockStore oldTier = getCompressedMemoryTier();
+		if (oldTier != null)
 		{
-			md5Hash = MessageDigest.getInstance("MD5");
-		} catch (NoSuchAlgorithmException e)
+			try
+			{
+				oldTier.close();
+			} catch (IOException e)
+			{
+				throw new RuntimeException(e);
+			}
+			blockStore = oldTier.getBackingStore();
+		}
+		compressedTierSize = maxTierBytes;
+		blockStore = new CompressedMemoryBlockStore(blockStore, maxTierBytes);
+	}
+
+	/**
+	 * Returns the compressed memory tier or null if it isn't enabled.
+	 */
+	public CompressedMemoryBlockStore getCompressedMemoryTier()
+	{
+		if (blockStore instanceof CompressedMemoryBlockStore)
+			return (CompressedMemoryBlockStore) blockStore;
+		return null;
+	}
+
+	/**
+	 * Splits the cache into the specified number of independently locked stripes so it can be used
+	 * by many threads at once. Each stripe evicts in LRU order on its own, so with more than one
+	 * stripe the eviction order only approximates LRU. This must be called before the cache is
+	 * shared between threads.
+	 * 
+	 * The cache only protects its own state. Objects returned by get() are shared, so concurrent
+	 * modifications of the same object must be coordinated by the caller.
+	 */
+	public void setStripeCount(int stripeCount)
+	{
+		if (stripeCount < 1)
+			throw new IllegalArgumentException("At least one stripe is required.");
+		ArrayList<Stripe> oldStripes = stripes;
+		stripes = createStripes(stripeCount);
+		for (Stripe stripe : oldStripes)
 		{
-			throw new RuntimeException(e);
+			for (Entry<String, Block> entry : stripe.cachedBlocks.entrySet())
+				getStripe(entry.getKey()).insert(entry.getKey(), entry.getValue());
 		}
 	}
 
+	public int getStripeCount()
+	{
+		return stripes.size();
+	}
+
+	private ArrayList<Stripe> createStripes(int stripeCount)
+	{
+		ArrayList<Stripe> result = new ArrayList<Stripe>(stripeCount);
+		for (int x = 0; x < stripeCount; x++)
+			result.add(new Stripe());
+		return result;
+	}
+
+	/**
+	 * Returns the stripe that holds the block with the specified ID.
+	 */
+	private Stripe getStripe(String blockId)
+	{
+		ArrayList<Stripe> currentStripes = stripes;
+		return currentStripes.get((blockId.hashCode() & Integer.MAX_VALUE) % currentStripes.size());
+	}
+
 	/**
 	 * Adds a new ExternalizableMemoryObject to the cache with the specified ID.
 	 * 
@@ -175,9 +557,27 @@ public class ExternalMemoryObjectCache<T extends ExternalizableMemoryObject>
 	 */
 	public void register(String index, T data)
 	{
-		Block block = getBlock(index);
-		block.data = data;
-		block.updateSizeEstimate();
+		checkFlushFailure();
+		discardPrefetch(index);
+		Stripe stripe = getStripe(index);
+		lockWhenNotLoading(stripe, index);
+		try
+		{
+			Block block = stripe.access(index);
+			if (block == null)
+			{
+				// Any queued write of the block is obsolete now.
+				takeBackPendingWrite(index);
+				block = new Block(data);
+				stripe.insert(index, block);
+			}
+			block.data = data;
+			block.updateSizeEstimate();
+			evictIfNecessary(stripe, index);
+		} finally
+		{
+			stripe.lock.unlock();
+		}
 	}
 
 	/**
@@ -185,160 +585,911 @@ public class ExternalMemoryObjectCache<T extends ExternalizableMemoryObject>
 	 */
 	public T get(String index)
 	{
-		Block block = getBlock(index);
-		block.updateSizeEstimate();
-		return block.data;
+		return getBlock(index).data;
 	}
 
 	/**
-	 * Removes the ExternalizableMemoryObject with the specified ID from the cache.
+	 * Returns the ExternalizableMemoryObject stored with the specified ID and keeps it from being
+	 * flushed until a matching call to unpin(). Threads modifying a cached object while other
+	 * threads use the cache must pin it first, since a flushed object is no longer the one the
+	 * cache returns.
 	 */
-	public void unregister(String index)
+	public T pin(String index)
 	{
-		Block block = cachedBlocks.remove(index);
-		inMemoryByteEstimate -= block.previousByteSize;
-		String blockFileName = convertBlockIdToFilename(index);
-		new File(storageDirectory, blockFileName).delete();
+		while (true)
+		{
+			Block block = getBlock(index);
+			Stripe stripe = getStripe(index);
+			stripe.lock.lock();
+			try
+			{
+				// The block may have been flushed between being loaded and being locked.
+				if (stripe.cachedBlocks.get(index) == block)
+				{
+					if (block.pinCount++ == 0)
+						stripe.evictionPolicy.onRemove(index);
+					return block.data;
+				}
+			} finally
+			{
+				stripe.lock.unlock();
+			}
+		}
 	}
 
 	/**
-	 * Returnss the block stored with the specified ID from RAM if possible, otherwise the block
-	 * will be loaded from disk into the cache first.
+	 * Releases a pin taken with pin(), allowing the object to be flushed again once it's no longer
+	 * pinned by any thread. Nothing happens if the object was unregistered in the meantime.
 	 */
-	@SuppressWarnings("unchecked")
-	private Block getBlock(String blockId)
+	public void unpin(String index)
 	{
-		Block block = cachedBlocks.get(blockId);
+		Stripe stripe = getStripe(index);
+		stripe.lock.lock();
 		try
 		{
-			// The block is not in RAM so load it from disk.
-			if (block == null)
-			{
-				block = new Block(null);
-				String blockFileName = convertBlockIdToFilename(blockId);
-				File blockFile = new File(storageDirectory, blockFileName);
-				if (blockFile.exists())
-				{
-					long startTime = System.currentTimeMillis();
-					InputStream is = new BufferedInputStream(new FileInputStream(blockFile));
-
-					// Decompress if necessary.
-					if (compress == CompressType.SNAPPY)
-						is = new SnappyInputStream(is);
-					else if (compress == CompressType.GZIP)
-						is = new GZIPInputStream(is);
-
-					ObjectInputStream objStream = new ObjectInputStream(is);
-					block.data = (T) objStream.readObject();
-					objStream.close();
-					diskReadTime += System.currentTimeMillis() - startTime;
-					block.updateSizeEstimate();
-				}
+			Block block = stripe.cachedBlocks.get(index);
+			if (block == null || block.pinCount == 0)
+				return;
+			if (--block.pinCount == 0)
+				stripe.evictionPolicy.onInsert(index);
 
-				cachedBlocks.put(blockId, block);
-			}
+			// The object may have grown while it was pinned.
+			if (block.data != null)
+				block.updateSizeEstimate();
+			evictIfNecessary(stripe, index);
+		} finally
+		{
+			stripe.lock.unlock();
+		}
+	}
 
-			/*
-			 * If the new block made the cache too large, flush the least-recently used block to
-			 * disk.
-			 */
-			if (inMemoryByteEstimate > maxCacheMemorySize && cachedBlocks.size() > 1)
-			{
-				Iterator<Entry<String, Block>> iter = cachedBlocks.entrySet().iterator();
-				String flushBlockNum = iter.next().getKey();
-				flushBlock(flushBlockNum);
-			}
-		} catch (Exception e)
+	/**
+	 * Removes the ExternalizableMemoryObject with the specified ID from the cache.
+	 */
+	public void unregister(String index)
+	{
+		discardPrefetch(index);
+		Stripe stripe = getStripe(index);
+		lockWhenNotLoading(stripe, index);
+		try
+		{
+			Block block = stripe.remove(index);
+			if (block != null)
+				block.clearSizeEstimate();
+			else
+				takeBackPendingWrite(index);
+			blockStore.delete(index);
+		} catch (IOException e)
 		{
 			throw new RuntimeException(e);
+		} finally
+		{
+			stripe.lock.unlock();
 		}
-		return block;
 	}
 
-	private void flushBlock(String block)
+	/**
+	 * Starts loading the block with the specified ID on a background thread if it isn't already in
+	 * RAM, so that a later get() doesn't have to wait on disk.
+	 */
+	public void prefetch(String index)
 	{
-		Block flushBlock = cachedBlocks.remove(block);
+		if (prefetchThreadCount < 1)
+			return;
 
 		/*
-		 * If the block was modified since being loaded, the new data needs to be saved to disk.
+		 * The stripe stays locked while the prefetch is submitted so the block can't be loaded,
+		 * modified and flushed before the prefetch is registered, which would leave a stale
+		 * prefetch behind.
 		 */
-		if (flushBlock.data.isDirty())
+		Stripe stripe = getStripe(index);
+		stripe.lock.lock();
+		try
 		{
-			flushBlock.updateSizeEstimate();
-			try
+			if (stripe.cachedBlocks.containsKey(index) || stripe.loadingBlocks.containsKey(index))
+				return;
+			synchronized (pendingWrites)
 			{
-				long startTime = System.currentTimeMillis();
-				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
-				OutputStream os = bytes;
-
-				// Compress if necessary.
-				if (compress == CompressType.SNAPPY)
-					os = new SnappyOutputStream(os);
-				else if (compress == CompressType.GZIP)
-					os = new GZIPOutputStream(os);
-
-				ObjectOutputStream out = new ObjectOutputStream(os);
-				out.writeObject(flushBlock.data);
-				out.close();
-				serializationTime += System.currentTimeMillis() - startTime;
-				startTime = System.currentTimeMillis();
-				String blockFileName = convertBlockIdToFilename(block);
-				OutputStream fileOutput = new BufferedOutputStream(new FileOutputStream(new File(
-						storageDirectory, blockFileName)));
-				fileOutput.write(bytes.toByteArray());
-				fileOutput.close();
-				diskWriteTime += System.currentTimeMillis() - startTime;
-				uncompressBytes += flushBlock.previousByteSize;
-				compressedBytes += bytes.size();
-			} catch (IOException e)
+				if (pendingWrites.containsKey(index))
+					return;
+			}
+			synchronized (prefetchedBlocks)
 			{
-				throw new RuntimeException(e);
+				if (!prefetchedBlocks.containsKey(index))
+					submitPrefetch(index);
 			}
+		} finally
+		{
+			stripe.lock.unlock();
 		}
-		inMemoryByteEstimate -= flushBlock.previousByteSize;
 	}
 
 	/**
-	 * Returns an MD5 hash of the specified block ID.
+	 * Starts a background load of the specified block. The prefetchedBlocks lock must be held.
 	 */
-	private String convertBlockIdToFilename(String blockId)
+	private void submitPrefetch(String index)
 	{
-		return Hex.encodeHexString(md5Hash.digest(blockId.getBytes()));
+		if (prefetchExecutor == null)
+		{
+			prefetchExecutor = Executors.newFixedThreadPool(prefetchThreadCount,
+					new ThreadFactory()
+					{
+						@Override
+						public Thread newThread(Runnable r)
+						{
+							Thread thread = new Thread(r, "ExternalMemoryObjectCache-prefetch");
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+		}
+
+		final String blockId = index;
+		prefetchedBlocks.put(index, prefetchExecutor.submit(new Callable<T>()
+		{
+			@Override
+			public T call() throws Exception
+			{
+				return loadBlockData(blockId);
+			}
+		}));
+
+		if (prefetchedBlocks.size() > maxPrefetchedBlocks)
+		{
+			Iterator<Entry<String, Future<T>>> iter = prefetchedBlocks.entrySet().iterator();
+			iter.next().getValue().cancel(false);
+			iter.remove();
+		}
 	}
 
 	/**
-	 * Flushes all blocks still remaining in RAM.
+	 * Returns the object stored with the specified ID if it's already in RAM or has finished being
+	 * prefetched, otherwise null. This never waits on disk or causes an eviction.
 	 */
-	public void close()
+	public T getIfLoaded(String index)
 	{
-		for (String block : new HashSet<String>(cachedBlocks.keySet()))
+		Stripe stripe = getStripe(index);
+		stripe.lock.lock();
+		try
+		{
+			Block block = stripe.cachedBlocks.get(index);
+			if (block != null)
+				return block.data;
+		} finally
 		{
-			flushBlock(block);
+			stripe.lock.unlock();
 		}
 
-		System.out.println("Compression Ratio: " + getCompressionRatio());
-		System.out.println("Total Serialization Time: " + serializationTime + "ms");
-		System.out.println("Total Disk Write Time: " + diskWriteTime + "ms");
-		System.out.println("Total Disk Read Time: " + diskReadTime + "ms");
+		synchronized (pendingWrites)
+		{
+			PendingWrite pendingWrite = pendingWrites.get(index);
+			if (pendingWrite != null)
+				return pendingWrite.block.data;
+		}
+
+		Future<T> prefetch;
+		synchronized (prefetchedBlocks)
+		{
+			prefetch = prefetchedBlocks.get(index);
+		}
+		if (prefetch != null && prefetch.isDone() && !prefetch.isCancelled())
+		{
+			try
+			{
+				return prefetch.get();
+			} catch (Exception e)
+			{
+				// The block will be loaded synchronously when requested.
+			}
+		}
+		return null;
 	}
 
-	public double getCompressionRatio()
+	/**
+	 * Sets the codec used to convert blocks to bytes, or null to use Java serialization. Blocks
+	 * already written with Java serialization can still be read after a codec is set.
+	 */
+	public void setCodec(BlockCodec<T> codec)
 	{
-		return (double) compressedBytes / uncompressBytes;
+		this.codec = codec;
 	}
 
-	public File getStorageDirectory()
+	/**
+	 * Sets the number of background threads used to load prefetched blocks. 0 disables
+	 * prefetching.
+	 */
+	public void setPrefetchThreads(int prefetchThreads)
 	{
-		return storageDirectory;
+		stopPrefetching();
+		prefetchThreadCount = prefetchThreads;
 	}
 
-	public long getSerializationTime()
+	/**
+	 * Sets the maximum number of prefetched blocks that can be held outside the cache at once.
+	 */
+	public void setMaxPrefetchedBlocks(int maxPrefetchedBlocks)
+	{
+		this.maxPrefetchedBlocks = maxPrefetchedBlocks;
+	}
+
+	/**
+	 * Cancels any prefetch of the specified block since its stored data is about to be replaced.
+	 */
+	private void discardPrefetch(String blockId)
 	{
-		return serializationTime;
+		Future<T> prefetch;
+		synchronized (prefetchedBlocks)
+		{
+			prefetch = prefetchedBlocks.remove(blockId);
+		}
+		if (prefetch != null)
+			prefetch.cancel(false);
 	}
 
+	/**
+	 * Returns the prefetched data of the specified block, or null if it wasn't prefetched or the
+	 * prefetch failed. Waits for the prefetch to finish if it's still running.
+	 */
+	private T takePrefetchedData(String blockId)
+	{
+		Future<T> prefetch;
+		synchronized (prefetchedBlocks)
+		{
+			prefetch = prefetchedBlocks.remove(blockId);
+		}
+		if (prefetch == null)
+			return null;
+		try
+		{
+			return prefetch.get();
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e)
+		{
+			return null;
+		}
+	}
+
+	private void stopPrefetching()
+	{
+		synchronized (prefetchedBlocks)
+		{
+			for (Future<T> prefetch : prefetchedBlocks.values())
+				prefetch.cancel(false);
+			prefetchedBlocks.clear();
+			if (prefetchExecutor != null)
+			{
+				prefetchExecutor.shutdown();
+				prefetchExecutor = null;
+			}
+		}
+	}
+
+	/**
+	 * Reads and deserializes the specified block from the BlockStore.
+	 * 
+	 * @return The stored object or null if the block isn't stored.
+	 */
+	private T loadBlockData(String blockId) throws IOException, ClassNotFoundException
+	{
+		long startTime = System.nanoTime();
+		byte[] storedBytes = blockStore.read(blockId);
+		if (storedBytes == null)
+			return null;
+
+		T result = deserialize(storedBytes);
+		metrics.recordLoad(System.nanoTime() - startTime, storedBytes.length);
+		return result;
+	}
+
+	/**
+	 * Returnss the block stored with the specified ID from RAM if possible, otherwise the block
+	 * will be loaded from disk into the cache first. The block's size estimate is refreshed since
+	 * the caller may have modified it since its last access.
+	 */
+	private Block getBlock(String blockId)
+	{
+		checkFlushFailure();
+		Stripe stripe = getStripe(blockId);
+		Block block;
+		CountDownLatch loadLatch;
+		stripe.lock.lock();
+		try
+		{
+			while (true)
+			{
+				block = stripe.access(blockId);
+				if (block != null)
+					break;
+
+				// Wait for another thread that is already loading the block.
+				CountDownLatch otherLoad = stripe.loadingBlocks.get(blockId);
+				if (otherLoad == null)
+					break;
+				stripe.lock.unlock();
+				try
+				{
+					otherLoad.await();
+				} catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					throw new RuntimeException(e);
+				} finally
+				{
+					stripe.lock.lock();
+				}
+			}
+
+			if (block != null)
+			{
+				metrics.recordHit();
+				if (block.data != null)
+					block.updateSizeEstimate();
+				evictIfNecessary(stripe, blockId);
+				return block;
+			}
+
+			metrics.recordMiss();
+			loadLatch = new CountDownLatch(1);
+			stripe.loadingBlocks.put(blockId, loadLatch);
+		} finally
+		{
+			stripe.lock.unlock();
+		}
+
+		// The block is not in RAM so load it without holding the stripe lock.
+		Block loadedBlock = null;
+		try
+		{
+			loadedBlock = loadBlock(blockId);
+		} finally
+		{
+			stripe.lock.lock();
+			try
+			{
+				stripe.loadingBlocks.remove(blockId);
+				if (loadedBlock != null)
+				{
+					stripe.insert(blockId, loadedBlock);
+					evictIfNecessary(stripe, blockId);
+				}
+			} finally
+			{
+				stripe.lock.unlock();
+				loadLatch.countDown();
+			}
+		}
+		return loadedBlock;
+	}
+
+	/**
+	 * Creates a block for the specified ID, reusing a queued write or prefetched data if possible
+	 * and otherwise reading the block from disk.
+	 */
+	private Block loadBlock(String blockId)
+	{
+		try
+		{
+			PendingWrite pendingWrite = takeBackPendingWrite(blockId);
+			if (pendingWrite != null)
+			{
+				// The block was evicted but hasn't been written yet, so reuse it.
+				Block block = pendingWrite.block;
+				block.updateSizeEstimate();
+				return block;
+			}
+
+			Block block = new Block(null);
+			block.data = takePrefetchedData(blockId);
+			if (block.data == null)
+				block.data = loadBlockData(blockId);
+			if (block.data != null)
+				block.updateSizeEstimate();
+			return block;
+		} catch (Exception e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Locks the specified stripe once no thread is loading the specified block.
+	 */
+	private void lockWhenNotLoading(Stripe stripe, String blockId)
+	{
+		stripe.lock.lock();
+		CountDownLatch load;
+		while ((load = stripe.loadingBlocks.get(blockId)) != null)
+		{
+			stripe.lock.unlock();
+			try
+			{
+				load.await();
+			} catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			} finally
+			{
+				stripe.lock.lock();
+			}
+		}
+	}
+
+	/**
+	 * If the cache is too large, flushes the block of the specified stripe chosen by its eviction
+	 * policy to disk. If that stripe has nothing else to flush, another stripe that isn't locked is
+	 * used instead. The block that was just accessed is never flushed. The stripe's lock must be
+	 * held.
+	 */
+	private void evictIfNecessary(Stripe stripe, String accessedBlockId)
+	{
+		if (inMemoryByteEstimate.get() <= maxCacheMemorySize)
+			return;
+		if (evictFromStripe(stripe, accessedBlockId))
+			return;
+
+		for (Stripe otherStripe : stripes)
+		{
+			if (otherStripe == stripe || !otherStripe.lock.tryLock())
+				continue;
+			try
+			{
+				if (evictFromStripe(otherStripe, accessedBlockId))
+					return;
+			} finally
+			{
+				otherStripe.lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Flushes the eviction policy's victim from the specified locked stripe, never choosing the
+	 * specified block.
+	 * 
+	 * @return False if the stripe had no other block to flush.
+	 */
+	private boolean evictFromStripe(Stripe stripe, String accessedBlockId)
+	{
+		String victim = stripe.evictionPolicy.selectVictim(accessedBlockId);
+		if (victim == null)
+			return false;
+		flushBlock(stripe, victim);
+		return true;
+	}
+
+	/**
+	 * Removes the specified block from the specified locked stripe, writing it to disk if it was
+	 * modified.
+	 */
+	private void flushBlock(Stripe stripe, String block)
+	{
+		Block flushBlock = stripe.remove(block);
+
+		/*
+		 * If the block was modified since being loaded, the new data needs to be saved to disk.
+		 */
+		boolean dirty = flushBlock.data != null && flushBlock.data.isDirty();
+		metrics.recordEviction(dirty);
+		if (dirty)
+		{
+			discardPrefetch(block);
+			flushBlock.updateSizeEstimate();
+			if (flusherThreadCount > 0)
+				queueWrite(block, flushBlock);
+			else
+				writeBlock(block, flushBlock.data, flushBlock.previousByteSize);
+		}
+		flushBlock.clearSizeEstimate();
+	}
+
+	/**
+	 * Serializes the specified block and writes it to the BlockStore.
+	 * 
+	 * @param byteSize
+	 *            The in-memory size of the block, used for compression statistics.
+	 */
+	private void writeBlock(String blockId, T data, long byteSize)
+	{
+		try
+		{
+			byte[] bytes = serialize(data);
+			long startTime = System.nanoTime();
+			blockStore.write(blockId, bytes);
+			metrics.recordWrite(System.nanoTime() - startTime, bytes.length);
+			uncompressBytes.addAndGet(byteSize);
+		} catch (IOException e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Hands an evicted block to the flusher threads, waiting for space in the queue if it's full.
+	 */
+	private void queueWrite(String blockId, Block block)
+	{
+		startFlusherThreads();
+		PendingWrite pendingWrite = new PendingWrite(blockId, block);
+		pendingWrite.byteSize = block.previousByteSize;
+		synchronized (pendingWrites)
+		{
+			pendingWrites.put(blockId, pendingWrite);
+		}
+		try
+		{
+			writeQueue.put(pendingWrite);
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Removes the queued write of the specified block so the block can be used again. If a flusher
+	 * thread is already writing the block, this waits for the write to finish.
+	 * 
+	 * @return The removed write or null if the block isn't waiting to be written.
+	 */
+	private PendingWrite takeBackPendingWrite(String blockId)
+	{
+		synchronized (pendingWrites)
+		{
+			PendingWrite pendingWrite = pendingWrites.remove(blockId);
+			if (pendingWrite == null)
+				return null;
+
+			pendingWrite.cancelled = !pendingWrite.writing;
+			try
+			{
+				while (pendingWrite.writing && !pendingWrite.done)
+					pendingWrites.wait();
+			} catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			}
+			return pendingWrite;
+		}
+	}
+
+	/**
+	 * The main loop of a flusher thread.
+	 */
+	private void runFlusher()
+	{
+		while (true)
+		{
+			PendingWrite pendingWrite;
+			try
+			{
+				pendingWrite = writeQueue.take();
+			} catch (InterruptedException e)
+			{
+				return;
+			}
+			if (pendingWrite == stopFlusherMarker)
+				return;
+
+			synchronized (pendingWrites)
+			{
+				if (pendingWrite.cancelled)
+					continue;
+				pendingWrite.writing = true;
+			}
+
+			try
+			{
+				writeBlock(pendingWrite.blockId, pendingWrite.block.data, pendingWrite.byteSize);
+			} catch (Throwable e)
+			{
+				if (flushFailure == null)
+					flushFailure = e;
+			} finally
+			{
+				synchronized (pendingWrites)
+				{
+					pendingWrite.done = true;
+					if (pendingWrites.get(pendingWrite.blockId) == pendingWrite)
+						pendingWrites.remove(pendingWrite.blockId);
+					pendingWrites.notifyAll();
+				}
+			}
+		}
+	}
+
+	private void startFlusherThreads()
+	{
+		synchronized (flusherThreads)
+		{
+			startMissingFlusherThreads();
+		}
+	}
+
+	private void startMissingFlusherThreads()
+	{
+		while (flusherThreads.size() < flusherThreadCount)
+		{
+			Thread flusher = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					runFlusher();
+				}
+			}, "ExternalMemoryObjectCache-flusher-" + flusherThreads.size());
+			flusher.setDaemon(true);
+			flusher.start();
+			flusherThreads.add(flusher);
+		}
+	}
+
+	/**
+	 * Waits for all queued writes to complete and stops the flusher threads.
+	 */
+	private void stopFlusherThreads()
+	{
+		try
+		{
+			synchronized (pendingWrites)
+			{
+				while (!pendingWrites.isEmpty())
+					pendingWrites.wait();
+			}
+			for (int x = 0; x < flusherThreads.size(); x++)
+				writeQueue.put(stopFlusherMarker);
+			for (Thread flusher : flusherThreads)
+				flusher.join();
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+		flusherThreads.clear();
+	}
+
+	/**
+	 * Rethrows an error encountered by a flusher thread, since the block it was writing is lost.
+	 */
+	private void checkFlushFailure()
+	{
+		if (flushFailure != null)
+			throw new RuntimeException("A flusher thread failed to write an evicted block.",
+					flushFailure);
+	}
+
+	/**
+	 * Converts the specified object into its serialized, and possibly compressed, byte form.
+	 */
+	private byte[] serialize(T data) throws IOException
+	{
+		long startTime = System.nanoTime();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		if (codec != null)
+		{
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeByte(CODEC_FORMAT_MARKER);
+			codec.encode(data, out);
+			out.close();
+		} else
+		{
+			ObjectOutputStream out = new ObjectOutputStream(bytes);
+			out.writeObject(data);
+			out.close();
+		}
+		metrics.recordSerialize(System.nanoTime() - startTime);
+		if (compress == CompressType.NONE)
+			return bytes.toByteArray();
+
+		// Compress separately so compression time can be measured on its own.
+		startTime = System.nanoTime();
+		ByteArrayOutputStream compressedBytes = new ByteArrayOutputStream();
+		OutputStream os;
+		if (compress == CompressType.SNAPPY)
+			os = new SnappyOutputStream(compressedBytes);
+		else
+			os = new GZIPOutputStream(compressedBytes);
+		bytes.writeTo(os);
+		os.close();
+		metrics.recordCompress(System.nanoTime() - startTime);
+		return compressedBytes.toByteArray();
+	}
+
+	/**
+	 * Converts bytes created by serialize() back into an object.
+	 */
+	@SuppressWarnings("unchecked")
+	private T deserialize(byte[] storedBytes) throws IOException, ClassNotFoundException
+	{
+		InputStream is = new ByteArrayInputStream(storedBytes);
+
+		// Decompress if necessary.
+		if (compress == CompressType.SNAPPY)
+			is = new SnappyInputStream(is);
+		else if (compress == CompressType.GZIP)
+			is = new GZIPInputStream(is);
+
+		/*
+		 * Blocks written by a codec start with a marker byte, anything else is a Java serialization
+		 * stream.
+		 */
+		is = new BufferedInputStream(is);
+		is.mark(1);
+		if (codec != null && is.read() == CODEC_FORMAT_MARKER)
+		{
+			DataInputStream dataStream = new DataInputStream(is);
+			T result = codec.decode(dataStream);
+			dataStream.close();
+			return result;
+		}
+		is.reset();
+
+		ObjectInputStream objStream = new ObjectInputStream(is);
+		T result = (T) objStream.readObject();
+		objStream.close();
+		return result;
+	}
+
+	/**
+	 * Stores the settings of this cache in the specified properties so an equivalent cache can be
+	 * created over the same directory later. Eviction policies are recreated with their no-argument
+	 * constructor.
+	 */
+	public void saveConfig(Properties config)
+	{
+		config.setProperty("cache.maxInMemoryBytes", maxCacheMemorySize + "");
+		config.setProperty("cache.compress", compress.name());
+		config.setProperty("cache.storageType", storageType.name());
+		config.setProperty("cache.evictionPolicy", evictionPolicyTemplate.getClass().getName());
+		config.setProperty("cache.flusherThreads", flusherThreadCount + "");
+		config.setProperty("cache.maxQueuedWrites", maxQueuedWrites + "");
+		config.setProperty("cache.prefetchThreads", prefetchThreadCount + "");
+		config.setProperty("cache.maxPrefetchedBlocks", maxPrefetchedBlocks + "");
+		config.setProperty("cache.stripes", stripes.size() + "");
+		config.setProperty("cache.compressedTierBytes", compressedTierSize + "");
+	}
+
+	/**
+	 * Writes every dirty block in RAM to the BlockStore without evicting it, waits for queued
+	 * writes to complete and makes the BlockStore durable. Blocks stay dirty, so they're written
+	 * again when evicted.
+	 */
+	public void flush()
+	{
+		checkFlushFailure();
+		for (Stripe stripe : stripes)
+		{
+			stripe.lock.lock();
+			try
+			{
+				for (Entry<String, Block> entry : stripe.cachedBlocks.entrySet())
+				{
+					T data = entry.getValue().data;
+					if (data != null && data.isDirty())
+						writeBlock(entry.getKey(), data, data.getByteSize());
+				}
+			} finally
+			{
+				stripe.lock.unlock();
+			}
+		}
+
+		try
+		{
+			synchronized (pendingWrites)
+			{
+				while (!pendingWrites.isEmpty())
+					pendingWrites.wait();
+			}
+			checkFlushFailure();
+			blockStore.flush();
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (IOException e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Flushes all blocks still remaining in RAM.
+	 */
+	public void close()
+	{
+		for (Stripe stripe : stripes)
+		{
+			stripe.lock.lock();
+			try
+			{
+				for (String block : new HashSet<String>(stripe.cachedBlocks.keySet()))
+				{
+					flushBlock(stripe, block);
+				}
+			} finally
+			{
+				stripe.lock.unlock();
+			}
+		}
+		stopPrefetching();
+		stopFlusherThreads();
+		checkFlushFailure();
+		try
+		{
+			blockStore.close();
+		} catch (IOException e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Returns the number of block requests that were served from RAM.
+	 */
+	public long getHitCount()
+	{
+		return metrics.getHits();
+	}
+
+	/**
+	 * Returns the number of block requests that had to load the block.
+	 */
+	public long getMissCount()
+	{
+		return metrics.getMisses();
+	}
+
+	/**
+	 * Returns the fraction of block requests that were served from RAM.
+	 */
+	public double getHitRate()
+	{
+		return metrics.getHitRate();
+	}
+
+	/**
+	 * Returns the hit, eviction and latency statistics of this cache. They can be published over
+	 * JMX with CacheMetrics.registerMBean().
+	 */
+	public CacheMetrics getMetrics()
+	{
+		return metrics;
+	}
+
+	public double getCompressionRatio()
+	{
+		return (double) metrics.getBytesWritten() / uncompressBytes.get();
+	}
+
+	public File getStorageDirectory()
+	{
+		return storageDirectory;
+	}
+
+	public StorageType getStorageType()
+	{
+		return storageType;
+	}
+
+	/**
+	 * Returns the total time in ms spent serializing and compressing flushed blocks.
+	 */
+	public long getSerializationTime()
+	{
+		return (metrics.getSerializeLatency().getTotalNanos() + metrics.getCompressLatency()
+				.getTotalNanos()) / 1000000;
+	}
+
+	/**
+	 * Returns the total time in ms spent writing flushed blocks to the BlockStore.
+	 */
 	public long getDiskWriteTime()
 	{
-		return diskWriteTime;
+		return metrics.getWriteLatency().getTotalNanos() / 1000000;
 	}
 }
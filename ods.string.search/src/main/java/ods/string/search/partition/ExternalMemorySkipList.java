@@ -1,10 +1,11 @@
 package ods.string.search.partition;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.Serializable;
-import java.lang.reflect.Constructor;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -12,10 +13,13 @@ import java.util.Random;
 
 import ods.string.search.PrefixSearchableSet;
 import ods.string.search.partition.ExternalMemoryObjectCache.CompressType;
+import ods.string.search.partition.splitsets.ElementCodec;
 import ods.string.search.partition.splitsets.ExternalizableLinkedList;
 import ods.string.search.partition.splitsets.ExternalizableListSet;
 import ods.string.search.partition.splitsets.ExternalizableMemoryObject;
 import ods.string.search.partition.splitsets.SplittableSet;
+import ods.string.search.partition.splitsets.SplittableSetCodecs;
+import ods.string.search.partition.splitsets.Treap;
 
 /**
  * This class represents a B-Skip List. A data element is only stored in it's topmost promoted
@@ -46,6 +50,18 @@ public class ExternalMemorySkipList<T extends Comparable<T> & Serializable> impl
 		 */
 		private String prevPartitionId;
 
+		/**
+		 * The promoted element this partition is named after, or null if this is the first
+		 * partition of its layer. It's smaller than every element stored in the partition.
+		 */
+		private T partitionKey;
+
+		/**
+		 * The key of the next list partition in this skip list layer, or null if this is the last
+		 * partition. Every element stored in this partition is smaller than it.
+		 */
+		private T nextPartitionKey;
+
 		/**
 		 * Stores the data elements contained in this partition.
 		 */
@@ -57,6 +73,10 @@ public class ExternalMemorySkipList<T extends Comparable<T> & Serializable> impl
 			this.structure = type.createNewSet();
 		}
 
+		private SubList()
+		{
+		}
+
 		/**
 		 * {@inheritDoc}
 		 */
@@ -74,6 +94,12 @@ public class ExternalMemorySkipList<T extends Comparable<T> & Serializable> impl
 				result += 8;
 			else
 				result += 64 + (prevPartitionId.length() << 1);
+
+			result += 16;
+			if (partitionKey != null)
+				result += Treap.getObjectBaseSize(partitionKey);
+			if (nextPartitionKey != null)
+				result += Treap.getObjectBaseSize(nextPartitionKey);
 			return structure.getByteSize() + result;
 		}
 
@@ -100,9 +126,10 @@ public class ExternalMemorySkipList<T extends Comparable<T> & Serializable> impl
 			return ((PrefixSearchableSet<?>) structure).size();
 		}
 
-		public void setNextPartitionId(String nextPartitionId)
+		public void setNextPartition(String nextPartitionId, T nextPartitionKey)
 		{
 			this.nextPartitionId = nextPartitionId;
+			this.nextPartitionKey = nextPartitionKey;
 			isDirty = true;
 		}
 
@@ -120,6 +147,55 @@ public class ExternalMemorySkipList<T extends Comparable<T> & Serializable> impl
 		}
 	}
 
+	/**
+	 * Writes a SubList as its neighbouring partition IDs, its boundary keys and structure.
+	 */
+	private static class SubListCodec<T extends Comparable<T> & Serializable> implements
+			BlockCodec<SubList<T>>
+	{
+		@Override
+		public void encode(SubList<T> subList, DataOutput out) throws IOException
+		{
+			ElementCodec.writeString(subList.nextPartitionId, out);
+			ElementCodec.writeString(subList.prevPartitionId, out);
+
+			// The keys are written as a run of the non-null ones after a bit mask of which exist.
+			ArrayList<T> keys = new ArrayList<T>(2);
+			int keyMask = 0;
+			if (subList.partitionKey != null)
+			{
+				keys.add(subList.partitionKey);
+				keyMask |= 1;
+			}
+			if (subList.nextPartitionKey != null)
+			{
+				keys.add(subList.nextPartitionKey);
+				keyMask |= 2;
+			}
+			out.writeByte(keyMask);
+			ElementCodec.writeElements(keys.iterator(), keys.size(), out);
+			SplittableSetCodecs.write(subList.structure, out);
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public SubList<T> decode(DataInput in) throws IOException
+		{
+			SubList<T> subList = new SubList<T>();
+			subList.nextPartitionId = ElementCodec.readString(in);
+			subList.prevPartitionId = ElementCodec.readString(in);
+			int keyMask = in.readByte();
+			List<T> keys = ElementCodec.readElements(in);
+			int keyIndex = 0;
+			if ((keyMask & 1) != 0)
+				subList.partitionKey = keys.get(keyIndex++);
+			if ((keyMask & 2) != 0)
+				subList.nextPartitionKey = keys.get(keyIndex++);
+			subList.structure = (SplittableSet<T>) SplittableSetCodecs.read(in);
+			return subList;
+		}
+	}
+
 	/**
 	 * The probability of promoting an element and creating a new partition ranging from 0 to 1.
 	 */
@@ -151,9 +227,33 @@ public class ExternalMemorySkipList<T extends Comparable<T> & Serializable> impl
 	private SplittableSet<T> partitionImplementation;
 
 	/**
-	 * A string parameter constructor used to create data elements from partition IDs.
+	 * The number of bottom layer partitions ahead of the current one that iterators prefetch in
+	 * the background. 0 disables read-ahead.
+	 */
+	private int readAheadPartitions = 0;
+
+	/**
+	 * The maximum number of elements in a partition in deterministic mode, or 0 if partitions are
+	 * created by random promotions.
+	 */
+	private int maxPartitionSize = 0;
+
+	/**
+	 * The minimum number of elements in a partition in deterministic mode, except for the only
+	 * partition of the top layer.
+	 */
+	private int minPartitionSize = 0;
+
+	/**
+	 * The insertion path of the largest element, where index 0 is the bottom layer, kept so that
+	 * appends of increasing elements don't have to search every layer. null if it isn't known.
+	 */
+	private ArrayList<String> appendPath;
+
+	/**
+	 * The largest element in the skip list while appendPath is known.
 	 */
-	private Constructor<? extends Comparable<T>> comparableConstructor;
+	private T lastElement;
 
 	public ExternalMemorySkipList(File storageDirectory)
 	{
@@ -175,6 +275,9 @@ public class ExternalMemorySkipList<T extends Comparable<T> & Serializable> impl
 	{
 		this.promotionProbability = baseConfig.promotionProbability;
 		partitionImplementation = baseConfig.partitionImplementation.createNewSet();
+		readAheadPartitions = baseConfig.readAheadPartitions;
+		minPartitionSize = baseConfig.minPartitionSize;
+		maxPartitionSize = baseConfig.maxPartitionSize;
 		listCache = new ExternalMemoryObjectCache<>(storageDirectory, baseConfig.listCache);
 		init(storageDirectory, 0);
 	}
@@ -184,6 +287,7 @@ public class ExternalMemorySkipList<T extends Comparable<T> & Serializable> impl
 		if (listCache == null)
 			listCache = new ExternalMemoryObjectCache<SubList<T>>(storageDirectory, cacheSize,
 					CompressType.SNAPPY);
+		listCache.setCodec(new SubListCodec<T>());
 		maxHeight = 1;
 		SubList<T> root = new SubList<T>(partitionImplementation);
 		listCache.register("-1", root);
@@ -195,42 +299,394 @@ public class ExternalMemorySkipList<T extends Comparable<T> & Serializable> impl
 		return new EMSkipIterator();
 	}
 
+	/**
+	 * Sets the number of bottom layer partitions that iterators load in the background ahead of
+	 * the partition being iterated over. 0 disables read-ahead.
+	 */
+	public void setReadAheadPartitions(int readAheadPartitions)
+	{
+		this.readAheadPartitions = readAheadPartitions;
+	}
+
+	/**
+	 * Enables deterministic mode, in which partitions aren't created by random promotions. A
+	 * partition that grows past the maximum size is split by promoting its middle element to the
+	 * layer above, and a partition that shrinks below the minimum size is merged with its
+	 * neighbour by demoting the key separating them. Every partition then stays within the bounds,
+	 * so the cost of loading and searching one is predictable.
+	 * 
+	 * @param minPartitionSize
+	 *            The minimum number of elements in a partition. Must be at most half of the
+	 *            maximum.
+	 * @param maxPartitionSize
+	 *            The maximum number of elements in a partition, or 0 to use random promotions.
+	 */
+	public void setPartitionSizeBounds(int minPartitionSize, int maxPartitionSize)
+	{
+		if (maxPartitionSize < 0 || minPartitionSize < 0
+				|| (maxPartitionSize > 0 && (maxPartitionSize < 2
+						|| minPartitionSize > maxPartitionSize / 2)))
+			throw new IllegalArgumentException("Invalid partition size bounds. minPartitionSize="
+					+ minPartitionSize + ", maxPartitionSize=" + maxPartitionSize);
+		if (size > 0)
+			throw new IllegalStateException(
+					"Partition size bounds can only be set on an empty skip list.");
+		this.minPartitionSize = maxPartitionSize == 0 ? 0 : minPartitionSize;
+		this.maxPartitionSize = maxPartitionSize;
+		appendPath = null;
+	}
+
+	public int getMinPartitionSize()
+	{
+		return minPartitionSize;
+	}
+
+	public int getMaxPartitionSize()
+	{
+		return maxPartitionSize;
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
 	@Override
 	public boolean add(T u)
 	{
-		SubList<T> root = listCache.get("-" + maxHeight);
-		ArrayList<String> insertionPath = new ArrayList<String>(maxHeight);
-		if (!find(u, root, maxHeight, "", insertionPath))
+		if (maxPartitionSize > 0)
+			return addBalanced(u);
+
+		ArrayList<String> insertionPath;
+		boolean appending;
+		if (appendPath != null && u.compareTo(lastElement) > 0)
+		{
+			insertionPath = appendPath;
+			appending = true;
+		} else
+		{
+			SubList<T> root = listCache.get("-" + maxHeight);
+			insertionPath = new ArrayList<String>(maxHeight);
+			if (find(u, root, maxHeight, null, insertionPath))
+				return false;
+			appending = isAppendPath(u, insertionPath);
+		}
+
+		// Try to promote as many times as the current maximum list height.
+		boolean promotion = false;
+		int promotedLayers = 0;
+		for (int x = 0; x < insertionPath.size(); x++)
 		{
-			// Try to promote as many times as the current maximum list height.
-			boolean promotion = false;
-			for (int x = 0; x < insertionPath.size(); x++)
+			String listLayerEntry = insertionPath.get(x);
+			if (!(promotion = promoteOrInsert(u, listCache.get(listLayerEntry), listLayerEntry,
+					x + 1)))
+				break;
+			promotedLayers++;
+		}
+		size++;
+
+		/*
+		 * If the element was promoted to a new record height, a new list layer (root partition)
+		 * needs to be created.
+		 */
+		if (promotion)
+		{
+			maxHeight++;
+			SubList<T> newRoot = new SubList<T>(partitionImplementation);
+			addToCollection(u, newRoot);
+			listCache.register("-" + maxHeight, newRoot);
+		}
+
+		if (appending)
+		{
+			// The partitions created for the element are now the last ones in their layers.
+			for (int x = 0; x < promotedLayers; x++)
+				insertionPath.set(x, u + "-" + (x + 1));
+			if (promotion)
+				insertionPath.add("-" + maxHeight);
+			appendPath = insertionPath;
+			lastElement = u;
+		} else if (promotedLayers > 0)
+			appendPath = null;
+		return true;
+	}
+
+	/**
+	 * Fills an empty skip list from elements in strictly increasing order. Every partition gets the
+	 * number of elements a random promotion would give it on average, or 75% of the maximum
+	 * partition size in deterministic mode.
+	 * 
+	 * @see #bulkLoad(Iterator, int)
+	 */
+	public void bulkLoad(Iterator<T> sorted)
+	{
+		int partitionSize;
+		if (maxPartitionSize > 0)
+			partitionSize = Math.max(minPartitionSize, maxPartitionSize * 3 / 4);
+		else
+			partitionSize = (int) Math.max(1, Math.round(1 / promotionProbability) - 1);
+		bulkLoad(sorted, partitionSize);
+	}
+
+	/**
+	 * Fills an empty skip list from elements in strictly increasing order, laying out every layer
+	 * in one pass. Once the open partition of a layer holds the specified number of elements, the
+	 * next element starts a new partition there and is promoted to the layer above, so every
+	 * layer has the same partition size. A partition is registered with the cache once its
+	 * successor has started and is never modified again, so partitions are written to disk once
+	 * and in order.
+	 * 
+	 * In deterministic mode, the last partition of each layer is merged with its predecessor
+	 * afterwards if it ended up below the minimum partition size.
+	 * 
+	 * @param partitionSize
+	 *            The number of elements to put in every partition.
+	 * @throws IllegalArgumentException
+	 *             If an element isn't greater than the one before it. The skip list keeps the
+	 *             elements loaded up to that point.
+	 */
+	public void bulkLoad(Iterator<T> sorted, int partitionSize)
+	{
+		if (size > 0)
+			throw new IllegalStateException("bulkLoad() requires an empty skip list.");
+		if (partitionSize < 1
+				|| (maxPartitionSize > 0 && (partitionSize < minPartitionSize
+						|| partitionSize > maxPartitionSize)))
+			throw new IllegalArgumentException("Invalid partition size. partitionSize="
+					+ partitionSize);
+		appendPath = null;
+		for (; maxHeight > 0; maxHeight--)
+			listCache.unregister("-" + maxHeight);
+
+		// The partitions currently being filled and their keys, where index 0 is the bottom layer.
+		ArrayList<SubList<T>> openPartitions = new ArrayList<SubList<T>>();
+		ArrayList<T> openPartitionKeys = new ArrayList<T>();
+		openPartitions.add(new SubList<T>(partitionImplementation));
+		openPartitionKeys.add(null);
+
+		T previous = null;
+		IllegalArgumentException failure = null;
+		while (sorted.hasNext())
+		{
+			T elem = sorted.next();
+			if (previous != null && previous.compareTo(elem) >= 0)
 			{
-				String listLayerEntry = insertionPath.get(x);
-				if (!(promotion = promoteOrInsert(u, listCache.get(listLayerEntry), listLayerEntry,
-						x + 1)))
-					break;
+				failure = new IllegalArgumentException("bulkLoad() requires strictly increasing "
+						+ "elements, but " + elem + " followed " + previous + ".");
+				break;
 			}
+			addToOpenPartition(openPartitions, openPartitionKeys, 0, elem, partitionSize);
+			previous = elem;
 			size++;
+		}
 
-			/*
-			 * If the element was promoted to a new record height, a new list layer (root partition)
-			 * needs to be created.
-			 */
-			if (promotion)
+		for (int x = 0; x < openPartitions.size(); x++)
+			listCache.register(getPartitionId(openPartitionKeys.get(x), x + 1),
+					openPartitions.get(x));
+		maxHeight = openPartitions.size();
+
+		if (maxPartitionSize > 0)
+		{
+			for (int height = 1; height < maxHeight; height++)
+				mergeIfUnderflowing(findLastPartitionId(height), height);
+		}
+
+		if (failure != null)
+			throw failure;
+	}
+
+	/**
+	 * Adds the specified element to the open partition of the specified layer. If that partition
+	 * is full, it's completed and the element starts a new one and is promoted to the layer above
+	 * instead.
+	 */
+	private void addToOpenPartition(ArrayList<SubList<T>> openPartitions,
+			ArrayList<T> openPartitionKeys, int level, T elem, int partitionSize)
+	{
+		SubList<T> openPartition = openPartitions.get(level);
+		if (openPartition.size() < partitionSize)
+		{
+			addToCollection(elem, openPartition);
+			return;
+		}
+
+		String completedId = getPartitionId(openPartitionKeys.get(level), level + 1);
+		String newPartitionId = getPartitionId(elem, level + 1);
+		SubList<T> newPartition = new SubList<T>(partitionImplementation);
+		newPartition.partitionKey = elem;
+		newPartition.setPrevPartitionId(completedId);
+		openPartition.setNextPartition(newPartitionId, elem);
+		listCache.register(completedId, openPartition);
+		openPartitions.set(level, newPartition);
+		openPartitionKeys.set(level, elem);
+
+		if (level + 1 == openPartitions.size())
+		{
+			openPartitions.add(new SubList<T>(partitionImplementation));
+			openPartitionKeys.add(null);
+		}
+		addToOpenPartition(openPartitions, openPartitionKeys, level + 1, elem, partitionSize);
+	}
+
+	/**
+	 * Adds the specified element to its bottom layer partition in deterministic mode, splitting
+	 * partitions that grow too large.
+	 */
+	private boolean addBalanced(T u)
+	{
+		ArrayList<String> insertionPath = new ArrayList<String>(maxHeight);
+		if (find(u, listCache.get("-" + maxHeight), maxHeight, null, insertionPath))
+			return false;
+		String bottomPartitionId = insertionPath.get(0);
+		addToCollection(u, listCache.get(bottomPartitionId));
+		size++;
+		splitIfOverflowing(bottomPartitionId, 1);
+		return true;
+	}
+
+	/**
+	 * Splits the specified partition while it holds more than the maximum number of elements by
+	 * promoting its middle element to the partition covering it in the layer above. The promoted
+	 * element can overflow that partition in turn, all the way up to a new top layer.
+	 */
+	private void splitIfOverflowing(String partitionId, int height)
+	{
+		while (true)
+		{
+			SubList<T> partition = listCache.get(partitionId);
+			if (partition.size() <= maxPartitionSize)
+				return;
+
+			Iterator<T> iter = partition.iterator();
+			for (long x = partition.size() / 2; x > 0; x--)
+				iter.next();
+			T middle = iter.next();
+
+			String parentId = null;
+			if (height < maxHeight)
+			{
+				ArrayList<String> findPath = new ArrayList<String>(maxHeight);
+				find(middle, listCache.get("-" + maxHeight), maxHeight, null, findPath);
+				parentId = findPath.get(1);
+			}
+
+			partition = listCache.get(partitionId);
+			partition.structure.remove(middle);
+			SubList<T> newPartition = new SubList<T>(partitionImplementation);
+			newPartition.structure = partition.structure.split(middle);
+			newPartition.partitionKey = middle;
+			linkPartitionAfter(partitionId, newPartition, height);
+
+			if (parentId == null)
 			{
 				maxHeight++;
 				SubList<T> newRoot = new SubList<T>(partitionImplementation);
-				addToCollection(u, newRoot);
+				addToCollection(middle, newRoot);
 				listCache.register("-" + maxHeight, newRoot);
+				return;
 			}
-			return true;
+			addToCollection(middle, listCache.get(parentId));
+			partitionId = parentId;
+			height++;
 		}
+	}
 
-		return false;
+	/**
+	 * Merges the specified partition with a neighbour in deterministic mode if it holds fewer than
+	 * the minimum number of elements. The first partition of a layer absorbs the next one.
+	 */
+	private void mergeIfUnderflowing(String partitionId, int height)
+	{
+		SubList<T> partition = listCache.get(partitionId);
+		if (height >= maxHeight || partition.size() >= minPartitionSize)
+			return;
+
+		T key = partition.partitionKey;
+		if (key == null)
+		{
+			if (partition.nextPartitionId == null)
+				return;
+			key = partition.nextPartitionKey;
+		}
+		demote(key, height);
+	}
+
+	/**
+	 * Moves the specified promoted element down to the specified layer. The partitions named after
+	 * it from that layer up are merged into their predecessors, which can overflow, and the
+	 * partition the element is taken from can underflow.
+	 */
+	private void demote(T key, int height)
+	{
+		ArrayList<String> findPath = new ArrayList<String>(maxHeight);
+		find(key, listCache.get("-" + maxHeight), maxHeight, null, findPath);
+		String topPartitionId = findPath.get(0);
+		int topHeight = maxHeight - findPath.size() + 1;
+		listCache.get(topPartitionId).structure.remove(key);
+
+		ArrayList<String> mergedIds = new ArrayList<String>();
+		for (int y = topHeight - 1; y >= height; y--)
+			mergedIds.add(0, mergeWithPrevious(getPartitionId(key, y)));
+		addToCollection(key, listCache.get(mergedIds.get(0)));
+
+		for (int y = height; y < topHeight; y++)
+			splitIfOverflowing(mergedIds.get(y - height), y);
+		mergeIfUnderflowing(topPartitionId, topHeight);
+	}
+
+	/**
+	 * Registers the specified partition, named after its key, and links it in after the specified
+	 * partition of the same layer.
+	 */
+	private void linkPartitionAfter(String prevPartitionId, SubList<T> newPartition, int height)
+	{
+		T key = newPartition.partitionKey;
+		String newPartitionId = getPartitionId(key, height);
+		SubList<T> prevPartition = listCache.get(prevPartitionId);
+		String nextPartitionId = prevPartition.nextPartitionId;
+		newPartition.setNextPartition(nextPartitionId, prevPartition.nextPartitionKey);
+		newPartition.setPrevPartitionId(prevPartitionId);
+		prevPartition.setNextPartition(newPartitionId, key);
+		listCache.register(newPartitionId, newPartition);
+
+		if (nextPartitionId != null)
+			listCache.get(nextPartitionId).setPrevPartitionId(newPartitionId);
+	}
+
+	/**
+	 * Merges the specified partition into the previous one in its layer and unregisters it.
+	 * 
+	 * @return The ID of the previous partition.
+	 */
+	private String mergeWithPrevious(String partitionId)
+	{
+		SubList<T> toBeMovedPartition = listCache.get(partitionId);
+		String destinationId = toBeMovedPartition.prevPartitionId;
+		SubList<T> destinationPartition = listCache.get(destinationId);
+		destinationPartition.structure.merge(toBeMovedPartition.structure);
+		destinationPartition.setNextPartition(toBeMovedPartition.nextPartitionId,
+				toBeMovedPartition.nextPartitionKey);
+		if (toBeMovedPartition.nextPartitionId != null)
+		{
+			SubList<T> afterMovedPartition = listCache.get(toBeMovedPartition.nextPartitionId);
+			afterMovedPartition.setPrevPartitionId(destinationId);
+		}
+		listCache.unregister(partitionId);
+		return destinationId;
+	}
+
+	/**
+	 * Returns true if the specified insertion path leads through the last partition of every layer
+	 * and the specified element is larger than all of their elements, meaning the element is being
+	 * appended.
+	 */
+	private boolean isAppendPath(T u, List<String> insertionPath)
+	{
+		for (String partitionId : insertionPath)
+		{
+			SubList<T> partition = listCache.get(partitionId);
+			if (partition.nextPartitionId != null || partition.structure.higher(u) != null)
+				return false;
+		}
+		return true;
 	}
 
 	/**
@@ -266,18 +722,8 @@ public class ExternalMemorySkipList<T extends Comparable<T> & Serializable> impl
 		{
 			SubList<T> newPartition = new SubList<T>(partitionImplementation);
 			newPartition.structure = startPartition.structure.split(u);
-			String newPartitionId = u.toString() + "-" + height;
-
-			listCache.register(newPartitionId, newPartition);
-			newPartition.setNextPartitionId(startPartition.nextPartitionId);
-			startPartition.setNextPartitionId(newPartitionId);
-			newPartition.setPrevPartitionId(startPartitionId);
-
-			if (newPartition.nextPartitionId != null)
-			{
-				SubList<T> afterPartition = listCache.get(newPartition.nextPartitionId);
-				afterPartition.setPrevPartitionId(newPartitionId);
-			}
+			newPartition.partitionKey = u;
+			linkPartitionAfter(startPartitionId, newPartition, height);
 			return true;
 		} else
 		{
@@ -293,8 +739,9 @@ public class ExternalMemorySkipList<T extends Comparable<T> & Serializable> impl
 	public boolean remove(T x)
 	{
 		ArrayList<String> findPath = new ArrayList<String>(maxHeight);
-		if (find(x, listCache.get("-" + maxHeight), maxHeight, "", findPath))
+		if (find(x, listCache.get("-" + maxHeight), maxHeight, null, findPath))
 		{
+			appendPath = null;
 			String deepestLayerFind = findPath.get(0);
 			SubList<T> subList = listCache.get(deepestLayerFind);
 			subList.structure.remove(x);
@@ -304,29 +751,20 @@ public class ExternalMemorySkipList<T extends Comparable<T> & Serializable> impl
 			 * below need to perform a merge based on the deleted element.
 			 */
 			int deletionHeight = maxHeight - findPath.size();
+			ArrayList<String> mergedIds = new ArrayList<String>(deletionHeight);
 			for (int y = deletionHeight; y >= 1; y--)
+				mergedIds.add(0, mergeWithPrevious(getPartitionId(x, y)));
+
+			if (maxPartitionSize > 0)
 			{
-				/*
-				 * Merge with the next partition unless it doesn't exist, in which case merge with
-				 * the previous partition.
-				 */
-				String deletingPartitionId = x.toString() + "-" + y;
-				SubList<T> toBeMovedPartition = listCache.get(deletingPartitionId);
-				SubList<T> destinationPartition = listCache.get(toBeMovedPartition.prevPartitionId);
-				destinationPartition.structure.merge(toBeMovedPartition.structure);
-				destinationPartition.setNextPartitionId(toBeMovedPartition.nextPartitionId);
-				if (toBeMovedPartition.nextPartitionId != null)
-				{
-					SubList<T> afterMovedPartition = listCache
-							.get(toBeMovedPartition.nextPartitionId);
-					afterMovedPartition.setPrevPartitionId(toBeMovedPartition.prevPartitionId);
-				}
-				listCache.unregister(deletingPartitionId);
+				// The merged partitions can be too large now and the one x was in too small.
+				for (int y = 1; y <= deletionHeight; y++)
+					splitIfOverflowing(mergedIds.get(y - 1), y);
+				mergeIfUnderflowing(deepestLayerFind, deletionHeight + 1);
 			}
 
 			// If the top list layer is now empty, lower the maximum list height of the skip list.
-			SubList<T> root = listCache.get("-" + maxHeight);
-			if (root.size() == 0 && maxHeight > 1)
+			while (maxHeight > 1 && listCache.get("-" + maxHeight).size() == 0)
 			{
 				listCache.unregister("-" + maxHeight);
 				maxHeight--;
@@ -345,7 +783,7 @@ public class ExternalMemorySkipList<T extends Comparable<T> & Serializable> impl
 	public boolean contains(T x)
 	{
 		SubList<T> root = listCache.get("-" + maxHeight);
-		return find(x, root, maxHeight, "", null);
+		return find(x, root, maxHeight, null, null);
 	}
 
 	/**
@@ -358,110 +796,126 @@ public class ExternalMemorySkipList<T extends Comparable<T> & Serializable> impl
 	 * @param height
 	 *            The current partition list height.
 	 * @param parentKey
-	 *            The ID of the current partition.
+	 *            The key of the current partition, or null if it's the first one of its layer.
 	 * @param layerTraversalPath
 	 *            Optional parameter. If an empty list is provided, the partition IDs descended into
 	 *            at each list layer to find the element will be stored here.
 	 * @return True if the element was found, false otherwise.
 	 */
 	@SuppressWarnings("unchecked")
-	private boolean find(T u, SubList<T> startPartition, int height, String parentKey,
+	private boolean find(T u, SubList<T> startPartition, int height, T parentKey,
 			List<String> layerTraversalPath)
 	{
 		boolean result = false;
 		int x = 0;
 		T floorVal = null;
-		try
+
+		/*
+		 * Continue iterating while there are more partitions in this list layer or an element
+		 * smaller than the search element is found.
+		 */
+		while (x < startPartition.size() || startPartition.nextPartitionId != null)
 		{
-			// Initialize the string based element contructor if not already done.
-			if (comparableConstructor == null)
-				comparableConstructor = (Constructor<? extends Comparable<T>>) u.getClass()
-						.getConstructor(String.class);
+			T nextParentKey = startPartition.nextPartitionKey;
 
-			/*
-			 * Continue iterating while there are more partitions in this list layer or an element
-			 * smaller than the search element is found.
-			 */
-			while (x < startPartition.size() || startPartition.nextPartitionId != null)
+			if (nextParentKey == null || nextParentKey.compareTo(u) > 0)
 			{
-				String nextParentKey = null;
-				if (startPartition.nextPartitionId != null)
-					nextParentKey = startPartition.nextPartitionId.substring(0,
-							startPartition.nextPartitionId.lastIndexOf("-"));
-
-				if (startPartition.nextPartitionId == null
-						|| comparableConstructor.newInstance(nextParentKey).compareTo(u) > 0)
-				{
-					// The matching or floor element is in this partition.
-					floorVal = startPartition.structure.floor(u);
-					x = 0;
-					if (u.equals(floorVal))
-					{
-						if (layerTraversalPath != null)
-							layerTraversalPath.add(parentKey + "-" + height);
-						return true;
-					}
-				} else
-					// The match is in another partition.
-					x = (int) startPartition.size();
-
-				if (x >= startPartition.size() && startPartition.nextPartitionId != null)
-				{
-					if (comparableConstructor.newInstance(nextParentKey).compareTo(u) < 0)
-					{
-						// The floor element is somewhere in the next partition.
-						startPartition = listCache.get(startPartition.nextPartitionId);
-						x = 0;
-						parentKey = nextParentKey;
-					} else
-						break;
-				} else
+				// The matching or floor element is in this partition.
+				floorVal = startPartition.structure.floor(u);
+				x = 0;
+				if (u.equals(floorVal))
 				{
-					// A floor element was found.
-					break;
+					if (layerTraversalPath != null)
+						layerTraversalPath.add(getPartitionId(parentKey, height));
+					return true;
 				}
-			}
+			} else
+				// The match is in another partition.
+				x = (int) startPartition.size();
 
-			// QQQ Descend to the next layer if not at the bottom since no exact match was found.
-			if (height > 1)
+			if (x >= startPartition.size() && nextParentKey != null)
 			{
-				String nextLayerKey = "-" + (height - 1);
-				String newParentKey = parentKey;
-				if (x > 0)
+				if (nextParentKey.compareTo(u) < 0)
 				{
-					newParentKey = ((List<T>) startPartition.structure).get(x - 1).toString();
-					nextLayerKey = newParentKey + nextLayerKey;
+					// The floor element is somewhere in the next partition.
+					startPartition = listCache.get(startPartition.nextPartitionId);
+					x = 0;
+					parentKey = nextParentKey;
 				} else
-				{
-					if (floorVal == null)
-						// Use the parent ID value since it's the only one lower than the elem.
-						nextLayerKey = parentKey + nextLayerKey;
-					else
-					{
-						// Use the floor match value to descend.
-						newParentKey = floorVal.toString();
-						nextLayerKey = newParentKey + nextLayerKey;
-					}
-				}
-				result = find(u, listCache.get(nextLayerKey), height - 1, newParentKey,
-						layerTraversalPath);
+					break;
+			} else
+			{
+				// A floor element was found.
+				break;
 			}
-		} catch (Exception e)
+		}
+
+		// Descend to the next layer if not at the bottom since no exact match was found.
+		if (height > 1)
 		{
-			throw new RuntimeException(e);
+			T newParentKey = parentKey;
+			if (x > 0)
+				newParentKey = ((List<T>) startPartition.structure).get(x - 1);
+			else if (floorVal != null)
+				// Use the floor match value to descend.
+				newParentKey = floorVal;
+			// Otherwise use the parent key since it's the only one lower than the elem.
+			result = find(u, listCache.get(getPartitionId(newParentKey, height - 1)), height - 1,
+					newParentKey, layerTraversalPath);
 		}
 
 		if (layerTraversalPath != null)
-			layerTraversalPath.add(parentKey + "-" + height);
+			layerTraversalPath.add(getPartitionId(parentKey, height));
 		return result;
 	}
 
+	/**
+	 * Returns the ID of the partition with the specified key in the specified list layer.
+	 * 
+	 * @param key
+	 *            The key of the partition, or null for the first partition of the layer.
+	 */
+	private static String getPartitionId(Object key, int height)
+	{
+		if (key == null)
+			return "-" + height;
+		return key + "-" + height;
+	}
+
 	@Override
 	public long size()
 	{
 		return size;
 	}
 
+	/**
+	 * Returns the number of list layers.
+	 */
+	public int getHeight()
+	{
+		return maxHeight;
+	}
+
+	/**
+	 * Returns the number of elements stored in each partition of the specified list layer, in
+	 * order. Every partition of the layer is loaded, so this is meant for diagnostics.
+	 * 
+	 * @param height
+	 *            The list layer, where 1 is the bottom one.
+	 */
+	public List<Long> getPartitionSizes(int height)
+	{
+		ArrayList<Long> result = new ArrayList<Long>();
+		String partitionId = "-" + height;
+		while (partitionId != null)
+		{
+			SubList<T> partition = listCache.get(partitionId);
+			result.add(partition.size());
+			partitionId = partition.nextPartitionId;
+		}
+		return result;
+	}
+
 	@Override
 	public Iterator<T> iterator(T from, T to)
 	{
@@ -504,6 +958,7 @@ public class ExternalMemorySkipList<T extends Comparable<T> & Serializable> impl
 		{
 			subList = listCache.get("-1");
 			iter = subList.iterator();
+			readAhead();
 		}
 
 		public EMSkipIterator(T startValue, T endValue)
@@ -511,7 +966,7 @@ public class ExternalMemorySkipList<T extends Comparable<T> & Serializable> impl
 			this.endValue = endValue;
 
 			ArrayList<String> findPath = new ArrayList<String>(maxHeight);
-			find(startValue, listCache.get("-" + maxHeight), maxHeight, "", findPath);
+			find(startValue, listCache.get("-" + maxHeight), maxHeight, null, findPath);
 			String partitionKey = findPath.get(0);
 			if (!partitionKey.endsWith("-1"))
 			{
@@ -528,9 +983,27 @@ public class ExternalMemorySkipList<T extends Comparable<T> & Serializable> impl
 				subList = listCache.get(partitionKey);
 				iter = subList.structure.iterator(startValue, null);
 			}
+			readAhead();
+		}
+
+		/**
+		 * Prefetches the partitions following the current one. Only partitions whose predecessor
+		 * has already been loaded can be prefetched, so the read-ahead window fills up as
+		 * iteration progresses.
+		 */
+		private void readAhead()
+		{
+			String partitionId = subList.nextPartitionId;
+			for (int x = 0; x < readAheadPartitions && partitionId != null; x++)
+			{
+				listCache.prefetch(partitionId);
+				SubList<T> partition = listCache.getIfLoaded(partitionId);
+				if (partition == null)
+					break;
+				partitionId = partition.nextPartitionId;
+			}
 		}
 
-		@SuppressWarnings("unchecked")
 		@Override
 		public boolean hasNext()
 		{
@@ -539,25 +1012,14 @@ public class ExternalMemorySkipList<T extends Comparable<T> & Serializable> impl
 				if (!iter.hasNext() && subList.nextPartitionId != null)
 				{
 					// Switch to the next list partition since one exists.
-					int lastDashIndex = subList.nextPartitionId.lastIndexOf("-");
-					String partitionIdStrVal = subList.nextPartitionId.substring(0, lastDashIndex);
-					T partitionIdVal;
+					T partitionIdVal = subList.nextPartitionKey;
 					subList = listCache.get(subList.nextPartitionId);
 					iter = subList.structure.iterator();
-					try
-					{
-						if (lastDashIndex > 0)
-						{
-							// Use the value in the next partition ID as the next return value.
-							partitionIdVal = (T) comparableConstructor
-									.newInstance(partitionIdStrVal);
-							if (endValue == null || partitionIdVal.compareTo(endValue) < 0)
-								nextResult = partitionIdVal;
-						}
-					} catch (Exception e)
-					{
-						throw new RuntimeException(e);
-					}
+					readAhead();
+
+					// Use the key of the next partition as the next return value.
+					if (endValue == null || partitionIdVal.compareTo(endValue) < 0)
+						nextResult = partitionIdVal;
 				}
 				if (nextResult == null && iter.hasNext())
 					nextResult = iter.next();
@@ -582,6 +1044,158 @@ public class ExternalMemorySkipList<T extends Comparable<T> & Serializable> impl
 		}
 	}
 
+	/**
+	 * This class keeps track of an iterator's state while iterating backwards over the bottom
+	 * layer of the skip list through the prevPartitionId links.
+	 */
+	private class EMSkipDescendingIterator implements Iterator<T>
+	{
+		/**
+		 * The current bottom layer list partition being iterated over.
+		 */
+		private SubList<T> subList;
+
+		/**
+		 * The current partition iterator.
+		 */
+		private Iterator<T> iter;
+
+		/**
+		 * The promoted element the current partition is named after. It's smaller than every
+		 * element in the partition, so it's returned once the partition is exhausted.
+		 */
+		private T partitionIdVal;
+
+		/**
+		 * The next element to return in a call to next().
+		 */
+		private T nextResult;
+
+		/**
+		 * The value to stop iterating at (inclusive). Null means iterate until the start.
+		 */
+		private T startValue;
+
+		/**
+		 * True once an element at or below the start value has been reached.
+		 */
+		private boolean done;
+
+		public EMSkipDescendingIterator(T startValue, T endValue)
+		{
+			this.startValue = startValue;
+
+			String partitionKey;
+			if (endValue == null)
+				partitionKey = findLastPartitionId(1);
+			else
+			{
+				ArrayList<String> findPath = new ArrayList<String>(maxHeight);
+				find(endValue, listCache.get("-" + maxHeight), maxHeight, null, findPath);
+				partitionKey = findPath.get(0);
+				if (!partitionKey.endsWith("-1"))
+				{
+					/*
+					 * The end element was a promoted one, so every smaller bottom layer element is
+					 * before the partition named after it.
+					 */
+					partitionKey = listCache.get(endValue + "-1").prevPartitionId;
+				}
+			}
+			moveToPartition(partitionKey, endValue);
+		}
+
+		/**
+		 * Starts iterating over the elements of the specified bottom layer partition that are
+		 * smaller than the specified value.
+		 */
+		private void moveToPartition(String partitionId, T endValue)
+		{
+			subList = listCache.get(partitionId);
+			iter = subList.structure.descendingIterator(startValue, endValue);
+			partitionIdVal = subList.partitionKey;
+		}
+
+		@Override
+		public boolean hasNext()
+		{
+			while (nextResult == null && !done)
+			{
+				if (iter.hasNext())
+					nextResult = iter.next();
+				else if (partitionIdVal != null)
+				{
+					T idVal = partitionIdVal;
+					partitionIdVal = null;
+					int comp = startValue == null ? 1 : idVal.compareTo(startValue);
+					if (comp >= 0)
+						nextResult = idVal;
+					// Every element in the previous partitions is smaller than the start value.
+					if (comp <= 0)
+						done = true;
+				} else if (subList.prevPartitionId != null)
+					moveToPartition(subList.prevPartitionId, null);
+				else
+					done = true;
+			}
+			return nextResult != null;
+		}
+
+		@Override
+		public T next()
+		{
+			T result = nextResult;
+			nextResult = null;
+
+			return result;
+		}
+
+		@Override
+		public void remove()
+		{
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * Returns the ID of the last partition of the specified list layer by following the largest
+	 * element of each layer down from the top.
+	 */
+	private String findLastPartitionId(int targetHeight)
+	{
+		String partitionId = "-" + maxHeight;
+		for (int height = maxHeight;; height--)
+		{
+			SubList<T> partition = listCache.get(partitionId);
+			while (partition.nextPartitionId != null)
+			{
+				partitionId = partition.nextPartitionId;
+				partition = listCache.get(partitionId);
+			}
+			if (height == targetHeight)
+				return partitionId;
+
+			Iterator<T> iter = partition.structure.descendingIterator(null, null);
+			T parentKey = iter.hasNext() ? iter.next() : partition.partitionKey;
+			partitionId = getPartitionId(parentKey, height - 1);
+		}
+	}
+
+	/**
+	 * Returns the elements in the range [from, to) in descending order. A null bound leaves that
+	 * end of the range open.
+	 */
+	public Iterator<T> descendingIterator(T from, T to)
+	{
+		if (from != null && to != null && to.compareTo(from) < 0)
+		{
+			T temp = from;
+			from = to;
+			to = temp;
+		}
+		return new EMSkipDescendingIterator(from, to);
+	}
+
 	public String toString()
 	{
 		String result = "[";
@@ -1,27 +1,60 @@
 package ods.string.search.partition;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import ods.string.search.partition.ExternalMemoryObjectCache.CompressType;
+import ods.string.search.partition.splitsets.ElementCodec;
 import ods.string.search.partition.splitsets.ExternalizableMemoryObject;
 import ods.string.search.partition.splitsets.SplittableSet;
+import ods.string.search.partition.splitsets.SplittableSetCodecs;
 import ods.string.search.partition.splitsets.Treap;
 
 /**
  * This class represents a B+ Tree that also makes use of caching to disk to increase storage
  * limits. The leaf nodes have pointers to next leaf nodes to speed up range searches.
+ * 
+ * close() and checkpoint() write a manifest with the tree's metadata and cache configuration next
+ * to the stored nodes, so the tree can be reopened later with open(). The manifest is deleted by
+ * the first modification after it's written, so a tree that wasn't closed or checkpointed after
+ * its last modification can't be reopened in an inconsistent state.
  */
 public class ExternalMemorySplittableSet<T extends Comparable<T> & Serializable> implements
 		EMPrefixSearchableSet<T>
 {
 
 	/**
-	 * A node in the B+ Tree knows it's height to assist in retrieving block IDs for child IDs. Leaf
-	 * nodes know the IDs to the next leaf node.
+	 * A node in the B+ Tree. Leaf nodes hold the elements and know the ID of the next leaf node.
+	 * Internal nodes hold the keys and IDs of their children. Every node knows the key of the next
+	 * node at its height, which concurrent readers use to detect that the node was split after
+	 * they read its parent.
 	 */
 	private static class TreeNode<T extends Comparable<T> & Serializable> implements
 			ExternalizableMemoryObject
@@ -29,7 +62,7 @@ public class ExternalMemorySplittableSet<T extends Comparable<T> & Serializable>
 		private static final long serialVersionUID = -309297143139643805L;
 
 		/**
-		 * The node of this node in the tree, where 1 is a leaf node. QQQ
+		 * The height of this node in the tree, where 1 is a leaf node.
 		 */
 		public int nodeHeight;
 
@@ -39,15 +72,39 @@ public class ExternalMemorySplittableSet<T extends Comparable<T> & Serializable>
 		public String nextPartitionId;
 
 		/**
-		 * The data stored in this node.
+		 * The smallest key that belongs in the next node at the same height, or null if this node
+		 * is the rightmost one at its height. A node's own key never changes, so this is only
+		 * changed by splits, merges and range removals.
+		 */
+		public volatile T highKey;
+
+		/**
+		 * The elements stored in a leaf node. This is null in internal nodes.
 		 */
 		public SplittableSet<T> structure;
 
+		/**
+		 * The children of an internal node. This is null in leaf nodes. Concurrent readers read it
+		 * without latching the node.
+		 */
+		public volatile Children<T> children;
+
+		/**
+		 * The inserts (true) and deletes (false) buffered in an internal node in buffered mode that
+		 * haven't been passed down to its children yet. They are newer than any message for the
+		 * same element further down the tree.
+		 */
+		public TreeMap<T, Boolean> buffer = new TreeMap<T, Boolean>();
+
 		/**
 		 * Used when flushing to disk to determine if the data need to be rewritten.
 		 */
 		private transient boolean isDirty = true;
 
+		/**
+		 * Creates an empty node. Leaf nodes get a new set of the same type as the specified one,
+		 * internal nodes are created with a null type.
+		 */
 		public TreeNode(SplittableSet<T> type, int nodeHeight)
 		{
 			if (type != null)
@@ -65,13 +122,17 @@ public class ExternalMemorySplittableSet<T extends Comparable<T> & Serializable>
 			else
 				result += 64 + (nextPartitionId.length() << 1);
 
-			return structure.getByteSize() + result;
+			if (structure != null)
+				result += structure.getByteSize();
+			if (children != null)
+				result += children.size() << 7;
+			return result + (buffer.size() << 6);
 		}
 
 		@Override
 		public boolean isDirty()
 		{
-			return structure.isDirty() || isDirty;
+			return structure != null && structure.isDirty() || isDirty;
 		}
 
 		private void readObject(ObjectInputStream inputStream) throws IOException,
@@ -87,13 +148,567 @@ public class ExternalMemorySplittableSet<T extends Comparable<T> & Serializable>
 			this.nextPartitionId = nextPartitionId;
 			isDirty = true;
 		}
+
+		public void setHighKey(T highKey)
+		{
+			this.highKey = highKey;
+			isDirty = true;
+		}
+
+		/**
+		 * Returns true if the specified element is smaller than the high key, in which case it
+		 * belongs in this node or one of the nodes left of it at the same height. If before is
+		 * set, the element may also be equal to the high key, since only the elements smaller
+		 * than it are searched for.
+		 * 
+		 * @param u
+		 *            The element, or null for the smallest element (the largest element if before
+		 *            is set).
+		 */
+		public boolean isBelowHighKey(T u, boolean before)
+		{
+			T bound = highKey;
+			if (bound == null)
+				return true;
+			if (u == null)
+				return !before;
+			int cmp = u.compareTo(bound);
+			return cmp < 0 || before && cmp == 0;
+		}
+
+		/**
+		 * Returns the number of elements in a leaf node or the number of children of an internal
+		 * node.
+		 */
+		public long size()
+		{
+			if (nodeHeight == 1)
+				return structure.size();
+			return children.size();
+		}
+
+		public synchronized void setChildren(Children<T> children)
+		{
+			this.children = children;
+			isDirty = true;
+		}
+
+		/**
+		 * Returns the number of elements under the child at the specified position.
+		 */
+		public synchronized long getChildCount(int index)
+		{
+			return children.counts[index];
+		}
+
+		public synchronized void setChildCount(int index, long count)
+		{
+			children.counts[index] = count;
+			isDirty = true;
+		}
+
+		/**
+		 * Adds the specified delta to the number of elements under the child at the specified
+		 * position. Writers in concurrent mode only hold a shared latch on the node when doing
+		 * this.
+		 */
+		public synchronized void addChildCount(int index, long delta)
+		{
+			setChildCount(index, getChildCount(index) + delta);
+		}
+
+		/**
+		 * Returns the number of elements under the children left of the specified position.
+		 */
+		public synchronized long countChildrenBelow(int index)
+		{
+			long result = 0;
+			for (int x = 0; x < index; x++)
+				result += children.counts[x];
+			return result;
+		}
+
+		/**
+		 * Returns the number of elements in this node's subtree.
+		 */
+		public synchronized long getElementCount()
+		{
+			if (nodeHeight == 1)
+				return structure.size();
+			return countChildrenBelow(children.size());
+		}
+
+		public synchronized void insertChild(int index, T key, long id, long count)
+		{
+			setChildren(children.insert(index, key, id, count));
+		}
+
+		/**
+		 * Removes the children whose positions are set in the specified BitSet.
+		 * 
+		 * @return The number of elements under the removed children.
+		 */
+		public synchronized long removeChildren(BitSet positions)
+		{
+			long result = 0;
+			for (int x = positions.nextSetBit(0); x >= 0; x = positions.nextSetBit(x + 1))
+				result += children.counts[x];
+			setChildren(children.remove(positions));
+			return result;
+		}
+
+		/**
+		 * Moves the children from the specified position on, and the buffered messages for them,
+		 * to the specified node.
+		 */
+		public synchronized void splitInternal(int index, TreeNode<T> newNode)
+		{
+			T key = children.key(index);
+			newNode.setChildren(children.subList(index, children.size()));
+			setChildren(children.subList(0, index));
+			newNode.buffer.putAll(buffer.tailMap(key, true));
+			buffer.tailMap(key, true).clear();
+		}
+
+		/**
+		 * Adds the specified messages to the buffer, replacing older messages for the same
+		 * elements.
+		 */
+		public void putMessages(Map<T, Boolean> messages)
+		{
+			buffer.putAll(messages);
+			isDirty = true;
+		}
+
+		/**
+		 * Removes and returns the buffered messages in the range [from, to), where null bounds
+		 * leave that end of the range open.
+		 */
+		public TreeMap<T, Boolean> takeMessages(T from, T to)
+		{
+			SortedMap<T, Boolean> range;
+			if (from == null && to == null)
+				range = buffer;
+			else if (from == null)
+				range = buffer.headMap(to);
+			else if (to == null)
+				range = buffer.tailMap(from);
+			else
+				range = buffer.subMap(from, to);
+			TreeMap<T, Boolean> result = new TreeMap<T, Boolean>(range);
+			range.clear();
+			isDirty = true;
+			return result;
+		}
+	}
+
+	/**
+	 * The children of an internal node in key order. The child at position i holds the elements
+	 * in [key(i), key(i + 1)), where the first key is null in the leftmost node at each height.
+	 * Children are identified by numbers from the tree's node counter, which are stored next to
+	 * their keys and turned into block IDs once when the node is created or loaded. The keys and
+	 * IDs are never modified; splits and merges create a new Children object instead.
+	 */
+	private static class Children<T extends Comparable<T> & Serializable> implements Serializable
+	{
+		private static final long serialVersionUID = 4640522012961264716L;
+
+		private final Object[] keys;
+
+		private final long[] ids;
+
+		/**
+		 * The number of elements under each child, which is guarded by the node holding this
+		 * object.
+		 */
+		private final long[] counts;
+
+		private transient String[] blockIds;
+
+		public Children(Object[] keys, long[] ids, long[] counts)
+		{
+			this.keys = keys;
+			this.ids = ids;
+			this.counts = counts;
+			blockIds = getBlockIds(ids);
+		}
+
+		private static String[] getBlockIds(long[] ids)
+		{
+			String[] result = new String[ids.length];
+			for (int x = 0; x < ids.length; x++)
+				result[x] = getBlockId(ids[x]);
+			return result;
+		}
+
+		private void readObject(ObjectInputStream inputStream) throws IOException,
+				ClassNotFoundException
+		{
+			inputStream.defaultReadObject();
+			blockIds = getBlockIds(ids);
+		}
+
+		public int size()
+		{
+			return ids.length;
+		}
+
+		@SuppressWarnings("unchecked")
+		public T key(int index)
+		{
+			return (T) keys[index];
+		}
+
+		public long id(int index)
+		{
+			return ids[index];
+		}
+
+		public String blockId(int index)
+		{
+			return blockIds[index];
+		}
+
+		/**
+		 * Returns the position of the child that the specified element belongs under.
+		 */
+		public int route(T u)
+		{
+			return search(u, true);
+		}
+
+		/**
+		 * Returns the position of the child that the largest elements smaller than the specified
+		 * element belong under.
+		 */
+		public int routeLower(T u)
+		{
+			return search(u, false);
+		}
+
+		/**
+		 * Returns the last position whose key is smaller than the specified element, or equal to it
+		 * if inclusive. The first key is treated as smaller than every element.
+		 */
+		private int search(T u, boolean inclusive)
+		{
+			int low = 0;
+			int high = keys.length - 1;
+			while (low < high)
+			{
+				int mid = (low + high + 1) >>> 1;
+				int cmp = key(mid).compareTo(u);
+				if (cmp < 0 || inclusive && cmp == 0)
+					low = mid;
+				else
+					high = mid - 1;
+			}
+			return low;
+		}
+
+		public Children<T> insert(int index, T key, long id, long count)
+		{
+			int size = size();
+			Object[] newKeys = new Object[size + 1];
+			long[] newIds = new long[size + 1];
+			long[] newCounts = new long[size + 1];
+			System.arraycopy(keys, 0, newKeys, 0, index);
+			System.arraycopy(ids, 0, newIds, 0, index);
+			System.arraycopy(counts, 0, newCounts, 0, index);
+			newKeys[index] = key;
+			newIds[index] = id;
+			newCounts[index] = count;
+			System.arraycopy(keys, index, newKeys, index + 1, size - index);
+			System.arraycopy(ids, index, newIds, index + 1, size - index);
+			System.arraycopy(counts, index, newCounts, index + 1, size - index);
+			return new Children<T>(newKeys, newIds, newCounts);
+		}
+
+		/**
+		 * Returns the children without the ones whose positions are set in the specified BitSet.
+		 */
+		public Children<T> remove(BitSet positions)
+		{
+			int newSize = size() - positions.cardinality();
+			Object[] newKeys = new Object[newSize];
+			long[] newIds = new long[newSize];
+			long[] newCounts = new long[newSize];
+			int y = 0;
+			for (int x = 0; x < size(); x++)
+			{
+				if (positions.get(x))
+					continue;
+				newKeys[y] = keys[x];
+				newIds[y] = ids[x];
+				newCounts[y] = counts[x];
+				y++;
+			}
+			return new Children<T>(newKeys, newIds, newCounts);
+		}
+
+		/**
+		 * Returns the children in the positions [from, to).
+		 */
+		public Children<T> subList(int from, int to)
+		{
+			return new Children<T>(Arrays.copyOfRange(keys, from, to), Arrays.copyOfRange(ids,
+					from, to), Arrays.copyOfRange(counts, from, to));
+		}
+
+		/**
+		 * Returns these children followed by the specified ones.
+		 */
+		public Children<T> concat(Children<T> other)
+		{
+			int size = size();
+			Object[] newKeys = Arrays.copyOf(keys, size + other.size());
+			long[] newIds = Arrays.copyOf(ids, size + other.size());
+			long[] newCounts = Arrays.copyOf(counts, size + other.size());
+			System.arraycopy(other.keys, 0, newKeys, size, other.size());
+			System.arraycopy(other.ids, 0, newIds, size, other.size());
+			System.arraycopy(other.counts, 0, newCounts, size, other.size());
+			return new Children<T>(newKeys, newIds, newCounts);
+		}
+	}
+
+	/**
+	 * Writes a TreeNode as its height, next leaf ID and high key, followed by the structure of a
+	 * leaf node or the children and buffered messages of an internal node. The children are written
+	 * as whether the node is the leftmost one at its height, their keys, their IDs and their
+	 * element counts.
+	 */
+	private static class TreeNodeCodec<T extends Comparable<T> & Serializable> implements
+			BlockCodec<TreeNode<T>>
+	{
+		@Override
+		public void encode(TreeNode<T> node, DataOutput out) throws IOException
+		{
+			out.writeInt(node.nodeHeight);
+			ElementCodec.writeString(node.nextPartitionId, out);
+			T highKey = node.highKey;
+			ElementCodec.writeElements(Collections.singleton(highKey).iterator(),
+					highKey == null ? 0 : 1, out);
+			if (node.nodeHeight == 1)
+			{
+				SplittableSetCodecs.write(node.structure, out);
+				return;
+			}
+
+			Children<T> children = node.children;
+			int firstKey = children.key(0) == null ? 1 : 0;
+			out.writeBoolean(firstKey == 1);
+			ElementCodec.writeElements(Arrays.asList(children.keys).subList(firstKey,
+					children.size()).iterator(), children.size() - firstKey, out);
+			for (int x = 0; x < children.size(); x++)
+			{
+				ElementCodec.writeVarLong(children.ids[x], out);
+				ElementCodec.writeVarLong(children.counts[x], out);
+			}
+			ElementCodec.writeElements(node.buffer.keySet().iterator(), node.buffer.size(), out);
+			for (Boolean insert : node.buffer.values())
+				out.writeBoolean(insert);
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public TreeNode<T> decode(DataInput in) throws IOException
+		{
+			TreeNode<T> node = new TreeNode<T>(null, in.readInt());
+			node.nextPartitionId = ElementCodec.readString(in);
+			List<T> highKey = ElementCodec.readElements(in);
+			if (!highKey.isEmpty())
+				node.highKey = highKey.get(0);
+			if (node.nodeHeight == 1)
+				node.structure = (SplittableSet<T>) SplittableSetCodecs.read(in);
+			else
+			{
+				int firstKey = in.readBoolean() ? 1 : 0;
+				List<T> keys = ElementCodec.readElements(in);
+				int size = keys.size() + firstKey;
+				Object[] childKeys = new Object[size];
+				for (int x = 0; x < keys.size(); x++)
+					childKeys[x + firstKey] = keys.get(x);
+				long[] ids = new long[size];
+				long[] counts = new long[size];
+				for (int x = 0; x < size; x++)
+				{
+					ids[x] = ElementCodec.readVarLong(in);
+					counts[x] = ElementCodec.readVarLong(in);
+				}
+				node.children = new Children<T>(childKeys, ids, counts);
+				List<T> messages = ElementCodec.readElements(in);
+				for (T message : messages)
+					node.buffer.put(message, in.readBoolean());
+			}
+			node.isDirty = false;
+			return node;
+		}
+	}
+
+	/**
+	 * How latchPath() latches the nodes on the path to a leaf in concurrent mode.
+	 */
+	private enum LatchMode
+	{
+		/**
+		 * Every node is latched shared and released once its child is latched. Only rank() and
+		 * select() read this way, since they need the child counts of the nodes they pass.
+		 */
+		READ,
+
+		/**
+		 * Every node is latched shared and kept latched so the child counts on the path can be
+		 * updated, except the leaf, which is latched exclusively.
+		 */
+		WRITE_LEAF,
+
+		/**
+		 * Every node is latched exclusively. The ancestors of a node that can take another element
+		 * without splitting are downgraded to shared latches.
+		 */
+		INSERT,
+
+		/**
+		 * Every node is latched exclusively. The ancestors of a node that can lose an element
+		 * without merging are downgraded to shared latches.
+		 */
+		DELETE,
+
+		/**
+		 * Like DELETE, except that the leaf may lose any number of elements, so only the internal
+		 * nodes can cause their ancestors to be downgraded.
+		 */
+		DELETE_RANGE
+	}
+
+	/**
+	 * The nodes latched and pinned by a single operation in concurrent mode, in the order they were
+	 * latched.
+	 */
+	private class HeldNodes
+	{
+		private ArrayList<String> ids = new ArrayList<String>();
+
+		private ArrayList<Lock> locks = new ArrayList<Lock>();
+
+		private ArrayList<TreeNode<T>> nodes = new ArrayList<TreeNode<T>>();
+
+		/**
+		 * The key of the leaf found by the last latchLeaf(), or null if that leaf is the leftmost
+		 * one.
+		 */
+		public T leafKey;
+
+		/**
+		 * Returns the node with the specified ID, latching and pinning it first unless it's
+		 * already held. Returns null if the node was unregistered.
+		 */
+		public TreeNode<T> acquire(String id, boolean exclusive)
+		{
+			int index = ids.indexOf(id);
+			if (index >= 0)
+				return nodes.get(index);
+			ReentrantReadWriteLock latch = getLatch(id);
+			Lock lock = exclusive ? latch.writeLock() : latch.readLock();
+			lock.lock();
+			return add(id, lock);
+		}
+
+		/**
+		 * Pins the node with the specified ID, whose latch the caller has already locked with the
+		 * specified lock.
+		 */
+		public TreeNode<T> add(String id, Lock lock)
+		{
+			TreeNode<T> node;
+			try
+			{
+				node = setCache.pin(id);
+			} catch (RuntimeException e)
+			{
+				lock.unlock();
+				throw e;
+			}
+			ids.add(id);
+			locks.add(lock);
+			nodes.add(node);
+			return node;
+		}
+
+		public TreeNode<T> get(String id)
+		{
+			return nodes.get(ids.indexOf(id));
+		}
+
+		/**
+		 * Releases every node except the one latched last.
+		 */
+		public void releaseAncestors()
+		{
+			while (ids.size() > 1)
+				release(0);
+		}
+
+		/**
+		 * Downgrades the exclusive latches of every node except the one latched last to shared
+		 * latches.
+		 */
+		public void downgradeAncestors()
+		{
+			for (int x = 0; x < ids.size() - 1; x++)
+			{
+				if (locks.get(x) instanceof ReentrantReadWriteLock.WriteLock)
+				{
+					Lock readLock = getLatch(ids.get(x)).readLock();
+					readLock.lock();
+					locks.get(x).unlock();
+					locks.set(x, readLock);
+				}
+			}
+		}
+
+		public void releaseAll()
+		{
+			while (!ids.isEmpty())
+				release(ids.size() - 1);
+		}
+
+		private void release(int index)
+		{
+			String id = ids.remove(index);
+			setCache.unpin(id);
+			Lock lock = locks.remove(index);
+			if (nodes.remove(index) == null)
+				// The node was retired while this thread waited, which may have recreated its
+				// latch.
+				latches.remove(id);
+			lock.unlock();
+		}
 	}
 
 	/**
-	 * Stores all the nodes of the tree where a node's ID is '<minValueInNode>-<nodeHeight>'.
+	 * The name of the manifest file in the storage directory.
+	 */
+	private static final String MANIFEST_FILE = "manifest.properties";
+
+	private static final int MANIFEST_VERSION = 5;
+
+	/**
+	 * Stores all the nodes of the tree by their block IDs, which are the numbers nodes are created
+	 * with.
 	 */
 	private ExternalMemoryObjectCache<TreeNode<T>> setCache;
 
+	/**
+	 * The number the next new node is identified by.
+	 */
+	private AtomicLong nextNodeId = new AtomicLong();
+
+	/**
+	 * The block ID of the root node.
+	 */
+	private volatile String rootId;
+
 	/**
 	 * The maximum number of elements to store in a node before splitting it.
 	 */
@@ -102,19 +717,62 @@ public class ExternalMemorySplittableSet<T extends Comparable<T> & Serializable>
 	/**
 	 * The number of elements stored in the tree.
 	 */
-	private long size = 0;
+	private AtomicLong size = new AtomicLong();
 
 	/**
 	 * The maximum node height in this tree.
 	 */
-	private int treeHeight = 1;
+	private volatile int treeHeight = 1;
 
-	public ExternalMemorySplittableSet(File storageDirectory)
-	{
-		setCache = new ExternalMemoryObjectCache<TreeNode<T>>(storageDirectory, 100000000,
+	/**
+	 * The number of leaf nodes ahead of the current one that iterators prefetch in the background.
+	 * 0 disables read-ahead.
+	 */
+	private int readAheadPartitions = 0;
+
+	/**
+	 * True if the manifest on disk describes the current state of the tree.
+	 */
+	private volatile boolean manifestCurrent = false;
+
+	/**
+	 * A map of node ID to the latch guarding that node, or null if the tree isn't in concurrent
+	 * mode. Latches are removed along with their nodes, so the map only grows with the tree.
+	 */
+	private ConcurrentHashMap<String, ReentrantReadWriteLock> latches;
+
+	/**
+	 * The search path to the rightmost leaf, kept while the tree's structure doesn't change so that
+	 * appends of increasing elements don't have to descend the tree. null if it isn't known.
+	 */
+	private String[] rightmostPath;
+
+	/**
+	 * An element no greater than every element belonging in the rightmost leaf, or null if every
+	 * element belongs there.
+	 */
+	private T rightmostKey;
+
+	/**
+	 * The maximum number of messages buffered in an internal node in buffered mode, or 0 if
+	 * buffered mode is off.
+	 */
+	private int bufferSize = 0;
+
+	/**
+	 * False if messages may have been buffered since the buffers were last flushed.
+	 */
+	private boolean buffersEmpty = true;
+
+	public ExternalMemorySplittableSet(File storageDirectory)
+	{
+		setCache = new ExternalMemoryObjectCache<TreeNode<T>>(storageDirectory, 100000000,
 				CompressType.SNAPPY);
+		setCache.setCodec(new TreeNodeCodec<T>());
+		deleteManifest();
 		TreeNode<T> root = new TreeNode<T>(new Treap<T>(), treeHeight);
-		setCache.register("-1", root);
+		rootId = createNodeId();
+		setCache.register(rootId, root);
 	}
 
 	public ExternalMemorySplittableSet(File storageDirectory, int maxSetSize,
@@ -123,8 +781,11 @@ public class ExternalMemorySplittableSet<T extends Comparable<T> & Serializable>
 		this.maxSetSize = maxSetSize;
 		setCache = new ExternalMemoryObjectCache<TreeNode<T>>(storageDirectory, maxInMemoryBytes,
 				CompressType.SNAPPY);
+		setCache.setCodec(new TreeNodeCodec<T>());
+		deleteManifest();
 		TreeNode<T> rootNode = new TreeNode<T>(root, treeHeight);
-		setCache.register("-1", rootNode);
+		rootId = createNodeId();
+		setCache.register(rootId, rootNode);
 	}
 
 	@SuppressWarnings("unchecked")
@@ -133,235 +794,1748 @@ public class ExternalMemorySplittableSet<T extends Comparable<T> & Serializable>
 	{
 		this.maxSetSize = maxSetSize;
 		setCache = (ExternalMemoryObjectCache<TreeNode<T>>) objectCache;
+		setCache.setCodec(new TreeNodeCodec<T>());
+		deleteManifest();
 		TreeNode<T> rootNode = new TreeNode<T>(root, treeHeight);
-		setCache.register("-1", rootNode);
+		rootId = createNodeId();
+		setCache.register(rootId, rootNode);
 	}
 
 	public ExternalMemorySplittableSet(File storageDirectory,
 			ExternalMemorySplittableSet<T> baseConfig)
 	{
 		this.maxSetSize = baseConfig.maxSetSize;
+		this.readAheadPartitions = baseConfig.readAheadPartitions;
+		this.bufferSize = baseConfig.bufferSize;
+		setConcurrent(baseConfig.isConcurrent());
 		setCache = new ExternalMemoryObjectCache<TreeNode<T>>(storageDirectory, baseConfig.setCache);
-		SplittableSet<T> root = baseConfig.setCache.get("-1").structure.createNewSet();
+		setCache.setCodec(new TreeNodeCodec<T>());
+		deleteManifest();
+		String leafId = baseConfig.getLeftmostPath()[0];
+		SplittableSet<T> root = baseConfig.setCache.get(leafId).structure.createNewSet();
 		TreeNode<T> rootNode = new TreeNode<T>(root, treeHeight);
-		setCache.register("-1", rootNode);
+		rootId = createNodeId();
+		setCache.register(rootId, rootNode);
+	}
+
+	/**
+	 * Used by open() to restore a tree from its manifest. The root node is only loaded once the
+	 * tree is accessed.
+	 */
+	private ExternalMemorySplittableSet(File storageDirectory, Properties manifest)
+	{
+		maxSetSize = Integer.parseInt(manifest.getProperty("maxSetSize"));
+		size.set(Long.parseLong(manifest.getProperty("size")));
+		treeHeight = Integer.parseInt(manifest.getProperty("treeHeight"));
+		rootId = manifest.getProperty("rootId");
+		nextNodeId.set(Long.parseLong(manifest.getProperty("nextNodeId")));
+		readAheadPartitions = Integer.parseInt(manifest.getProperty("readAheadPartitions"));
+		bufferSize = Integer.parseInt(manifest.getProperty("bufferSize"));
+		setCache = new ExternalMemoryObjectCache<TreeNode<T>>(storageDirectory, manifest);
+		setCache.setCodec(new TreeNodeCodec<T>());
+		manifestCurrent = true;
+	}
+
+	/**
+	 * Reopens a tree from a storage directory it was closed or checkpointed in.
+	 * 
+	 * @throws IllegalStateException
+	 *             If the directory has no manifest, because the tree was never closed or was
+	 *             modified after its last checkpoint.
+	 */
+	public static <T extends Comparable<T> & Serializable> ExternalMemorySplittableSet<T> open(
+			File storageDirectory)
+	{
+		File manifestFile = new File(storageDirectory, MANIFEST_FILE);
+		if (!manifestFile.exists())
+			throw new IllegalStateException("No manifest found in " + storageDirectory
+					+ ". The tree wasn't closed or checkpointed after its last modification.");
+
+		Properties manifest = new Properties();
+		try
+		{
+			InputStream in = new FileInputStream(manifestFile);
+			try
+			{
+				manifest.load(in);
+			} finally
+			{
+				in.close();
+			}
+		} catch (IOException e)
+		{
+			throw new RuntimeException(e);
+		}
+
+		int version = Integer.parseInt(manifest.getProperty("version"));
+		if (version != MANIFEST_VERSION)
+			throw new IllegalStateException("Unsupported manifest version " + version + " in "
+					+ storageDirectory);
+		return new ExternalMemorySplittableSet<T>(storageDirectory, manifest);
+	}
+
+	/**
+	 * Writes all modified nodes to disk and writes a manifest, after which the tree can be
+	 * reopened from its storage directory even if it's never closed. Nodes stay cached.
+	 */
+	public void checkpoint()
+	{
+		flushBuffers();
+		setCache.flush();
+		writeManifest();
+	}
+
+	/**
+	 * Atomically replaces the manifest with one describing the current tree.
+	 */
+	private void writeManifest()
+	{
+		Properties manifest = new Properties();
+		manifest.setProperty("version", MANIFEST_VERSION + "");
+		manifest.setProperty("maxSetSize", maxSetSize + "");
+		manifest.setProperty("size", size.get() + "");
+		manifest.setProperty("treeHeight", treeHeight + "");
+		manifest.setProperty("rootId", rootId);
+		manifest.setProperty("nextNodeId", nextNodeId.get() + "");
+		manifest.setProperty("readAheadPartitions", readAheadPartitions + "");
+		manifest.setProperty("bufferSize", bufferSize + "");
+		setCache.saveConfig(manifest);
+
+		File directory = setCache.getStorageDirectory();
+		File tempFile = new File(directory, MANIFEST_FILE + ".tmp");
+		try
+		{
+			OutputStream out = new FileOutputStream(tempFile);
+			try
+			{
+				manifest.store(out, "ExternalMemorySplittableSet");
+			} finally
+			{
+				out.close();
+			}
+			Files.move(tempFile.toPath(), new File(directory, MANIFEST_FILE).toPath(),
+					StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e)
+		{
+			throw new RuntimeException(e);
+		}
+		manifestCurrent = true;
+	}
+
+	/**
+	 * Deletes the manifest before the first modification following a close or checkpoint, since
+	 * the nodes on disk will no longer match it.
+	 */
+	private synchronized void invalidateManifest()
+	{
+		if (manifestCurrent)
+			deleteManifest();
+	}
+
+	private void deleteManifest()
+	{
+		File manifestFile = new File(setCache.getStorageDirectory(), MANIFEST_FILE);
+		if (manifestFile.exists() && !manifestFile.delete())
+			throw new RuntimeException("Unable to delete " + manifestFile);
+		manifestCurrent = false;
+	}
+
+	/**
+	 * Fills an empty tree from elements in strictly increasing order, filling every node to 75% of
+	 * the maximum node size.
+	 * 
+	 * @see #bulkLoad(Iterator, double)
+	 */
+	public void bulkLoad(Iterator<T> sorted)
+	{
+		bulkLoad(sorted, 0.75);
+	}
+
+	/**
+	 * Fills an empty tree from elements in strictly increasing order. The tree is built bottom-up:
+	 * leaves are filled in order and linked as they're completed, and every completed node is
+	 * added to the level above it with its key and ID. Each node is registered with the cache once
+	 * it's complete and is never modified again, so every node is written to disk once.
+	 * 
+	 * @param fillFactor
+	 *            The fraction of the maximum node size to fill each node to. Leaving room lets
+	 *            later inserts avoid splitting nodes immediately.
+	 * @throws IllegalArgumentException
+	 *             If an element isn't greater than the one before it. The tree keeps the elements
+	 *             loaded up to that point.
+	 */
+	public void bulkLoad(Iterator<T> sorted, double fillFactor)
+	{
+		if (size() > 0)
+			throw new IllegalStateException("bulkLoad() requires an empty tree.");
+		if (fillFactor <= 0 || fillFactor > 1)
+			throw new IllegalArgumentException("The fill factor must be in (0, 1]. fillFactor="
+					+ fillFactor);
+		invalidateManifest();
+		rightmostPath = null;
+
+		int nodeCapacity = Math.max(1, (int) (maxSetSize * fillFactor));
+		String leafId = getLeftmostPath()[0];
+		SplittableSet<T> type = setCache.get(leafId).structure;
+		unregisterNode(rootId);
+
+		// The nodes currently being filled, where index 0 is the leaf level.
+		ArrayList<OpenNode> openNodes = new ArrayList<OpenNode>();
+		openNodes.add(new OpenNode(new TreeNode<T>(type, 1), null));
+
+		T previous = null;
+		IllegalArgumentException failure = null;
+		while (sorted.hasNext())
+		{
+			T elem = sorted.next();
+			if (previous != null && previous.compareTo(elem) >= 0)
+			{
+				failure = new IllegalArgumentException("bulkLoad() requires strictly increasing "
+						+ "elements, but " + elem + " followed " + previous + ".");
+				break;
+			}
+			if (openNodes.get(0).size() >= nodeCapacity)
+				startNode(openNodes, 0, getSeparator(previous, elem), nodeCapacity);
+			openNodes.get(0).node.structure.add(elem);
+			previous = elem;
+			size.incrementAndGet();
+		}
+
+		for (int x = 0; x < openNodes.size(); x++)
+		{
+			long count = openNodes.get(x).complete();
+			if (x + 1 < openNodes.size())
+				openNodes.get(x + 1).addChild(openNodes.get(x), count);
+		}
+		rootId = getBlockId(openNodes.get(openNodes.size() - 1).id);
+		treeHeight = openNodes.size();
+
+		if (failure != null)
+			throw failure;
+	}
+
+	/**
+	 * Completes the open node at the specified level and replaces it with a new node keyed by the
+	 * specified separator, adding the completed node to the level above.
+	 */
+	private void startNode(ArrayList<OpenNode> openNodes, int level, T separator, int nodeCapacity)
+	{
+		OpenNode completed = openNodes.get(level);
+		OpenNode newNode = new OpenNode(new TreeNode<T>(completed.node.structure, level + 1),
+				separator);
+		if (level == 0)
+			completed.node.setNextPartitionId(getBlockId(newNode.id));
+		completed.node.setHighKey(separator);
+		long count = completed.complete();
+
+		if (level + 1 == openNodes.size())
+			openNodes.add(new OpenNode(new TreeNode<T>(null, level + 2), null));
+		OpenNode parent = openNodes.get(level + 1);
+		parent.addChild(completed, count);
+		openNodes.set(level, newNode);
+
+		// An internal node with a single child would never fill up the level above it.
+		if (parent.size() >= Math.max(2, nodeCapacity))
+			startNode(openNodes, level + 1, separator, nodeCapacity);
+	}
+
+	/**
+	 * A node being filled by bulkLoad(). The children of an internal node are collected until the
+	 * node is complete.
+	 */
+	private class OpenNode
+	{
+		public TreeNode<T> node;
+
+		public long id = nextNodeId.getAndIncrement();
+
+		/**
+		 * The smallest key of the node, or null if it's the leftmost one at its height.
+		 */
+		public T key;
+
+		private ArrayList<T> childKeys = new ArrayList<T>();
+
+		private ArrayList<Long> childIds = new ArrayList<Long>();
+
+		private ArrayList<Long> childCounts = new ArrayList<Long>();
+
+		public OpenNode(TreeNode<T> node, T key)
+		{
+			this.node = node;
+			this.key = key;
+		}
+
+		public long size()
+		{
+			if (node.nodeHeight == 1)
+				return node.structure.size();
+			return childIds.size();
+		}
+
+		public void addChild(OpenNode child, long count)
+		{
+			childKeys.add(child.key);
+			childIds.add(child.id);
+			childCounts.add(count);
+		}
+
+		/**
+		 * Registers the node with the cache. It's never modified again.
+		 * 
+		 * @return The number of elements under the node.
+		 */
+		public long complete()
+		{
+			if (node.nodeHeight > 1)
+			{
+				long[] ids = new long[childIds.size()];
+				long[] counts = new long[childIds.size()];
+				for (int x = 0; x < ids.length; x++)
+				{
+					ids[x] = childIds.get(x);
+					counts[x] = childCounts.get(x);
+				}
+				node.setChildren(new Children<T>(childKeys.toArray(), ids, counts));
+			}
+			long count = node.getElementCount();
+			setCache.register(getBlockId(id), node);
+			return count;
+		}
+	}
+
+	/**
+	 * Returns the block ID of the node with the specified number.
+	 */
+	private static String getBlockId(long nodeId)
+	{
+		return Long.toString(nodeId);
+	}
+
+	/**
+	 * Returns the block ID for a new node.
+	 */
+	private String createNodeId()
+	{
+		return getBlockId(nextNodeId.getAndIncrement());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean add(T u)
+	{
+		if (latches != null)
+			return addConcurrently(u);
+		if (bufferSize > 0 && treeHeight > 1)
+		{
+			// Only an insert that changes the set is buffered, so the result is exact.
+			if (contains(u))
+				return false;
+			bufferMessage(u, true);
+			return true;
+		}
+		return addDirectly(u);
+	}
+
+	/**
+	 * Adds an element without finding out whether it was already in the set. In buffered mode the
+	 * insert is buffered right away, so unlike add() this never loads the leaf the element belongs
+	 * in.
+	 */
+	public void upsert(T u)
+	{
+		if (latches == null && bufferSize > 0 && treeHeight > 1)
+			bufferMessage(u, true);
+		else
+			add(u);
+	}
+
+	/**
+	 * Adds an element to its leaf outside concurrent mode, bypassing the buffers.
+	 */
+	private boolean addDirectly(T u)
+	{
+		String[] searchPath;
+		if (rightmostPath != null && (rightmostKey == null || u.compareTo(rightmostKey) >= 0))
+			searchPath = rightmostPath;
+		else
+			searchPath = getLeafNodeForElem(u);
+		TreeNode<T> leafNode = setCache.get(searchPath[0]);
+		if (searchPath != rightmostPath && leafNode.nextPartitionId == null)
+		{
+			// Remember the search path to the rightmost leaf until the next split or merge.
+			rightmostKey = getLeafKey(searchPath, u);
+			rightmostPath = searchPath;
+		}
+		return addToLeaf(u, searchPath, leafNode, null);
+	}
+
+	/**
+	 * Returns the key of the leaf at the end of the specified search path, which must be the one
+	 * for the specified element, or null if the leaf is the leftmost one.
+	 */
+	private T getLeafKey(String[] searchPath, T u)
+	{
+		if (searchPath.length == 1)
+			return null;
+		Children<T> siblings = setCache.get(searchPath[1]).children;
+		return siblings.key(siblings.route(u));
+	}
+
+	/**
+	 * Returns the key of the leaf that the specified element belongs in, or null if it's the
+	 * leftmost leaf.
+	 */
+	T getLeafKey(T u)
+	{
+		return getLeafKey(getLeafNodeForElem(u), u);
+	}
+
+	/**
+	 * Returns the specified element if it was just added to the end of the rightmost leaf, which
+	 * is how appends of increasing elements can be recognized, otherwise null.
+	 */
+	private T getAppendedElement(T u, TreeNode<T> leafNode)
+	{
+		if (leafNode.nextPartitionId == null && leafNode.structure.higher(u) == null)
+			return u;
+		return null;
+	}
+
+	/**
+	 * Adds an element in concurrent mode. Only the leaf is latched exclusively unless it's full, in
+	 * which case the path is latched again from the highest node the split can reach.
+	 */
+	private boolean addConcurrently(T u)
+	{
+		HeldNodes held = new HeldNodes();
+		try
+		{
+			String[] searchPath = latchPath(u, held, LatchMode.WRITE_LEAF);
+			TreeNode<T> leafNode = held.get(searchPath[0]);
+			if (searchPath.length > 1 && leafNode.size() >= maxSetSize
+					&& !leafNode.structure.contains(u))
+			{
+				held.releaseAll();
+				searchPath = latchPath(u, held, LatchMode.INSERT);
+				leafNode = held.get(searchPath[0]);
+			}
+			return addToLeaf(u, searchPath, leafNode, held);
+		} finally
+		{
+			held.releaseAll();
+		}
+	}
+
+	/**
+	 * Adds an element to the leaf at the end of the specified search path, splitting it if
+	 * necessary.
+	 * 
+	 * @param held
+	 *            The nodes latched by the caller in concurrent mode, otherwise null.
+	 */
+	private boolean addToLeaf(T u, String[] searchPath, TreeNode<T> leafNode, HeldNodes held)
+	{
+		if (leafNode.structure.contains(u))
+			return false;
+		if (manifestCurrent)
+			invalidateManifest();
+
+		// Loading the ancestors may evict the leaf outside concurrent mode, so it's fetched again.
+		addToChildCounts(searchPath, u, 1, held);
+		leafNode = getNode(searchPath[0], held);
+		leafNode.structure.add(u);
+		splitNodeIfNecessary(searchPath, leafNode, getAppendedElement(u, leafNode), held);
+		size.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Adds the specified delta to the child counts on the specified search path for the child
+	 * that the specified element is under. This is done before any split or merge, which take the
+	 * counts of the nodes they change from the nodes themselves.
+	 * 
+	 * @param held
+	 *            The nodes latched by the caller in concurrent mode, otherwise null.
+	 */
+	private void addToChildCounts(String[] searchPath, T u, long delta, HeldNodes held)
+	{
+		for (int x = 1; x < searchPath.length; x++)
+		{
+			TreeNode<T> node = getNode(searchPath[x], held);
+			node.addChildCount(node.children.route(u), delta);
+		}
+	}
+
+	/**
+	 * Returns the node with the specified ID, which must already be held in concurrent mode.
+	 */
+	private TreeNode<T> getNode(String nodeId, HeldNodes held)
+	{
+		if (held == null)
+			return setCache.get(nodeId);
+		return held.get(nodeId);
+	}
+
+	/**
+	 * Splits the specified node into two if it is larger than the maximum node size.
+	 * 
+	 * @param searchPath
+	 *            The search path used to find the specified node.
+	 * @param node
+	 *            The node that may need to be split.
+	 * @param appended
+	 *            The element that was just appended to the end of the node if it's on the path
+	 *            to the rightmost leaf, otherwise null.
+	 * @param held
+	 *            The nodes latched by the caller in concurrent mode, otherwise null.
+	 * @return True if the node was split, false otherwise.
+	 */
+	private boolean splitNodeIfNecessary(String[] searchPath, TreeNode<T> node, T appended,
+			HeldNodes held)
+	{
+		if (node.size() <= maxSetSize)
+			return false;
+		rightmostPath = null;
+
+		long newNodeId = nextNodeId.getAndIncrement();
+		TreeNode<T> newNode = new TreeNode<T>(null, node.nodeHeight);
+		newNode.setHighKey(node.highKey);
+		T separator;
+		if (node.nodeHeight == 1)
+		{
+			T midValue;
+			T lowerValue;
+			if (appended != null)
+			{
+				/*
+				 * Appends never add to the left of the rightmost path, so the node is left full and
+				 * the new node starts with the appended element instead of splitting in half.
+				 */
+				midValue = appended;
+				lowerValue = node.structure.lower(midValue);
+			} else
+			{
+				/*
+				 * The middle value is only approximate and may be the smallest value, which would
+				 * leave this node empty, so split after it instead.
+				 */
+				midValue = node.structure.locateMiddleValue();
+				lowerValue = node.structure.lower(midValue);
+				if (lowerValue == null && node.structure.higher(midValue) != null)
+				{
+					lowerValue = midValue;
+					midValue = node.structure.higher(midValue);
+				}
+			}
+
+			// Leaves are keyed by the shortest separator between the two halves.
+			separator = getSeparator(lowerValue, midValue);
+			newNode.structure = node.structure.split(midValue);
+			newNode.setNextPartitionId(node.nextPartitionId);
+			node.setNextPartitionId(getBlockId(newNodeId));
+			node.setHighKey(separator);
+		} else
+		{
+			// Appends only reach the last child, so it's the only one moved to the new node.
+			int size = node.children.size();
+			int index = appended != null ? size - 1 : size >> 1;
+			separator = node.children.key(index);
+
+			// Readers that see the remaining children have to see the new high key too.
+			node.setHighKey(separator);
+			node.splitInternal(index, newNode);
+		}
+		setCache.register(getBlockId(newNodeId), newNode);
+
+		TreeNode<T> parentNode = null;
+		boolean lastChild;
+		if (node.nodeHeight == searchPath.length)
+		{
+			/*
+			 * The root node was split, so create a new root node. Concurrent readers only find the
+			 * new root once it's complete.
+			 */
+			parentNode = new TreeNode<T>(null, node.nodeHeight + 1);
+			long oldRootId = Long.parseLong(searchPath[searchPath.length - 1]);
+			parentNode.setChildren(new Children<T>(new Object[] { null, separator }, new long[] {
+					oldRootId, newNodeId }, new long[] { node.getElementCount(),
+					newNode.getElementCount() }));
+			String parentId = createNodeId();
+			setCache.register(parentId, parentNode);
+			rootId = parentId;
+			treeHeight++;
+			lastChild = true;
+		} else
+		{
+			parentNode = getNodeForWrite(searchPath[node.nodeHeight], held);
+			int index = parentNode.children.route(separator);
+			parentNode.setChildCount(index, node.getElementCount());
+			parentNode.insertChild(index + 1, separator, newNodeId, newNode.getElementCount());
+			lastChild = index + 2 == parentNode.size();
+		}
+
+		// The parent node may need to be split so check it as well.
+		if (parentNode.nodeHeight <= searchPath.length)
+			splitNodeIfNecessary(searchPath, parentNode, appended != null && lastChild ? separator
+					: null, held);
+		return true;
+	}
+
+	/**
+	 * Returns the shortest key that is greater than the specified lower element and no greater than
+	 * the specified upper element, which is the shortest separator that routes both elements to
+	 * the correct side of a split. Only strings can be shortened; other types use the upper
+	 * element.
+	 * 
+	 * @param lower
+	 *            The largest element left of the split, or null if there is none.
+	 * @param upper
+	 *            The smallest element right of the split.
+	 */
+	@SuppressWarnings("unchecked")
+	private static <T> T getSeparator(T lower, T upper)
+	{
+		if (!(lower instanceof String) || !(upper instanceof String))
+			return upper;
+
+		String lowerString = (String) lower;
+		String upperString = (String) upper;
+		int prefixLength = 0;
+		while (prefixLength < lowerString.length()
+				&& lowerString.charAt(prefixLength) == upperString.charAt(prefixLength))
+			prefixLength++;
+
+		// The first differing character decides the order. Surrogate pairs are kept whole.
+		int length = prefixLength + 1;
+		if (Character.isHighSurrogate(upperString.charAt(prefixLength))
+				&& length < upperString.length())
+			length++;
+		return (T) upperString.substring(0, length);
+	}
+
+	/**
+	 * Returns the search path to the leaf node that the specified element exists in or would be
+	 * placed in if inserted. The search path is an array of IDs where index 0 is the leaf node.
+	 */
+	private String[] getLeafNodeForElem(T u)
+	{
+		String nextNodeId = rootId;
+		TreeNode<T> curNode = setCache.get(nextNodeId);
+		String[] searchPath = new String[curNode.nodeHeight];
+		searchPath[searchPath.length - 1] = nextNodeId;
+		while (curNode.nodeHeight > 1)
+		{
+			Children<T> children = curNode.children;
+			nextNodeId = children.blockId(children.route(u));
+			curNode = setCache.get(nextNodeId);
+			searchPath[curNode.nodeHeight - 1] = nextNodeId;
+		}
+		return searchPath;
+	}
+
+	/**
+	 * The concurrent mode version of getLeafNodeForElem() for writers. The nodes on the search path
+	 * are latched top-down, and a node is latched before its parent is released so no operation can
+	 * overtake another on the way down. A null element leads to the leftmost leaf.
+	 * 
+	 * @return The search path, where index 0 is the leaf. Only the nodes still held may be used.
+	 */
+	private String[] latchPath(T u, HeldNodes held, LatchMode mode)
+	{
+		boolean exclusive = mode == LatchMode.INSERT || mode == LatchMode.DELETE
+				|| mode == LatchMode.DELETE_RANGE;
+		String nextNodeId = latchRoot(held, mode);
+		TreeNode<T> curNode = held.get(nextNodeId);
+		String[] searchPath = new String[curNode.nodeHeight];
+		searchPath[searchPath.length - 1] = nextNodeId;
+
+		while (curNode.nodeHeight > 1)
+		{
+			Children<T> children = curNode.children;
+			int nextHeight = curNode.nodeHeight - 1;
+			nextNodeId = children.blockId(u == null ? 0 : children.route(u));
+			curNode = held.acquire(nextNodeId, exclusive
+					|| (mode == LatchMode.WRITE_LEAF && nextHeight == 1));
+			searchPath[nextHeight - 1] = nextNodeId;
+
+			if (mode == LatchMode.INSERT && curNode.size() < maxSetSize
+					|| mode == LatchMode.DELETE && curNode.size() > (maxSetSize >> 3)
+					|| mode == LatchMode.DELETE_RANGE && nextHeight > 1
+					&& curNode.size() > (maxSetSize >> 3))
+				held.downgradeAncestors();
+		}
+		return searchPath;
+	}
+
+	/**
+	 * Latches the root node in concurrent mode.
+	 * 
+	 * @return The root's block ID.
+	 */
+	private String latchRoot(HeldNodes held, LatchMode mode)
+	{
+		boolean exclusive = mode == LatchMode.INSERT || mode == LatchMode.DELETE
+				|| mode == LatchMode.DELETE_RANGE;
+		while (true)
+		{
+			// The root changes with the tree height, so check neither changed while waiting.
+			int height = treeHeight;
+			String nodeId = rootId;
+			ReentrantReadWriteLock latch = getLatch(nodeId);
+			Lock lock = exclusive || (mode == LatchMode.WRITE_LEAF && height == 1) ? latch
+					.writeLock() : latch.readLock();
+			lock.lock();
+			held.add(nodeId, lock);
+			if (height == treeHeight && nodeId.equals(rootId))
+				return nodeId;
+			// Releasing the old root through the held nodes drops its latch if it was retired.
+			held.releaseAll();
+		}
+	}
+
+	/**
+	 * Latches the leaf that the specified element belongs in shared, without latching any internal
+	 * node, as in a B-link tree. Internal nodes are read without latches, which is safe because
+	 * their children are replaced rather than modified and a node's key never changes, so the
+	 * search never ends up right of the leaf it's looking for. It can end up left of it if the
+	 * leaf was split after its parent was read, in which case the leaf's high key shows it and the
+	 * search moves right along the leaf chain. An internal node whose high key shows it was split,
+	 * or a node that was merged away, sends the search back to the root.
+	 * 
+	 * @param u
+	 *            The element to search for, or null for the leftmost leaf (the rightmost leaf if
+	 *            before is set).
+	 * @param before
+	 *            Searches for the leaf holding the largest elements smaller than the specified one
+	 *            instead.
+	 * @param leafId
+	 *            The ID of the leaf whose key is the specified element, such as the leaf after one
+	 *            that was just read, or null to search from the root.
+	 * @return The leaf, which is held shared. The held nodes' leaf key is set to its key.
+	 */
+	private TreeNode<T> latchLeaf(T u, boolean before, String leafId, HeldNodes held)
+	{
+		held.leafKey = u;
+		while (true)
+		{
+			if (leafId == null)
+				leafId = findLeaf(u, before, held);
+			if (leafId == null)
+				continue;
+
+			// Move right until the leaf's high key is past the element.
+			while (true)
+			{
+				TreeNode<T> leafNode = held.acquire(leafId, false);
+				if (leafNode == null)
+				{
+					// The leaf was merged into the one left of it.
+					held.releaseAll();
+					leafId = null;
+					break;
+				}
+				if (leafNode.isBelowHighKey(u, before))
+					return leafNode;
+				held.leafKey = leafNode.highKey;
+				leafId = leafNode.nextPartitionId;
+				held.releaseAll();
+			}
+		}
+	}
+
+	/**
+	 * Descends from the root to the leaf for latchLeaf() without latching anything, setting the
+	 * held nodes' leaf key to the leaf's key.
+	 * 
+	 * @return The ID of the leaf, or null if the search has to start over.
+	 */
+	private String findLeaf(T u, boolean before, HeldNodes held)
+	{
+		String nodeId = rootId;
+		TreeNode<T> curNode = setCache.get(nodeId);
+		held.leafKey = null;
+		while (curNode != null && curNode.nodeHeight > 1)
+		{
+			// The children are read first, so a split that removed some of them shows in the high
+			// key.
+			Children<T> children = curNode.children;
+			if (!curNode.isBelowHighKey(u, before))
+				return null;
+			int index;
+			if (u == null)
+				index = before ? children.size() - 1 : 0;
+			else
+				index = before ? children.routeLower(u) : children.route(u);
+			held.leafKey = children.key(index);
+			nodeId = children.blockId(index);
+			curNode = setCache.get(nodeId);
+		}
+		return curNode == null ? null : nodeId;
+	}
+
+	private ReentrantReadWriteLock getLatch(String nodeId)
+	{
+		ReentrantReadWriteLock latch = latches.get(nodeId);
+		if (latch == null)
+		{
+			latch = new ReentrantReadWriteLock();
+			ReentrantReadWriteLock existing = latches.putIfAbsent(nodeId, latch);
+			if (existing != null)
+				latch = existing;
+		}
+		return latch;
+	}
+
+	/**
+	 * Returns the number of latches in concurrent mode.
+	 */
+	int getLatchCount()
+	{
+		return latches.size();
+	}
+
+	/**
+	 * Unregisters a node that was merged away or replaced, and drops its latch in concurrent mode.
+	 * Node IDs are never reused, so a thread still waiting on the dropped latch finds the node
+	 * unregistered once it gets the latch and starts over.
+	 */
+	private void unregisterNode(String nodeId)
+	{
+		setCache.unregister(nodeId);
+		if (latches != null)
+			latches.remove(nodeId);
+	}
+
+	/**
+	 * Returns the node with the specified ID for modification, latching it exclusively in
+	 * concurrent mode.
+	 */
+	private TreeNode<T> getNodeForWrite(String nodeId, HeldNodes held)
+	{
+		if (held == null)
+			return setCache.get(nodeId);
+		return held.acquire(nodeId, true);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean remove(T x)
+	{
+		if (latches != null)
+			return removeConcurrently(x);
+		if (bufferSize > 0 && treeHeight > 1)
+		{
+			if (!contains(x))
+				return false;
+			bufferMessage(x, false);
+			return true;
+		}
+		return removeDirectly(x);
+	}
+
+	/**
+	 * Removes an element without finding out whether it was in the set. In buffered mode the
+	 * delete is buffered right away, so unlike remove() this never loads the leaf the element
+	 * belongs in.
+	 */
+	public void delete(T x)
+	{
+		if (latches == null && bufferSize > 0 && treeHeight > 1)
+			bufferMessage(x, false);
+		else
+			remove(x);
+	}
+
+	/**
+	 * Removes an element from its leaf outside concurrent mode, bypassing the buffers.
+	 */
+	private boolean removeDirectly(T x)
+	{
+		String[] searchPath = getLeafNodeForElem(x);
+		return removeFromLeaf(x, searchPath, setCache.get(searchPath[0]), null);
+	}
+
+	/**
+	 * Removes every element in the range [from, to), where a null bound leaves that end of the
+	 * range open. Subtrees entirely inside the range are unregistered without loading their
+	 * leaves, so only the leaves at the ends of the range are loaded and trimmed. The parents'
+	 * child counts, the leaf chain and the high keys are fixed up in the same pass, after which the
+	 * nodes left small at the ends of the range are merged with their siblings.
+	 * 
+	 * In concurrent mode the leaves overlapping the range are visited one at a time instead, see
+	 * removeRangeConcurrently().
+	 * 
+	 * @return The number of elements removed.
+	 */
+	public long removeRange(T from, T to)
+	{
+		if (from != null && to != null && from.compareTo(to) > 0)
+		{
+			T temp = from;
+			from = to;
+			to = temp;
+		}
+
+		if (latches != null)
+			return removeRangeConcurrently(from, to);
+
+		flushBuffers();
+		if (manifestCurrent)
+			invalidateManifest();
+		rightmostPath = null;
+
+		RangeRemoval removal = new RangeRemoval(from, to);
+		long removed = removal.removeFromNode(rootId, null, null);
+		size.addAndGet(-removed);
+		removal.linkEnd();
+
+		// Merge the nodes left small at the ends of the range, from the leaves up.
+		for (T key : removal.trimmedLeafKeys)
+		{
+			for (int height = 1; height < treeHeight; height++)
+			{
+				String[] searchPath = key == null ? getLeftmostPath() : getLeafNodeForElem(key);
+				mergeNodeIfNecessary(key, searchPath, setCache.get(searchPath[height - 1]), null);
+			}
+		}
+		while (treeHeight > 1)
+		{
+			TreeNode<T> root = setCache.get(rootId);
+			if (root.size() > 1)
+				break;
+			unregisterNode(rootId);
+			rootId = root.children.blockId(0);
+			treeHeight--;
+		}
+		return removed;
+	}
+
+	/**
+	 * The concurrent mode version of removeRange(), which sweeps the leaves overlapping the range
+	 * from left to right. Every leaf is handled under a single descent: its elements in the range
+	 * are removed together, the ancestors' child counts are updated once and the leaf is merged if
+	 * it became small. Only the leaf is latched exclusively unless it has to be merged, in which
+	 * case the path is latched again from the highest node the merge can reach. The removal isn't
+	 * atomic, elements added to the range behind the sweep are kept.
+	 */
+	private long removeRangeConcurrently(T from, T to)
+	{
+		long removed = 0;
+		T leafStart = from;
+		while (true)
+		{
+			T highKey;
+			HeldNodes held = new HeldNodes();
+			try
+			{
+				String[] searchPath = latchPath(leafStart, held, LatchMode.WRITE_LEAF);
+				TreeNode<T> leafNode = held.get(searchPath[0]);
+				ArrayList<T> elems = getLeafRange(leafNode, leafStart, to);
+				if (searchPath.length > 1 && !elems.isEmpty()
+						&& leafNode.size() - elems.size() < (maxSetSize >> 3))
+				{
+					held.releaseAll();
+					searchPath = latchPath(leafStart, held, LatchMode.DELETE_RANGE);
+					leafNode = held.get(searchPath[0]);
+					elems = getLeafRange(leafNode, leafStart, to);
+				}
+
+				highKey = leafNode.highKey;
+				if (!elems.isEmpty())
+				{
+					if (manifestCurrent)
+						invalidateManifest();
+					T first = elems.get(0);
+					addToChildCounts(searchPath, first, -elems.size(), held);
+					for (T elem : elems)
+						leafNode.structure.remove(elem);
+					size.addAndGet(-elems.size());
+					removed += elems.size();
+					mergeNodeIfNecessary(first, searchPath, leafNode, held);
+				}
+			} finally
+			{
+				held.releaseAll();
+			}
+
+			if (highKey == null || to != null && highKey.compareTo(to) >= 0)
+				return removed;
+			leafStart = highKey;
+		}
+	}
+
+	/**
+	 * Returns the elements of the specified leaf in the range [from, to), where a null bound leaves
+	 * that end of the range open.
+	 */
+	private ArrayList<T> getLeafRange(TreeNode<T> leafNode, T from, T to)
+	{
+		ArrayList<T> elems = new ArrayList<T>();
+		Iterator<T> iter = from == null ? leafNode.structure.iterator() : leafNode.structure
+				.iterator(from, null);
+		while (iter.hasNext())
+		{
+			T elem = iter.next();
+			if (to != null && elem.compareTo(to) >= 0)
+				break;
+			elems.add(elem);
+		}
+		return elems;
+	}
+
+	/**
+	 * Returns the search path to the leftmost leaf.
+	 */
+	private String[] getLeftmostPath()
+	{
+		String nodeId = rootId;
+		TreeNode<T> curNode = setCache.get(nodeId);
+		String[] searchPath = new String[curNode.nodeHeight];
+		searchPath[searchPath.length - 1] = nodeId;
+		while (curNode.nodeHeight > 1)
+		{
+			nodeId = curNode.children.blockId(0);
+			curNode = setCache.get(nodeId);
+			searchPath[curNode.nodeHeight - 1] = nodeId;
+		}
+		return searchPath;
+	}
+
+	/**
+	 * A single pass of removeRange() over the nodes overlapping the range, in key order.
+	 */
+	private class RangeRemoval
+	{
+		private T from;
+
+		private T to;
+
+		/**
+		 * The last node visited at each height that wasn't removed, which has to be linked to the
+		 * next one at its height, by height - 1.
+		 */
+		private String[] previousIds = new String[treeHeight];
+
+		/**
+		 * The keys of the leaves that were trimmed but kept, where null is the leftmost leaf.
+		 */
+		public ArrayList<T> trimmedLeafKeys = new ArrayList<T>();
+
+		public RangeRemoval(T from, T to)
+		{
+			this.from = from;
+			this.to = to;
+
+			// The nodes before the range may be linked to nodes that will be removed.
+			if (from != null)
+			{
+				TreeNode<T> curNode = setCache.get(rootId);
+				while (curNode.nodeHeight > 1)
+				{
+					Children<T> children = curNode.children;
+					String nodeId = children.blockId(children.routeLower(from));
+					curNode = setCache.get(nodeId);
+					previousIds[curNode.nodeHeight - 1] = nodeId;
+				}
+			}
+		}
+
+		/**
+		 * Removes the elements of the range from the subtree of the specified node, whose keys
+		 * are in [low, high).
+		 * 
+		 * @return The number of elements removed.
+		 */
+		public long removeFromNode(String nodeId, T low, T high)
+		{
+			TreeNode<T> node = setCache.get(nodeId);
+			link(node.nodeHeight, nodeId, low);
+			if (node.nodeHeight == 1)
+				return trimLeaf(node, low);
+
+			// The children don't change until the end, but removing from them may evict this node.
+			Children<T> children = node.children;
+			BitSet dropped = new BitSet();
+			long removed = 0;
+			for (int x = 0; x < children.size(); x++)
+			{
+				T childLow = x == 0 ? low : children.key(x);
+				T childHigh = x + 1 < children.size() ? children.key(x + 1) : high;
+				boolean startsInRange = from == null || childLow != null
+						&& from.compareTo(childLow) <= 0;
+				boolean endsInRange = to == null || childHigh != null
+						&& childHigh.compareTo(to) <= 0;
+				if ((to != null && childLow != null && childLow.compareTo(to) >= 0)
+						|| (from != null && childHigh != null && childHigh.compareTo(from) <= 0))
+					continue;
+
+				if (x > 0 && startsInRange && endsInRange)
+				{
+					// The first child holds the key of this node, so only the others are dropped.
+					dropped.set(x);
+					unregisterSubtree(children.blockId(x), node.nodeHeight - 1);
+				} else
+				{
+					long childRemoved = removeFromNode(children.blockId(x), childLow, childHigh);
+					node = setCache.get(nodeId);
+					node.addChildCount(x, -childRemoved);
+					removed += childRemoved;
+				}
+			}
+			if (!dropped.isEmpty())
+				removed += setCache.get(nodeId).removeChildren(dropped);
+			return removed;
+		}
+
+		private long trimLeaf(TreeNode<T> leafNode, T leafKey)
+		{
+			ArrayList<T> elems = getLeafRange(leafNode, from, to);
+			for (T elem : elems)
+				leafNode.structure.remove(elem);
+
+			trimmedLeafKeys.add(leafKey);
+			return elems.size();
+		}
+
+		/**
+		 * Links the previous node kept at the specified height to the specified node with the
+		 * specified key, or to nothing if the node is null.
+		 */
+		private void link(int height, String nodeId, T key)
+		{
+			String previousId = previousIds[height - 1];
+			if (previousId != null && !previousId.equals(nodeId))
+			{
+				TreeNode<T> previous = setCache.get(previousId);
+				if (!equalKeys(previous.highKey, key))
+					previous.setHighKey(key);
+				if (height == 1 && !equalKeys(previous.nextPartitionId, nodeId))
+					previous.setNextPartitionId(nodeId);
+			}
+			if (nodeId != null)
+				previousIds[height - 1] = nodeId;
+		}
+
+		/**
+		 * Links the last nodes kept at each height to the nodes the end of the range falls in, once
+		 * every node in between was visited.
+		 */
+		public void linkEnd()
+		{
+			if (to == null)
+			{
+				for (int height = 1; height < previousIds.length; height++)
+					link(height, null, null);
+				return;
+			}
+
+			TreeNode<T> curNode = setCache.get(rootId);
+			while (curNode.nodeHeight > 1)
+			{
+				Children<T> children = curNode.children;
+				int index = children.route(to);
+				String nodeId = children.blockId(index);
+				curNode = setCache.get(nodeId);
+				link(curNode.nodeHeight, nodeId, children.key(index));
+			}
+		}
+
+		/**
+		 * Unregisters the specified node and every node below it. Leaves are unregistered without
+		 * being loaded.
+		 */
+		private void unregisterSubtree(String nodeId, int nodeHeight)
+		{
+			if (nodeHeight > 1)
+			{
+				Children<T> children = setCache.get(nodeId).children;
+				for (int x = 0; x < children.size(); x++)
+					unregisterSubtree(children.blockId(x), nodeHeight - 1);
+			}
+			unregisterNode(nodeId);
+		}
+	}
+
+	/**
+	 * Buffers an insert or delete in the root. When a buffer overflows, the messages for the child
+	 * with the most pending messages are moved down in one batch, which may overflow the child's
+	 * buffer in turn. Batches leaving the lowest internal nodes are applied to the leaves once the
+	 * cascade is over, so the tree isn't restructured while buffers are being flushed.
+	 */
+	private void bufferMessage(T u, boolean insert)
+	{
+		if (manifestCurrent)
+			invalidateManifest();
+		buffersEmpty = false;
+		String nodeId = rootId;
+		setCache.get(nodeId).putMessages(Collections.singletonMap(u, insert));
+
+		TreeMap<T, Boolean> toLeaves = new TreeMap<T, Boolean>();
+		flushBuffer(nodeId, toLeaves);
+		applyMessages(toLeaves);
+	}
+
+	/**
+	 * Moves batches of messages out of the specified internal node's buffer until it's no longer
+	 * over the buffer size.
+	 * 
+	 * @param toLeaves
+	 *            Collects the batches moved out of the lowest internal nodes.
+	 */
+	private void flushBuffer(String nodeId, TreeMap<T, Boolean> toLeaves)
+	{
+		TreeNode<T> node = setCache.get(nodeId);
+		while (node.buffer.size() > bufferSize)
+		{
+			// The messages are sorted, so the messages for each child form a single run.
+			Children<T> children = node.children;
+			int bestChild = 0;
+			int bestCount = 0;
+			int runChild = 0;
+			int runCount = 0;
+			for (T message : node.buffer.keySet())
+			{
+				int child = children.route(message);
+				if (runCount > 0 && child != runChild)
+					runCount = 0;
+				runChild = child;
+				runCount++;
+				if (runCount > bestCount)
+				{
+					bestChild = runChild;
+					bestCount = runCount;
+				}
+			}
+
+			T childKey = bestChild == 0 ? null : children.key(bestChild);
+			T nextChildKey = bestChild + 1 < children.size() ? children.key(bestChild + 1) : null;
+			TreeMap<T, Boolean> batch = node.takeMessages(childKey, nextChildKey);
+
+			if (node.nodeHeight == 2)
+				toLeaves.putAll(batch);
+			else
+			{
+				String childId = children.blockId(bestChild);
+				setCache.get(childId).putMessages(batch);
+				flushBuffer(childId, toLeaves);
+
+				// Flushing the child may have evicted this node.
+				node = setCache.get(nodeId);
+			}
+		}
+	}
+
+	private static <T> boolean equalKeys(T key1, T key2)
+	{
+		return key1 == null ? key2 == null : key1.equals(key2);
+	}
+
+	/**
+	 * Applies buffered messages to the leaves in sorted order, so consecutive messages for the
+	 * same leaf find it cached.
+	 */
+	private void applyMessages(TreeMap<T, Boolean> messages)
+	{
+		for (Entry<T, Boolean> message : messages.entrySet())
+		{
+			if (message.getValue())
+				addDirectly(message.getKey());
+			else
+				removeDirectly(message.getKey());
+		}
+	}
+
+	/**
+	 * Applies every buffered message to the leaves. Operations that need exact sizes or a
+	 * complete view of the leaves call this first.
+	 */
+	private void flushBuffers()
+	{
+		if (buffersEmpty)
+			return;
+		TreeMap<T, Boolean> messages = new TreeMap<T, Boolean>();
+		collectMessages(rootId, messages);
+		buffersEmpty = true;
+		applyMessages(messages);
+	}
+
+	/**
+	 * Empties the buffers of the specified internal node and the internal nodes below it into the
+	 * specified map, where messages from higher nodes replace older ones from lower nodes.
+	 */
+	private void collectMessages(String nodeId, TreeMap<T, Boolean> messages)
+	{
+		TreeNode<T> node = setCache.get(nodeId);
+		if (node.nodeHeight == 1)
+			return;
+		TreeMap<T, Boolean> nodeMessages = null;
+		if (!node.buffer.isEmpty())
+			nodeMessages = node.takeMessages(null, null);
+
+		if (node.nodeHeight > 2)
+		{
+			Children<T> children = node.children;
+			for (int x = 0; x < children.size(); x++)
+				collectMessages(children.blockId(x), messages);
+		}
+		if (nodeMessages != null)
+			messages.putAll(nodeMessages);
+	}
+
+	/**
+	 * Removes an element in concurrent mode. Only the leaf is latched exclusively unless it would
+	 * become small enough to merge, in which case the path is latched again from the highest node
+	 * the merge can reach.
+	 */
+	private boolean removeConcurrently(T x)
+	{
+		HeldNodes held = new HeldNodes();
+		try
+		{
+			String[] searchPath = latchPath(x, held, LatchMode.WRITE_LEAF);
+			TreeNode<T> leafNode = held.get(searchPath[0]);
+			if (searchPath.length > 1 && leafNode.size() <= (maxSetSize >> 3)
+					&& leafNode.structure.contains(x))
+			{
+				held.releaseAll();
+				searchPath = latchPath(x, held, LatchMode.DELETE);
+				leafNode = held.get(searchPath[0]);
+			}
+			return removeFromLeaf(x, searchPath, leafNode, held);
+		} finally
+		{
+			held.releaseAll();
+		}
+	}
+
+	/**
+	 * Removes an element from the leaf at the end of the specified search path, merging it if
+	 * necessary.
+	 * 
+	 * @param held
+	 *            The nodes latched by the caller in concurrent mode, otherwise null.
+	 */
+	private boolean removeFromLeaf(T x, String[] searchPath, TreeNode<T> leafNode,
+			HeldNodes held)
+	{
+		if (!leafNode.structure.contains(x))
+			return false;
+		if (manifestCurrent)
+			invalidateManifest();
+
+		// Loading the ancestors may evict the leaf outside concurrent mode, so it's fetched again.
+		addToChildCounts(searchPath, x, -1, held);
+		leafNode = getNode(searchPath[0], held);
+		leafNode.structure.remove(x);
+		size.decrementAndGet();
+		mergeNodeIfNecessary(x, searchPath, leafNode, held);
+		return true;
+	}
+
+	/**
+	 * Merges the specified node with one of it's sibling nodes if it is smaller than the minimum
+	 * node size (maxSize / 8). The sibling with the smaller node size will be chosen for the merge,
+	 * and the right node of the pair is always merged into the left one.
+	 * 
+	 * @param x
+	 *            The element that has just been deleted, or null if the node is the leftmost one at
+	 *            its height.
+	 * @param searchPath
+	 *            The search path used to find the specified node.
+	 * @param curNode
+	 *            The node that may need to be merged.
+	 * @param held
+	 *            The nodes latched by the caller in concurrent mode, otherwise null.
+	 */
+	private void mergeNodeIfNecessary(T x, String[] searchPath, TreeNode<T> curNode,
+			HeldNodes held)
+	{
+		if (searchPath.length > curNode.nodeHeight && curNode.size() < (maxSetSize >> 3))
+		{
+			TreeNode<T> parentNode = getNodeForWrite(searchPath[curNode.nodeHeight], held);
+			Children<T> siblings = parentNode.children;
+
+			// A node without siblings can't be merged, but its parent may be.
+			if (siblings.size() == 1)
+			{
+				mergeNodeIfNecessary(x, searchPath, parentNode, held);
+				return;
+			}
+
+			// Figure out which sibling to merge with. The smaller sibling will be chosen.
+			int index = x == null ? 0 : siblings.route(x);
+			int leftIndex;
+			if (index == 0)
+				leftIndex = 0;
+			else if (index + 1 == siblings.size())
+				leftIndex = index - 1;
+			else
+			{
+				TreeNode<T> leftSet = getNodeForWrite(siblings.blockId(index - 1), held);
+				TreeNode<T> rightSet = getNodeForWrite(siblings.blockId(index + 1), held);
+				leftIndex = leftSet.size() < rightSet.size() ? index - 1 : index;
+			}
+			TreeNode<T> leftNode = curNode;
+			TreeNode<T> rightNode = curNode;
+			if (leftIndex == index)
+				rightNode = getNodeForWrite(siblings.blockId(index + 1), held);
+			else
+				leftNode = getNodeForWrite(siblings.blockId(leftIndex), held);
+
+			rightmostPath = null;
+			String rightId = siblings.blockId(leftIndex + 1);
+			BitSet removedChild = new BitSet();
+			removedChild.set(leftIndex + 1);
+			parentNode.addChildCount(leftIndex, parentNode.removeChildren(removedChild));
+			if (leftNode.nodeHeight == 1)
+				leftNode.structure.merge(rightNode.structure);
+			else
+			{
+				leftNode.setChildren(leftNode.children.concat(rightNode.children));
+				leftNode.putMessages(rightNode.buffer);
+			}
+			leftNode.setNextPartitionId(rightNode.nextPartitionId);
+			leftNode.setHighKey(rightNode.highKey);
+			unregisterNode(rightId);
+
+			// The merged node may now be too big, see if it should now be split.
+			if (!splitNodeIfNecessary(searchPath, leftNode, null, held))
+			{
+				if (parentNode.size() == 1 && parentNode.nodeHeight == searchPath.length)
+				{
+					/*
+					 * If the root is left with a single child, the maximum tree height needs to be
+					 * lowered to make that child the root node.
+					 */
+					String oldRootId = rootId;
+					rootId = parentNode.children.blockId(0);
+					treeHeight--;
+					unregisterNode(oldRootId);
+
+					// Messages buffered in the old root move to the new one, or go to the leaf.
+					if (!parentNode.buffer.isEmpty())
+					{
+						if (treeHeight > 1)
+							setCache.get(rootId).putMessages(parentNode.buffer);
+						else
+							applyMessages(parentNode.buffer);
+					}
+				} else
+					// The parent node may now need to be merged as well.
+					mergeNodeIfNecessary(x, searchPath, parentNode, held);
+			}
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean contains(T x)
+	{
+		if (latches != null)
+		{
+			HeldNodes held = new HeldNodes();
+			try
+			{
+				return latchLeaf(x, false, null, held).structure.contains(x);
+			} finally
+			{
+				held.releaseAll();
+			}
+		}
+
+		if (bufferSize > 0)
+		{
+			// The newest message for the element is the one closest to the root.
+			TreeNode<T> curNode = setCache.get(rootId);
+			while (curNode.nodeHeight > 1)
+			{
+				Boolean message = curNode.buffer.get(x);
+				if (message != null)
+					return message;
+				Children<T> children = curNode.children;
+				curNode = setCache.get(children.blockId(children.route(x)));
+			}
+			return curNode.structure.contains(x);
+		}
+
+		String[] searchPath = getLeafNodeForElem(x);
+		TreeNode<T> leafNode = setCache.get(searchPath[0]);
+		return leafNode.structure.contains(x);
 	}
 
 	/**
-	 * {@inheritDoc}
+	 * Adds a batch of elements. The batch is sorted and the elements falling into the same leaf
+	 * are added under a single descent of the tree, so each leaf is visited once unless it has to
+	 * be split. The ancestors' child counts are updated once per visit with the number of elements
+	 * added. A split ends the visit and the remaining elements are added after a new descent. In
+	 * concurrent and buffered mode the elements are added one at a time.
+	 * 
+	 * @return The number of elements that weren't already in the set.
 	 */
-	@Override
-	public boolean add(T u)
+	public int addAll(Collection<T> elems)
 	{
-		String[] searchPath = getLeafNodeForElem(u);
-		TreeNode<T> leafNode = setCache.get(searchPath[0]);
+		if (latches != null || bufferSize > 0)
+		{
+			int added = 0;
+			for (T elem : elems)
+				if (add(elem))
+					added++;
+			return added;
+		}
+
+		ArrayList<T> sorted = new ArrayList<T>(elems);
+		Collections.sort(sorted);
 
-		boolean result = leafNode.structure.add(u);
-		if (result)
-			splitNodeIfNecessary(searchPath, leafNode);
+		int added = 0;
+		int x = 0;
+		while (x < sorted.size())
+		{
+			T first = sorted.get(x);
+			String[] searchPath = getLeafNodeForElem(first);
+			TreeNode<T> leafNode = setCache.get(searchPath[0]);
+			T upperBound = getUpperBound(searchPath, first);
 
-		if (result)
-			size++;
+			long leafAdded = 0;
+			T appended = null;
+			for (; x < sorted.size(); x++)
+			{
+				T elem = sorted.get(x);
+				if (upperBound != null && elem.compareTo(upperBound) >= 0)
+					break;
+				if (leafNode.structure.contains(elem))
+					continue;
+				if (manifestCurrent)
+					invalidateManifest();
 
-		return result;
+				leafNode.structure.add(elem);
+				leafAdded++;
+				if (leafNode.size() > maxSetSize)
+				{
+					// The split takes the counts from the ancestors, so they have to be current.
+					appended = getAppendedElement(elem, leafNode);
+					x++;
+					break;
+				}
+			}
+
+			if (leafAdded > 0)
+			{
+				// Loading the ancestors may evict the leaf, so it's fetched again.
+				addToChildCounts(searchPath, first, leafAdded, null);
+				leafNode = setCache.get(searchPath[0]);
+				splitNodeIfNecessary(searchPath, leafNode, appended, null);
+				added += leafAdded;
+				size.addAndGet(leafAdded);
+			}
+		}
+		return added;
 	}
 
 	/**
-	 * Splits the specified node into two if it is larger than the maximum node size.
+	 * Looks up a batch of elements. The lookups are done in sorted order and the elements falling
+	 * into the same leaf share a single descent of the tree. In concurrent and buffered mode the
+	 * elements are looked up one at a time.
 	 * 
-	 * @param searchPath
-	 *            The search path used to find the specified node.
-	 * @param leafNode
-	 *            The node that may need to be split.
-	 * @return True if the node was split, false otherwise.
+	 * @return A BitSet where bit i is set if the i-th element returned by the collection's
+	 *         iterator is in the set.
 	 */
-	private boolean splitNodeIfNecessary(String[] searchPath, TreeNode<T> leafNode)
+	public BitSet containsAll(Collection<T> elems)
 	{
-		boolean hasSplit = false;
-		if (leafNode.structure.size() > maxSetSize)
+		final ArrayList<T> values = new ArrayList<T>(elems);
+		if (latches != null || bufferSize > 0)
 		{
-			hasSplit = true;
-
-			T midValue = leafNode.structure.locateMiddleValue();
-			String newNodeId = midValue + "-" + leafNode.nodeHeight;
-			TreeNode<T> newNode = new TreeNode<T>(null, leafNode.nodeHeight);
-			newNode.structure = leafNode.structure.split(midValue);
+			BitSet result = new BitSet(values.size());
+			for (int x = 0; x < values.size(); x++)
+				if (contains(values.get(x)))
+					result.set(x);
+			return result;
+		}
 
-			// The new node is a leaf node, so update sibling ID pointers.
-			if (newNode.nodeHeight == 1)
+		Integer[] order = new Integer[values.size()];
+		for (int x = 0; x < order.length; x++)
+			order[x] = x;
+		Arrays.sort(order, new Comparator<Integer>()
+		{
+			@Override
+			public int compare(Integer o1, Integer o2)
 			{
-				newNode.setNextPartitionId(leafNode.nextPartitionId);
-				leafNode.setNextPartitionId(midValue + "-" + leafNode.nodeHeight);
+				return values.get(o1).compareTo(values.get(o2));
 			}
-			setCache.register(newNodeId, newNode);
+		});
 
-			TreeNode<T> parentNode = null;
-			if (leafNode.nodeHeight == searchPath.length)
-			{
-				// The root node was split, so create a new root node.
-				treeHeight++;
-				parentNode = new TreeNode<T>(leafNode.structure, treeHeight);
-				setCache.register("-" + treeHeight, parentNode);
-			} else
-				parentNode = setCache.get(searchPath[leafNode.nodeHeight]);
-			parentNode.structure.add(midValue);
+		BitSet result = new BitSet(values.size());
+		int x = 0;
+		while (x < order.length)
+		{
+			T first = values.get(order[x]);
+			String[] searchPath = getLeafNodeForElem(first);
+			TreeNode<T> leafNode = setCache.get(searchPath[0]);
+			T upperBound = getUpperBound(searchPath, first);
 
-			// The parent node may need to be split so check it as well.
-			if (parentNode.nodeHeight <= searchPath.length)
-				splitNodeIfNecessary(searchPath, parentNode);
+			for (; x < order.length; x++)
+			{
+				T elem = values.get(order[x]);
+				if (upperBound != null && elem.compareTo(upperBound) >= 0)
+					break;
+				if (leafNode.structure.contains(elem))
+					result.set(order[x]);
+			}
 		}
-
-		return hasSplit;
+		return result;
 	}
 
 	/**
-	 * Returns the search path to the leaf node that the specified element exists in or would be
-	 * placed in if inserted. The search path is an array of IDs where index 0 is the leaf node.
+	 * Returns the smallest key that belongs in a leaf after the one at the end of the specified
+	 * search path, or null if that leaf is the last one. The search path must be the one for the
+	 * specified element.
 	 */
-	private String[] getLeafNodeForElem(T u)
+	private T getUpperBound(String[] searchPath, T u)
 	{
-		String[] searchPath = new String[treeHeight];
-		String nextNodeId = "-" + treeHeight;
-		TreeNode<T> curNode = setCache.get(nextNodeId);
-		searchPath[treeHeight - 1] = nextNodeId;
-		while (curNode.nodeHeight > 1)
+		for (int x = 1; x < searchPath.length; x++)
 		{
-			T branchingValue = curNode.structure.floor(u);
-			int nextHeight = curNode.nodeHeight - 1;
-			if (branchingValue == null)
-				nextNodeId = "-" + nextHeight;
-			else
-				nextNodeId = branchingValue + "-" + nextHeight;
-			curNode = setCache.get(nextNodeId);
-			searchPath[curNode.nodeHeight - 1] = nextNodeId;
+			Children<T> children = setCache.get(searchPath[x]).children;
+			int index = children.route(u);
+			if (index + 1 < children.size())
+				return children.key(index + 1);
 		}
-		return searchPath;
+		return null;
 	}
 
 	/**
 	 * {@inheritDoc}
 	 */
 	@Override
-	public boolean remove(T x)
+	public long size()
 	{
-		String[] searchPath = getLeafNodeForElem(x);
-		TreeNode<T> leafNode = setCache.get(searchPath[0]);
+		flushBuffers();
+		return size.get();
+	}
+
+	/**
+	 * Returns the number of elements in the set that are smaller than the specified element. Only
+	 * the nodes on the path to the element's leaf are loaded, since internal nodes keep the number
+	 * of elements under each of their children.
+	 */
+	public long rank(T x)
+	{
+		flushBuffers();
+		HeldNodes held = latches == null ? null : new HeldNodes();
+		try
+		{
+			TreeNode<T> curNode = getRootForRead(held);
+			long result = 0;
+			while (curNode.nodeHeight > 1)
+			{
+				int index = curNode.children.route(x);
+				result += curNode.countChildrenBelow(index);
+				curNode = getChildForRead(curNode, index, held);
+			}
 
-		boolean result = leafNode.structure.remove(x);
-		if (result)
+			Iterator<T> iter = curNode.structure.iterator();
+			while (iter.hasNext() && iter.next().compareTo(x) < 0)
+				result++;
+			return result;
+		} finally
 		{
-			size--;
-			mergeNodeIfNecessary(x, searchPath, leafNode);
+			if (held != null)
+				held.releaseAll();
 		}
-		return result;
 	}
 
 	/**
-	 * Merges the specified node into one of it's sibling nodes if it is smaller than the minimum
-	 * node size (maxSize / 4). The sibling with the smaller node size will be chosen for the merge.
+	 * Returns the element with the specified index in sorted order. Only the nodes on the path to
+	 * the element's leaf are loaded.
 	 * 
-	 * @param x
-	 *            The element that has just been deleted.
-	 * @param searchPath
-	 *            The search path used to find the specified node.
-	 * @param curNode
-	 *            The node that may need to be merged.
+	 * @throws IndexOutOfBoundsException
+	 *             If the index isn't smaller than the size of the set.
 	 */
-	private void mergeNodeIfNecessary(T x, String[] searchPath, TreeNode<T> curNode)
+	public T select(long index)
 	{
-		if (treeHeight > curNode.nodeHeight && curNode.structure.size() < (maxSetSize >> 3))
-		{
-			TreeNode<T> parentNode = setCache.get(searchPath[curNode.nodeHeight]);
-			T deleteBranch = parentNode.structure.floor(x);
-			T leftBranch = null;
-			T rightBranch = null;
-
-			// Find the sibling to the node that is too smaller.
-			if (deleteBranch == null)
-			{
-				rightBranch = parentNode.structure.iterator().next();
-			} else
-			{
-				leftBranch = parentNode.structure.lower(deleteBranch);
-				rightBranch = parentNode.structure.higher(deleteBranch);
-			}
+		flushBuffers();
+		if (index < 0 || index >= size.get())
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size.get());
 
-			// Figure out which sibling to merge into. The smaller sibling will be chosen.
-			TreeNode<T> smallerNode = null;
-			TreeNode<T> biggerNode = null;
-			if (leftBranch == null && rightBranch == null)
-			{
-				smallerNode = setCache.get("-" + curNode.nodeHeight);
-				biggerNode = curNode;
-			} else if (leftBranch == null)
-			{
-				smallerNode = curNode;
-				biggerNode = setCache.get(rightBranch + "-" + curNode.nodeHeight);
-				deleteBranch = rightBranch;
-			} else if (rightBranch == null)
-			{
-				smallerNode = setCache.get(leftBranch + "-" + curNode.nodeHeight);
-				biggerNode = curNode;
-			} else
+		HeldNodes held = latches == null ? null : new HeldNodes();
+		try
+		{
+			TreeNode<T> curNode = getRootForRead(held);
+			while (curNode.nodeHeight > 1)
 			{
-				TreeNode<T> leftSet = setCache.get(leftBranch + "-" + curNode.nodeHeight);
-				TreeNode<T> rightSet = setCache.get(rightBranch + "-" + curNode.nodeHeight);
-				if (leftSet.structure.size() < rightSet.structure.size())
-				{
-					smallerNode = leftSet;
-					biggerNode = curNode;
-				} else
+				int child = 0;
+				synchronized (curNode)
 				{
-					smallerNode = curNode;
-					biggerNode = rightSet;
-					deleteBranch = rightBranch;
+					for (; child + 1 < curNode.size(); child++)
+					{
+						long count = curNode.getChildCount(child);
+						if (index < count)
+							break;
+						index -= count;
+					}
 				}
+				curNode = getChildForRead(curNode, child, held);
 			}
 
-			parentNode.structure.remove(deleteBranch);
-			smallerNode.structure.merge(biggerNode.structure);
-			smallerNode.setNextPartitionId(biggerNode.nextPartitionId);
-			setCache.unregister(deleteBranch + "-" + smallerNode.nodeHeight);
-
-			// The merged node may now be too big, see if it should now be split.
-			if (!splitNodeIfNecessary(searchPath, smallerNode))
-			{
-				if (parentNode.structure.size() == 0)
-				{
-					/*
-					 * If the parent node is now empty, the maximum tree height needs to be lowered
-					 * to update the root node.
-					 */
-					if (parentNode.nodeHeight != treeHeight)
-						throw new RuntimeException("Trying to delete non-root parent.");
+			Iterator<T> iter = curNode.structure.iterator();
+			for (; index > 0 && iter.hasNext(); index--)
+				iter.next();
+			if (!iter.hasNext())
+				throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size.get());
+			return iter.next();
+		} finally
+		{
+			if (held != null)
+				held.releaseAll();
+		}
+	}
 
-					setCache.unregister("-" + treeHeight);
-					treeHeight--;
-				} else
-					// The parent node may now need to be merged as well.
-					mergeNodeIfNecessary(x, searchPath, parentNode);
-			}
+	/**
+	 * Returns the number of elements in the range [from, to) using two rank() descents. A null
+	 * bound leaves that end of the range open. In concurrent mode the two descents aren't atomic,
+	 * so the result may reflect only some of the modifications made meanwhile.
+	 */
+	public long count(T from, T to)
+	{
+		flushBuffers();
+		if (from != null && to != null && from.compareTo(to) > 0)
+		{
+			T temp = from;
+			from = to;
+			to = temp;
 		}
+		long end = to == null ? size.get() : rank(to);
+		long start = from == null ? 0 : rank(from);
+		return end - start;
 	}
 
 	/**
-	 * {@inheritDoc}
+	 * Returns the root node, latching it shared in concurrent mode.
 	 */
-	@Override
-	public boolean contains(T x)
+	private TreeNode<T> getRootForRead(HeldNodes held)
 	{
-		String[] searchPath = getLeafNodeForElem(x);
-		TreeNode<T> leafNode = setCache.get(searchPath[0]);
-		return leafNode.structure.contains(x);
+		if (held == null)
+			return setCache.get(rootId);
+		return held.get(latchRoot(held, LatchMode.READ));
 	}
 
 	/**
-	 * {@inheritDoc}
+	 * Returns the child of the specified internal node at the specified position. In concurrent
+	 * mode the child is latched shared and its parent released.
 	 */
-	@Override
-	public long size()
+	private TreeNode<T> getChildForRead(TreeNode<T> node, int index, HeldNodes held)
 	{
-		return size;
+		String childId = node.children.blockId(index);
+		if (held == null)
+			return setCache.get(childId);
+		TreeNode<T> child = held.acquire(childId, false);
+		held.releaseAncestors();
+		return child;
 	}
 
 	/**
@@ -401,9 +2575,28 @@ public class ExternalMemorySplittableSet<T extends Comparable<T> & Serializable>
 				currentSetIter = curNode.structure.iterator(from, null);
 			} else
 			{
-				curNode = setCache.get("-1");
+				curNode = setCache.get(getLeftmostPath()[0]);
 				currentSetIter = curNode.structure.iterator();
 			}
+			readAhead();
+		}
+
+		/**
+		 * Prefetches the leaf nodes following the current one. Only nodes whose predecessor has
+		 * already been loaded can be prefetched, so the read-ahead window fills up as iteration
+		 * progresses.
+		 */
+		private void readAhead()
+		{
+			String nodeId = curNode.nextPartitionId;
+			for (int x = 0; x < readAheadPartitions && nodeId != null; x++)
+			{
+				setCache.prefetch(nodeId);
+				TreeNode<T> node = setCache.getIfLoaded(nodeId);
+				if (node == null)
+					break;
+				nodeId = node.nextPartitionId;
+			}
 		}
 
 		@Override
@@ -411,14 +2604,13 @@ public class ExternalMemorySplittableSet<T extends Comparable<T> & Serializable>
 		{
 			if (nextElem == null)
 			{
-				// If the current iterator is empty, the next leaf node needs to be iterated over.
-				if (!currentSetIter.hasNext())
+				// If the current iterator is empty, the next non-empty leaf node needs to be
+				// iterated over.
+				while (!currentSetIter.hasNext() && curNode.nextPartitionId != null)
 				{
-					if (curNode.nextPartitionId != null)
-					{
-						curNode = setCache.get(curNode.nextPartitionId);
-						currentSetIter = curNode.structure.iterator();
-					}
+					curNode = setCache.get(curNode.nextPartitionId);
+					currentSetIter = curNode.structure.iterator();
+					readAhead();
 				}
 
 				// Get the next element ready if one exists.
@@ -446,22 +2638,332 @@ public class ExternalMemorySplittableSet<T extends Comparable<T> & Serializable>
 
 	}
 
+	/**
+	 * A range iterator for concurrent mode. It copies the elements of one leaf at a time while
+	 * holding the leaf's latch and moves on to the next leaf in the leaf chain, so no latch is held
+	 * between calls and internal nodes are only read to find the first leaf. If the next leaf was
+	 * merged away in the meantime, it's found again from the root. Every leaf is seen as it was at
+	 * some point during the iteration.
+	 */
+	private class ConcurrentSetIterator implements Iterator<T>
+	{
+		/**
+		 * The elements copied from the current leaf.
+		 */
+		private ArrayList<T> buffer = new ArrayList<T>();
+
+		private int bufferIndex = 0;
+
+		/**
+		 * The smallest key of the next leaf to copy, or null if there are no more leaves to copy.
+		 */
+		private T nextLeafKey;
+
+		/**
+		 * The ID of the next leaf to copy.
+		 */
+		private String nextLeafId;
+
+		/**
+		 * The end range of elements to return (exclusive). null means iterate over all remaining
+		 * elements.
+		 */
+		private T to;
+
+		public ConcurrentSetIterator(T from, T to)
+		{
+			this.to = to;
+			copyLeaf(from, null);
+		}
+
+		/**
+		 * Copies the elements starting at the specified one from the leaf containing it.
+		 * 
+		 * @param from
+		 *            The first element to copy, or null to copy the leftmost leaf.
+		 * @param leafId
+		 *            The ID of the leaf whose key is from, or null to search from the root.
+		 */
+		private void copyLeaf(T from, String leafId)
+		{
+			buffer.clear();
+			bufferIndex = 0;
+			HeldNodes held = new HeldNodes();
+			try
+			{
+				TreeNode<T> leafNode = latchLeaf(from, false, leafId, held);
+				nextLeafKey = leafNode.highKey;
+				nextLeafId = leafNode.nextPartitionId;
+				if (to != null && nextLeafKey != null && nextLeafKey.compareTo(to) >= 0)
+					nextLeafKey = null;
+
+				Iterator<T> leafIter;
+				if (from == null)
+					leafIter = leafNode.structure.iterator();
+				else
+					leafIter = leafNode.structure.iterator(from, null);
+				while (leafIter.hasNext())
+				{
+					T elem = leafIter.next();
+					if (to != null && elem.compareTo(to) >= 0)
+						break;
+					buffer.add(elem);
+				}
+
+				if (readAheadPartitions > 0 && nextLeafKey != null)
+					setCache.prefetch(nextLeafId);
+			} finally
+			{
+				held.releaseAll();
+			}
+		}
+
+		@Override
+		public boolean hasNext()
+		{
+			while (bufferIndex == buffer.size() && nextLeafKey != null)
+				copyLeaf(nextLeafKey, nextLeafId);
+			return bufferIndex < buffer.size();
+		}
+
+		@Override
+		public T next()
+		{
+			if (!hasNext())
+				return null;
+			return buffer.get(bufferIndex++);
+		}
+
+		@Override
+		public void remove()
+		{
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * A range iterator that returns elements in descending order. Leaves only link to the next
+	 * leaf, so it copies one leaf at a time and finds the previous leaf by descending the tree
+	 * again for the largest key below the copied leaf's key. The nodes near the root stay cached,
+	 * so every step usually loads just the leaf. In concurrent mode the descent only latches the
+	 * leaf and no latch is held between calls.
+	 */
+	private class DescendingSetIterator implements Iterator<T>
+	{
+		/**
+		 * The elements copied from the current leaf, in descending order.
+		 */
+		private ArrayList<T> buffer = new ArrayList<T>();
+
+		private int bufferIndex = 0;
+
+		/**
+		 * The elements of the next leaf to copy must be smaller than this one.
+		 */
+		private T nextLeafBound;
+
+		/**
+		 * True if there are more leaves to copy.
+		 */
+		private boolean moreLeaves = true;
+
+		/**
+		 * The start range of elements to return (inclusive). null means iterate down to the
+		 * smallest element.
+		 */
+		private T from;
+
+		public DescendingSetIterator(T from, T to)
+		{
+			this.from = from;
+			copyLeaf(to);
+		}
+
+		/**
+		 * Copies the elements smaller than the specified one from the leaf containing its
+		 * predecessor.
+		 * 
+		 * @param before
+		 *            The bound of the elements to copy, or null to copy the rightmost leaf.
+		 */
+		private void copyLeaf(T before)
+		{
+			buffer.clear();
+			bufferIndex = 0;
+			HeldNodes held = latches == null ? null : new HeldNodes();
+			try
+			{
+				TreeNode<T> curNode;
+				T leafKey = null;
+				if (held != null)
+				{
+					curNode = latchLeaf(before, true, null, held);
+					leafKey = held.leafKey;
+				} else
+				{
+					curNode = setCache.get(rootId);
+					while (curNode.nodeHeight > 1)
+					{
+						Children<T> children = curNode.children;
+						int index = before == null ? children.size() - 1 : children
+								.routeLower(before);
+						leafKey = children.key(index);
+						curNode = setCache.get(children.blockId(index));
+					}
+				}
+
+				Iterator<T> leafIter = curNode.structure.descendingIterator(from, before);
+				while (leafIter.hasNext())
+					buffer.add(leafIter.next());
+
+				nextLeafBound = leafKey;
+				moreLeaves = leafKey != null && (from == null || leafKey.compareTo(from) > 0);
+			} finally
+			{
+				if (held != null)
+					held.releaseAll();
+			}
+		}
+
+		@Override
+		public boolean hasNext()
+		{
+			while (bufferIndex == buffer.size() && moreLeaves)
+				copyLeaf(nextLeafBound);
+			return bufferIndex < buffer.size();
+		}
+
+		@Override
+		public T next()
+		{
+			if (!hasNext())
+				return null;
+			return buffer.get(bufferIndex++);
+		}
+
+		@Override
+		public void remove()
+		{
+			throw new UnsupportedOperationException();
+		}
+	}
+
 	@Override
 	public Iterator<T> iterator()
 	{
+		flushBuffers();
+		if (latches != null)
+			return new ConcurrentSetIterator(null, null);
 		return new EMSetIterator(null, null);
 	}
 
+	/**
+	 * Enables concurrent mode, in which add(), remove(), contains() and iterators can be used by
+	 * many threads at once. Every node is guarded by a read-write latch. Writers take the latches
+	 * top-down with latch coupling: they latch just the leaf they modify exclusively and keep
+	 * shared latches on its ancestors to update their child counts. If the leaf has to be split or
+	 * merged, they latch the path again exclusively from the highest node the change can reach.
+	 * Lookups and scans don't latch internal nodes at all and only latch the leaf they read, as in
+	 * a B-link tree, so readers don't contend on the latches near the root. rank() and select()
+	 * latch couple shared latches since they read child counts. Latched nodes are pinned so the
+	 * cache can't flush them while they're in use.
+	 * 
+	 * Other methods, such as bulkLoad(), checkpoint() and close(), must not run while other
+	 * operations are in progress. Giving the cache several stripes with setStripeCount() reduces
+	 * contention inside the cache.
+	 */
+	public void setConcurrent(boolean concurrent)
+	{
+		if (concurrent && bufferSize > 0)
+			throw new IllegalStateException("Buffered mode can't be used in concurrent mode.");
+		rightmostPath = null;
+		if (concurrent)
+			latches = new ConcurrentHashMap<String, ReentrantReadWriteLock>();
+		else
+			latches = null;
+	}
+
+	public boolean isConcurrent()
+	{
+		return latches != null;
+	}
+
+	/**
+	 * Enables buffered mode, in which every internal node buffers up to the specified number of
+	 * inserts and deletes before passing them down in batches, as in a B-epsilon tree. A random
+	 * upsert() or delete() then costs a fraction of a leaf load, since every leaf load applies a
+	 * whole batch. contains() checks the buffers on its path. Operations that need the leaves to be
+	 * complete, such as size(), iterators, order statistics and checkpoint(), apply every buffered
+	 * message first.
+	 * 
+	 * add() and remove() stay exact in buffered mode: they look the element up like contains()
+	 * and only buffer a message if it changes the set, which loads the leaf unless a buffer on the
+	 * path decides it. Buffered mode can't be combined with concurrent mode.
+	 * 
+	 * @param bufferSize
+	 *            The maximum number of messages buffered in each internal node, or 0 to turn
+	 *            buffered mode off.
+	 */
+	public void setBufferSize(int bufferSize)
+	{
+		if (bufferSize < 0)
+			throw new IllegalArgumentException("The buffer size can't be negative. bufferSize="
+					+ bufferSize);
+		if (bufferSize > 0 && latches != null)
+			throw new IllegalStateException("Buffered mode can't be used in concurrent mode.");
+		if (bufferSize < this.bufferSize)
+			flushBuffers();
+		if (manifestCurrent)
+			invalidateManifest();
+		this.bufferSize = bufferSize;
+	}
+
+	public int getBufferSize()
+	{
+		return bufferSize;
+	}
+
+	/**
+	 * Sets the number of leaf nodes that iterators load in the background ahead of the node being
+	 * iterated over. 0 disables read-ahead.
+	 */
+	public void setReadAheadPartitions(int readAheadPartitions)
+	{
+		this.readAheadPartitions = readAheadPartitions;
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
 	@Override
 	public Iterator<T> iterator(T from, T to)
 	{
-		if (to == null || from.compareTo(to) < 0)
-			return new EMSetIterator(from, to);
-		else
-			return new EMSetIterator(to, from);
+		if (to != null && from.compareTo(to) > 0)
+		{
+			T temp = from;
+			from = to;
+			to = temp;
+		}
+		flushBuffers();
+		if (latches != null)
+			return new ConcurrentSetIterator(from, to);
+		return new EMSetIterator(from, to);
+	}
+
+	/**
+	 * Returns the elements in the range [from, to) in descending order. A null bound leaves that
+	 * end of the range open.
+	 */
+	public Iterator<T> descendingIterator(T from, T to)
+	{
+		if (from != null && to != null && from.compareTo(to) > 0)
+		{
+			T temp = from;
+			from = to;
+			to = temp;
+		}
+		flushBuffers();
+		return new DescendingSetIterator(from, to);
 	}
 
 	/**
@@ -470,7 +2972,9 @@ public class ExternalMemorySplittableSet<T extends Comparable<T> & Serializable>
 	@Override
 	public void close()
 	{
+		flushBuffers();
 		setCache.close();
+		writeManifest();
 	}
 
 	/**
@@ -1,10 +1,14 @@
 package ods.string.search.partition;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.Iterator;
 import java.util.Stack;
 
+import ods.string.search.partition.BinaryPatriciaTrie.BitString;
 import ods.string.search.partition.BinaryPatriciaTrie.ByteArrayConversion;
 import ods.string.search.partition.BinaryPatriciaTrie.SearchPoint;
 import ods.string.search.partition.ExternalMemoryObjectCache.CompressType;
@@ -22,6 +26,27 @@ import org.apache.commons.codec.binary.Hex;
 public class ExternalMemoryTrie<T extends Comparable<T> & Serializable> implements
 		EMPrefixSearchableSet<T>
 {
+	/**
+	 * Writes trie partitions using the trie's compact node encoding.
+	 */
+	private static class TrieCodec<T extends Comparable<T> & Serializable> implements
+			BlockCodec<BinaryPatriciaTrie<T>>
+	{
+		@Override
+		public void encode(BinaryPatriciaTrie<T> trie, DataOutput out) throws IOException
+		{
+			trie.writeCompact(out);
+		}
+
+		@Override
+		public BinaryPatriciaTrie<T> decode(DataInput in) throws IOException
+		{
+			BinaryPatriciaTrie<T> trie = new BinaryPatriciaTrie<T>();
+			trie.readCompact(in);
+			return trie;
+		}
+	}
+
 	/**
 	 * Stores all partitions.
 	 */
@@ -47,6 +72,7 @@ public class ExternalMemoryTrie<T extends Comparable<T> & Serializable> implemen
 	{
 		trieCache = new ExternalMemoryObjectCache<BinaryPatriciaTrie<T>>(storageDirectory,
 				100000000, CompressType.SNAPPY);
+		trieCache.setCodec(new TrieCodec<T>());
 		BinaryPatriciaTrie<T> root = new BinaryPatriciaTrie<T>();
 		trieCache.register("~", root);
 		minPartitionDepth = 0;
@@ -58,6 +84,7 @@ public class ExternalMemoryTrie<T extends Comparable<T> & Serializable> implemen
 		this.maxSetSize = maxSetSize;
 		trieCache = new ExternalMemoryObjectCache<BinaryPatriciaTrie<T>>(storageDirectory,
 				maxInMemoryBytes, CompressType.SNAPPY);
+		trieCache.setCodec(new TrieCodec<T>());
 		trieCache.register("~", new BinaryPatriciaTrie<T>());
 		this.minPartitionDepth = minPartitionDepth;
 	}
@@ -68,6 +95,7 @@ public class ExternalMemoryTrie<T extends Comparable<T> & Serializable> implemen
 	{
 		this.maxSetSize = maxSetSize;
 		trieCache = (ExternalMemoryObjectCache<BinaryPatriciaTrie<T>>) cache;
+		trieCache.setCodec(new TrieCodec<T>());
 		trieCache.register("~", new BinaryPatriciaTrie<T>());
 		this.minPartitionDepth = minPartitionDepth;
 	}
@@ -76,6 +104,7 @@ public class ExternalMemoryTrie<T extends Comparable<T> & Serializable> implemen
 	{
 		trieCache = new ExternalMemoryObjectCache<BinaryPatriciaTrie<T>>(storageDirectory,
 				baseConfig.trieCache);
+		trieCache.setCodec(new TrieCodec<T>());
 		BinaryPatriciaTrie<T> root = (BinaryPatriciaTrie<T>) baseConfig.trieCache.get("~")
 				.createNewSet();
 		trieCache.register("~", root);
@@ -116,8 +145,7 @@ public class ExternalMemoryTrie<T extends Comparable<T> & Serializable> implemen
 	{
 		if (curTrie.r.subtreeSize > maxSetSize)
 		{
-			BinaryPatriciaTrie<T> newTrie = (BinaryPatriciaTrie<T>) curTrie.split(null,
-					minPartitionDepth);
+			BinaryPatriciaTrie<T> newTrie = curTrie.splitPartition(minPartitionDepth);
 			trieCache.register(getTrieIdFromBytes(newTrie.r.bits.label, newTrie.r.bits.bitsUsed),
 					newTrie);
 		}
@@ -226,7 +254,7 @@ public class ExternalMemoryTrie<T extends Comparable<T> & Serializable> implemen
 					bottomId = childTrieId;
 				}
 
-				topTrie.merge(bottomTrie);
+				topTrie.mergePartition(bottomTrie);
 				trieCache.unregister(bottomId);
 
 				// Ensure the merge trie isn't larger than the maxSetSize.
@@ -279,9 +307,16 @@ public class ExternalMemoryTrie<T extends Comparable<T> & Serializable> implemen
 
 		/**
 		 * The prefix that all returned results must match. A 0 length array returns all results.
+		 * null if a range is iterated over instead.
 		 */
 		private byte[] prefix;
 
+		/**
+		 * The range [from, to) of results to return when no prefix is used. A null bound leaves
+		 * that end of the range open.
+		 */
+		private byte[] from, to;
+
 		/**
 		 * Cache the operation to convert bit strings into actual data types.
 		 */
@@ -293,6 +328,25 @@ public class ExternalMemoryTrie<T extends Comparable<T> & Serializable> implemen
 			iterators.push(trieCache.get("~").iterator(prefix));
 		}
 
+		public EMTrieIterator(byte[] from, byte[] to)
+		{
+			this.from = from;
+			this.to = to;
+			iterators.push(trieCache.get("~").iterator(from, to));
+		}
+
+		/**
+		 * Returns an iterator over the nodes of the specified partition that can hold results.
+		 * Pointer nodes to partitions outside the range are skipped, so those partitions are
+		 * never loaded.
+		 */
+		private Iterator<SearchPoint> partitionIterator(BinaryPatriciaTrie<T> partition)
+		{
+			if (prefix != null)
+				return partition.iterator(prefix);
+			return partition.iterator(from, to);
+		}
+
 		@SuppressWarnings("unchecked")
 		@Override
 		public boolean hasNext()
@@ -316,9 +370,8 @@ public class ExternalMemoryTrie<T extends Comparable<T> & Serializable> implemen
 				{
 					// Found a pointer node, create a new iterator and use it.
 					iterators.push(curIter);
-					curIter = trieCache.get(
-							getTrieIdFromBytes(node.leftOver.label, node.leftOver.bitsUsed))
-							.iterator(prefix);
+					curIter = partitionIterator(trieCache.get(getTrieIdFromBytes(
+							node.leftOver.label, node.leftOver.bitsUsed)));
 				} else
 				{
 					if (converter == null)
@@ -357,10 +410,32 @@ public class ExternalMemoryTrie<T extends Comparable<T> & Serializable> implemen
 		return new EMTrieIterator(new byte[0]);
 	}
 
+	/**
+	 * Returns the elements in the range [from, to) in the trie's order, which compares the
+	 * elements' bytes. A null bound leaves that end of the range open. The search descends
+	 * straight to the start of the range and stops at its end, and partitions that can't hold
+	 * elements in the range aren't loaded.
+	 */
 	@Override
 	public Iterator<T> iterator(T from, T to)
 	{
-		return new EMTrieIterator(trieCache.get("~").convertToBytes(from));
+		BinaryPatriciaTrie<T> root = trieCache.get("~");
+		byte[] fromBytes = from == null ? null : root.convertToBytes(from);
+		byte[] toBytes = to == null ? null : root.convertToBytes(to);
+		if (fromBytes != null
+				&& toBytes != null
+				&& BinaryPatriciaTrie.compareBits(new BitString(fromBytes),
+						new BitString(toBytes)) > 0)
+			return new EMTrieIterator(toBytes, fromBytes);
+		return new EMTrieIterator(fromBytes, toBytes);
+	}
+
+	/**
+	 * Returns the elements that start with the specified prefix.
+	 */
+	public Iterator<T> prefixIterator(T prefix)
+	{
+		return new EMTrieIterator(trieCache.get("~").convertToBytes(prefix));
 	}
 
 	public String toString()
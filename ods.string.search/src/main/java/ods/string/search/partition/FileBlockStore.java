@@ -0,0 +1,125 @@
+package ods.string.search.partition;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * This BlockStore writes every block to its own file in the storage directory. File names are an
+ * MD5 hash of the block ID.
+ */
+public class FileBlockStore implements BlockStore
+{
+	/**
+	 * The directory to store block files in.
+	 */
+	private File storageDirectory;
+
+	/**
+	 * The hashing algorithm to use when computing file name from block ID.
+	 */
+	private MessageDigest md5Hash;
+
+	public FileBlockStore(File directory)
+	{
+		storageDirectory = directory;
+		storageDirectory.mkdirs();
+		try
+		{
+			md5Hash = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Nothing to do, since every write closes its block file.
+	 */
+	@Override
+	public void flush()
+	{
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public byte[] read(String blockId) throws IOException
+	{
+		File blockFile = new File(storageDirectory, convertBlockIdToFilename(blockId));
+		if (!blockFile.exists())
+			return null;
+
+		byte[] result = new byte[(int) blockFile.length()];
+		InputStream is = new FileInputStream(blockFile);
+		try
+		{
+			int bytesRead = 0;
+			while (bytesRead < result.length)
+			{
+				int read = is.read(result, bytesRead, result.length - bytesRead);
+				if (read < 0)
+					throw new IOException("Unexpected end of block file for block " + blockId);
+				bytesRead += read;
+			}
+		} finally
+		{
+			is.close();
+		}
+		return result;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void write(String blockId, byte[] data) throws IOException
+	{
+		OutputStream fileOutput = new BufferedOutputStream(new FileOutputStream(new File(
+				storageDirectory, convertBlockIdToFilename(blockId))));
+		try
+		{
+			fileOutput.write(data);
+		} finally
+		{
+			fileOutput.close();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void delete(String blockId)
+	{
+		new File(storageDirectory, convertBlockIdToFilename(blockId)).delete();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void close()
+	{
+	}
+
+	/**
+	 * Returns an MD5 hash of the specified block ID.
+	 */
+	private String convertBlockIdToFilename(String blockId)
+	{
+		synchronized (md5Hash)
+		{
+			return Hex.encodeHexString(md5Hash.digest(blockId.getBytes()));
+		}
+	}
+}
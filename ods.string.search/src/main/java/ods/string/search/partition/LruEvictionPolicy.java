@@ -0,0 +1,59 @@
+package ods.string.search.partition;
+
+import java.util.LinkedHashSet;
+
+/**
+ * Flushes the least-recently used block first.
+ */
+public class LruEvictionPolicy implements EvictionPolicy
+{
+	/**
+	 * The cached block IDs ordered from least to most recently used.
+	 */
+	private LinkedHashSet<String> accessOrder = new LinkedHashSet<String>();
+
+	@Override
+	public void onInsert(String blockId)
+	{
+		accessOrder.add(blockId);
+	}
+
+	@Override
+	public void onAccess(String blockId)
+	{
+		accessOrder.remove(blockId);
+		accessOrder.add(blockId);
+	}
+
+	@Override
+	public void onRemove(String blockId)
+	{
+		accessOrder.remove(blockId);
+	}
+
+	@Override
+	public String selectVictim(String excludedBlockId)
+	{
+		return firstExcluding(accessOrder, excludedBlockId);
+	}
+
+	@Override
+	public EvictionPolicy createNew()
+	{
+		return new LruEvictionPolicy();
+	}
+
+	/**
+	 * Returns the oldest ID in the specified queue that isn't the excluded ID, or null if there is
+	 * none.
+	 */
+	static String firstExcluding(LinkedHashSet<String> queue, String excludedBlockId)
+	{
+		for (String blockId : queue)
+		{
+			if (!blockId.equals(excludedBlockId))
+				return blockId;
+		}
+		return null;
+	}
+}
@@ -0,0 +1,637 @@
+package ods.string.search.partition;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Iterator;
+import java.util.TreeMap;
+
+/**
+ * This BlockStore appends blocks to large segment files instead of creating a file per block. An
+ * in-memory index maps every block ID to the segment, offset and length of its latest version.
+ * Overwritten and deleted versions become garbage that a background thread reclaims by copying the
+ * still live blocks of a mostly dead segment to the end of the log and then deleting the segment.
+ *
+ * The index isn't stored separately, it is rebuilt by scanning the segments in order whenever a
+ * store is created on an existing directory. Record format:
+ *
+ * <pre>
+ * <block ID length unsigned short>
+ * <block ID UTF-8 bytes>
+ * <data length integer, -1 marks a deleted block>
+ * <data bytes>
+ * </pre>
+ */
+public class SegmentedBlockStore implements BlockStore
+{
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".log";
+
+	/**
+	 * The data length written for a record that marks a block as deleted.
+	 */
+	private static final int DELETED_MARKER = -1;
+
+	/**
+	 * A sealed segment is compacted once less than this fraction of its bytes belong to the latest
+	 * version of a block.
+	 */
+	private static final double MIN_LIVE_RATIO = 0.5;
+
+	/**
+	 * A single append-only log file.
+	 */
+	private static class Segment
+	{
+		public int id;
+		public File file;
+
+		/**
+		 * The number of valid bytes in the segment.
+		 */
+		public long size;
+
+		/**
+		 * The number of bytes in this segment that belong to the latest version of a block.
+		 */
+		public long liveBytes;
+
+		/**
+		 * True if this segment has been queued for compaction.
+		 */
+		public boolean compactionScheduled;
+
+		private RandomAccessFile raf;
+
+		public Segment(int id, File file)
+		{
+			this.id = id;
+			this.file = file;
+		}
+
+		public FileChannel getChannel() throws IOException
+		{
+			if (raf == null)
+				raf = new RandomAccessFile(file, "rw");
+			return raf.getChannel();
+		}
+
+		public void force() throws IOException
+		{
+			if (raf != null)
+				raf.getChannel().force(false);
+		}
+
+		public void closeFile() throws IOException
+		{
+			if (raf != null)
+			{
+				raf.close();
+				raf = null;
+			}
+		}
+	}
+
+	/**
+	 * The position of the latest version of a block.
+	 */
+	private static class BlockLocation
+	{
+		public Segment segment;
+		public long recordOffset;
+		public int recordLength;
+		public int dataLength;
+
+		public BlockLocation(Segment segment, long recordOffset, int recordLength, int dataLength)
+		{
+			this.segment = segment;
+			this.recordOffset = recordOffset;
+			this.recordLength = recordLength;
+			this.dataLength = dataLength;
+		}
+
+		public long getDataOffset()
+		{
+			return recordOffset + recordLength - dataLength;
+		}
+	}
+
+	/**
+	 * The directory to store segment files in.
+	 */
+	private File storageDirectory;
+
+	/**
+	 * The size in bytes a segment can grow to before a new segment is started.
+	 */
+	private long maxSegmentSize;
+
+	/**
+	 * All segments ordered by age, the newest segment being the one appended to.
+	 */
+	private TreeMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+
+	/**
+	 * The segment that new records are appended to.
+	 */
+	private Segment activeSegment;
+
+	/**
+	 * A map of block ID to the location of the block's latest version.
+	 */
+	private HashMap<String, BlockLocation> index = new HashMap<String, BlockLocation>();
+
+	/**
+	 * Sealed segments waiting to be compacted, oldest first.
+	 */
+	private LinkedHashSet<Segment> compactionQueue = new LinkedHashSet<Segment>();
+
+	/**
+	 * The background thread that compacts segments. null if it isn't running.
+	 */
+	private Thread compactor;
+
+	/**
+	 * Set when the compactor thread should stop as soon as possible.
+	 */
+	private boolean stopCompaction = false;
+
+	public SegmentedBlockStore(File directory)
+	{
+		this(directory, 64 * 1024 * 1024);
+	}
+
+	public SegmentedBlockStore(File directory, long maxSegmentSize)
+	{
+		storageDirectory = directory;
+		storageDirectory.mkdirs();
+		this.maxSegmentSize = maxSegmentSize;
+		try
+		{
+			synchronized (this)
+			{
+				loadExistingSegments();
+				startCompactorIfNecessary();
+			}
+		} catch (IOException e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Rebuilds the block index by replaying every segment in the storage directory from oldest to
+	 * newest.
+	 */
+	private void loadExistingSegments() throws IOException
+	{
+		ArrayList<Integer> segmentIds = new ArrayList<Integer>();
+		for (String name : storageDirectory.list())
+		{
+			if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX))
+				segmentIds.add(Integer.parseInt(name.substring(SEGMENT_PREFIX.length(),
+						name.length() - SEGMENT_SUFFIX.length())));
+		}
+		Collections.sort(segmentIds);
+
+		for (int segmentId : segmentIds)
+		{
+			Segment segment = new Segment(segmentId, getSegmentFile(segmentId));
+			segments.put(segmentId, segment);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(
+					segment.file)));
+			try
+			{
+				long offset = 0;
+				long fileLength = segment.file.length();
+				while (offset < fileLength)
+				{
+					String blockId;
+					int dataLength;
+					try
+					{
+						blockId = readBlockId(in);
+						dataLength = in.readInt();
+					} catch (EOFException e)
+					{
+						// A partially written trailing record is ignored and later overwritten.
+						break;
+					}
+
+					int recordLength = getRecordLength(blockId, dataLength);
+					if (offset + recordLength > fileLength)
+						break;
+					// Only the headers are needed for the index, the data is skipped.
+					skipFully(in, Math.max(dataLength, 0));
+					if (dataLength == DELETED_MARKER)
+						removeFromIndex(blockId);
+					else
+						updateIndex(blockId, new BlockLocation(segment, offset, recordLength,
+								dataLength));
+					offset += recordLength;
+				}
+				segment.size = offset;
+			} finally
+			{
+				in.close();
+			}
+
+			if (segment.size < segment.file.length())
+			{
+				segment.getChannel().truncate(segment.size);
+				segment.closeFile();
+			}
+		}
+
+		if (!segments.isEmpty() && segments.lastEntry().getValue().size < maxSegmentSize)
+			activeSegment = segments.lastEntry().getValue();
+		else
+			startNewSegment();
+
+		for (Segment segment : segments.values())
+			scheduleCompactionIfNecessary(segment);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized byte[] read(String blockId) throws IOException
+	{
+		BlockLocation location = index.get(blockId);
+		if (location == null)
+			return null;
+
+		byte[] result = new byte[location.dataLength];
+		ByteBuffer buffer = ByteBuffer.wrap(result);
+		FileChannel channel = location.segment.getChannel();
+		long position = location.getDataOffset();
+		while (buffer.hasRemaining())
+		{
+			int bytesRead = channel.read(buffer, position + buffer.position());
+			if (bytesRead < 0)
+				throw new EOFException("Segment " + location.segment.id
+						+ " is missing data for block " + blockId);
+		}
+		return result;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized void write(String blockId, byte[] data) throws IOException
+	{
+		appendRecord(blockId, data);
+		startCompactorIfNecessary();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized void delete(String blockId) throws IOException
+	{
+		if (removeFromIndex(blockId))
+		{
+			appendRecord(blockId, null);
+			startCompactorIfNecessary();
+		}
+	}
+
+	/**
+	 * Forces all open segment files to disk.
+	 */
+	@Override
+	public synchronized void flush() throws IOException
+	{
+		for (Segment segment : segments.values())
+			segment.force();
+	}
+
+	/**
+	 * Stops the compactor thread and closes all open segment files. Compaction resumes the next
+	 * time the store is modified.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		Thread runningCompactor;
+		synchronized (this)
+		{
+			stopCompaction = true;
+			notifyAll();
+			runningCompactor = compactor;
+		}
+
+		if (runningCompactor != null)
+		{
+			try
+			{
+				runningCompactor.join();
+			} catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		synchronized (this)
+		{
+			stopCompaction = false;
+			for (Segment segment : segments.values())
+				segment.closeFile();
+		}
+	}
+
+	/**
+	 * Returns the number of segment files currently used by the store.
+	 */
+	public synchronized int getSegmentCount()
+	{
+		return segments.size();
+	}
+
+	/**
+	 * Appends a record to the active segment. A null data array appends a deletion marker that
+	 * isn't added to the index.
+	 */
+	private void appendRecord(String blockId, byte[] data) throws IOException
+	{
+		byte[] idBytes = blockId.getBytes(StandardCharsets.UTF_8);
+		int dataLength = data == null ? DELETED_MARKER : data.length;
+		int recordLength = getRecordLength(idBytes.length, dataLength);
+		if (activeSegment.size > 0 && activeSegment.size + recordLength > maxSegmentSize)
+			startNewSegment();
+
+		ByteBuffer header = ByteBuffer.allocate(6 + idBytes.length);
+		header.putShort((short) idBytes.length);
+		header.put(idBytes);
+		header.putInt(dataLength);
+		header.flip();
+		ByteBuffer[] record = new ByteBuffer[] { header,
+				ByteBuffer.wrap(data == null ? new byte[0] : data) };
+
+		FileChannel channel = activeSegment.getChannel();
+		channel.position(activeSegment.size);
+		while (header.hasRemaining() || record[1].hasRemaining())
+			channel.write(record);
+
+		long recordOffset = activeSegment.size;
+		activeSegment.size += recordLength;
+		if (data != null)
+			updateIndex(blockId, new BlockLocation(activeSegment, recordOffset, recordLength,
+					dataLength));
+	}
+
+	/**
+	 * Points the index at the new location of a block and marks the previous version as garbage.
+	 */
+	private void updateIndex(String blockId, BlockLocation location)
+	{
+		BlockLocation previous = index.put(blockId, location);
+		location.segment.liveBytes += location.recordLength;
+		if (previous != null)
+			markAsGarbage(previous);
+	}
+
+	/**
+	 * Removes a block from the index and marks its latest version as garbage.
+	 *
+	 * @return True if the block existed, false otherwise.
+	 */
+	private boolean removeFromIndex(String blockId)
+	{
+		BlockLocation previous = index.remove(blockId);
+		if (previous != null)
+			markAsGarbage(previous);
+		return previous != null;
+	}
+
+	private void markAsGarbage(BlockLocation location)
+	{
+		location.segment.liveBytes -= location.recordLength;
+		scheduleCompactionIfNecessary(location.segment);
+	}
+
+	/**
+	 * Seals the active segment and starts appending to a new one.
+	 */
+	private void startNewSegment()
+	{
+		Segment previous = activeSegment;
+		int newId = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+		activeSegment = new Segment(newId, getSegmentFile(newId));
+		segments.put(newId, activeSegment);
+		if (previous != null)
+			scheduleCompactionIfNecessary(previous);
+	}
+
+	/**
+	 * Queues the specified segment for compaction if it is sealed and mostly garbage. Nothing is
+	 * queued while the segments are still being loaded.
+	 */
+	private void scheduleCompactionIfNecessary(Segment segment)
+	{
+		if (activeSegment != null && segment != activeSegment && !segment.compactionScheduled
+				&& segment.liveBytes < segment.size * MIN_LIVE_RATIO)
+		{
+			segment.compactionScheduled = true;
+			compactionQueue.add(segment);
+			notifyAll();
+		}
+	}
+
+	private void startCompactorIfNecessary()
+	{
+		if (compactor == null && !compactionQueue.isEmpty())
+		{
+			compactor = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					runCompactor();
+				}
+			}, "SegmentedBlockStore-compactor-" + storageDirectory.getName());
+			compactor.setDaemon(true);
+			compactor.start();
+		}
+	}
+
+	/**
+	 * The compactor thread's main loop. Segments are compacted one at a time until the store is
+	 * closed.
+	 */
+	private void runCompactor()
+	{
+		try
+		{
+			while (true)
+			{
+				Segment segment;
+				synchronized (this)
+				{
+					while (compactionQueue.isEmpty() && !stopCompaction)
+						wait();
+					if (stopCompaction)
+						return;
+					Iterator<Segment> iter = compactionQueue.iterator();
+					segment = iter.next();
+					iter.remove();
+				}
+				compact(segment);
+			}
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		} catch (IOException e)
+		{
+			throw new RuntimeException(e);
+		} finally
+		{
+			synchronized (this)
+			{
+				compactor = null;
+			}
+		}
+	}
+
+	/**
+	 * Copies the live records of the specified segment to the active segment and deletes it. The
+	 * segment file is immutable once sealed so it is read without holding the store lock, only the
+	 * index checks and appends are synchronized. The segments the records were copied to are forced
+	 * to disk, along with the directory, before the old segment is deleted.
+	 */
+	private void compact(Segment segment) throws IOException
+	{
+		LinkedHashSet<Segment> copyTargets = new LinkedHashSet<Segment>();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(
+				segment.file)));
+		try
+		{
+			long offset = 0;
+			while (offset < segment.size)
+			{
+				String blockId = readBlockId(in);
+				int dataLength = in.readInt();
+				byte[] data = null;
+				if (dataLength != DELETED_MARKER)
+				{
+					data = new byte[dataLength];
+					in.readFully(data);
+				}
+				long recordOffset = offset;
+				offset += getRecordLength(blockId, dataLength);
+
+				synchronized (this)
+				{
+					if (stopCompaction)
+					{
+						// Retry this segment the next time the compactor starts.
+						segment.compactionScheduled = false;
+						scheduleCompactionIfNecessary(segment);
+						return;
+					}
+
+					if (data != null)
+					{
+						BlockLocation location = index.get(blockId);
+						if (location != null && location.segment == segment
+								&& location.recordOffset == recordOffset)
+						{
+							appendRecord(blockId, data);
+							copyTargets.add(activeSegment);
+						}
+					} else if (!index.containsKey(blockId) && segments.firstKey() < segment.id)
+					{
+						// Older segments may still hold a version of the deleted block.
+						appendRecord(blockId, null);
+						copyTargets.add(activeSegment);
+					}
+				}
+			}
+		} finally
+		{
+			in.close();
+		}
+
+		synchronized (this)
+		{
+			for (Segment target : copyTargets)
+				target.force();
+			if (!copyTargets.isEmpty())
+				forceDirectory();
+			segments.remove(segment.id);
+			segment.closeFile();
+			segment.file.delete();
+		}
+	}
+
+	/**
+	 * Forces the storage directory's entries to disk so newly created segment files survive a
+	 * crash. Not every platform can open a directory, in which case this does nothing.
+	 */
+	private void forceDirectory()
+	{
+		try
+		{
+			FileChannel channel = FileChannel.open(storageDirectory.toPath(),
+					StandardOpenOption.READ);
+			try
+			{
+				channel.force(true);
+			} finally
+			{
+				channel.close();
+			}
+		} catch (IOException e)
+		{
+			// Directories can't be opened on Windows, forcing the segments has to suffice there.
+		}
+	}
+
+	private static void skipFully(DataInputStream in, int length) throws IOException
+	{
+		while (length > 0)
+		{
+			int skipped = in.skipBytes(length);
+			if (skipped <= 0)
+				throw new EOFException();
+			length -= skipped;
+		}
+	}
+
+	private String readBlockId(DataInputStream in) throws IOException
+	{
+		byte[] idBytes = new byte[in.readUnsignedShort()];
+		in.readFully(idBytes);
+		return new String(idBytes, StandardCharsets.UTF_8);
+	}
+
+	private int getRecordLength(String blockId, int dataLength)
+	{
+		return getRecordLength(blockId.getBytes(StandardCharsets.UTF_8).length, dataLength);
+	}
+
+	private int getRecordLength(int idLength, int dataLength)
+	{
+		return 6 + idLength + Math.max(dataLength, 0);
+	}
+
+	private File getSegmentFile(int segmentId)
+	{
+		return new File(storageDirectory, SEGMENT_PREFIX + segmentId + SEGMENT_SUFFIX);
+	}
+}
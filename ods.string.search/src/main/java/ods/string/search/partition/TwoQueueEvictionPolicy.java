@@ -0,0 +1,116 @@
+package ods.string.search.partition;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * The 2Q policy. New blocks enter a FIFO queue and only move to the main LRU queue if they're
+ * requested again after being flushed, which the policy detects using a queue of recently flushed
+ * IDs. A one-time scan over many blocks therefore only cycles through the FIFO queue and leaves the
+ * frequently used blocks in the main queue alone.
+ */
+public class TwoQueueEvictionPolicy implements EvictionPolicy
+{
+	/**
+	 * The minimum number of flushed IDs remembered.
+	 */
+	private static final int MIN_GHOST_ENTRIES = 16;
+
+	/**
+	 * The fraction of cached blocks that the FIFO queue can hold before it's flushed from first.
+	 */
+	private double fifoRatio;
+
+	/**
+	 * The number of flushed IDs remembered as a fraction of the number of cached blocks.
+	 */
+	private double ghostRatio;
+
+	/**
+	 * Blocks that were loaded once, in load order.
+	 */
+	private LinkedHashSet<String> fifoQueue = new LinkedHashSet<String>();
+
+	/**
+	 * Blocks that have been requested again after leaving the FIFO queue, in LRU order.
+	 */
+	private LinkedHashSet<String> mainQueue = new LinkedHashSet<String>();
+
+	/**
+	 * The IDs of blocks recently flushed from the FIFO queue, oldest first.
+	 */
+	private LinkedHashSet<String> ghostQueue = new LinkedHashSet<String>();
+
+	public TwoQueueEvictionPolicy()
+	{
+		this(0.25, 0.5);
+	}
+
+	/**
+	 * @param fifoRatio
+	 *            The fraction of cached blocks the FIFO queue may hold before it's flushed from.
+	 * @param ghostRatio
+	 *            The number of flushed block IDs to remember, relative to the number of cached
+	 *            blocks.
+	 */
+	public TwoQueueEvictionPolicy(double fifoRatio, double ghostRatio)
+	{
+		this.fifoRatio = fifoRatio;
+		this.ghostRatio = ghostRatio;
+	}
+
+	@Override
+	public void onInsert(String blockId)
+	{
+		if (ghostQueue.remove(blockId))
+			mainQueue.add(blockId);
+		else
+			fifoQueue.add(blockId);
+	}
+
+	@Override
+	public void onAccess(String blockId)
+	{
+		// Requests while in the FIFO queue are considered correlated and are ignored.
+		if (mainQueue.remove(blockId))
+			mainQueue.add(blockId);
+	}
+
+	@Override
+	public void onRemove(String blockId)
+	{
+		if (fifoQueue.remove(blockId))
+		{
+			ghostQueue.add(blockId);
+			int maxGhostEntries = Math.max(MIN_GHOST_ENTRIES,
+					(int) ((fifoQueue.size() + mainQueue.size()) * ghostRatio));
+			Iterator<String> iter = ghostQueue.iterator();
+			while (ghostQueue.size() > maxGhostEntries)
+			{
+				iter.next();
+				iter.remove();
+			}
+		} else
+			mainQueue.remove(blockId);
+	}
+
+	@Override
+	public String selectVictim(String excludedBlockId)
+	{
+		int fifoLimit = Math.max(1, (int) ((fifoQueue.size() + mainQueue.size()) * fifoRatio));
+		String victim = null;
+		if (fifoQueue.size() > fifoLimit || mainQueue.isEmpty())
+			victim = LruEvictionPolicy.firstExcluding(fifoQueue, excludedBlockId);
+		if (victim == null)
+			victim = LruEvictionPolicy.firstExcluding(mainQueue, excludedBlockId);
+		if (victim == null)
+			victim = LruEvictionPolicy.firstExcluding(fifoQueue, excludedBlockId);
+		return victim;
+	}
+
+	@Override
+	public EvictionPolicy createNew()
+	{
+		return new TwoQueueEvictionPolicy(fifoRatio, ghostRatio);
+	}
+}
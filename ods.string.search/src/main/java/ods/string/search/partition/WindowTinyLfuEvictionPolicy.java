@@ -0,0 +1,216 @@
+package ods.string.search.partition;
+
+import java.util.LinkedHashSet;
+
+/**
+ * The W-TinyLFU policy. New blocks enter a small LRU window. Blocks leaving the window move to the
+ * main region, where the most recently admitted block competes with the main region's next victim
+ * and only stays cached if it's been requested more often according to an approximate frequency
+ * sketch. The main region is a segmented LRU where blocks
+ * requested a second time are protected from flushing. Scans pass through the window without
+ * displacing frequently used blocks from the main region.
+ */
+public class WindowTinyLfuEvictionPolicy implements EvictionPolicy
+{
+	/**
+	 * A count-min sketch of 4 rows of saturating counters. All counters are halved once the number
+	 * of recorded requests reaches 10 times the table width, so old popularity fades.
+	 */
+	private static class FrequencySketch
+	{
+		private static final int ROWS = 4;
+		private static final int MAX_COUNT = 15;
+		private static final int[] SEEDS = { 0x97cb3127, 0x1b873593, 0x85ebca6b, 0xc2b2ae35 };
+
+		private byte[] counters;
+		private int widthMask;
+		private int samples;
+
+		public FrequencySketch(int width)
+		{
+			counters = new byte[ROWS * width];
+			widthMask = width - 1;
+		}
+
+		public int width()
+		{
+			return widthMask + 1;
+		}
+
+		public void increment(String blockId)
+		{
+			int hash = blockId.hashCode();
+			for (int row = 0; row < ROWS; row++)
+			{
+				int index = indexOf(hash, row);
+				if (counters[index] < MAX_COUNT)
+					counters[index]++;
+			}
+
+			if (++samples >= 10 * width())
+			{
+				for (int x = 0; x < counters.length; x++)
+					counters[x] >>= 1;
+				samples /= 2;
+			}
+		}
+
+		public int frequency(String blockId)
+		{
+			int hash = blockId.hashCode();
+			int result = MAX_COUNT;
+			for (int row = 0; row < ROWS; row++)
+				result = Math.min(result, counters[indexOf(hash, row)]);
+			return result;
+		}
+
+		private int indexOf(int hash, int row)
+		{
+			int h = (hash ^ SEEDS[row]) * 0x9e3779b9;
+			h ^= h >>> 16;
+			return row * width() + (h & widthMask);
+		}
+	}
+
+	private static final int MIN_SKETCH_WIDTH = 256;
+
+	/**
+	 * The fraction of cached blocks held by the LRU window.
+	 */
+	private double windowRatio;
+
+	/**
+	 * The fraction of the main region reserved for protected blocks.
+	 */
+	private double protectedRatio;
+
+	/**
+	 * Newly loaded blocks in LRU order.
+	 */
+	private LinkedHashSet<String> window = new LinkedHashSet<String>();
+
+	/**
+	 * Main region blocks that haven't been requested since entering the main region, in LRU order.
+	 */
+	private LinkedHashSet<String> probation = new LinkedHashSet<String>();
+
+	/**
+	 * Main region blocks that have been requested again, in LRU order.
+	 */
+	private LinkedHashSet<String> protectedBlocks = new LinkedHashSet<String>();
+
+	/**
+	 * The block most recently moved from the window to probation, which hasn't yet won or lost a
+	 * comparison against the probation victim.
+	 */
+	private String candidate;
+
+	private FrequencySketch sketch = new FrequencySketch(MIN_SKETCH_WIDTH);
+
+	public WindowTinyLfuEvictionPolicy()
+	{
+		this(0.01, 0.8);
+	}
+
+	/**
+	 * @param windowRatio
+	 *            The fraction of cached blocks held by the LRU admission window.
+	 * @param protectedRatio
+	 *            The fraction of the main region reserved for blocks requested more than once.
+	 */
+	public WindowTinyLfuEvictionPolicy(double windowRatio, double protectedRatio)
+	{
+		this.windowRatio = windowRatio;
+		this.protectedRatio = protectedRatio;
+	}
+
+	@Override
+	public void onInsert(String blockId)
+	{
+		recordRequest(blockId);
+		window.add(blockId);
+
+		int cachedBlocks = window.size() + probation.size() + protectedBlocks.size();
+		int windowLimit = Math.max(1, (int) (cachedBlocks * windowRatio));
+		while (window.size() > windowLimit)
+		{
+			candidate = window.iterator().next();
+			window.remove(candidate);
+			probation.add(candidate);
+		}
+	}
+
+	@Override
+	public void onAccess(String blockId)
+	{
+		recordRequest(blockId);
+		if (window.remove(blockId))
+			window.add(blockId);
+		else if (probation.remove(blockId))
+		{
+			protectedBlocks.add(blockId);
+			demoteProtectedOverflow();
+		} else if (protectedBlocks.remove(blockId))
+			protectedBlocks.add(blockId);
+	}
+
+	@Override
+	public void onRemove(String blockId)
+	{
+		if (blockId.equals(candidate))
+			candidate = null;
+		if (!window.remove(blockId) && !probation.remove(blockId))
+			protectedBlocks.remove(blockId);
+	}
+
+	@Override
+	public String selectVictim(String excludedBlockId)
+	{
+		String victim = LruEvictionPolicy.firstExcluding(probation, excludedBlockId);
+		if (victim == null)
+			victim = LruEvictionPolicy.firstExcluding(protectedBlocks, excludedBlockId);
+		if (victim == null)
+			return LruEvictionPolicy.firstExcluding(window, excludedBlockId);
+
+		// The newly admitted block only stays cached if it's more popular than the victim.
+		if (candidate != null && !candidate.equals(victim) && !candidate.equals(excludedBlockId)
+				&& probation.contains(candidate))
+		{
+			String newcomer = candidate;
+			candidate = null;
+			if (sketch.frequency(newcomer) <= sketch.frequency(victim))
+				return newcomer;
+		}
+		return victim;
+	}
+
+	@Override
+	public EvictionPolicy createNew()
+	{
+		return new WindowTinyLfuEvictionPolicy(windowRatio, protectedRatio);
+	}
+
+	private void recordRequest(String blockId)
+	{
+		// Keep the sketch a few times wider than the number of cached blocks.
+		int cachedBlocks = window.size() + probation.size() + protectedBlocks.size();
+		if (cachedBlocks * 4 > sketch.width())
+			sketch = new FrequencySketch(Integer.highestOneBit(cachedBlocks * 8));
+		sketch.increment(blockId);
+	}
+
+	/**
+	 * Moves the least-recently used protected blocks back to probation while the protected segment
+	 * is larger than its share of the main region.
+	 */
+	private void demoteProtectedOverflow()
+	{
+		int protectedLimit = (int) ((probation.size() + protectedBlocks.size()) * protectedRatio);
+		while (protectedBlocks.size() > protectedLimit && !protectedBlocks.isEmpty())
+		{
+			String demoted = protectedBlocks.iterator().next();
+			protectedBlocks.remove(demoted);
+			probation.add(demoted);
+		}
+	}
+}
@@ -0,0 +1,169 @@
+package ods.string.search.partition.splitsets;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Encodes the elements stored in a SplittableSet without any per-element object headers. A run of
+ * elements starts with a tag identifying the element type, after which Strings are written as
+ * length-prefixed UTF-8 and Integers as 4 bytes. Any other element type falls back to Java
+ * serialization of each element.
+ */
+public class ElementCodec
+{
+	private static final byte TAG_EMPTY = 0;
+	private static final byte TAG_STRING = 1;
+	private static final byte TAG_INTEGER = 2;
+	private static final byte TAG_SERIALIZED = 3;
+
+	private ElementCodec()
+	{
+	}
+
+	/**
+	 * Writes the specified number of elements from the specified iterator.
+	 */
+	public static void writeElements(Iterator<?> elements, long count, DataOutput out)
+			throws IOException
+	{
+		writeVarLong(count, out);
+		if (count == 0)
+		{
+			out.writeByte(TAG_EMPTY);
+			return;
+		}
+
+		Object first = elements.next();
+		byte tag = TAG_SERIALIZED;
+		if (first instanceof String)
+			tag = TAG_STRING;
+		else if (first instanceof Integer)
+			tag = TAG_INTEGER;
+		out.writeByte(tag);
+
+		writeElement(tag, first, out);
+		for (long x = 1; x < count; x++)
+			writeElement(tag, elements.next(), out);
+	}
+
+	/**
+	 * Reads a run of elements written by writeElements(), in the order they were written.
+	 */
+	public static <T> List<T> readElements(DataInput in) throws IOException
+	{
+		int count = (int) readVarLong(in);
+		byte tag = in.readByte();
+		List<T> result = new ArrayList<T>(count);
+		for (int x = 0; x < count; x++)
+			result.add(ElementCodec.<T> readElement(tag, in));
+		return result;
+	}
+
+	private static void writeElement(byte tag, Object element, DataOutput out) throws IOException
+	{
+		if (tag == TAG_STRING)
+			writeString((String) element, out);
+		else if (tag == TAG_INTEGER)
+			out.writeInt((Integer) element);
+		else
+		{
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream objStream = new ObjectOutputStream(bytes);
+			objStream.writeObject(element);
+			objStream.close();
+			writeVarLong(bytes.size(), out);
+			out.write(bytes.toByteArray());
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> T readElement(byte tag, DataInput in) throws IOException
+	{
+		if (tag == TAG_STRING)
+			return (T) readString(in);
+		else if (tag == TAG_INTEGER)
+			return (T) Integer.valueOf(in.readInt());
+		else if (tag == TAG_SERIALIZED)
+		{
+			byte[] bytes = new byte[(int) readVarLong(in)];
+			in.readFully(bytes);
+			ObjectInputStream objStream = new ObjectInputStream(new ByteArrayInputStream(bytes));
+			try
+			{
+				return (T) objStream.readObject();
+			} catch (ClassNotFoundException e)
+			{
+				throw new IOException(e);
+			} finally
+			{
+				objStream.close();
+			}
+		}
+		throw new IOException("Unknown element tag " + tag);
+	}
+
+	/**
+	 * Writes the specified string as a length-prefixed UTF-8 byte array. Null is allowed.
+	 */
+	public static void writeString(String value, DataOutput out) throws IOException
+	{
+		if (value == null)
+		{
+			writeVarLong(0, out);
+			return;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		writeVarLong(bytes.length + 1, out);
+		out.write(bytes);
+	}
+
+	/**
+	 * Reads a string written by writeString().
+	 */
+	public static String readString(DataInput in) throws IOException
+	{
+		int length = (int) readVarLong(in);
+		if (length == 0)
+			return null;
+		byte[] bytes = new byte[length - 1];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Writes a non-negative long using 7 bits per byte, so small values take a single byte.
+	 */
+	public static void writeVarLong(long value, DataOutput out) throws IOException
+	{
+		while ((value & ~0x7FL) != 0)
+		{
+			out.writeByte((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	/**
+	 * Reads a long written by writeVarLong().
+	 */
+	public static long readVarLong(DataInput in) throws IOException
+	{
+		long result = 0;
+		for (int shift = 0;; shift += 7)
+		{
+			byte b = in.readByte();
+			result |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return result;
+		}
+	}
+}
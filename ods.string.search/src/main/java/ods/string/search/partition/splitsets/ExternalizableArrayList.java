@@ -67,4 +67,25 @@ public class ExternalizableArrayList<T extends Serializable> extends ArrayList<T
 		dirty = false;
 	}
 
+	/**
+	 * Replaces the contents of this list with the specified elements. Used when loading the list
+	 * from disk, so the result isn't dirty.
+	 */
+	void loadElements(Collection<T> elements, long dataBytesEstimate)
+	{
+		clear();
+		super.addAll(elements);
+		this.dataBytesEstimate = dataBytesEstimate;
+		if (isEmpty())
+			bytesPerNodeWithData = -1;
+		else
+			bytesPerNodeWithData = Treap.getObjectBaseSize(get(0)) + BYTES_PER_NODE;
+		dirty = false;
+	}
+
+	long getDataBytesEstimate()
+	{
+		return dataBytesEstimate;
+	}
+
 }
@@ -8,6 +8,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.ListIterator;
 
 public class ExternalizableListSet<T extends Serializable & Comparable<T>> implements
 		SplittableSet<T>
@@ -123,6 +124,49 @@ public class ExternalizableListSet<T extends Serializable & Comparable<T>> imple
 		return linkedList.subList(fromIndex, toIndex).iterator();
 	}
 
+	@Override
+	public Iterator<T> descendingIterator(T from, T to)
+	{
+		int fromIndex = 0;
+		if (from != null)
+		{
+			fromIndex = findIndex(from);
+			if (fromIndex < 0)
+				fromIndex = Math.abs(fromIndex) - 1;
+		}
+		int toIndex = linkedList.size();
+		if (to != null)
+		{
+			toIndex = findIndex(to);
+			if (toIndex < 0)
+				toIndex = Math.abs(toIndex) - 1;
+		}
+		if (toIndex < fromIndex)
+			toIndex = fromIndex;
+		final ListIterator<T> iter = linkedList.subList(fromIndex, toIndex).listIterator(
+				toIndex - fromIndex);
+		return new Iterator<T>()
+		{
+			@Override
+			public boolean hasNext()
+			{
+				return iter.hasPrevious();
+			}
+
+			@Override
+			public T next()
+			{
+				return iter.previous();
+			}
+
+			@Override
+			public void remove()
+			{
+				iter.remove();
+			}
+		};
+	}
+
 	@Override
 	public SplittableSet<T> split(T x)
 	{
@@ -223,6 +267,16 @@ public class ExternalizableListSet<T extends Serializable & Comparable<T>> imple
 		init();
 	}
 
+	ExternalMemoryList<T> getList()
+	{
+		return linkedList;
+	}
+
+	boolean isLinearCompare()
+	{
+		return linearCompare;
+	}
+
 	@Override
 	public void close()
 	{
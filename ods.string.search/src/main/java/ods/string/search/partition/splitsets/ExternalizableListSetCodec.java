@@ -0,0 +1,66 @@
+package ods.string.search.partition.splitsets;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Writes an ExternalizableListSet backed by an ExternalizableArrayList or ExternalizableLinkedList
+ * as its list type, comparison mode and elements.
+ */
+class ExternalizableListSetCodec implements SplittableSetCodec
+{
+	private static final byte ARRAY_LIST = 0;
+	private static final byte LINKED_LIST = 1;
+
+	@Override
+	public boolean canWrite(SplittableSet<?> set)
+	{
+		Class<?> listType = ((ExternalizableListSet<?>) set).getList().getClass();
+		return listType == ExternalizableArrayList.class
+				|| listType == ExternalizableLinkedList.class;
+	}
+
+	@Override
+	public void write(SplittableSet<?> set, DataOutput out) throws IOException
+	{
+		ExternalizableListSet<?> listSet = (ExternalizableListSet<?>) set;
+		ExternalMemoryList<?> list = listSet.getList();
+		if (list instanceof ExternalizableArrayList)
+		{
+			out.writeByte(ARRAY_LIST);
+			ElementCodec.writeVarLong(((ExternalizableArrayList<?>) list).getDataBytesEstimate(),
+					out);
+		} else
+		{
+			out.writeByte(LINKED_LIST);
+			ElementCodec.writeVarLong(((ExternalizableLinkedList<?>) list).getDataBytesEstimate(),
+					out);
+		}
+		out.writeBoolean(listSet.isLinearCompare());
+		ElementCodec.writeElements(list.iterator(), list.size(), out);
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	@Override
+	public SplittableSet<?> read(DataInput in) throws IOException
+	{
+		byte listType = in.readByte();
+		long dataBytesEstimate = ElementCodec.readVarLong(in);
+		boolean linearCompare = in.readBoolean();
+
+		ExternalMemoryList list;
+		if (listType == ARRAY_LIST)
+		{
+			ExternalizableArrayList arrayList = new ExternalizableArrayList();
+			arrayList.loadElements(ElementCodec.readElements(in), dataBytesEstimate);
+			list = arrayList;
+		} else
+		{
+			ExternalizableLinkedList linkedList = new ExternalizableLinkedList();
+			linkedList.loadElements(ElementCodec.readElements(in), dataBytesEstimate);
+			list = linkedList;
+		}
+		return new ExternalizableListSet(list, linearCompare);
+	}
+}
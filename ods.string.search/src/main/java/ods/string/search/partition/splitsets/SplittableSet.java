@@ -1,6 +1,7 @@
 package ods.string.search.partition.splitsets;
 
 import java.io.Serializable;
+import java.util.Iterator;
 
 import ods.string.search.PrefixSearchableSet;
 
@@ -19,5 +20,11 @@ public interface SplittableSet<T extends Comparable<T> & Serializable> extends
 
 	T higher(T val);
 
+	/**
+	 * Returns the elements in the range [from, to) in descending order. A null bound leaves that
+	 * end of the range open.
+	 */
+	Iterator<T> descendingIterator(T from, T to);
+
 	SplittableSet<T> createNewSet();
 }
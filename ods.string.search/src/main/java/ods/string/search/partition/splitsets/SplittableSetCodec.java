@@ -0,0 +1,22 @@
+package ods.string.search.partition.splitsets;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Writes one type of SplittableSet in a compact binary format. Codecs are registered per set type
+ * with SplittableSetCodecs and must be stateless since they're shared by all threads.
+ */
+public interface SplittableSetCodec
+{
+	/**
+	 * Returns true if the specified set can be written by this codec. Sets that can't be are
+	 * written with Java serialization instead.
+	 */
+	boolean canWrite(SplittableSet<?> set);
+
+	void write(SplittableSet<?> set, DataOutput out) throws IOException;
+
+	SplittableSet<?> read(DataInput in) throws IOException;
+}
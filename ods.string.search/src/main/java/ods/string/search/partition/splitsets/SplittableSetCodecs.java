@@ -0,0 +1,125 @@
+package ods.string.search.partition.splitsets;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.HashMap;
+
+import ods.string.search.partition.BinaryPatriciaTrie;
+import ods.string.search.partition.BinaryPatriciaTrieCodec;
+
+/**
+ * The registry of SplittableSetCodecs. Every encoded set starts with the type ID its codec was
+ * registered with, so type IDs must never be reused for a different set type. Sets without a
+ * registered codec are written using Java serialization.
+ */
+public class SplittableSetCodecs
+{
+	/**
+	 * The type ID used for sets written with Java serialization.
+	 */
+	private static final byte SERIALIZED_TYPE_ID = 0;
+
+	private static final HashMap<Class<?>, Byte> typeIds = new HashMap<Class<?>, Byte>();
+
+	private static final HashMap<Byte, SplittableSetCodec> codecs =
+			new HashMap<Byte, SplittableSetCodec>();
+
+	static
+	{
+		register(Treap.class, (byte) 1, new TreapCodec());
+		register(ExternalizableListSet.class, (byte) 2, new ExternalizableListSetCodec());
+		register(SplittableTreeSetAdapter.class, (byte) 3, new SplittableTreeSetAdapterCodec());
+		register(BinaryPatriciaTrie.class, (byte) 4, new BinaryPatriciaTrieCodec());
+	}
+
+	private SplittableSetCodecs()
+	{
+	}
+
+	/**
+	 * Registers a codec for the specified set type. Only sets of exactly this class will be written
+	 * with the codec.
+	 * 
+	 * @param typeId
+	 *            A unique positive ID that identifies the set type in the encoded data.
+	 */
+	public static synchronized void register(Class<?> setType, byte typeId,
+			SplittableSetCodec codec)
+	{
+		if (typeId <= SERIALIZED_TYPE_ID)
+			throw new IllegalArgumentException("Type IDs must be positive.");
+		Byte existingId = typeIds.get(setType);
+		if (codecs.containsKey(typeId) && (existingId == null || existingId != typeId))
+			throw new IllegalArgumentException("Type ID " + typeId + " is already registered.");
+		typeIds.put(setType, typeId);
+		codecs.put(typeId, codec);
+	}
+
+	/**
+	 * Writes the specified set prefixed by its type ID.
+	 */
+	public static void write(SplittableSet<?> set, DataOutput out) throws IOException
+	{
+		Byte typeId;
+		SplittableSetCodec codec = null;
+		synchronized (SplittableSetCodecs.class)
+		{
+			typeId = typeIds.get(set.getClass());
+			if (typeId != null)
+				codec = codecs.get(typeId);
+		}
+
+		if (codec != null && codec.canWrite(set))
+		{
+			out.writeByte(typeId);
+			codec.write(set, out);
+		} else
+		{
+			out.writeByte(SERIALIZED_TYPE_ID);
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream objStream = new ObjectOutputStream(bytes);
+			objStream.writeObject(set);
+			objStream.close();
+			ElementCodec.writeVarLong(bytes.size(), out);
+			out.write(bytes.toByteArray());
+		}
+	}
+
+	/**
+	 * Reads a set written by write().
+	 */
+	public static SplittableSet<?> read(DataInput in) throws IOException
+	{
+		byte typeId = in.readByte();
+		if (typeId == SERIALIZED_TYPE_ID)
+		{
+			byte[] bytes = new byte[(int) ElementCodec.readVarLong(in)];
+			in.readFully(bytes);
+			ObjectInputStream objStream = new ObjectInputStream(new ByteArrayInputStream(bytes));
+			try
+			{
+				return (SplittableSet<?>) objStream.readObject();
+			} catch (ClassNotFoundException e)
+			{
+				throw new IOException(e);
+			} finally
+			{
+				objStream.close();
+			}
+		}
+
+		SplittableSetCodec codec;
+		synchronized (SplittableSetCodecs.class)
+		{
+			codec = codecs.get(typeId);
+		}
+		if (codec == null)
+			throw new IOException("No codec registered for set type " + typeId);
+		return codec.read(in);
+	}
+}
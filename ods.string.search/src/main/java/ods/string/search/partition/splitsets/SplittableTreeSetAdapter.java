@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.Set;
 import java.util.TreeSet;
@@ -113,6 +114,20 @@ public class SplittableTreeSetAdapter<T extends Comparable<T> & Serializable> im
 		return adaptee.subSet(from, true, to, endInclusive).iterator();
 	}
 
+	@Override
+	public Iterator<T> descendingIterator(T from, T to)
+	{
+		if (from == null && to == null)
+			return adaptee.descendingIterator();
+		if (from == null)
+			return adaptee.headSet(to, false).descendingIterator();
+		if (to == null)
+			return adaptee.tailSet(from, true).descendingIterator();
+		if (from.compareTo(to) > 0)
+			return Collections.<T> emptyIterator();
+		return adaptee.subSet(from, true, to, false).descendingIterator();
+	}
+
 	@Override
 	public Iterator<T> iterator()
 	{
@@ -173,6 +188,27 @@ public class SplittableTreeSetAdapter<T extends Comparable<T> & Serializable> im
 		dirty = false;
 	}
 
+	/**
+	 * Replaces the contents of this set with the specified elements. Used when loading the set
+	 * from disk, so the result isn't dirty.
+	 */
+	void loadElements(Collection<T> elements, long dataBytesEstimate)
+	{
+		adaptee.clear();
+		adaptee.addAll(elements);
+		this.dataBytesEstimate = dataBytesEstimate;
+		if (adaptee.isEmpty())
+			bytesPerNodeWithData = -1;
+		else
+			bytesPerNodeWithData = getObjectBaseSize(adaptee.first()) + BYTES_PER_NODE;
+		dirty = false;
+	}
+
+	long getDataBytesEstimate()
+	{
+		return dataBytesEstimate;
+	}
+
 	@Override
 	public T floor(T val)
 	{
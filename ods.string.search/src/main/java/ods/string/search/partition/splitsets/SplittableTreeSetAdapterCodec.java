@@ -0,0 +1,35 @@
+package ods.string.search.partition.splitsets;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Writes a SplittableTreeSetAdapter as its elements in sorted order.
+ */
+class SplittableTreeSetAdapterCodec implements SplittableSetCodec
+{
+	@Override
+	public boolean canWrite(SplittableSet<?> set)
+	{
+		return true;
+	}
+
+	@Override
+	public void write(SplittableSet<?> set, DataOutput out) throws IOException
+	{
+		SplittableTreeSetAdapter<?> adapter = (SplittableTreeSetAdapter<?>) set;
+		ElementCodec.writeVarLong(adapter.getDataBytesEstimate(), out);
+		ElementCodec.writeElements(adapter.iterator(), adapter.size(), out);
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	@Override
+	public SplittableSet<?> read(DataInput in) throws IOException
+	{
+		long dataBytesEstimate = ElementCodec.readVarLong(in);
+		SplittableTreeSetAdapter result = new SplittableTreeSetAdapter();
+		result.loadElements(ElementCodec.readElements(in), dataBytesEstimate);
+		return result;
+	}
+}
@@ -1,13 +1,14 @@
 package ods.string.search.partition.splitsets;
 
 import java.io.IOException;
-import java.io.ObjectInput;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutput;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Random;
 
 public class Treap<T extends Comparable<T> & Serializable> implements SplittableSet<T>
@@ -429,6 +430,21 @@ public class Treap<T extends Comparable<T> & Serializable> implements Splittable
 		return t;
 	}
 
+	/**
+	 * Find the last node in an in-order traversal
+	 * 
+	 * @return the last node reported in an in-order traversal
+	 */
+	public Node<T> lastNode()
+	{
+		Node<T> w = r;
+		if (w == null)
+			return null;
+		while (w.right != null)
+			w = w.right;
+		return w;
+	}
+
 	/**
 	 * Search for a value in the tree
 	 * 
@@ -589,6 +605,36 @@ public class Treap<T extends Comparable<T> & Serializable> implements Splittable
 		}
 	}
 
+	protected class DescendingBTI implements Iterator<T>
+	{
+		protected Node<T> w, prev;
+		protected T startValue;
+
+		public DescendingBTI(Node<T> iw, T startValue)
+		{
+			w = iw;
+			this.startValue = startValue;
+		}
+
+		public boolean hasNext()
+		{
+			return w != null && (startValue == null || c.compare(w.x, startValue) >= 0);
+		}
+
+		public T next()
+		{
+			T x = w.x;
+			prev = w;
+			w = prevNode(w);
+			return x;
+		}
+
+		public void remove()
+		{
+			Treap.this.remove(prev.x);
+		}
+	}
+
 	public Iterator<T> iterator(Node<T> u, T endValue)
 	{
 		return new BTI(u, endValue);
@@ -612,6 +658,21 @@ public class Treap<T extends Comparable<T> & Serializable> implements Splittable
 			return iterator(findGENode(endValue), startValue);
 	}
 
+	@Override
+	public Iterator<T> descendingIterator(T startValue, T endValue)
+	{
+		Node<T> start;
+		if (endValue == null)
+			start = lastNode();
+		else
+		{
+			start = findLENode(endValue);
+			if (start != null && c.compare(start.x, endValue) == 0)
+				start = prevNode(start);
+		}
+		return new DescendingBTI(start, startValue);
+	}
+
 	/**
 	 * Find the first node in an in-order traversal
 	 * 
@@ -725,7 +786,7 @@ public class Treap<T extends Comparable<T> & Serializable> implements Splittable
 	public boolean contains(T x)
 	{
 		Node<T> n = findLast(x);
-		return n.x.equals(x);
+		return n != null && n.x.equals(x);
 	}
 
 	public String toString()
@@ -745,17 +806,34 @@ public class Treap<T extends Comparable<T> & Serializable> implements Splittable
 			r.writeExternal(s);
 	}
 
+	@SuppressWarnings("unchecked")
 	private void readObject(ObjectInputStream inputStream) throws IOException,
 			ClassNotFoundException
 	{
 		inputStream.defaultReadObject();
-		dirty = false;
 		rand = new Random();
 
 		int size = inputStream.readInt();
+		ArrayList<T> elements = new ArrayList<T>(size);
+		for (int x = 0; x < size; x++)
+			elements.add((T) inputStream.readObject());
+		loadSortedElements(elements, dataBytesEstimate);
+	}
+
+	/**
+	 * Replaces the contents of this treap with the specified elements, which must be in sorted
+	 * order. Used when loading a treap from disk, so the result isn't dirty.
+	 */
+	void loadSortedElements(List<T> elements, long dataBytesEstimate)
+	{
+		this.dataBytesEstimate = dataBytesEstimate;
+		dirty = false;
+
+		int size = elements.size();
 		int height = (int) (Math.log10(size) / Math.log10(2));
+		r = null;
 		if (size > 0)
-			r = constuctNode(inputStream, height, 0, size);
+			r = constuctNode(elements.iterator(), height, 0, size);
 
 		if (r != null)
 			bytesPerNodeWithData = getObjectBaseSize(r.x) + BYTES_PER_NODE;
@@ -763,28 +841,38 @@ public class Treap<T extends Comparable<T> & Serializable> implements Splittable
 			bytesPerNodeWithData = -1;
 	}
 
-	@SuppressWarnings("unchecked")
-	private Node<T> constuctNode(ObjectInput in, int height, int curDepth, int sizeLeft)
-			throws IOException, ClassNotFoundException
+	boolean usesDefaultComparator()
+	{
+		return c instanceof DefaultComparator;
+	}
+
+	long getDataBytesEstimate()
+	{
+		return dataBytesEstimate;
+	}
+
+	private Node<T> constuctNode(Iterator<T> elements, int height, int curDepth, int sizeLeft)
 	{
 		Node<T> newNode = new Node<T>();
 		newNode.size = 1;
 		if (curDepth < height && sizeLeft > newNode.size)
 		{
-			Node<T> leftChild = constuctNode(in, height, curDepth + 1, sizeLeft - newNode.size);
+			Node<T> leftChild = constuctNode(elements, height, curDepth + 1, sizeLeft
+					- newNode.size);
 			newNode.left = leftChild;
 			leftChild.parent = newNode;
 			newNode.size += leftChild.size;
 		}
 
-		T elem = (T) in.readObject();
+		T elem = elements.next();
 		newNode.x = elem;
 		newNode.p = (int) (Integer.MIN_VALUE + ((long) Integer.MAX_VALUE - Integer.MIN_VALUE)
 				* (curDepth + 1) / (height + 2));
 
 		if (curDepth < height && sizeLeft > newNode.size)
 		{
-			Node<T> rightChild = constuctNode(in, height, curDepth + 1, sizeLeft - newNode.size);
+			Node<T> rightChild = constuctNode(elements, height, curDepth + 1, sizeLeft
+					- newNode.size);
 			newNode.right = rightChild;
 			rightChild.parent = newNode;
 			newNode.size += rightChild.size;
@@ -891,6 +979,8 @@ public class Treap<T extends Comparable<T> & Serializable> implements Splittable
 	public T lower(T val)
 	{
 		Node<T> node = findLast(val);
+		if (node == null)
+			return null;
 		if (node.x.compareTo(val) < 0)
 			return node.x;
 		else
@@ -905,6 +995,8 @@ public class Treap<T extends Comparable<T> & Serializable> implements Splittable
 	public T higher(T val)
 	{
 		Node<T> node = findLast(val);
+		if (node == null)
+			return null;
 		if (node.x.compareTo(val) > 0)
 			return node.x;
 		else
@@ -0,0 +1,37 @@
+package ods.string.search.partition.splitsets;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Writes a Treap as its elements in sorted order. The tree shape isn't stored since a balanced
+ * treap is rebuilt from the sorted elements when read.
+ */
+class TreapCodec implements SplittableSetCodec
+{
+	@Override
+	public boolean canWrite(SplittableSet<?> set)
+	{
+		// Custom comparators can't be restored without Java serialization.
+		return ((Treap<?>) set).usesDefaultComparator();
+	}
+
+	@Override
+	public void write(SplittableSet<?> set, DataOutput out) throws IOException
+	{
+		Treap<?> treap = (Treap<?>) set;
+		ElementCodec.writeVarLong(treap.getDataBytesEstimate(), out);
+		ElementCodec.writeElements(treap.iterator(), treap.size(), out);
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	@Override
+	public SplittableSet<?> read(DataInput in) throws IOException
+	{
+		long dataBytesEstimate = ElementCodec.readVarLong(in);
+		Treap result = new Treap();
+		result.loadSortedElements(ElementCodec.readElements(in), dataBytesEstimate);
+		return result;
+	}
+}
@@ -7,6 +7,7 @@ import java.util.TreeSet;
 
 import ods.string.search.array.BasicIndexLayout;
 import ods.string.search.array.CentroidTree;
+import ods.string.search.array.ExternalMemoryCache.StorageType;
 import ods.string.search.array.VebIndexLayout;
 import ods.string.search.partition.ExternalMemorySkipList;
 import ods.string.search.partition.ExternalMemorySplittableSet;
@@ -57,6 +58,14 @@ public class PerformanceITCase
 		fillTreeRandomly(tree, 600000);
 	}
 
+	@Test
+	public void testRandomAddCentroidBasicIndexMemoryMapped()
+	{
+		CentroidTree tree = new CentroidTree(new File("target/centroidTree"), 1000000000l,
+				MAX_STRING_LENGTH + 1, new BasicIndexLayout(), false, StorageType.MEMORY_MAPPED);
+		fillTreeRandomly(tree, 600000);
+	}
+
 	@Test
 	public void testSequentialAddCentroidBasicIndex()
 	{
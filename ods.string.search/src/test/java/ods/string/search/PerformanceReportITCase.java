@@ -18,6 +18,7 @@ import java.util.zip.GZIPInputStream;
 import ods.string.search.partition.EMPrefixSearchableSet;
 import ods.string.search.partition.ExternalMemoryObjectCache;
 import ods.string.search.partition.ExternalMemoryObjectCache.CompressType;
+import ods.string.search.partition.ExternalMemoryObjectCache.StorageType;
 import ods.string.search.partition.ExternalMemorySkipList;
 import ods.string.search.partition.ExternalMemorySplittableSet;
 import ods.string.search.partition.ExternalMemoryTrie;
@@ -648,6 +649,9 @@ public class PerformanceReportITCase
 		partitionImpls.add(new PartitionImplementation("CompressNone",
 				new ExternalMemoryObjectCache<>(new File("target/tmp"), 50000000l,
 						CompressType.NONE)));
+		partitionImpls.add(new PartitionImplementation("CompressSnappySegmented",
+				new ExternalMemoryObjectCache<>(new File("target/tmp"), 50000000l,
+						CompressType.SNAPPY, StorageType.SEGMENTED)));
 
 		ArrayList<ReportCase> cases = new ArrayList<ReportCase>();
 
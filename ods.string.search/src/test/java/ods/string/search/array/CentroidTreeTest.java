@@ -8,6 +8,7 @@ import java.util.TreeSet;
 
 import ods.string.search.Utils;
 import ods.string.search.array.CentroidTree;
+import ods.string.search.array.ExternalMemoryCache.StorageType;
 
 import org.junit.Assert;
 import org.junit.Before;
@@ -24,7 +25,18 @@ public class CentroidTreeTest
 	@Test
 	public void testAdd()
 	{
-		CentroidTree tree = new CentroidTree(new File("target/centroidTree"));
+		testAdd(new CentroidTree(new File("target/centroidTree")));
+	}
+
+	@Test
+	public void testAddMemoryMapped()
+	{
+		testAdd(new CentroidTree(new File("target/centroidTree"), 10000000l, 50,
+				new BasicIndexLayout(), false, StorageType.MEMORY_MAPPED));
+	}
+
+	private void testAdd(CentroidTree tree)
+	{
 		TreeSet<String> set = new TreeSet<String>();
 		Random rand = new Random();
 
@@ -60,5 +72,6 @@ public class CentroidTreeTest
 			assertEquals(treeResult, centroidResult);
 			assertEquals(set.size(), tree.size());
 		}
+		tree.close();
 	}
 }
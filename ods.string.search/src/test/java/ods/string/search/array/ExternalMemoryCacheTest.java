@@ -1,6 +1,7 @@
 package ods.string.search.array;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.io.File;
 import java.util.HashSet;
@@ -8,6 +9,7 @@ import java.util.Random;
 
 import ods.string.search.Utils;
 import ods.string.search.array.ExternalMemoryCache;
+import ods.string.search.array.ExternalMemoryCache.StorageType;
 import ods.string.search.array.StringNode;
 
 import org.junit.Assert;
@@ -63,6 +65,70 @@ public class ExternalMemoryCacheTest
 		accessRandomly(cache);
 	}
 
+	@Test
+	public void testMemoryMapped()
+	{
+		ExternalMemoryCache<StringNode> cache = new ExternalMemoryCache<StringNode>(new File(
+				"target/blocks"), 0, 100000, false, StorageType.MEMORY_MAPPED);
+		StringNode node = new StringNode(100);
+		for (int x = 0; x < 1000000; x++)
+		{
+			node.setString(x + "");
+			cache.set(x, node);
+		}
+		for (int x = 0; x < 1000000; x++)
+		{
+			cache.get(x, node);
+			assertEquals(x + "", node.toString());
+		}
+		cache.get(1500000, node);
+		assertEquals("", node.toString());
+		cache.close();
+
+		cache = new ExternalMemoryCache<StringNode>(new File("target/blocks"), 0, 100000, false,
+				StorageType.MEMORY_MAPPED);
+		for (int x = 0; x < 1000000; x++)
+		{
+			cache.get(x, node);
+			assertEquals(x + "", node.toString());
+		}
+		cache.close();
+
+		Assert.assertTrue(Utils.deleteRecursively(new File("target/blocks")));
+		accessRandomly(new ExternalMemoryCache<StringNode>(new File("target/blocks"), 0, 100000,
+				false, StorageType.MEMORY_MAPPED));
+	}
+
+	@Test
+	public void testArenaReusesBlocks()
+	{
+		ExternalMemoryCache<StringNode> cache = new ExternalMemoryCache<StringNode>(new File(
+				"target/blocks"), 30000l, 10000, true);
+		StringNode node = new StringNode(20);
+		for (int x = 0; x < 5000; x++)
+		{
+			node.setString(x + "");
+			cache.set(x, node);
+			assertTrue(cache.getAllocatedBytes() <= 30000);
+		}
+		for (int x = 4999; x >= 0; x--)
+		{
+			cache.get(x, node);
+			assertEquals(x + "", node.toString());
+		}
+		assertEquals(30000, cache.getAllocatedBytes());
+		assertEquals(30000, cache.getMetrics().getInMemoryBytes());
+		Assert.assertTrue(cache.getMetrics().getLoads() > 0);
+		Assert.assertTrue(cache.getMetrics().getMisses() > cache.getMetrics().getLoads());
+		Assert.assertTrue(cache.getMetrics().getDirtyEvictions() > 0);
+
+		// Blocks recycled from the arena must not leak data into blocks that were never written.
+		cache.get(6000, node);
+		assertEquals("", node.toString());
+		cache.close();
+		assertEquals(0, cache.getAllocatedBytes());
+	}
+
 	private void accessRandomly(ExternalMemoryCache<StringNode> cache)
 	{
 		StringNode node = new StringNode(100);
@@ -44,8 +44,11 @@ public class StringNode implements ExternalMemoryNode
 	public void setFromBytes(ByteBuffer bytes, int startIndex)
 	{
 		stringBytes = bytes.getInt(startIndex);
+		ByteBuffer source = bytes.duplicate();
+		source.position(startIndex + 4);
+		source.limit(startIndex + 4 + stringBytes);
 		characters.rewind();
-		characters.put(bytes.array(), startIndex + 4, stringBytes);
+		characters.put(source);
 	}
 
 	@Override
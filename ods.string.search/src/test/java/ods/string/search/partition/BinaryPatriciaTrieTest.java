@@ -1,9 +1,15 @@
 package ods.string.search.partition;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -282,7 +288,7 @@ public class BinaryPatriciaTrieTest
 
 		for (String s : prefixes.keySet())
 		{
-			Iterator<String> iter = trie.iterator(s, s);
+			Iterator<String> iter = trie.prefixIterator(s);
 			ArrayList<String> expectedResults = prefixes.get(s);
 			ArrayList<String> actualResults = new ArrayList<String>();
 			while (iter.hasNext())
@@ -301,7 +307,7 @@ public class BinaryPatriciaTrieTest
 			String input = "";
 			for (int y = 0; y < inputLength; y++)
 				input += (char) (rand.nextInt(10) + '0');
-			Iterator<String> iter = trie.iterator(input, input);
+			Iterator<String> iter = trie.prefixIterator(input);
 			while (iter.hasNext())
 			{
 				assertTrue(iter.next().startsWith(input));
@@ -353,7 +359,7 @@ public class BinaryPatriciaTrieTest
 			assertEquals(treeResult, result);
 		}
 
-		BinaryPatriciaTrie<String> partition = (BinaryPatriciaTrie<String>) trie.split("");
+		BinaryPatriciaTrie<String> partition = trie.splitPartition(0);
 		verifyTrieNodeCompression(trie);
 		verifyTrieNodeCompression(partition);
 
@@ -379,4 +385,176 @@ public class BinaryPatriciaTrieTest
 				assertTrue(point.leftOver.label[x] >= '0' && point.leftOver.label[x] <= '9');
 		}
 	}
+
+	@Test
+	public void testNeighbors()
+	{
+		Random rand = new Random(5);
+		BinaryPatriciaTrie<String> trie = new BinaryPatriciaTrie<String>();
+		TreeSet<String> tree = new TreeSet<String>();
+		for (int x = 0; x < 5000; x++)
+		{
+			String input = randomDigits(rand, rand.nextInt(6) + 1);
+			assertEquals(tree.add(input), trie.add(input));
+		}
+
+		for (int x = 0; x < 20000; x++)
+		{
+			String input = randomDigits(rand, rand.nextInt(7) + 1);
+			assertEquals(tree.floor(input), trie.floor(input));
+			assertEquals(tree.lower(input), trie.lower(input));
+			assertEquals(tree.higher(input), trie.higher(input));
+		}
+		assertEquals(tree.first(), trie.higher(""));
+		assertEquals(null, trie.lower(tree.first()));
+		assertEquals(null, trie.higher(tree.last()));
+
+		BinaryPatriciaTrie<Integer> intTrie = new BinaryPatriciaTrie<Integer>();
+		TreeSet<Integer> intTree = new TreeSet<Integer>();
+		for (int x = 0; x < 5000; x++)
+		{
+			int input = rand.nextInt(20000) - 10000;
+			assertEquals(intTree.add(input), intTrie.add(input));
+		}
+		for (int x = -11000; x < 11000; x += 7)
+		{
+			assertEquals(intTree.floor(x), intTrie.floor(x));
+			assertEquals(intTree.lower(x), intTrie.lower(x));
+			assertEquals(intTree.higher(x), intTrie.higher(x));
+		}
+		Iterator<Integer> iter = intTrie.iterator();
+		for (Integer value : intTree)
+			assertEquals(value, iter.next());
+		assertFalse(iter.hasNext());
+	}
+
+	@Test
+	public void testKeySplitMerge()
+	{
+		Random rand = new Random(6);
+		for (int x = 0; x < 50; x++)
+		{
+			BinaryPatriciaTrie<String> trie = new BinaryPatriciaTrie<String>();
+			TreeSet<String> tree = new TreeSet<String>();
+			for (int y = rand.nextInt(500); y >= 0; y--)
+			{
+				String input = randomDigits(rand, rand.nextInt(5) + 1);
+				assertEquals(tree.add(input), trie.add(input));
+			}
+
+			String middle = trie.locateMiddleValue();
+			assertTrue(tree.contains(middle));
+			if (tree.size() > 10)
+			{
+				assertTrue(tree.headSet(middle).size() > tree.size() / 10);
+				assertTrue(tree.tailSet(middle).size() > tree.size() / 10);
+			}
+
+			String splitKey = x % 2 == 0 ? middle : randomDigits(rand, rand.nextInt(5) + 1);
+			BinaryPatriciaTrie<String> higher = (BinaryPatriciaTrie<String>) trie.split(splitKey);
+			verifyTrieNodeCompression(trie);
+			verifyTrieNodeCompression(higher);
+			verifyContents(tree.headSet(splitKey), trie);
+			verifyContents(tree.tailSet(splitKey), higher);
+
+			ArrayList<String> descending = new ArrayList<String>();
+			for (Iterator<String> iter = higher.descendingIterator(null, null); iter.hasNext();)
+				descending.add(iter.next());
+			assertEquals(new ArrayList<String>(tree.tailSet(splitKey, true).descendingSet()),
+					descending);
+
+			assertTrue(trie.merge(higher));
+			assertEquals(0, higher.size());
+			verifyTrieNodeCompression(trie);
+			verifyContents(tree, trie);
+		}
+	}
+
+	@Test
+	public void testMergeSeparateTries()
+	{
+		Random rand = new Random(7);
+		for (int x = 0; x < 50; x++)
+		{
+			String splitKey = randomDigits(rand, rand.nextInt(4) + 1);
+			BinaryPatriciaTrie<String> lower = new BinaryPatriciaTrie<String>();
+			BinaryPatriciaTrie<String> higher = new BinaryPatriciaTrie<String>();
+			TreeSet<String> tree = new TreeSet<String>();
+			for (int y = rand.nextInt(500); y >= 0; y--)
+			{
+				String input = randomDigits(rand, rand.nextInt(5) + 1);
+				if (tree.add(input))
+					assertTrue((input.compareTo(splitKey) < 0 ? lower : higher).add(input));
+			}
+
+			assertTrue(lower.merge(higher));
+			assertEquals(0, higher.size());
+			verifyTrieNodeCompression(lower);
+			verifyContents(tree, lower);
+			for (String value : tree)
+				assertEquals(tree.higher(value), lower.higher(value));
+		}
+
+		BinaryPatriciaTrie<String> lower = new BinaryPatriciaTrie<String>();
+		BinaryPatriciaTrie<String> higher = new BinaryPatriciaTrie<String>();
+		lower.add("5");
+		higher.add("3");
+		try
+		{
+			lower.merge(higher);
+			fail();
+		} catch (IllegalArgumentException e)
+		{
+		}
+	}
+
+	@Test
+	public void testSerialization() throws Exception
+	{
+		BinaryPatriciaTrie<Integer> trie = new BinaryPatriciaTrie<Integer>();
+		TreeSet<Integer> tree = new TreeSet<Integer>();
+		Random rand = new Random(8);
+		for (int x = 0; x < 1000; x++)
+		{
+			int input = rand.nextInt(2000) - 1000;
+			assertEquals(tree.add(input), trie.add(input));
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(trie);
+		out.close();
+		@SuppressWarnings("unchecked")
+		BinaryPatriciaTrie<Integer> copy = (BinaryPatriciaTrie<Integer>) new ObjectInputStream(
+				new ByteArrayInputStream(bytes.toByteArray())).readObject();
+
+		Iterator<Integer> iter = copy.iterator();
+		for (Integer value : tree)
+			assertEquals(value, iter.next());
+		assertFalse(iter.hasNext());
+		assertTrue(copy.contains(tree.first()));
+		assertEquals(tree.higher(0), copy.higher(0));
+	}
+
+	private static void verifyContents(Iterable<String> expected, BinaryPatriciaTrie<String> trie)
+	{
+		Iterator<String> iter = trie.iterator();
+		long count = 0;
+		for (String value : expected)
+		{
+			assertTrue(iter.hasNext());
+			assertEquals(value, iter.next());
+			count++;
+		}
+		assertFalse(iter.hasNext());
+		assertEquals(count, trie.size());
+	}
+
+	private static String randomDigits(Random rand, int length)
+	{
+		String result = "";
+		for (int x = 0; x < length; x++)
+			result += (char) (rand.nextInt(10) + '0');
+		return result;
+	}
 }
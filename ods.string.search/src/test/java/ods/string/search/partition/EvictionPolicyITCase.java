@@ -0,0 +1,65 @@
+package ods.string.search.partition;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.Random;
+
+import ods.string.search.Utils;
+import ods.string.search.partition.ExternalMemoryObjectCache.CompressType;
+import ods.string.search.partition.ExternalMemoryObjectCache.StorageType;
+import ods.string.search.partition.splitsets.ExternalizableArrayList;
+import ods.string.search.partition.splitsets.ExternalizableListSet;
+
+import org.junit.Test;
+
+/**
+ * Compares the cache hit rate of each eviction policy when point lookups on a small range of keys
+ * are interleaved with full scans of the set.
+ */
+public class EvictionPolicyITCase
+{
+	@Test
+	public void testMixedScanAndLookupHitRates()
+	{
+		EvictionPolicy[] policies = { new LruEvictionPolicy(), new TwoQueueEvictionPolicy(),
+				new WindowTinyLfuEvictionPolicy() };
+		for (EvictionPolicy policy : policies)
+		{
+			File dir = new File("target/evictionPolicy");
+			Utils.deleteRecursively(dir);
+			ExternalMemoryObjectCache<?> cache = new ExternalMemoryObjectCache<>(dir,
+					8000000, CompressType.SNAPPY, StorageType.SEGMENTED, policy);
+			ExternalMemorySplittableSet<String> set = new ExternalMemorySplittableSet<String>(
+					cache, 1000, new ExternalizableListSet<String>(
+							new ExternalizableArrayList<String>(), false));
+
+			int elementCount = 500000;
+			for (int x = 0; x < elementCount; x++)
+				set.add(Utils.convertToFixedLengthString(x, 12));
+
+			Random rand = new Random(0);
+			long startHits = cache.getHitCount();
+			long startMisses = cache.getMissCount();
+			long start = System.currentTimeMillis();
+			for (int round = 0; round < 10; round++)
+			{
+				for (int x = 0; x < 100000; x++)
+					set.contains(Utils.convertToFixedLengthString(rand.nextInt(elementCount / 10),
+							12));
+
+				Iterator<String> iter = set.iterator();
+				while (iter.hasNext())
+					iter.next();
+			}
+			long hits = cache.getHitCount() - startHits;
+			long misses = cache.getMissCount() - startMisses;
+
+			System.out.println(policy.getClass().getSimpleName() + ": hit rate "
+					+ Utils.trimDecimals(hits * 100. / (hits + misses), 2) + "%, " + misses
+					+ " misses, " + (System.currentTimeMillis() - start) + "ms");
+
+			set.close();
+			Utils.deleteRecursively(dir);
+		}
+	}
+}
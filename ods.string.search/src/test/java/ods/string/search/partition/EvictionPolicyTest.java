@@ -0,0 +1,96 @@
+package ods.string.search.partition;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class EvictionPolicyTest
+{
+	@Test
+	public void testLruOrder()
+	{
+		EvictionPolicy policy = new LruEvictionPolicy();
+		policy.onInsert("a");
+		policy.onInsert("b");
+		policy.onInsert("c");
+		policy.onAccess("a");
+		assertEquals("b", policy.selectVictim(null));
+		assertEquals("c", policy.selectVictim("b"));
+		policy.onRemove("b");
+		policy.onRemove("c");
+		assertNull(policy.selectVictim("a"));
+	}
+
+	@Test
+	public void testExcludedBlockNeverChosen()
+	{
+		EvictionPolicy[] policies = { new LruEvictionPolicy(), new TwoQueueEvictionPolicy(),
+				new WindowTinyLfuEvictionPolicy() };
+		for (EvictionPolicy policy : policies)
+		{
+			assertNull(policy.selectVictim("a"));
+			policy.onInsert("a");
+			assertNull(policy.selectVictim("a"));
+			assertEquals("a", policy.selectVictim("b"));
+			policy.onInsert("b");
+			assertEquals("b", policy.selectVictim("a"));
+			assertEquals("a", policy.selectVictim("b"));
+		}
+	}
+
+	@Test
+	public void testScanResistance()
+	{
+		long lruHits = simulateScans(new LruEvictionPolicy());
+		long twoQueueHits = simulateScans(new TwoQueueEvictionPolicy());
+		long tinyLfuHits = simulateScans(new WindowTinyLfuEvictionPolicy());
+		assertTrue(twoQueueHits + " vs " + lruHits, twoQueueHits > lruHits);
+		assertTrue(tinyLfuHits + " vs " + lruHits, tinyLfuHits > lruHits);
+	}
+
+	/**
+	 * Replays point lookups on a hot set of 40 blocks interleaved with a scan over cold blocks that
+	 * are never requested again, against a cache holding 50 blocks.
+	 * 
+	 * @return The number of requests that hit the cache.
+	 */
+	private long simulateScans(EvictionPolicy policy)
+	{
+		Random rand = new Random(7);
+		HashSet<String> cached = new HashSet<String>();
+		long hits = 0;
+		int scanBlock = 0;
+		for (int x = 0; x < 20000; x++)
+		{
+			if (rand.nextBoolean())
+				hits += request(policy, cached, "hot" + rand.nextInt(40));
+			else
+				hits += request(policy, cached, "cold" + scanBlock++);
+		}
+		return hits;
+	}
+
+	private int request(EvictionPolicy policy, HashSet<String> cached, String blockId)
+	{
+		if (cached.contains(blockId))
+		{
+			policy.onAccess(blockId);
+			return 1;
+		}
+
+		cached.add(blockId);
+		policy.onInsert(blockId);
+		while (cached.size() > 50)
+		{
+			String victim = policy.selectVictim(blockId);
+			cached.remove(victim);
+			policy.onRemove(victim);
+		}
+		return 0;
+	}
+}
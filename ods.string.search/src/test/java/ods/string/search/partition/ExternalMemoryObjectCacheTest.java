@@ -3,9 +3,18 @@ package ods.string.search.partition;
 import static org.junit.Assert.assertEquals;
 
 import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import ods.string.search.CacheMetrics;
 import ods.string.search.Utils;
 import ods.string.search.partition.ExternalMemoryObjectCache.CompressType;
+import ods.string.search.partition.ExternalMemoryObjectCache.StorageType;
 import ods.string.search.partition.splitsets.CoolString;
 
 import org.junit.Assert;
@@ -37,4 +46,236 @@ public class ExternalMemoryObjectCacheTest
 		cache.close();
 		assertEquals(101, new File("target/blocks").list().length);
 	}
+
+	@Test
+	public void testSegmentedStorage()
+	{
+		ExternalMemoryObjectCache<CoolString> cache = new ExternalMemoryObjectCache<CoolString>(
+				new File("target/blocks"), 10, CompressType.SNAPPY, StorageType.SEGMENTED);
+		for (int x = 0; x < 100; x++)
+			cache.register(x + "", new CoolString(x + ""));
+
+		for (int x = 0; x < 100; x++)
+			assertEquals(new CoolString(x + ""), cache.get(x + ""));
+
+		assertEquals(1, new File("target/blocks").list().length);
+		cache.unregister("50");
+		cache.register("101", new CoolString("hooligan"));
+		cache.close();
+
+		cache = new ExternalMemoryObjectCache<CoolString>(new File("target/blocks"), 10,
+				CompressType.SNAPPY, StorageType.SEGMENTED);
+		for (int x = 0; x < 100; x++)
+		{
+			if (x != 50)
+				assertEquals(new CoolString(x + ""), cache.get(x + ""));
+		}
+		assertEquals(new CoolString("hooligan"), cache.get("101"));
+		cache.close();
+	}
+
+	@Test
+	public void testWriteBehind()
+	{
+		ExternalMemoryObjectCache<CoolString> cache = new ExternalMemoryObjectCache<CoolString>(
+				new File("target/blocks"), 10, CompressType.SNAPPY);
+		cache.enableWriteBehind(2, 4);
+		for (int x = 0; x < 100; x++)
+			cache.register(x + "", new CoolString(x + ""));
+
+		for (int y = 0; y < 3; y++)
+		{
+			for (int x = 0; x < 100; x++)
+				assertEquals(new CoolString(x + ""), cache.get(x + ""));
+			for (int x = 99; x >= 0; x--)
+				assertEquals(new CoolString(x + ""), cache.get(x + ""));
+		}
+
+		cache.unregister("50");
+		cache.register("101", new CoolString("hooligan"));
+		cache.close();
+
+		cache = new ExternalMemoryObjectCache<CoolString>(new File("target/blocks"), 10,
+				CompressType.SNAPPY);
+		for (int x = 0; x < 100; x++)
+		{
+			if (x != 50)
+				assertEquals(new CoolString(x + ""), cache.get(x + ""));
+		}
+		assertEquals(new CoolString("hooligan"), cache.get("101"));
+		cache.close();
+	}
+
+	@Test
+	public void testPrefetch() throws InterruptedException
+	{
+		ExternalMemoryObjectCache<CoolString> cache = new ExternalMemoryObjectCache<CoolString>(
+				new File("target/blocks"), 1000000, CompressType.SNAPPY);
+		for (int x = 0; x < 100; x++)
+			cache.register(x + "", new CoolString(x + ""));
+		cache.close();
+
+		cache = new ExternalMemoryObjectCache<CoolString>(new File("target/blocks"), 1000000,
+				CompressType.SNAPPY);
+		CacheMetrics metrics = cache.getMetrics();
+
+		// Without prefetch threads prefetch() does nothing.
+		cache.setPrefetchThreads(0);
+		cache.prefetch("4");
+		Thread.sleep(50);
+		Assert.assertNull(cache.getIfLoaded("4"));
+		assertEquals(0, metrics.getLoads());
+
+		cache.setPrefetchThreads(2);
+		Assert.assertNull(cache.getIfLoaded("5"));
+		cache.prefetch("5");
+		cache.prefetch("6");
+		CoolString prefetched = null;
+		for (int x = 0; x < 500 && prefetched == null; x++)
+		{
+			prefetched = cache.getIfLoaded("5");
+			if (prefetched == null)
+				Thread.sleep(10);
+		}
+		assertEquals(new CoolString("5"), prefetched);
+		while (cache.getIfLoaded("6") == null)
+			Thread.sleep(10);
+		assertEquals(2, metrics.getLoads());
+
+		// Prefetched blocks are handed to get() without reading them again.
+		assertEquals(new CoolString("5"), cache.get("5"));
+		assertEquals(new CoolString("6"), cache.get("6"));
+		assertEquals(2, metrics.getLoads());
+		assertEquals(2, metrics.getMisses());
+
+		// Blocks already in RAM aren't prefetched.
+		cache.prefetch("5");
+		assertEquals(new CoolString("5"), cache.get("5"));
+		assertEquals(2, metrics.getLoads());
+		assertEquals(1, metrics.getHits());
+
+		assertEquals(new CoolString("7"), cache.get("7"));
+		assertEquals(3, metrics.getLoads());
+		cache.close();
+	}
+
+	@Test
+	public void testCompressedMemoryTier()
+	{
+		ExternalMemoryObjectCache<CoolString> cache = new ExternalMemoryObjectCache<CoolString>(
+				new File("target/blocks"), 10, CompressType.SNAPPY);
+		cache.enableCompressedMemoryTier(1000000);
+		for (int x = 0; x < 100; x++)
+			cache.register(x + "", new CoolString(x + ""));
+		for (int x = 0; x < 100; x++)
+			assertEquals(new CoolString(x + ""), cache.get(x + ""));
+
+		// Every flushed block still fits in the tier, so nothing has been written to disk yet.
+		assertEquals(0, new File("target/blocks").list().length);
+		assertEquals(0, cache.getCompressedMemoryTier().getBackingReads());
+		cache.unregister("50");
+		cache.close();
+		assertEquals(99, new File("target/blocks").list().length);
+
+		// A tier that only holds a few blocks spills the rest to disk.
+		cache = new ExternalMemoryObjectCache<CoolString>(new File("target/blocks"), 10,
+				CompressType.SNAPPY);
+		cache.enableCompressedMemoryTier(200);
+		for (int y = 0; y < 2; y++)
+		{
+			for (int x = 0; x < 100; x++)
+			{
+				if (x != 50)
+					assertEquals(new CoolString(x + ""), cache.get(x + ""));
+			}
+		}
+		CompressedMemoryBlockStore tier = cache.getCompressedMemoryTier();
+		Assert.assertTrue(tier.getBackingReads() > 0);
+		Assert.assertTrue(tier.getMemoryBytes() <= 200);
+		cache.close();
+		assertEquals(0, tier.getMemoryBytes());
+	}
+
+	@Test
+	public void testMetrics() throws Exception
+	{
+		ExternalMemoryObjectCache<CoolString> cache = new ExternalMemoryObjectCache<CoolString>(
+				new File("target/blocks"), 1000, CompressType.SNAPPY);
+		CacheMetrics metrics = cache.getMetrics();
+		for (int x = 0; x < 100; x++)
+			cache.register(x + "", new CoolString(x + ""));
+		for (int x = 0; x < 100; x++)
+			cache.get(x + "");
+		cache.get("99");
+
+		assertEquals(1, metrics.getHits());
+		assertEquals(100, metrics.getMisses());
+		assertEquals(metrics.getMisses(), metrics.getLoads());
+		// CoolStrings always report themselves as dirty.
+		Assert.assertTrue(metrics.getDirtyEvictions() >= 90);
+		assertEquals(0, metrics.getCleanEvictions());
+		Assert.assertTrue(metrics.getBytesRead() > 0);
+		Assert.assertTrue(metrics.getBytesWritten() > 0);
+		Assert.assertTrue(metrics.getInMemoryBytes() <= metrics.getMemoryBudget());
+		assertEquals(metrics.getDirtyEvictions(), metrics.getWriteLatency().getCount());
+		assertEquals(metrics.getDirtyEvictions(), metrics.getCompressLatency().getCount());
+		Assert.assertTrue(metrics.getLoadLatencyP99() >= metrics.getLoadLatency()
+				.getPercentileNanos(50));
+
+		metrics.registerMBean("testMetrics");
+		ObjectName name = new ObjectName(
+				"ods.string.search:type=CacheMetrics,name=\"testMetrics\"");
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		assertEquals(100l, server.getAttribute(name, "Misses"));
+		server.invoke(name, "reset", null, null);
+		assertEquals(0, metrics.getMisses());
+		metrics.unregisterMBean();
+		Assert.assertFalse(server.isRegistered(name));
+		cache.close();
+	}
+
+	@Test
+	public void testConcurrentStripes() throws InterruptedException
+	{
+		final ExternalMemoryObjectCache<CoolString> cache =
+				new ExternalMemoryObjectCache<CoolString>(new File("target/blocks"), 3000,
+						CompressType.SNAPPY);
+		cache.setStripeCount(8);
+		cache.enableWriteBehind(2, 4);
+		for (int x = 0; x < 200; x++)
+			cache.register(x + "", new CoolString(x + ""));
+
+		final AtomicInteger failures = new AtomicInteger();
+		ArrayList<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < 8; t++)
+		{
+			final int seed = t;
+			Thread thread = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					Random rand = new Random(seed);
+					for (int x = 0; x < 2000; x++)
+					{
+						int id = rand.nextInt(200);
+						if (!new CoolString(id + "").equals(cache.get(id + "")))
+							failures.incrementAndGet();
+					}
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		for (Thread thread : threads)
+			thread.join();
+		assertEquals(0, failures.get());
+		cache.close();
+
+		ExternalMemoryObjectCache<CoolString> reopened = new ExternalMemoryObjectCache<CoolString>(
+				new File("target/blocks"), 3000, CompressType.SNAPPY);
+		for (int x = 0; x < 200; x++)
+			assertEquals(new CoolString(x + ""), reopened.get(x + ""));
+		reopened.close();
+	}
 }
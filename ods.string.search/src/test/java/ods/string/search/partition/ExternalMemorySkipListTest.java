@@ -1,6 +1,15 @@
 package ods.string.search.partition;
 
+import static org.junit.Assert.assertEquals;
+
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.UUID;
 
 import ods.string.search.Utils;
 import ods.string.search.partition.splitsets.ExternalizableArrayList;
@@ -35,6 +44,287 @@ public class ExternalMemorySkipListTest
 		ExternalMemorySplittableSetTest.testOperations(tree);
 	}
 
+	@Test
+	public void testAddSearchRemoveEMSkipListTrie()
+	{
+		ExternalMemorySkipList<String> tree = new ExternalMemorySkipList<String>(new File(
+				"target/treap"), 1 / 35., 1000000000, new BinaryPatriciaTrie<String>());
+		ExternalMemorySplittableSetTest.testOperations(tree);
+	}
+
+	@Test
+	public void testSequentialAppend()
+	{
+		ExternalMemorySkipList<Integer> tree = new ExternalMemorySkipList<Integer>(new File(
+				"target/treap"), 1 / 10., 1000000000, new Treap<Integer>());
+		TreeSet<Integer> expected = new TreeSet<Integer>();
+		Random rand = new Random(8);
+		for (int x = 0; x < 20000; x++)
+		{
+			// Mostly appends, mixed with out of order adds, duplicates and removes.
+			int value;
+			int operation = rand.nextInt(10);
+			if (operation < 7)
+				value = x * 2;
+			else
+				value = rand.nextInt(x * 2 + 1);
+			if (operation == 9)
+				assertEquals(expected.remove(value), tree.remove(value));
+			else
+				assertEquals(expected.add(value), tree.add(value));
+		}
+		assertEquals(expected.size(), tree.size());
+		for (int x = 0; x < 40000; x += 3)
+			assertEquals(expected.contains(x), tree.contains(x));
+		Iterator<Integer> iter = tree.iterator();
+		for (Integer value : expected)
+		{
+			Assert.assertTrue(iter.hasNext());
+			assertEquals(value, iter.next());
+		}
+		Assert.assertFalse(iter.hasNext());
+	}
+
+	@Test
+	public void testBulkLoad()
+	{
+		ExternalMemorySkipList<Integer> list = new ExternalMemorySkipList<Integer>(new File(
+				"target/treap/random"), 1 / 10., 20000, new Treap<Integer>());
+		ExternalMemorySkipList<Integer> balanced = new ExternalMemorySkipList<Integer>(new File(
+				"target/treap/balanced"), 1 / 10., 1000000000, new Treap<Integer>());
+		balanced.setPartitionSizeBounds(10, 40);
+
+		TreeSet<Integer> expected = new TreeSet<Integer>();
+		for (int x = 0; x < 19999; x++)
+			expected.add(x * 3);
+		list.bulkLoad(expected.iterator());
+		balanced.bulkLoad(expected.iterator());
+
+		// Every partition holds 9 elements and the element after each partition is promoted.
+		assertEquals(2000, list.getPartitionSizes(1).size());
+		for (long partitionSize : list.getPartitionSizes(1))
+			assertEquals(9, partitionSize);
+		verifyPartitionSizes(balanced);
+
+		Random rand = new Random(15);
+		for (ExternalMemorySkipList<Integer> loaded : Arrays.asList(list, balanced))
+		{
+			TreeSet<Integer> contents = new TreeSet<Integer>(expected);
+			assertEquals(contents.size(), loaded.size());
+			for (int x = 0; x < 60000; x += 7)
+				assertEquals(contents.contains(x), loaded.contains(x));
+			ExternalMemorySplittableSetTest.verifyDescendingIterator(contents, null, null,
+					loaded.descendingIterator(null, null));
+
+			// The loaded list keeps working with regular updates.
+			for (int x = 0; x < 5000; x++)
+			{
+				int value = rand.nextInt(61000);
+				if (rand.nextBoolean())
+					assertEquals(contents.add(value), loaded.add(value));
+				else
+					assertEquals(contents.remove(value), loaded.remove(value));
+			}
+			assertEquals(contents.size(), loaded.size());
+			Iterator<Integer> iter = loaded.iterator();
+			for (Integer value : contents)
+			{
+				Assert.assertTrue(iter.hasNext());
+				assertEquals(value, iter.next());
+			}
+			Assert.assertFalse(iter.hasNext());
+		}
+		verifyPartitionSizes(balanced);
+
+		try
+		{
+			list.bulkLoad(expected.iterator());
+			Assert.fail("bulkLoad() into a non-empty skip list should fail.");
+		} catch (IllegalStateException e)
+		{
+		}
+
+		// Unsorted input keeps the elements loaded before the first out of order one.
+		list = new ExternalMemorySkipList<Integer>(new File("target/treap/unsorted"), 1 / 3.,
+				1000000000, new Treap<Integer>());
+		try
+		{
+			list.bulkLoad(Arrays.asList(1, 2, 3, 4, 5, 6, 7, 8, 4, 9).iterator());
+			Assert.fail("bulkLoad() of unsorted elements should fail.");
+		} catch (IllegalArgumentException e)
+		{
+		}
+		assertEquals(8, list.size());
+		for (int x = 1; x <= 8; x++)
+			Assert.assertTrue(list.contains(x));
+		Assert.assertFalse(list.contains(9));
+	}
+
+	@Test
+	public void testPartitionSizeBounds()
+	{
+		ArrayList<ExternalMemorySkipList<Integer>> lists =
+				new ArrayList<ExternalMemorySkipList<Integer>>();
+		lists.add(new ExternalMemorySkipList<Integer>(new File("target/treap/treap"), 1 / 10.,
+				1000000000, new Treap<Integer>()));
+		lists.add(new ExternalMemorySkipList<Integer>(new File("target/treap/list"), 1 / 10.,
+				20000, new ExternalizableListSet<Integer>(new ExternalizableArrayList<Integer>(),
+						false)));
+		lists.add(new ExternalMemorySkipList<Integer>(new File("target/treap/small"), 1 / 10.,
+				1000000000, new Treap<Integer>()));
+		lists.get(0).setPartitionSizeBounds(8, 32);
+		lists.get(1).setPartitionSizeBounds(10, 20);
+		lists.get(2).setPartitionSizeBounds(1, 2);
+
+		for (ExternalMemorySkipList<Integer> list : lists)
+		{
+			TreeSet<Integer> expected = new TreeSet<Integer>();
+			Random rand = new Random(14);
+			for (int x = 0; x < 6000; x++)
+			{
+				// Grow the list, then shrink it back down.
+				int value = rand.nextInt(4000);
+				if (rand.nextInt(10) < (x < 4000 ? 3 : 8))
+					assertEquals(expected.remove(value), list.remove(value));
+				else
+					assertEquals(expected.add(value), list.add(value));
+				if (x % 500 == 0)
+					verifyPartitionSizes(list);
+			}
+			verifyPartitionSizes(list);
+			assertEquals(expected.size(), list.size());
+			for (int x = 0; x < 4000; x++)
+				assertEquals(expected.contains(x), list.contains(x));
+			Iterator<Integer> iter = list.iterator();
+			for (Integer value : expected)
+			{
+				Assert.assertTrue(iter.hasNext());
+				assertEquals(value, iter.next());
+			}
+			Assert.assertFalse(iter.hasNext());
+			ExternalMemorySplittableSetTest.verifyDescendingIterator(expected, null, null,
+					list.descendingIterator(null, null));
+
+			for (Integer value : new ArrayList<Integer>(expected))
+				assertEquals(true, list.remove(value));
+			assertEquals(0, list.size());
+			assertEquals(1, list.getHeight());
+		}
+	}
+
+	private void verifyPartitionSizes(ExternalMemorySkipList<Integer> list)
+	{
+		long total = 0;
+		for (int height = 1; height <= list.getHeight(); height++)
+		{
+			List<Long> sizes = list.getPartitionSizes(height);
+			for (long partitionSize : sizes)
+			{
+				total += partitionSize;
+				Assert.assertTrue("Partition too large: " + sizes,
+						partitionSize <= list.getMaxPartitionSize());
+				if (height < list.getHeight())
+					Assert.assertTrue("Partition too small: " + sizes,
+							partitionSize >= list.getMinPartitionSize());
+			}
+		}
+		assertEquals(list.size(), total);
+	}
+
+	@Test
+	public void testElementsWithoutStringConstructor()
+	{
+		// UUID can't be parsed back from a partition ID, and a small cache forces partitions to be
+		// written and read back with their keys.
+		ExternalMemorySkipList<UUID> list = new ExternalMemorySkipList<UUID>(new File(
+				"target/treap"), 1 / 5., 20000, new Treap<UUID>());
+		TreeSet<UUID> expected = new TreeSet<UUID>();
+		Random rand = new Random(13);
+		for (int x = 0; x < 3000; x++)
+		{
+			UUID value = new UUID(0, rand.nextInt(5000));
+			if (x % 4 == 3)
+				assertEquals(expected.remove(value), list.remove(value));
+			else
+				assertEquals(expected.add(value), list.add(value));
+		}
+		assertEquals(expected.size(), list.size());
+		for (int x = 0; x < 5000; x += 3)
+			assertEquals(expected.contains(new UUID(0, x)), list.contains(new UUID(0, x)));
+
+		Iterator<UUID> iter = list.iterator();
+		for (UUID value : expected)
+		{
+			Assert.assertTrue(iter.hasNext());
+			assertEquals(value, iter.next());
+		}
+		Assert.assertFalse(iter.hasNext());
+
+		iter = list.descendingIterator(null, null);
+		for (UUID value : expected.descendingSet())
+		{
+			Assert.assertTrue(iter.hasNext());
+			assertEquals(value, iter.next());
+		}
+		Assert.assertFalse(iter.hasNext());
+	}
+
+	@Test
+	public void testDescendingIterator()
+	{
+		ArrayList<ExternalMemorySkipList<Integer>> lists =
+				new ArrayList<ExternalMemorySkipList<Integer>>();
+		lists.add(new ExternalMemorySkipList<Integer>(new File("target/treap/list")));
+		lists.add(new ExternalMemorySkipList<Integer>(new File("target/treap/treap"), 1 / 10.,
+				1000000000, new Treap<Integer>()));
+		lists.add(new ExternalMemorySkipList<Integer>(new File("target/treap/promoted"), 1 / 2.,
+				1000000000, new Treap<Integer>()));
+
+		for (ExternalMemorySkipList<Integer> list : lists)
+		{
+			Iterator<Integer> iter = list.descendingIterator(null, null);
+			Assert.assertFalse(iter.hasNext());
+
+			Random rand = new Random(12);
+			TreeSet<Integer> expected = new TreeSet<Integer>();
+			for (int x = 0; x < 3000; x++)
+			{
+				int value = rand.nextInt(10000);
+				assertEquals(expected.add(value), list.add(value));
+			}
+			for (int x = 0; x < 500; x++)
+			{
+				int value = rand.nextInt(10000);
+				assertEquals(expected.remove(value), list.remove(value));
+			}
+
+			ExternalMemorySplittableSetTest.verifyDescendingIterator(expected, null, null,
+					list.descendingIterator(null, null));
+			ExternalMemorySplittableSetTest.verifyDescendingIterator(expected, 2000, 7000,
+					list.descendingIterator(7000, 2000));
+			for (Integer value : new TreeSet<Integer>(expected).headSet(1000))
+			{
+				ExternalMemorySplittableSetTest.verifyDescendingIterator(expected, null, value,
+						list.descendingIterator(null, value));
+				ExternalMemorySplittableSetTest.verifyDescendingIterator(expected, value,
+						value + 150, list.descendingIterator(value, value + 150));
+			}
+			for (int x = 0; x < 50; x++)
+			{
+				Integer from = x % 5 == 0 ? null : rand.nextInt(11000) - 500;
+				Integer to = x % 7 == 0 ? null : rand.nextInt(11000) - 500;
+				if (from != null && to != null && from > to)
+				{
+					Integer temp = from;
+					from = to;
+					to = temp;
+				}
+				ExternalMemorySplittableSetTest.verifyDescendingIterator(expected, from, to,
+						list.descendingIterator(from, to));
+			}
+		}
+	}
+
 	@Test
 	public void testIteratorAll()
 	{
@@ -52,6 +342,24 @@ public class ExternalMemorySkipListTest
 		ExternalMemorySplittableSetTest.testFullIterator(tree);
 	}
 
+	@Test
+	public void testIteratorReadAhead()
+	{
+		ExternalMemorySkipList<Integer> tree = new ExternalMemorySkipList<Integer>(new File(
+				"target/treap"), 1 / 10., 5000, new Treap<Integer>());
+		tree.setReadAheadPartitions(4);
+		ExternalMemorySplittableSetTest.testFullIterator(tree);
+	}
+
+	@Test
+	public void testIteratorRangeReadAhead()
+	{
+		ExternalMemorySkipList<Integer> tree = new ExternalMemorySkipList<Integer>(new File(
+				"target/treap"), 1 / 10., 5000, new Treap<Integer>());
+		tree.setReadAheadPartitions(4);
+		ExternalMemorySplittableSetTest.testRangeIterators(tree);
+	}
+
 	@Test
 	public void testIteratorRange()
 	{
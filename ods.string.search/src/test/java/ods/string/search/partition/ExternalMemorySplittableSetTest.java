@@ -4,12 +4,18 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Iterator;
 import java.util.Random;
 import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import ods.string.search.PrefixSearchableSet;
 import ods.string.search.Utils;
+import ods.string.search.partition.ExternalMemoryObjectCache.CompressType;
+import ods.string.search.partition.ExternalMemoryObjectCache.StorageType;
 import ods.string.search.partition.splitsets.ExternalizableArrayList;
 import ods.string.search.partition.splitsets.ExternalizableLinkedList;
 import ods.string.search.partition.splitsets.ExternalizableListSet;
@@ -44,6 +50,14 @@ public class ExternalMemorySplittableSetTest
 		testOperations(tree);
 	}
 
+	@Test
+	public void testAddSearchRemoveTrie()
+	{
+		ExternalMemorySplittableSet<String> tree = new ExternalMemorySplittableSet<String>(
+				new File("target/treap"), 500, 300000, new BinaryPatriciaTrie<String>());
+		testOperations(tree);
+	}
+
 	@Test
 	public void testAddSearchRemoveLinkedListBinarySearch()
 	{
@@ -121,6 +135,642 @@ public class ExternalMemorySplittableSetTest
 		}
 	}
 
+	@Test
+	public void testReopen()
+	{
+		ExternalMemoryObjectCache<?> cache = new ExternalMemoryObjectCache<>(new File(
+				"target/treap"), 300000, CompressType.SNAPPY, StorageType.SEGMENTED,
+				new TwoQueueEvictionPolicy());
+		ExternalMemorySplittableSet<String> tree = new ExternalMemorySplittableSet<String>(cache,
+				500,
+				new ExternalizableListSet<String>(new ExternalizableArrayList<String>(), false));
+		TreeSet<String> expected = new TreeSet<String>();
+		Random rand = new Random(3);
+		for (int x = 0; x < 20000; x++)
+		{
+			String value = rand.nextInt(100000) + "";
+			assertEquals(expected.add(value), tree.add(value));
+		}
+		tree.close();
+
+		tree = ExternalMemorySplittableSet.open(new File("target/treap"));
+		assertEquals(StorageType.SEGMENTED, tree.getObjectCache().getStorageType());
+		assertEquals(expected.size(), tree.size());
+		Iterator<String> iter = tree.iterator();
+		for (String value : expected)
+		{
+			assertTrue(iter.hasNext());
+			assertEquals(value, iter.next());
+		}
+		Assert.assertFalse(iter.hasNext());
+
+		// Modifications invalidate the manifest until the next checkpoint.
+		for (int x = 0; x < 5000; x++)
+		{
+			String value = rand.nextInt(100000) + "";
+			assertEquals(expected.remove(value), tree.remove(value));
+		}
+		assertTrue(tree.add("new"));
+		expected.add("new");
+		try
+		{
+			ExternalMemorySplittableSet.open(new File("target/treap"));
+			Assert.fail("Opened a tree modified after its last checkpoint.");
+		} catch (IllegalStateException e)
+		{
+		}
+		tree.checkpoint();
+
+		ExternalMemorySplittableSet<String> reopened = ExternalMemorySplittableSet.open(new File(
+				"target/treap"));
+		assertEquals(expected.size(), reopened.size());
+		for (String value : expected)
+			assertTrue(reopened.contains(value));
+		tree.close();
+	}
+
+	@Test
+	public void testBulkLoad()
+	{
+		TreeSet<Integer> expected = new TreeSet<Integer>();
+		Random rand = new Random(4);
+		for (int x = 0; x < 30000; x++)
+			expected.add(rand.nextInt(1000000));
+
+		ExternalMemorySplittableSet<Integer> tree = new ExternalMemorySplittableSet<Integer>(
+				new File("target/treap"), 50, 30000000, new Treap<Integer>());
+		tree.bulkLoad(expected.iterator());
+		assertEquals(expected.size(), tree.size());
+		Iterator<Integer> iter = tree.iterator();
+		for (Integer value : expected)
+		{
+			assertTrue(iter.hasNext());
+			assertEquals(value, iter.next());
+		}
+		Assert.assertFalse(iter.hasNext());
+		for (int x = 0; x < 1000; x++)
+		{
+			int value = rand.nextInt(1000000);
+			assertEquals(expected.contains(value), tree.contains(value));
+		}
+
+		// The loaded tree keeps working as a regular tree.
+		for (int x = 0; x < 20000; x++)
+		{
+			int value = rand.nextInt(1000000);
+			if (rand.nextBoolean())
+				assertEquals(expected.add(value), tree.add(value));
+			else
+				assertEquals(expected.remove(value), tree.remove(value));
+		}
+		assertEquals(expected.size(), tree.size());
+		iter = tree.iterator();
+		for (Integer value : expected)
+		{
+			assertTrue(iter.hasNext());
+			assertEquals(value, iter.next());
+		}
+		Assert.assertFalse(iter.hasNext());
+
+		tree = new ExternalMemorySplittableSet<Integer>(new File("target/treap"), 50, 30000000,
+				new Treap<Integer>());
+		tree.bulkLoad(new TreeSet<Integer>().iterator());
+		assertEquals(0, tree.size());
+		assertTrue(tree.add(5));
+		assertTrue(tree.contains(5));
+
+		tree = new ExternalMemorySplittableSet<Integer>(new File("target/treap"), 50, 30000000,
+				new Treap<Integer>());
+		tree.bulkLoad(new TreeSet<Integer>(Arrays.asList(7)).iterator(), 1.0);
+		assertEquals(1, tree.size());
+		assertTrue(tree.contains(7));
+		assertTrue(tree.remove(7));
+		assertEquals(0, tree.size());
+
+		tree = new ExternalMemorySplittableSet<Integer>(new File("target/treap"), 50, 30000000,
+				new Treap<Integer>());
+		try
+		{
+			tree.bulkLoad(Arrays.asList(1, 2, 3, 3).iterator());
+			Assert.fail("Loaded unsorted input.");
+		} catch (IllegalArgumentException e)
+		{
+		}
+		assertEquals(3, tree.size());
+		assertTrue(tree.contains(3));
+	}
+
+	@Test
+	public void testBatchOperations()
+	{
+		ExternalMemorySplittableSet<Integer> tree = new ExternalMemorySplittableSet<Integer>(
+				new File("target/treap"), 50, 30000000, new Treap<Integer>());
+		TreeSet<Integer> expected = new TreeSet<Integer>();
+		Random rand = new Random(5);
+		for (int batch = 0; batch < 20; batch++)
+		{
+			ArrayList<Integer> values = new ArrayList<Integer>();
+			for (int x = 0; x < 2000; x++)
+				values.add(rand.nextInt(100000));
+
+			ArrayList<Integer> lookups = new ArrayList<Integer>();
+			for (int x = 0; x < 1000; x++)
+				lookups.add(rand.nextInt(100000));
+			BitSet found = tree.containsAll(lookups);
+			for (int x = 0; x < lookups.size(); x++)
+				assertEquals(expected.contains(lookups.get(x)), found.get(x));
+
+			int added = 0;
+			for (Integer value : values)
+				if (expected.add(value))
+					added++;
+			assertEquals(added, tree.addAll(values));
+			assertEquals(expected.size(), tree.size());
+			for (int x = 0; x < 10; x++)
+			{
+				int value = rand.nextInt(100000);
+				assertEquals(expected.headSet(value).size(), tree.rank(value));
+			}
+		}
+
+		Iterator<Integer> iter = tree.iterator();
+		for (Integer value : expected)
+		{
+			assertTrue(iter.hasNext());
+			assertEquals(value, iter.next());
+		}
+		Assert.assertFalse(iter.hasNext());
+		assertEquals(0, tree.addAll(expected));
+		assertEquals(expected.size(), tree.containsAll(expected).cardinality());
+	}
+
+	@Test
+	public void testConcurrent() throws InterruptedException
+	{
+		ExternalMemoryObjectCache<?> cache = new ExternalMemoryObjectCache<>(new File(
+				"target/treap"), 200000, CompressType.SNAPPY);
+		cache.setStripeCount(4);
+		final ExternalMemorySplittableSet<Integer> tree = new ExternalMemorySplittableSet<Integer>(
+				cache, 50, new Treap<Integer>());
+		tree.setConcurrent(true);
+
+		final int writers = 4;
+		final ArrayList<TreeSet<Integer>> expected = new ArrayList<TreeSet<Integer>>();
+		final ArrayList<Throwable> failures = new ArrayList<Throwable>();
+		final AtomicBoolean writing = new AtomicBoolean(true);
+		ArrayList<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < writers; t++)
+		{
+			final int writer = t;
+			final TreeSet<Integer> written = new TreeSet<Integer>();
+			expected.add(written);
+			threads.add(new Thread()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						// Each writer owns the values congruent to its index.
+						Random rand = new Random(writer);
+						for (int x = 0; x < 10000; x++)
+						{
+							int value = rand.nextInt(10000) * writers + writer;
+							if (rand.nextInt(3) > 0)
+								assertEquals(written.add(value), tree.add(value));
+							else
+								assertEquals(written.remove(value), tree.remove(value));
+							assertEquals(written.contains(value), tree.contains(value));
+						}
+					} catch (Throwable e)
+					{
+						synchronized (failures)
+						{
+							failures.add(e);
+						}
+					}
+				}
+			});
+		}
+		for (int t = 0; t < 2; t++)
+		{
+			final boolean descending = t == 1;
+			threads.add(new Thread()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						while (writing.get())
+						{
+							Integer previous = null;
+							Iterator<Integer> iter = descending ? tree.descendingIterator(null,
+									null) : tree.iterator();
+							while (iter.hasNext())
+							{
+								Integer value = iter.next();
+								assertTrue(previous == null || (descending ? previous > value
+										: previous < value));
+								previous = value;
+							}
+						}
+					} catch (Throwable e)
+					{
+						synchronized (failures)
+						{
+							failures.add(e);
+						}
+					}
+				}
+			});
+		}
+
+		for (Thread thread : threads)
+			thread.start();
+		for (int t = 0; t < writers; t++)
+			threads.get(t).join();
+		writing.set(false);
+		for (Thread thread : threads)
+			thread.join();
+		if (!failures.isEmpty())
+			throw new AssertionError(failures.get(0));
+
+		TreeSet<Integer> all = new TreeSet<Integer>();
+		for (TreeSet<Integer> written : expected)
+			all.addAll(written);
+		assertEquals(all.size(), tree.size());
+		Iterator<Integer> iter = tree.iterator();
+		for (Integer value : all)
+		{
+			assertTrue(iter.hasNext());
+			assertEquals(value, iter.next());
+		}
+		Assert.assertFalse(iter.hasNext());
+		iter = tree.iterator(1000, 2000);
+		for (Integer value : all.subSet(1000, 2000))
+			assertEquals(value, iter.next());
+		Assert.assertFalse(iter.hasNext());
+		assertEquals(all.subSet(1000, 2000).size(), tree.count(1000, 2000));
+		assertEquals(all.headSet(20000).size(), tree.rank(20000));
+
+		// The latches of the nodes merged away go with them.
+		for (Integer value : all)
+			assertTrue(tree.remove(value));
+		assertEquals(0, tree.size());
+		assertTrue(tree.getLatchCount() <= 1);
+	}
+
+	@Test
+	public void testBufferedMode()
+	{
+		ExternalMemorySplittableSet<String> tree = new ExternalMemorySplittableSet<String>(
+				new File("target/treap"), 50, 30000000, new Treap<String>());
+		tree.setBufferSize(64);
+		TreeSet<String> expected = new TreeSet<String>();
+		Random rand = new Random(13);
+		for (int x = 0; x < 30000; x++)
+		{
+			String value = Utils.convertToFixedLengthString(rand.nextInt(20000), 5);
+			int operation = rand.nextInt(5);
+			if (operation == 0)
+				assertEquals(expected.add(value), tree.add(value));
+			else if (operation == 1)
+			{
+				expected.add(value);
+				tree.upsert(value);
+			} else if (operation == 2)
+				assertEquals(expected.remove(value), tree.remove(value));
+			else if (operation == 3)
+			{
+				expected.remove(value);
+				tree.delete(value);
+			} else
+				assertEquals(expected.contains(value), tree.contains(value));
+		}
+		assertEquals(expected.size(), tree.size());
+		Iterator<String> iter = tree.iterator();
+		for (String value : expected)
+		{
+			assertTrue(iter.hasNext());
+			assertEquals(value, iter.next());
+		}
+		Assert.assertFalse(iter.hasNext());
+
+		// Buffered messages survive being evicted and reopened.
+		for (int x = 0; x < 1000; x++)
+		{
+			String value = Utils.convertToFixedLengthString(rand.nextInt(20000), 5);
+			expected.add(value);
+			tree.upsert(value);
+		}
+		tree.close();
+		tree = ExternalMemorySplittableSet.open(new File("target/treap"));
+		assertEquals(64, tree.getBufferSize());
+		for (int x = 0; x < 5000; x++)
+		{
+			String value = Utils.convertToFixedLengthString(rand.nextInt(20000), 5);
+			if (rand.nextBoolean())
+				assertEquals(expected.remove(value), tree.remove(value));
+			else
+				assertEquals(expected.contains(value), tree.contains(value));
+		}
+		assertEquals(expected.size(), tree.size());
+		assertEquals(expected.headSet("10000").size(), tree.rank("10000"));
+		tree.setBufferSize(0);
+		iter = tree.iterator();
+		for (String value : expected)
+		{
+			assertTrue(iter.hasNext());
+			assertEquals(value, iter.next());
+		}
+		Assert.assertFalse(iter.hasNext());
+	}
+
+	@Test
+	public void testBufferedModeLoads()
+	{
+		long[] loads = new long[2];
+		for (int mode = 0; mode < 2; mode++)
+		{
+			Assert.assertTrue(Utils.deleteRecursively(new File("target/treap")));
+			ExternalMemorySplittableSet<Integer> tree = new ExternalMemorySplittableSet<Integer>(
+					new File("target/treap"), 100, 100000, new Treap<Integer>());
+			tree.setBufferSize(mode * 200);
+			Random rand = new Random(17);
+			for (int x = 0; x < 40000; x++)
+				tree.upsert(rand.nextInt());
+			loads[mode] = tree.getObjectCache().getMetrics().getLoads();
+			assertEquals(40000, tree.size());
+			tree.close();
+		}
+
+		// Random upserts into a tree much larger than the cache load far fewer leaves.
+		assertTrue("Unbuffered loads: " + loads[0] + ", buffered loads: " + loads[1],
+				loads[1] * 3 < loads[0]);
+	}
+
+	@Test
+	public void testRemoveRange()
+	{
+		testRemoveRange(false);
+	}
+
+	@Test
+	public void testRemoveRangeConcurrent()
+	{
+		testRemoveRange(true);
+	}
+
+	private void testRemoveRange(boolean concurrent)
+	{
+		ExternalMemorySplittableSet<String> tree = new ExternalMemorySplittableSet<String>(
+				new File("target/treap"), 20, 200000, new Treap<String>());
+		tree.setConcurrent(concurrent);
+		TreeSet<String> expected = new TreeSet<String>();
+		Random rand = new Random(19);
+		for (int x = 0; x < 20000; x++)
+		{
+			String value = Utils.convertToFixedLengthString(rand.nextInt(100000), 6);
+			assertEquals(expected.add(value), tree.add(value));
+		}
+
+		// Dropping most of the tree only loads the leaves at the ends of the range, unless the
+		// leaves are visited one at a time in concurrent mode.
+		long loads = tree.getObjectCache().getMetrics().getLoads();
+		int removed = expected.subSet("010000", "090000").size();
+		expected.subSet("010000", "090000").clear();
+		assertEquals(removed, tree.removeRange("010000", "090000"));
+		loads = tree.getObjectCache().getMetrics().getLoads() - loads;
+		assertTrue("Loads: " + loads, concurrent || loads < 200);
+		verifyRemoveRange(expected, tree);
+
+		String[][] ranges = { { "000500", "000510" }, { "005000", "009000" },
+				{ "089990", "095000" }, { null, "000300" }, { "099000", null },
+				{ "096000", "094000" } };
+		for (String[] range : ranges)
+		{
+			String from = range[0] == null ? "" : range[0];
+			String to = range[1] == null ? "999999" : range[1];
+			if (from.compareTo(to) > 0)
+			{
+				String temp = from;
+				from = to;
+				to = temp;
+			}
+			removed = expected.subSet(from, to).size();
+			expected.subSet(from, to).clear();
+			assertEquals(removed, tree.removeRange(range[0], range[1]));
+			verifyRemoveRange(expected, tree);
+		}
+
+		// The tree stays usable after the ranges are gone.
+		for (int x = 0; x < 20000; x++)
+		{
+			String value = Utils.convertToFixedLengthString(rand.nextInt(100000), 6);
+			if (rand.nextBoolean())
+				assertEquals(expected.add(value), tree.add(value));
+			else
+				assertEquals(expected.remove(value), tree.remove(value));
+		}
+		verifyRemoveRange(expected, tree);
+		tree.close();
+		tree = ExternalMemorySplittableSet.open(new File("target/treap"));
+		tree.setConcurrent(concurrent);
+		assertEquals(expected.size(), tree.removeRange(null, null));
+		expected.clear();
+		verifyRemoveRange(expected, tree);
+		assertTrue(tree.add("1"));
+		assertTrue(tree.contains("1"));
+	}
+
+	private void verifyRemoveRange(TreeSet<String> expected,
+			ExternalMemorySplittableSet<String> tree)
+	{
+		assertEquals(expected.size(), tree.size());
+		Iterator<String> iter = tree.iterator();
+		for (String value : expected)
+		{
+			assertTrue(iter.hasNext());
+			assertEquals(value, iter.next());
+		}
+		Assert.assertFalse(iter.hasNext());
+		for (int x = 0; x < 100000; x += 97)
+		{
+			String value = Utils.convertToFixedLengthString(x, 6);
+			assertEquals(expected.contains(value), tree.contains(value));
+			assertEquals(expected.headSet(value).size(), tree.rank(value));
+		}
+	}
+
+	@Test
+	public void testOrderStatistics()
+	{
+		ExternalMemorySplittableSet<String> tree = new ExternalMemorySplittableSet<String>(
+				new File("target/treap"), 20, 30000000, new Treap<String>());
+		TreeSet<String> expected = new TreeSet<String>();
+		Random rand = new Random(11);
+		for (int x = 0; x < 20000; x++)
+		{
+			String value = Utils.convertToFixedLengthString(rand.nextInt(10000), 5);
+			if (rand.nextInt(3) > 0)
+				assertEquals(expected.add(value), tree.add(value));
+			else
+				assertEquals(expected.remove(value), tree.remove(value));
+		}
+		ArrayList<String> batch = new ArrayList<String>();
+		for (int x = 0; x < 2000; x++)
+			batch.add(Utils.convertToFixedLengthString(rand.nextInt(12000), 5));
+		expected.addAll(batch);
+		tree.addAll(batch);
+		verifyOrderStatistics(expected, tree, rand);
+
+		tree.close();
+		tree = ExternalMemorySplittableSet.open(new File("target/treap"));
+		verifyOrderStatistics(expected, tree, rand);
+		tree.close();
+
+		// A bulk loaded tree has the same counts.
+		Assert.assertTrue(Utils.deleteRecursively(new File("target/treap")));
+		tree = new ExternalMemorySplittableSet<String>(new File("target/treap"), 20, 30000000,
+				new Treap<String>());
+		tree.bulkLoad(expected.iterator());
+		verifyOrderStatistics(expected, tree, rand);
+		for (int x = 0; x < 3000; x++)
+		{
+			String value = Utils.convertToFixedLengthString(rand.nextInt(12000), 5);
+			assertEquals(expected.remove(value), tree.remove(value));
+		}
+		verifyOrderStatistics(expected, tree, rand);
+	}
+
+	private void verifyOrderStatistics(TreeSet<String> expected,
+			ExternalMemorySplittableSet<String> tree, Random rand)
+	{
+		ArrayList<String> sorted = new ArrayList<String>(expected);
+		for (int x = 0; x < sorted.size(); x += 37)
+			assertEquals(sorted.get(x), tree.select(x));
+		assertEquals(sorted.get(sorted.size() - 1), tree.select(sorted.size() - 1));
+		for (int x = 0; x < 500; x++)
+		{
+			String from = Utils.convertToFixedLengthString(rand.nextInt(12000), 5);
+			String to = Utils.convertToFixedLengthString(rand.nextInt(12000), 5);
+			assertEquals(expected.headSet(from).size(), tree.rank(from));
+			if (from.compareTo(to) <= 0)
+				assertEquals(expected.subSet(from, to).size(), tree.count(from, to));
+			else
+				assertEquals(expected.subSet(to, from).size(), tree.count(from, to));
+		}
+		assertEquals(expected.size(), tree.count(null, null));
+		try
+		{
+			tree.select(expected.size());
+			Assert.fail();
+		} catch (IndexOutOfBoundsException e)
+		{
+		}
+	}
+
+	@Test
+	public void testSeparatorTruncation()
+	{
+		String suffix = "-a-long-suffix-shared-by-every-element";
+		TreeSet<String> expected = new TreeSet<String>();
+		for (int x = 100; x < 500; x++)
+			expected.add("p" + x + suffix);
+		for (int x = 0; x < 4; x++)
+			expected.add("s\uD83C\uDF00" + x + suffix);
+		expected.add("s\uD83D\uDE00" + suffix);
+
+		/*
+		 * Bulk loaded leaves hold 4 elements, so the leaf after "p103..." is keyed by "p104". The
+		 * last leaf's key keeps the surrogate pair its elements differ in whole.
+		 */
+		ExternalMemorySplittableSet<String> tree = new ExternalMemorySplittableSet<String>(
+				new File("target/treap"), 4, 30000000, new Treap<String>());
+		tree.bulkLoad(expected.iterator(), 1.0);
+		assertEquals("p104", tree.getLeafKey("p104" + suffix));
+		assertEquals("s\uD83D\uDE00", tree.getLeafKey("s\uD83D\uDE00" + suffix));
+		for (String value : expected)
+			assertTrue(tree.contains(value));
+		Assert.assertFalse(tree.contains("p104"));
+
+		// Separators created by splits route every element to the right leaf as well.
+		tree = new ExternalMemorySplittableSet<String>(new File("target/treap"), 8, 30000000,
+				new Treap<String>());
+		Random rand = new Random(6);
+		TreeSet<String> added = new TreeSet<String>();
+		for (int x = 0; x < 5000; x++)
+		{
+			String value = rand.nextInt(3000) + suffix;
+			if (rand.nextInt(4) > 0)
+				assertEquals(added.add(value), tree.add(value));
+			else
+				assertEquals(added.remove(value), tree.remove(value));
+		}
+		for (int x = 0; x < 3000; x++)
+			assertEquals(added.contains(x + suffix), tree.contains(x + suffix));
+		Iterator<String> iter = tree.iterator();
+		for (String value : added)
+		{
+			assertTrue(iter.hasNext());
+			assertEquals(value, iter.next());
+		}
+		Assert.assertFalse(iter.hasNext());
+	}
+
+	@Test
+	public void testSequentialAppend()
+	{
+		ExternalMemorySplittableSet<String> tree = new ExternalMemorySplittableSet<String>(
+				new File("target/treap"), 50, 30000000, new Treap<String>());
+		for (int x = 0; x < 10000; x++)
+			assertTrue(tree.add(Utils.convertToFixedLengthString(x, 12)));
+		assertEquals(10000, tree.size());
+		for (int x = 0; x < 10000; x += 7)
+			assertTrue(tree.contains(Utils.convertToFixedLengthString(x, 12)));
+		Iterator<String> iter = tree.iterator();
+		for (int x = 0; x < 10000; x++)
+		{
+			assertTrue(iter.hasNext());
+			assertEquals(Utils.convertToFixedLengthString(x, 12), iter.next());
+		}
+		Assert.assertFalse(iter.hasNext());
+
+		// Appends leave full leaves behind, so there is about one node per 50 elements.
+		tree.close();
+		int nodeFiles = new File("target/treap").list().length - 1;
+		assertTrue("Too many nodes: " + nodeFiles, nodeFiles < 10000 / 50 + 10);
+
+		// Out of order adds and removes still work after appends.
+		tree = ExternalMemorySplittableSet.open(new File("target/treap"));
+		Random rand = new Random(7);
+		TreeSet<String> expected = new TreeSet<String>();
+		for (int x = 0; x < 10000; x++)
+			expected.add(Utils.convertToFixedLengthString(x, 12));
+		for (int x = 0; x < 5000; x++)
+		{
+			String value = Utils.convertToFixedLengthString(rand.nextInt(12000), 12);
+			if (rand.nextBoolean())
+				assertEquals(expected.add(value), tree.add(value));
+			else
+				assertEquals(expected.remove(value), tree.remove(value));
+		}
+		for (int x = 10000; x < 11000; x++)
+		{
+			String value = Utils.convertToFixedLengthString(x * 2, 12);
+			assertEquals(expected.add(value), tree.add(value));
+		}
+		assertEquals(expected.size(), tree.size());
+		iter = tree.iterator();
+		for (String value : expected)
+		{
+			assertTrue(iter.hasNext());
+			assertEquals(value, iter.next());
+		}
+		Assert.assertFalse(iter.hasNext());
+	}
+
 	@Test
 	public void testIteratorAll()
 	{
@@ -130,6 +780,24 @@ public class ExternalMemorySplittableSetTest
 		testFullIterator(tree);
 	}
 
+	@Test
+	public void testIteratorReadAhead()
+	{
+		ExternalMemorySplittableSet<Integer> tree = new ExternalMemorySplittableSet<Integer>(
+				new File("target/treap"), 10, 5000, new Treap<Integer>());
+		tree.setReadAheadPartitions(4);
+		testFullIterator(tree);
+	}
+
+	@Test
+	public void testIteratorRangeReadAhead()
+	{
+		ExternalMemorySplittableSet<Integer> tree = new ExternalMemorySplittableSet<Integer>(
+				new File("target/treap"), 10, 5000, new Treap<Integer>());
+		tree.setReadAheadPartitions(4);
+		testRangeIterators(tree);
+	}
+
 	static void testFullIterator(PrefixSearchableSet<Integer> tree)
 	{
 		for (int x = 1; x < 200; x++)
@@ -170,6 +838,15 @@ public class ExternalMemorySplittableSetTest
 		testRangeIterators(tree);
 	}
 
+	@Test
+	public void testIteratorRangeTrie()
+	{
+		ExternalMemorySplittableSet<Integer> tree = new ExternalMemorySplittableSet<Integer>(
+				new File("target/treap"), 50, 30000000, new BinaryPatriciaTrie<Integer>());
+
+		testRangeIterators(tree);
+	}
+
 	@Test
 	public void testIteratorRangeTreeSet()
 	{
@@ -213,6 +890,93 @@ public class ExternalMemorySplittableSetTest
 		assertEquals(false, iter.hasNext());
 	}
 
+	@Test
+	public void testDescendingIterator()
+	{
+		ArrayList<ExternalMemorySplittableSet<Integer>> trees =
+				new ArrayList<ExternalMemorySplittableSet<Integer>>();
+		trees.add(new ExternalMemorySplittableSet<Integer>(new File("target/treap/treap"), 20,
+				30000000, new Treap<Integer>()));
+		trees.add(new ExternalMemorySplittableSet<Integer>(new File("target/treap/treeset"), 20,
+				30000000, new SplittableTreeSetAdapter<Integer>()));
+		trees.add(new ExternalMemorySplittableSet<Integer>(new File("target/treap/array"), 20,
+				1000, new ExternalizableListSet<Integer>(new ExternalizableArrayList<Integer>(),
+						false)));
+		trees.add(new ExternalMemorySplittableSet<Integer>(new File("target/treap/concurrent"),
+				20, 30000000, new Treap<Integer>()));
+		trees.get(3).setConcurrent(true);
+		trees.add(new ExternalMemorySplittableSet<Integer>(new File("target/treap/buffered"), 20,
+				30000000, new Treap<Integer>()));
+		trees.get(4).setBufferSize(40);
+
+		for (ExternalMemorySplittableSet<Integer> tree : trees)
+		{
+			Iterator<Integer> iter = tree.descendingIterator(null, null);
+			Assert.assertFalse(iter.hasNext());
+
+			Random rand = new Random(11);
+			TreeSet<Integer> expected = new TreeSet<Integer>();
+			for (int x = 0; x < 3000; x++)
+			{
+				int value = rand.nextInt(10000);
+				expected.add(value);
+				tree.add(value);
+			}
+			for (int x = 0; x < 500; x++)
+			{
+				int value = rand.nextInt(10000);
+				expected.remove(value);
+				tree.remove(value);
+			}
+
+			verifyDescendingIterator(expected, null, null, tree.descendingIterator(null, null));
+			verifyDescendingIterator(expected, null, expected.first(), tree.descendingIterator(
+					null, expected.first()));
+			verifyDescendingIterator(expected, expected.last(), null, tree.descendingIterator(
+					expected.last(), null));
+			verifyDescendingIterator(expected, 5000, 5000, tree.descendingIterator(5000, 5000));
+			verifyDescendingIterator(expected, 2000, 7000, tree.descendingIterator(7000, 2000));
+			for (int x = 0; x < 50; x++)
+			{
+				Integer from = x % 5 == 0 ? null : rand.nextInt(11000) - 500;
+				Integer to = x % 7 == 0 ? null : rand.nextInt(11000) - 500;
+				if (x % 3 == 0 && from != null)
+					from = expected.ceiling(from);
+				if (x % 4 == 0 && to != null)
+					to = expected.floor(to);
+				if (from != null && to != null && from > to)
+				{
+					Integer temp = from;
+					from = to;
+					to = temp;
+				}
+				verifyDescendingIterator(expected, from, to, tree.descendingIterator(from, to));
+			}
+		}
+	}
+
+	/**
+	 * Checks that the iterator returns the elements in [from, to) in descending order, where a
+	 * null bound leaves that end of the range open.
+	 */
+	static void verifyDescendingIterator(TreeSet<Integer> expected, Integer from, Integer to,
+			Iterator<Integer> iter)
+	{
+		Iterator<Integer> expectedIter = expected.descendingIterator();
+		String range = "[" + from + ", " + to + ")";
+		while (expectedIter.hasNext())
+		{
+			Integer value = expectedIter.next();
+			if (to != null && value >= to)
+				continue;
+			if (from != null && value < from)
+				break;
+			assertTrue(range, iter.hasNext());
+			assertEquals(range, value, iter.next());
+		}
+		Assert.assertFalse(range, iter.hasNext());
+	}
+
 	@Test
 	public void testIteratorPrefix()
 	{
@@ -1,6 +1,11 @@
 package ods.string.search.partition;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.TreeSet;
 
 import ods.string.search.Utils;
 
@@ -57,4 +62,61 @@ public class ExternalMemoryTrieTest
 
 		ExternalMemorySplittableSetTest.testPrefixWithManyMatches(tree);
 	}
+
+	@Test
+	public void testIteratorRange()
+	{
+		ExternalMemoryTrie<String> tree = new ExternalMemoryTrie<String>(new File("target/treap"),
+				50, 100000, 0);
+		TreeSet<String> expected = new TreeSet<String>();
+		Random rand = new Random(7);
+		while (expected.size() < 10000)
+		{
+			String value = randomDigits(rand, 8);
+			Assert.assertEquals(expected.add(value), tree.add(value));
+		}
+
+		for (int x = 0; x < 200; x++)
+		{
+			String from = randomDigits(rand, rand.nextInt(8) + 1);
+			String to = randomDigits(rand, rand.nextInt(8) + 1);
+			if (from.compareTo(to) > 0)
+			{
+				String temp = from;
+				from = to;
+				to = temp;
+			}
+			verifyRange(expected.subSet(from, to), tree.iterator(from, to));
+			verifyRange(expected.subSet(from, to), tree.iterator(to, from));
+			verifyRange(expected.tailSet(from), tree.iterator(from, null));
+			verifyRange(expected.headSet(to), tree.iterator(null, to));
+		}
+		verifyRange(expected, tree.iterator(null, null));
+
+		tree.getObjectCache().flush();
+		tree.getObjectCache().getMetrics().reset();
+		verifyRange(expected, tree.iterator(null, null));
+		long fullLoads = tree.getObjectCache().getMetrics().getLoads();
+
+		tree.getObjectCache().getMetrics().reset();
+		verifyRange(expected.subSet("5000", "5001"), tree.iterator("5000", "5001"));
+		long rangeLoads = tree.getObjectCache().getMetrics().getLoads();
+		Assert.assertTrue(rangeLoads + " " + fullLoads, rangeLoads * 10 < fullLoads);
+	}
+
+	private static String randomDigits(Random rand, int length)
+	{
+		String result = "";
+		for (int x = 0; x < length; x++)
+			result += (char) (rand.nextInt(10) + '0');
+		return result;
+	}
+
+	private static void verifyRange(Collection<String> expected, Iterator<String> actual)
+	{
+		ArrayList<String> results = new ArrayList<String>();
+		while (actual.hasNext())
+			results.add(actual.next());
+		Assert.assertEquals(new ArrayList<String>(expected), results);
+	}
 }
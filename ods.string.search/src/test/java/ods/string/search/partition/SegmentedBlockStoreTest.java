@@ -0,0 +1,122 @@
+package ods.string.search.partition;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map.Entry;
+import java.util.Random;
+
+import ods.string.search.Utils;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SegmentedBlockStoreTest
+{
+	@Before
+	public void setup()
+	{
+		Assert.assertTrue(Utils.deleteRecursively(new File("target/segments")));
+	}
+
+	@Test
+	public void testReadWriteReopen() throws Exception
+	{
+		SegmentedBlockStore store = new SegmentedBlockStore(new File("target/segments"), 10000);
+		HashMap<String, byte[]> expected = new HashMap<String, byte[]>();
+		Random rand = new Random();
+		for (int x = 0; x < 5000; x++)
+		{
+			String blockId = rand.nextInt(500) + "-" + rand.nextInt(3);
+			byte[] data = new byte[rand.nextInt(200)];
+			rand.nextBytes(data);
+			if (rand.nextInt(10) == 0)
+			{
+				store.delete(blockId);
+				expected.remove(blockId);
+			} else
+			{
+				store.write(blockId, data);
+				expected.put(blockId, data);
+			}
+		}
+		verifyContents(store, expected);
+		store.close();
+
+		store = new SegmentedBlockStore(new File("target/segments"), 10000);
+		verifyContents(store, expected);
+		assertNull(store.read("missing"));
+		store.close();
+	}
+
+	@Test
+	public void testGarbageCollection() throws Exception
+	{
+		SegmentedBlockStore store = new SegmentedBlockStore(new File("target/segments"), 10000);
+		byte[] data = new byte[100];
+		for (int x = 0; x < 20000; x++)
+		{
+			data[0] = (byte) x;
+			store.write((x % 50) + "", data.clone());
+		}
+
+		// Only 50 blocks are live, so old segments must eventually be reclaimed.
+		long timeout = System.currentTimeMillis() + 10000;
+		while (store.getSegmentCount() > 5 && System.currentTimeMillis() < timeout)
+			Thread.sleep(10);
+		assertTrue(store.getSegmentCount() <= 5);
+
+		for (int x = 0; x < 50; x++)
+			assertEquals((byte) (19950 + x), store.read(x + "")[0]);
+		store.close();
+
+		store = new SegmentedBlockStore(new File("target/segments"), 10000);
+		for (int x = 0; x < 50; x++)
+			assertEquals((byte) (19950 + x), store.read(x + "")[0]);
+		store.close();
+	}
+
+	@Test
+	public void testTruncatedRecord() throws Exception
+	{
+		SegmentedBlockStore store = new SegmentedBlockStore(new File("target/segments"));
+		for (int x = 0; x < 10; x++)
+			store.write(x + "", new byte[100]);
+		store.close();
+
+		// Cut into the data of the last record as if a write was interrupted.
+		RandomAccessFile segment = new RandomAccessFile(new File("target/segments/segment-0.log"),
+				"rw");
+		segment.setLength(segment.length() - 50);
+		segment.close();
+
+		store = new SegmentedBlockStore(new File("target/segments"));
+		for (int x = 0; x < 9; x++)
+			assertEquals(100, store.read(x + "").length);
+		assertNull(store.read("9"));
+		store.write("9", new byte[10]);
+		assertEquals(10, store.read("9").length);
+		store.close();
+	}
+
+	private void verifyContents(SegmentedBlockStore store, HashMap<String, byte[]> expected)
+			throws Exception
+	{
+		for (Entry<String, byte[]> entry : expected.entrySet())
+			assertArrayEquals(entry.getValue(), store.read(entry.getKey()));
+		for (int x = 0; x < 500; x++)
+		{
+			for (int y = 0; y < 3; y++)
+			{
+				if (!expected.containsKey(x + "-" + y))
+					assertNull(store.read(x + "-" + y));
+			}
+		}
+	}
+}
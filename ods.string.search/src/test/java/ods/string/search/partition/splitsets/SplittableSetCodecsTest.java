@@ -0,0 +1,108 @@
+package ods.string.search.partition.splitsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.Iterator;
+
+import ods.string.search.partition.BinaryPatriciaTrie;
+
+import org.junit.Test;
+
+public class SplittableSetCodecsTest
+{
+	@Test
+	public void testTreap() throws IOException
+	{
+		testStrings(new Treap<String>());
+		testIntegers(new Treap<Integer>());
+		testDoubles(new Treap<Double>());
+		testStrings(new Treap<String>(Collections.<String> reverseOrder()));
+	}
+
+	@Test
+	public void testListSet() throws IOException
+	{
+		testStrings(new ExternalizableListSet<String>(new ExternalizableArrayList<String>(),
+				false));
+		testStrings(new ExternalizableListSet<String>(new ExternalizableLinkedList<String>(),
+				true));
+		testIntegers(new ExternalizableListSet<Integer>(new ExternalizableArrayList<Integer>(),
+				false));
+		testDoubles(new ExternalizableListSet<Double>(new ExternalizableLinkedList<Double>(),
+				false));
+	}
+
+	@Test
+	public void testTreeSetAdapter() throws IOException
+	{
+		testStrings(new SplittableTreeSetAdapter<String>());
+		testIntegers(new SplittableTreeSetAdapter<Integer>());
+		testDoubles(new SplittableTreeSetAdapter<Double>());
+	}
+
+	@Test
+	public void testPatriciaTrie() throws IOException
+	{
+		testStrings(new BinaryPatriciaTrie<String>());
+		testIntegers(new BinaryPatriciaTrie<Integer>());
+	}
+
+	private void testStrings(SplittableSet<String> set) throws IOException
+	{
+		assertRoundTrip(set);
+		for (int x = 0; x < 300; x++)
+			set.add("\u00e9l\u00e9ment" + x);
+		set.add("");
+		assertRoundTrip(set);
+	}
+
+	private void testIntegers(SplittableSet<Integer> set) throws IOException
+	{
+		for (int x = -150; x < 150; x++)
+			set.add(x * 7);
+		assertRoundTrip(set);
+	}
+
+	private void testDoubles(SplittableSet<Double> set) throws IOException
+	{
+		for (int x = 0; x < 100; x++)
+			set.add(x / 3.);
+		assertRoundTrip(set);
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T extends Comparable<T> & Serializable> void assertRoundTrip(SplittableSet<T> set)
+			throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		SplittableSetCodecs.write(set, out);
+		out.close();
+
+		SplittableSet<T> result = (SplittableSet<T>) SplittableSetCodecs.read(new DataInputStream(
+				new ByteArrayInputStream(bytes.toByteArray())));
+		assertEquals(set.getClass(), result.getClass());
+		assertEquals(set.size(), result.size());
+		assertEquals(set.getByteSize(), result.getByteSize());
+		assertFalse(result.isDirty());
+
+		Iterator<T> expected = set.iterator();
+		Iterator<T> actual = result.iterator();
+		while (expected.hasNext())
+		{
+			T elem = expected.next();
+			assertEquals(elem, actual.next());
+			assertTrue(result.contains(elem));
+		}
+		assertFalse(actual.hasNext());
+	}
+}